@@ -1,61 +1,142 @@
 package com.xnx3.elasticsearch;
 
+import java.io.Closeable;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.LinkedList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
 import org.apache.http.HttpHost;
 import org.apache.http.auth.AuthScope;
 import org.apache.http.auth.UsernamePasswordCredentials;
 import org.apache.http.client.CredentialsProvider;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.conn.routing.HttpRoute;
 import org.apache.http.impl.client.BasicCredentialsProvider;
 import org.apache.http.impl.nio.client.HttpAsyncClientBuilder;
-import org.apache.http.util.EntityUtils;
+import org.apache.http.impl.nio.conn.PoolingNHttpClientConnectionManager;
+import org.apache.http.nio.reactor.IOReactorException;
+import org.apache.http.pool.PoolStats;
+import org.elasticsearch.ElasticsearchStatusException;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.DocWriteRequest;
+import org.elasticsearch.action.DocWriteResponse;
 import org.elasticsearch.action.DocWriteResponse.Result;
 import org.elasticsearch.action.admin.indices.create.CreateIndexRequest;
 import org.elasticsearch.action.admin.indices.create.CreateIndexResponse;
+import org.elasticsearch.action.admin.indices.forcemerge.ForceMergeRequest;
 import org.elasticsearch.action.admin.indices.get.GetIndexRequest;
+import org.elasticsearch.action.admin.indices.refresh.RefreshRequest;
+import org.elasticsearch.action.admin.indices.settings.get.GetSettingsRequest;
+import org.elasticsearch.action.admin.indices.settings.get.GetSettingsResponse;
+import org.elasticsearch.action.admin.indices.settings.put.UpdateSettingsRequest;
+import org.elasticsearch.action.bulk.BulkItemResponse;
 import org.elasticsearch.action.bulk.BulkRequest;
 import org.elasticsearch.action.bulk.BulkResponse;
 import org.elasticsearch.action.delete.DeleteRequest;
 import org.elasticsearch.action.delete.DeleteResponse;
 import org.elasticsearch.action.get.GetRequest;
 import org.elasticsearch.action.get.GetResponse;
+import org.elasticsearch.action.get.MultiGetItemResponse;
+import org.elasticsearch.action.get.MultiGetRequest;
+import org.elasticsearch.action.get.MultiGetResponse;
 import org.elasticsearch.action.index.IndexRequest;
 import org.elasticsearch.action.index.IndexResponse;
+import org.elasticsearch.action.search.MultiSearchRequest;
+import org.elasticsearch.action.search.MultiSearchResponse;
 import org.elasticsearch.action.search.SearchRequest;
 import org.elasticsearch.action.search.SearchResponse;
 import org.elasticsearch.action.update.UpdateRequest;
 import org.elasticsearch.action.update.UpdateResponse;
 import org.elasticsearch.client.*;
+import org.elasticsearch.client.core.CountRequest;
+import org.elasticsearch.client.core.CountResponse;
+import org.elasticsearch.client.indices.GetMappingsRequest;
+import org.elasticsearch.client.indices.GetMappingsResponse;
+import org.elasticsearch.client.indices.PutIndexTemplateRequest;
+import org.elasticsearch.client.indices.PutMappingRequest;
+import org.elasticsearch.cluster.metadata.MappingMetadata;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.document.DocumentField;
+import org.elasticsearch.common.io.stream.BytesStreamOutput;
+import org.elasticsearch.common.settings.Settings;
 import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.common.xcontent.XContentHelper;
 import org.elasticsearch.common.xcontent.XContentType;
 import org.elasticsearch.index.query.QueryBuilder;
 import org.elasticsearch.index.query.QueryBuilders;
 import org.elasticsearch.index.query.RangeQueryBuilder;
+import org.elasticsearch.index.reindex.BulkByScrollResponse;
+import org.elasticsearch.index.reindex.DeleteByQueryRequest;
+import org.elasticsearch.index.reindex.UpdateByQueryRequest;
+import org.elasticsearch.rest.RestStatus;
+import org.elasticsearch.script.Script;
+import org.elasticsearch.script.ScriptType;
 import org.elasticsearch.search.SearchHit;
 import org.elasticsearch.search.aggregations.AggregationBuilders;
 import org.elasticsearch.search.aggregations.BucketOrder;
 import org.elasticsearch.search.aggregations.bucket.terms.Terms;
 import org.elasticsearch.search.aggregations.bucket.terms.TermsAggregationBuilder;
+import org.elasticsearch.search.aggregations.metrics.Cardinality;
 import org.elasticsearch.search.builder.SearchSourceBuilder;
 import org.elasticsearch.search.sort.SortBuilder;
-import com.alibaba.fastjson.JSONArray;
-import com.alibaba.fastjson.JSONObject;
+import com.xnx3.elasticsearch.bean.GroupByBucket;
 import com.xnx3.elasticsearch.bean.GroupByListItem;
+import com.xnx3.elasticsearch.cache.CacheBuffer;
+import com.xnx3.elasticsearch.cache.CacheOperation;
+import com.xnx3.elasticsearch.cache.ReadCache;
+import com.xnx3.elasticsearch.index.BulkLoad;
+import com.xnx3.elasticsearch.index.IndexRegistry;
 import com.xnx3.elasticsearch.jsonFormat.DefaultJsonFormat;
 import com.xnx3.elasticsearch.jsonFormat.JsonFormatInterface;
+import com.xnx3.elasticsearch.mapper.BeanMapper;
+import com.xnx3.elasticsearch.search.ExportSink;
+import com.xnx3.elasticsearch.search.GetBatcher;
+import com.xnx3.elasticsearch.search.GroupBy;
+import com.xnx3.elasticsearch.search.GroupByIterator;
+import com.xnx3.elasticsearch.search.MultiSearchItem;
+import com.xnx3.elasticsearch.search.PreparedSql;
+import com.xnx3.elasticsearch.search.SearchBatcher;
+import com.xnx3.elasticsearch.search.SearchFields;
+import com.xnx3.elasticsearch.search.SearchIterator;
+import com.xnx3.elasticsearch.search.SliceExporter;
+import com.xnx3.elasticsearch.search.SqlIterator;
+import com.xnx3.elasticsearch.search.SqlResultSet;
+import com.xnx3.elasticsearch.transport.NodeBalancer;
+import com.xnx3.elasticsearch.transport.NodeSniffer;
+import com.xnx3.elasticsearch.transport.NodeStats;
+import com.xnx3.elasticsearch.transport.TransportConfig;
 
 /**
  * ElasticSearch 操作
  * @author 管雷鸣
  *
  */
-public class ElasticSearchUtil {
-	private RestHighLevelClient restHighLevelClient;
-	private RestClient restClient;
+public class ElasticSearchUtil implements Closeable {
+	private volatile RestHighLevelClient restHighLevelClient;
+	private volatile RestHighLevelClient bulkRestHighLevelClient;	//批量写入使用的，开启了 TransportConfig#setBalanceNodes(boolean) 才有
+	private PoolingNHttpClientConnectionManager connectionManager;	//restHighLevelClient 使用的连接池
+	private NodeBalancer nodeBalancer;
+	private volatile NodeSniffer nodeSniffer;
+	private TransportConfig transportConfig = new TransportConfig();
+	private final Object transportLock = new Object();
+	private RequestOptions requestOptions = RequestOptions.DEFAULT;
 	
 	private String hostname = "127.0.0.1";
 	private int port = 9200;
@@ -65,13 +146,63 @@ public class ElasticSearchUtil {
 	private JsonFormatInterface jsonFormatInterface; //JSON格式化接口。默认使用 DefaultJsonFormat();
 	private HttpHost[] httpHosts;
 	
+	/**
+	 * 缓存。{@link #cache(Map, String)} 的数据会先存入这里，按索引分别缓存，满了之后由后台线程打包提交
+	 */
+	private CacheBuffer cacheBuffer;
 	/**
 	 * 缓存。
-	 * key:  indexName
-	 * value： 要打包提交的 List
+	 * @deprecated 缓存已改为 {@link CacheBuffer} ，这里不再存放缓存的数据，保留只为兼容。查看缓存中的条数使用 {@link #getCacheBuffer()}
 	 */
-	public Map<String, List<Map<String, Object>>> cacheMap;
+	@Deprecated
+	public Map<String, List<Map<String, Object>>> cacheMap = new HashMap<String, List<Map<String,Object>>>();
 	public int cacheMaxNumber = 100; //如果使用缓存，这里是缓存中的最大条数，超过这些条就会自动打包提交
+	public long bulkMaxBytes = 10 * 1024 * 1024; //批量提交时，一次提交的最大字节数，超过这个大小就会拆分为多次提交。缓存中的字节数达到这个大小，也会自动打包提交
+	/**
+	 * 并行导出。 {@link #export(String, String, int, ExportSink)} 使用
+	 */
+	private SliceExporter sliceExporter;
+	private String searchAfterTiebreaker = null; //遍历全部结果时，有排序的情况下，加在排序最后的唯一字段，保证翻页时顺序确定。为null则有排序时使用 scroll
+	private int sqlFetchSize = 1000; //sql查询时，每页的条数
+	private long editTimeout = 5000; //修改、批量修改、批量删除时，等待主分片可用的最长时间，单位毫秒
+	private Integer trackTotalHits = null; //查询时，总条数最多精确统计到多少条。为null则使用elasticsearch的默认值（1万条）
+	/**
+	 * 统计结果的本地缓存。 {@link #setCountCache(long)} 开启，默认为null，不缓存
+	 */
+	private volatile ReadCache countCache;
+	/**
+	 * 预编译的sql。 {@link #prepareSql(String)} 创建的，同一个sql只创建一次。 key: sql
+	 * <p>按访问顺序排列，超过 {@link #preparedSqlMaxNumber} 时淘汰最久没用的</p>
+	 */
+	private Map<String, PreparedSql> preparedSqlMap = Collections.synchronizedMap(new LinkedHashMap<String, PreparedSql>(64, 0.75f, true){
+		private static final long serialVersionUID = 1L;
+		protected boolean removeEldestEntry(Map.Entry<String, PreparedSql> eldest) {
+			return size() > preparedSqlMaxNumber;
+		}
+	});
+	public int preparedSqlMaxNumber = 1000; //最多缓存的预编译sql的数量，超过会淘汰最久没用的
+	/**
+	 * 查询结果的本地缓存。 {@link #setReadCache(long, long)} 开启，默认为null，不缓存
+	 */
+	private volatile ReadCache readCache;
+	/**
+	 * 合并同时发起的按id获取。 {@link #setGetBatch(long, int)} 开启，默认为null，每次获取单独请求
+	 */
+	private volatile GetBatcher getBatcher;
+	/**
+	 * 合并同时发起的查询。 {@link #setSearchBatch(long, int)} 开启，默认为null，每次查询单独请求
+	 */
+	private volatile SearchBatcher searchBatcher;
+	private static final String REFRESH_INTERVAL = "index.refresh_interval";
+	private static final String NUMBER_OF_REPLICAS = "index.number_of_replicas";
+	/**
+	 * 已知存在的索引及其 mapping，existIndex、createIndex 时不再重复请求
+	 */
+	private IndexRegistry indexRegistry = new IndexRegistry();
+	/**
+	 * 正在大批量导入的索引。同一个索引同时只能有一个导入，否则后开始的记录下的导入前设置，是前一个导入改过的
+	 */
+	private Set<String> bulkLoadIndexSet = Collections.synchronizedSet(new HashSet<String>());
 	
 	/**
 	 * 通过传入自定义 {@link HttpHost} 的方式，创建工具类
@@ -82,7 +213,8 @@ public class ElasticSearchUtil {
 	 */
 	public ElasticSearchUtil(HttpHost... httpHosts) {
 		this.httpHosts = httpHosts;
-		cacheMap = new HashMap<String, List<Map<String,Object>>>();
+		cacheBuffer = new CacheBuffer(this);
+		sliceExporter = new SliceExporter();
 		jsonFormatInterface = new DefaultJsonFormat();
 	}
 	
@@ -92,7 +224,8 @@ public class ElasticSearchUtil {
 	 */
 	public ElasticSearchUtil(String hostname) {
 		this.hostname = hostname;
-		cacheMap = new HashMap<String, List<Map<String,Object>>>();
+		cacheBuffer = new CacheBuffer(this);
+		sliceExporter = new SliceExporter();
 		jsonFormatInterface = new DefaultJsonFormat();
 	}
 	
@@ -106,7 +239,8 @@ public class ElasticSearchUtil {
 		this.hostname = hostname;
 		this.port = port;
 		this.scheme = scheme;
-		cacheMap = new HashMap<String, List<Map<String,Object>>>();
+		cacheBuffer = new CacheBuffer(this);
+		sliceExporter = new SliceExporter();
 		jsonFormatInterface = new DefaultJsonFormat();
 	}
 	
@@ -128,7 +262,8 @@ public class ElasticSearchUtil {
 		if(password != null && password.length() > 0) {
 			this.password = password;
 		}
-		cacheMap = new HashMap<String, List<Map<String,Object>>>();
+		cacheBuffer = new CacheBuffer(this);
+		sliceExporter = new SliceExporter();
 		jsonFormatInterface = new DefaultJsonFormat();
 	}
 	
@@ -158,6 +293,134 @@ public class ElasticSearchUtil {
 		this.cacheMaxNumber = cacheMaxNumber;
 	}
 
+	/**
+	 * 设置缓存中数据最长的等待时间。某个索引缓存中最早的一条数据等待超过这个时间，即使没达到 {@link #setCacheMaxNumber(int)} 的条数，也会自动打包提交
+	 * <p>如果要单独设置某个索引的，可以使用 {@link CacheBuffer#setCacheMaxLinger(String, long)}</p>
+	 * @param cacheMaxLinger 等待时间，单位毫秒。如果不设置，默认是3000。传入0则是不限制，只有达到条数才会提交
+	 */
+	public void setCacheMaxLinger(long cacheMaxLinger) {
+		this.cacheBuffer.setCacheMaxLinger(cacheMaxLinger);
+	}
+
+	/**
+	 * 设置批量提交时，一次提交的最大字节数。 {@link #puts(List, String)} 超过这个大小会拆分为多次提交， {@link #cache(Map, String)} 缓存中的字节数达到这个大小也会自动打包提交
+	 * <p>条数 {@link #setCacheMaxNumber(int)} 与字节数哪个先达到，就按哪个提交。建议在 5MB ~ 15MB 之间，不要超过elasticsearch的 http.max_content_length</p>
+	 * @param bulkMaxBytes 字节数。如果不设置，默认是 10MB
+	 */
+	public void setBulkMaxBytes(long bulkMaxBytes) {
+		this.bulkMaxBytes = bulkMaxBytes;
+	}
+
+	/**
+	 * 设置遍历全部结果时，有排序的情况下，加在排序最后的唯一字段。服务于 {@link #searchIterator(String, String, SortBuilder, int)}
+	 * <p>设置后，有排序的遍历使用 search_after 翻页，排序值相同的数据按这个字段确定先后，翻页时才不会重复或遗漏。不设置的，有排序的遍历使用 scroll 翻页</p>
+	 * <p>这个字段需要是唯一的 keyword 或数字类型。不要使用 _id ，按 _id 排序需要将全部id加载到内存中。要使用 search_after 的，可以在写入时将id复制一份存入一个 keyword 字段，然后设置为这个字段</p>
+	 * @param searchAfterTiebreaker 字段名。如果不设置，默认是null
+	 */
+	public void setSearchAfterTiebreaker(String searchAfterTiebreaker) {
+		this.searchAfterTiebreaker = searchAfterTiebreaker;
+	}
+
+	/**
+	 * 设置sql查询时，每页的条数。sql查询会按这个条数一页页请求，跟随 cursor 直到取得全部结果
+	 * @param sqlFetchSize 条数。如果不设置，默认是1000
+	 */
+	public void setSqlFetchSize(int sqlFetchSize) {
+		this.sqlFetchSize = sqlFetchSize;
+		//已转换的模板跟每页的条数有关
+		this.preparedSqlMap.clear();
+	}
+
+	/**
+	 * 设置修改数据时，等待主分片可用的最长时间。服务于 {@link #edit(Map, String, String)} 、 {@link #editMany(Map, String)} 、 {@link #deleteByIds(String, Collection)}
+	 * @param editTimeout 等待时间，单位毫秒。如果不设置，默认是5000。传入0则使用elasticsearch的默认值（1分钟）
+	 */
+	public void setEditTimeout(long editTimeout) {
+		this.editTimeout = editTimeout;
+	}
+
+	/**
+	 * 设置查询时，总条数（ hits.total ）最多精确统计到多少条。只需要列表、不需要总条数的，设置为0可以让elasticsearch不再统计，查询更快
+	 * <p>只作用于没有单独设置 track_total_hits 的查询。需要精确的条数，建议使用 {@link #count(String, QueryBuilder)}</p>
+	 * @param trackTotalHits 条数。0:不统计； Integer.MAX_VALUE:全部精确统计。传入null则使用elasticsearch的默认值（1万条）
+	 */
+	public void setTrackTotalHits(Integer trackTotalHits) {
+		this.trackTotalHits = trackTotalHits;
+	}
+
+	/**
+	 * 开启统计结果的本地缓存。 {@link #count(String, QueryBuilder)} 、 {@link #cardinality(String, String, QueryBuilder, int)} 的结果，在有效期内再次统计时直接从内存返回
+	 * <p>只按有效期过期，数据修改后不会立即失效，适合频繁刷新、允许有几秒误差的统计，如监控大屏</p>
+	 * @param ttl 有效期，单位毫秒，如 5000 。传入0则关闭缓存
+	 */
+	public void setCountCache(long ttl) {
+		this.countCache = ttl > 0 ? new ReadCache(4 * 1024 * 1024, ttl) : null;
+	}
+
+	/**
+	 * 开启查询结果的本地缓存。 searchById 、 search 查询过的数据，在有效期内再次查询时直接从内存返回，不再请求 elasticsearch
+	 * <p>当前对象执行 put、edit、deleteById、批量添加，或 cache 打包提交时，这个索引相关的缓存会自动失效。其他程序修改的数据，只能等缓存过期</p>
+	 * <p>直接返回 {@link SearchResponse} 的 {@link #search(String, SearchSourceBuilder, Integer, Integer)} 不缓存，同一个响应对象不能交给多个调用方</p>
+	 * <p>命中率等统计可通过 {@link #getReadCache()} 查看</p>
+	 * @param maxBytes 最多占用的内存，单位字节，如 64MB 传入 64*1024*1024 。传入0则关闭缓存
+	 * @param ttl 每条缓存的有效期，单位毫秒，如 5000
+	 */
+	public void setReadCache(long maxBytes, long ttl) {
+		this.readCache = maxBytes > 0 ? new ReadCache(maxBytes, ttl) : null;
+	}
+
+	/**
+	 * 获取查询结果的本地缓存，可以用来查看命中率、清空缓存等
+	 * @return {@link ReadCache} 。没有开启的，返回null
+	 */
+	public ReadCache getReadCache() {
+		return readCache;
+	}
+
+	/**
+	 * 开启按id获取的合并。多个线程同时 searchById 时，一个很短的时间窗口内的获取请求合并为一次 _mget 提交，适合并发很高的按id获取
+	 * <p>开启后，每次 searchById 最多多等待一个时间窗口。合并的效果可通过 {@link #getGetBatcher()} 查看</p>
+	 * @param window 等待合并的时间窗口，单位毫秒，如 2 。传入0则关闭合并
+	 * @param maxBatchSize 一次 _mget 最多的条数，达到后立即提交，如 100
+	 */
+	public void setGetBatch(long window, int maxBatchSize) {
+		GetBatcher old = this.getBatcher;
+		this.getBatcher = window > 0 ? new GetBatcher(this, window, maxBatchSize) : null;
+		if(old != null){
+			old.close();
+		}
+	}
+
+	/**
+	 * 获取按id获取的合并
+	 * @return {@link GetBatcher} 。没有开启的，返回null
+	 */
+	public GetBatcher getGetBatcher() {
+		return getBatcher;
+	}
+
+	/**
+	 * 开启查询的合并。多个线程同时 search 时，一个很短的时间窗口内的查询合并为一次 _msearch 提交，适合并发很高的小查询，如首页多个模块同时查询
+	 * <p>开启后，每次 search 最多多等待一个时间窗口。合并的效果可通过 {@link #getSearchBatcher()} 查看。一次要发起多个查询的，直接使用 {@link #multiSearch(List)}</p>
+	 * @param window 等待合并的时间窗口，单位毫秒，如 2 。传入0则关闭合并
+	 * @param maxBatchSize 一次 _msearch 最多的查询数，达到后立即提交，如 20
+	 */
+	public void setSearchBatch(long window, int maxBatchSize) {
+		SearchBatcher old = this.searchBatcher;
+		this.searchBatcher = window > 0 ? new SearchBatcher(this, window, maxBatchSize) : null;
+		if(old != null){
+			old.close();
+		}
+	}
+
+	/**
+	 * 获取查询的合并
+	 * @return {@link SearchBatcher} 。没有开启的，返回null
+	 */
+	public SearchBatcher getSearchBatcher() {
+		return searchBatcher;
+	}
+
 	/**
 	 * JSON格式化接口。如果不设置此处，默认使用 {@link DefaultJsonFormat}
 	 * @param jsonFormatInterface 设置自定义json序列化方法
@@ -166,128 +429,404 @@ public class ElasticSearchUtil {
 		this.jsonFormatInterface = jsonFormatInterface;
 	}
 
+	/**
+	 * 获取当前使用的JSON格式化接口
+	 * @return {@link JsonFormatInterface}
+	 */
+	public JsonFormatInterface getJsonFormatInterface() {
+		return jsonFormatInterface;
+	}
+
+	/**
+	 * 获取HTTP连接池、超时等设置，可以在第一次请求之前修改。同 {@link #setTransportConfig(TransportConfig)}
+	 * @return {@link TransportConfig}
+	 */
+	public TransportConfig getTransportConfig() {
+		return transportConfig;
+	}
+	
+	/**
+	 * 设置HTTP连接池、超时等设置。需要在第一次请求之前设置，连接池创建后再设置不会生效
+	 * @param transportConfig {@link TransportConfig}
+	 */
+	public void setTransportConfig(TransportConfig transportConfig) {
+		this.transportConfig = transportConfig;
+	}
+	
+	/**
+	 * 获取请求时使用的 {@link RequestOptions} ，带有 {@link TransportConfig#setResponseBufferLimit(int)} 设置的响应缓冲大小
+	 * @return {@link RequestOptions}
+	 */
+	public RequestOptions getRequestOptions() {
+		return requestOptions;
+	}
+	
+	/**
+	 * 获取连接池的使用情况，如正在使用的连接数 {@link PoolStats#getLeased()} 、等待连接的请求数 {@link PoolStats#getPending()} 。等待连接的请求一直较多的，可以调大 {@link TransportConfig#setMaxConnPerRoute(int)}
+	 * @return 所有节点加起来的使用情况。还没有创建连接池的，返回null
+	 */
+	public PoolStats getPoolStats(){
+		PoolingNHttpClientConnectionManager manager = this.connectionManager;
+		return manager == null ? null : manager.getTotalStats();
+	}
+	
+	/**
+	 * 获取连接每个elasticsearch节点的连接池使用情况
+	 * @return key: 节点  value: 使用情况。还没有创建连接池的，返回空Map
+	 */
+	public Map<HttpHost, PoolStats> getRoutePoolStats(){
+		Map<HttpHost, PoolStats> map = new LinkedHashMap<HttpHost, PoolStats>();
+		PoolingNHttpClientConnectionManager manager = this.connectionManager;
+		if(manager == null){
+			return map;
+		}
+		for (HttpRoute route : manager.getRoutes()) {
+			map.put(route.getTargetHost(), manager.getStats(route));
+		}
+		return map;
+	}
+
+	/**
+	 * 获取每个节点的平均响应时间、出错次数。开启了 {@link TransportConfig#setBalanceNodes(boolean)} 才有
+	 * @return key: 节点  value: 响应情况。没有开启的，返回空Map
+	 */
+	public Map<HttpHost, NodeStats> getNodeStats(){
+		getRestHighLevelClient();
+		NodeBalancer balancer = this.nodeBalancer;
+		return balancer == null ? new HashMap<HttpHost, NodeStats>() : balancer.getStats();
+	}
+
 	/**
 	 * 获取操作的 {@link RestHighLevelClient} 对象
+	 * <p>按 {@link #getTransportConfig()} 创建连接池，跟 {@link #getRestClient()} 共用</p>
 	 * @return {@link RestHighLevelClient}
 	 */
 	public RestHighLevelClient getRestHighLevelClient(){
-		if(this.restHighLevelClient == null){
-			if(this.httpHosts == null){
-				//没有直接传入 httpshosts，那么就是使用单个的
-				HttpHost httpHost = new HttpHost(this.hostname, this.port, this.scheme);
-				this.httpHosts = new HttpHost[1];
-				this.httpHosts[0] = httpHost;
-			}
-			if(this.username.length() > 0 && this.password.length() > 0) {
-				//当前elasticsearch 设置了连接的用户名密码
-				final CredentialsProvider credentialsProvider = new BasicCredentialsProvider();
-				credentialsProvider.setCredentials(AuthScope.ANY,new UsernamePasswordCredentials(username, password));  //es账号密码（默认用户名为elastic）
-				this.restHighLevelClient =new RestHighLevelClient(
-					RestClient.builder(this.httpHosts).setHttpClientConfigCallback(new RestClientBuilder.HttpClientConfigCallback() {
-						public HttpAsyncClientBuilder customizeHttpClient(HttpAsyncClientBuilder httpClientBuilder) {
-							httpClientBuilder.disableAuthCaching();
-							return httpClientBuilder.setDefaultCredentialsProvider(credentialsProvider);
-						}
-					})
-				);
-			}else{
-				this.restHighLevelClient = new RestHighLevelClient(RestClient.builder(this.httpHosts));
-			}
-		}
-		return this.restHighLevelClient;
+		RestHighLevelClient client = this.restHighLevelClient;
+		if(client != null){
+			return client;
+		}
+		synchronized (transportLock) {
+			if(this.restHighLevelClient == null){
+				if(this.httpHosts == null){
+					//没有直接传入 httpshosts，那么就是使用单个的
+					HttpHost httpHost = new HttpHost(this.hostname, this.port, this.scheme);
+					this.httpHosts = new HttpHost[1];
+					this.httpHosts[0] = httpHost;
+				}
+				TransportConfig config = this.transportConfig;
+				PoolingNHttpClientConnectionManager manager;
+				try {
+					manager = config.createConnectionManager();
+				} catch (IOReactorException e) {
+					throw new UncheckedIOException(e);
+				}
+				//一段时间没有请求的节点重新参与轮流；出错的请求按超时计入，不超时的按 MIN_ERROR_PENALTY
+				NodeBalancer balancer = config.isBalanceNodes() ? new NodeBalancer(NodeBalancer.STALE_AFTER, config.getSocketTimeout()) : null;
+				this.connectionManager = manager;
+				this.nodeBalancer = balancer;
+				this.requestOptions = config.requestOptions();
+				NodeSelector readSelector = null;
+				if(balancer != null){
+					readSelector = balancer.readSelector();
+				}else if(config.getSniffInterval() > 0){
+					//只开启了节点发现，发现的节点中有专用的master节点，不发往这些
+					readSelector = skipDedicatedMastersSelector();
+				}
+				client = new RestHighLevelClient(restClientBuilder(config, manager, false, readSelector));
+				if(balancer != null){
+					//批量写入单独一个客户端，发往数据节点。共用同一个连接池，由 client 运行
+					this.bulkRestHighLevelClient = new RestHighLevelClient(restClientBuilder(config, manager, true, balancer.writeSelector()));
+				}
+				if(config.getSniffInterval() > 0){
+					NodeSniffer sniffer = new NodeSniffer(client.getLowLevelClient(), this.httpHosts[0].getSchemeName(), config.getSniffInterval(), balancer);
+					if(this.bulkRestHighLevelClient != null){
+						sniffer.addTarget(this.bulkRestHighLevelClient.getLowLevelClient());
+					}
+					this.nodeSniffer = sniffer;
+				}
+				this.restHighLevelClient = client;
+			}
+			return this.restHighLevelClient;
+		}
 	}
 	
 	/**
-	 * 获取操作的 {@link RestClient} 对象
-	 * @return {@link RestClient}
+	 * 开启了节点发现、没有开启 {@link TransportConfig#setBalanceNodes(boolean)} 时选择节点，按 {@link NodeSniffer} 发现的角色，不发往专用的master节点
 	 */
-	public RestClient getRestClient(){
-		if(this.restClient == null){
-			if(this.httpHosts == null){
-				//没有直接传入 httpshosts，那么就是使用单个的
-				HttpHost httpHost = new HttpHost(this.hostname, this.port, this.scheme);
-				this.httpHosts = new HttpHost[1];
-				this.httpHosts[0] = httpHost;
-			}
-			if(this.username.length() > 0 && this.password.length() > 0) {
-				//当前elasticsearch 设置了连接的用户名密码
-				final CredentialsProvider credentialsProvider = new BasicCredentialsProvider();
-				credentialsProvider.setCredentials(AuthScope.ANY,new UsernamePasswordCredentials(username, password));  //es账号密码（默认用户名为elastic）
-				this.restClient = RestClient.builder(this.httpHosts).setHttpClientConfigCallback(new RestClientBuilder.HttpClientConfigCallback() {
-					public HttpAsyncClientBuilder customizeHttpClient(HttpAsyncClientBuilder httpClientBuilder) {
-						httpClientBuilder.disableAuthCaching();
-						return httpClientBuilder.setDefaultCredentialsProvider(credentialsProvider);
-					}
-				}).build();
+	private NodeSelector skipDedicatedMastersSelector(){
+		return new NodeSelector() {
+			public void select(Iterable<Node> nodes) {
+				NodeSniffer sniffer = nodeSniffer;
+				if(sniffer != null){
+					sniffer.skipDedicatedMasters(nodes);
+				}
+			}
+
+			@Override
+			public String toString() {
+				return "SKIP_DEDICATED_MASTERS";
+			}
+		};
+	}
+	
+	/**
+	 * 按 {@link TransportConfig} 创建 {@link RestClientBuilder}
+	 * @param shared 是否是共用其他客户端的连接池。共用的，连接池由另一个客户端运行、关闭
+	 * @param nodeSelector 选择节点，传入null则在节点间轮流发送
+	 */
+	private RestClientBuilder restClientBuilder(final TransportConfig config, final PoolingNHttpClientConnectionManager manager, final boolean shared, NodeSelector nodeSelector){
+		final CredentialsProvider credentialsProvider;
+		if(this.username.length() > 0 && this.password.length() > 0) {
+			//当前elasticsearch 设置了连接的用户名密码
+			credentialsProvider = new BasicCredentialsProvider();
+			credentialsProvider.setCredentials(AuthScope.ANY,new UsernamePasswordCredentials(username, password));  //es账号密码（默认用户名为elastic）
+		}else{
+			credentialsProvider = null;
+		}
+		final NodeBalancer balancer = this.nodeBalancer;
+		RestClientBuilder builder = RestClient.builder(this.httpHosts).setRequestConfigCallback(new RestClientBuilder.RequestConfigCallback() {
+			public RequestConfig.Builder customizeRequestConfig(RequestConfig.Builder requestConfigBuilder) {
+				return config.requestConfig(requestConfigBuilder);
+			}
+		}).setHttpClientConfigCallback(new RestClientBuilder.HttpClientConfigCallback() {
+			public HttpAsyncClientBuilder customizeHttpClient(HttpAsyncClientBuilder httpClientBuilder) {
+				httpClientBuilder.setConnectionManager(manager).setConnectionManagerShared(shared).setKeepAliveStrategy(config.keepAliveStrategy());
+				if(credentialsProvider != null){
+					httpClientBuilder.disableAuthCaching();
+					httpClientBuilder.setDefaultCredentialsProvider(credentialsProvider);
+				}
+				if(balancer != null){
+					httpClientBuilder.addInterceptorLast(balancer.requestInterceptor());
+					httpClientBuilder.addInterceptorLast(balancer.responseInterceptor());
+				}
+				return httpClientBuilder;
 			}
-			this.restClient = RestClient.builder(this.httpHosts).build();
+		}).setFailureListener(new RestClient.FailureListener() {
+			public void onFailure(Node node) {
+				if(balancer != null){
+					balancer.failure(node.getHost());
+				}
+				NodeSniffer sniffer = nodeSniffer;
+				if(sniffer != null){
+					sniffer.sniffOnFailure();
+				}
+			}
+		});
+		if(nodeSelector != null){
+			builder.setNodeSelector(nodeSelector);
 		}
-		return this.restClient;
+		return builder;
+	}
+	
+	/**
+	 * 获取批量写入使用的 {@link RestHighLevelClient} 。开启了 {@link TransportConfig#setBalanceNodes(boolean)} 的，是单独的一个客户端，优先发往数据节点，跟 {@link #getRestHighLevelClient()} 共用连接池；没有开启的，就是 {@link #getRestHighLevelClient()}
+	 * @return {@link RestHighLevelClient}
+	 */
+	public RestHighLevelClient getBulkRestHighLevelClient(){
+		RestHighLevelClient client = getRestHighLevelClient();
+		RestHighLevelClient bulkClient = this.bulkRestHighLevelClient;
+		return bulkClient == null ? client : bulkClient;
+	}
+	
+	/**
+	 * 获取操作的 {@link RestClient} 对象。跟 {@link #getRestHighLevelClient()} 是同一个连接池
+	 * @return {@link RestClient}
+	 */
+	public RestClient getRestClient(){
+		return getRestHighLevelClient().getLowLevelClient();
 	}
 	
 	/**
 	 * 将之提交到缓存Cache中。这里不同意put,put是直接提交到ElasticSearch中，而这个只是提交到Java缓存中，等积累到一定条数之后，在一起将Java缓存中的打包一次性提交到 Elasticsearch中
-	 * <p>默认同一个indexName索引中，缓存最大条数是100条，达到100条会自动提交到 elasticsearch。 这个最大条数，可以通过  {@link #setCacheMaxNumber(int)} 进行设置。建议不要超过4000条 </p>
+	 * <p>默认同一个indexName索引中，缓存最大条数是100条、最大字节数是10MB，哪个先达到，就会自动交给后台线程提交到 elasticsearch，当前线程不会等待提交完成。 这个最大条数、最大字节数，可以通过  {@link #setCacheMaxNumber(int)} 、 {@link #setBulkMaxBytes(long)} 进行设置</p>
+	 * <p>此方法不加锁，可多线程同时调用</p>
+	 * <p>所有索引缓存占用的内存有上限，超过后默认会等待缓存中的数据提交出去，具体可通过 {@link CacheBuffer#setCacheMaxMemory(long)} 、 {@link CacheBuffer#setCacheFullPolicy(com.xnx3.elasticsearch.cache.CacheFullPolicy, long)} 设置</p>
+	 * <p>需要知道是否加入成功的，使用 {@link #cacheAdd(Map, String)}</p>
 	 * @param params 要增加的数据，key-value形式。 其中map.value 支持的类型有 String、int、long、float、double、boolean
 	 * @param indexName 索引名字，类似数据库的表，是将数据添加进哪个表
 	 */
-	public synchronized void cache(Map<String, Object> params, String indexName){
-		List<Map<String,Object>> list = cacheMap.get(indexName);
-		if(list == null){
-			list = new LinkedList<Map<String,Object>>();
-		}
-		list.add(params);
-		
-		if(list.size() >= this.cacheMaxNumber){
-			//提交
-			boolean submit = cacheSubmit(indexName);
-			if(submit){
-				//提交成功，那么清空indexName的list
-				list.clear();
-			}
-		}
-		
-		//重新赋予cacheMap
-		cacheMap.put(indexName, list);
+	public void cache(Map<String, Object> params, String indexName){
+		cacheBuffer.cache(params, indexName);
+	}
+	
+	/**
+	 * 将一条数据提交到缓存中，等积累到一定条数之后打包提交。同 {@link #cache(Map, String)} ，只是会返回是否加入成功
+	 * @param params 要增加的数据，key-value形式
+	 * @param indexName 索引名字
+	 * @return true:加入缓存成功；  false:缓存占用的内存达到上限，这条数据被丢弃了
+	 */
+	public boolean cacheAdd(Map<String, Object> params, String indexName){
+		return cacheBuffer.cache(params, indexName);
+	}
+	
+	/**
+	 * 将一条指定id的数据提交到缓存中，等积累到一定条数之后打包提交。已存在的会整条覆盖。同 {@link #cache(Map, String)}
+	 * @param params 要增加的数据，key-value形式
+	 * @param indexName 索引名字
+	 * @param id 这条数据的id, 如果传入null，则由es系统自动生成一个唯一ID
+	 * @return true:加入缓存成功；  false:缓存占用的内存达到上限，这条数据被丢弃了
+	 */
+	public boolean cache(Map<String, Object> params, String indexName, String id){
+		return cacheBuffer.cache(indexName, id, params, CacheOperation.INDEX);
+	}
+	
+	/**
+	 * 将一条数据的修改提交到缓存中，跟 {@link #cache(Map, String)} 的添加一起打包提交，不再一条一条请求。只修改传入的这些字段
+	 * <p>这条数据不存在时提交失败，交给 {@link CacheBuffer#setCacheFailureListener(com.xnx3.elasticsearch.cache.CacheFailureListener)} 处理。不存在时要添加的，使用 {@link #cacheUpsert(Map, String, String)}</p>
+	 * <p>同一条数据短时间内频繁修改的，可通过 {@link CacheBuffer#setCoalesce(boolean)} 开启合并，缓存中同一条数据的多次修改合并为一次提交</p>
+	 * @param params 要修改的数据，key-value形式
+	 * @param indexName 索引名字
+	 * @param id 要修改的这条数据的id
+	 * @return true:加入缓存成功；  false:缓存占用的内存达到上限，这条修改被丢弃了
+	 */
+	public boolean cacheEdit(Map<String, Object> params, String indexName, String id){
+		return cacheBuffer.cache(indexName, id, params, CacheOperation.UPDATE);
+	}
+	
+	/**
+	 * 将一条数据的修改提交到缓存中，打包提交。这条数据存在则修改传入的这些字段，不存在则以这些字段添加
+	 * @param params 要修改的数据，key-value形式
+	 * @param indexName 索引名字
+	 * @param id 要修改的这条数据的id
+	 * @return true:加入缓存成功；  false:缓存占用的内存达到上限，这条修改被丢弃了
+	 */
+	public boolean cacheUpsert(Map<String, Object> params, String indexName, String id){
+		return cacheBuffer.cache(indexName, id, params, CacheOperation.UPSERT);
+	}
+	
+	/**
+	 * 将一条数据的删除提交到缓存中，跟添加、修改一起打包提交
+	 * @param indexName 索引名字
+	 * @param id 要删除的这条数据的id
+	 * @return true:加入缓存成功；  false:缓存占用的内存达到上限，这条删除被丢弃了
+	 */
+	public boolean cacheDelete(String indexName, String id){
+		return cacheBuffer.cache(indexName, id, null, CacheOperation.DELETE);
 	}
 	
 	/**
-	 * 将当前缓存中某个索引中的数据提交到elasticsearch中
+	 * 将当前缓存中某个索引中的数据提交到elasticsearch中，当前线程会等待提交完成
 	 * @param indexName 索引名字，类似数据库的表，是将数据添加进哪个表
-	 * @return true:成功；  false:提交失败
+	 * @return true:成功；  false:提交失败，提交失败的数据会重新放回缓存，等待下次提交
 	 */
-	public synchronized boolean cacheSubmit(String indexName){
-		List<Map<String,Object>> list = cacheMap.get(indexName);
-		if(list == null){
-			return true;
+	public boolean cacheSubmit(String indexName){
+		return cacheBuffer.submit(indexName);
+	}
+	
+	/**
+	 * 获取缓存打包提交的 {@link CacheBuffer} ，可以用来查看缓存的条数、设置后台提交的线程数等
+	 * @return {@link CacheBuffer}
+	 */
+	public CacheBuffer getCacheBuffer() {
+		return cacheBuffer;
+	}
+	
+	/**
+	 * 获取已知索引的登记。索引被其他程序删除后，可以通过 {@link IndexRegistry#remove(String)} 移除登记
+	 * @return {@link IndexRegistry}
+	 */
+	public IndexRegistry getIndexRegistry() {
+		return indexRegistry;
+	}
+	
+	/**
+	 * 获取并行导出的 {@link SliceExporter} ，可以用来设置导出的线程数、每页的条数
+	 * @return {@link SliceExporter}
+	 */
+	public SliceExporter getSliceExporter() {
+		return sliceExporter;
+	}
+	
+	/**
+	 * 关闭。先将 {@link #cache(Map, String)} 缓存中的数据全部提交到elasticsearch，然后关闭 {@link RestHighLevelClient}、{@link RestClient} 释放连接
+	 * <p>程序退出前调用，避免缓存中未达到提交条数的数据丢失</p>
+	 */
+	public void close() throws IOException {
+		cacheBuffer.close();
+		sliceExporter.close();
+		if(this.getBatcher != null){
+			this.getBatcher.close();
+			this.getBatcher = null;
 		}
-		
-		BulkResponse res = puts(list, indexName);
-		if(res == null || res.hasFailures()){
-			//出现错误，那么不清空list
-			return false;
-		}else{
-			//成功，那么清空缓存中这个索引的数据
-			list.clear();
-			cacheMap.put(indexName, list);
-			return true;
+		if(this.searchBatcher != null){
+			this.searchBatcher.close();
+			this.searchBatcher = null;
+		}
+		synchronized (transportLock) {
+			if(this.nodeSniffer != null){
+				this.nodeSniffer.close();
+				this.nodeSniffer = null;
+			}
+			if(this.bulkRestHighLevelClient != null){
+				//共用的连接池，由 restHighLevelClient 关闭
+				this.bulkRestHighLevelClient.close();
+				this.bulkRestHighLevelClient = null;
+			}
+			if(this.restHighLevelClient != null){
+				//同时关闭 RestClient 及连接池
+				this.restHighLevelClient.close();
+				this.restHighLevelClient = null;
+				this.connectionManager = null;
+				this.nodeBalancer = null;
+			}
 		}
 	}
 	
     /**
      * 创建索引
+     * <p>已经创建过、或确认存在的索引会记录在 {@link #getIndexRegistry()} 中，再次创建时直接返回，不再请求elasticsearch</p>
      * @param indexName 要创建的索引的名字，传入如： testindex
      * @return 创建索引的响应对象。可以使用 {@link CreateIndexResponse#isAcknowledged()} 来判断是否创建成功。如果为true，则是创建成功
      */
     public CreateIndexResponse createIndex(String indexName) throws IOException {
-    	CreateIndexResponse response;
-    	if(existIndex(indexName)){
-    		response = new CreateIndexResponse(false, false, indexName);
-            return response;
-        }
+    	return createIndex(indexName, null, null);
+    }
+    
+    /**
+     * 创建索引，同时指定 mapping 、 settings 。字段类型明确的，指定 mapping 可以避免动态映射把字段识别为不需要的类型
+     * @param indexName 要创建的索引的名字，传入如： testindex
+     * @param mapping 字段的映射，传入如 {properties={name={type=keyword}, time={type=long}}} 。传入null则使用动态映射
+     * @param settings 索引的设置，传入如 {number_of_shards=3, number_of_replicas=1} 。传入null则使用默认设置
+     * @return 创建索引的响应对象。可以使用 {@link CreateIndexResponse#isAcknowledged()} 来判断是否创建成功。如果为true，则是创建成功；索引已经存在的为false。
+     * 		新建的索引在超时前没有得到确认的也为false，这时索引可能已经创建了，可以通过 {@link #existIndex(String)} 判断
+     */
+    public CreateIndexResponse createIndex(String indexName, Map<String, Object> mapping, Map<String, Object> settings) throws IOException {
+    	CreateIndexResponse response = createIndexIfAbsent(indexName, mapping, settings);
+    	return response == null ? new CreateIndexResponse(false, false, indexName) : response;
+    }
+    
+    /**
+     * 创建索引，同 {@link #createIndex(String, Map, Map)}
+     * @return 创建索引的响应对象。索引已经存在的，返回null，以跟新建但没有得到确认（acknowledged 为false）的区分开
+     */
+    private CreateIndexResponse createIndexIfAbsent(String indexName, Map<String, Object> mapping, Map<String, Object> settings) throws IOException {
+    	if(indexRegistry.isKnown(indexName)){
+    		return null;
+    	}
     	
         CreateIndexRequest request = new CreateIndexRequest(indexName);
-        response = getRestHighLevelClient().indices().create(request, RequestOptions.DEFAULT);
+        if(mapping != null){
+        	request.mapping("_doc", mapping);
+        }
+        if(settings != null){
+        	request.settings(settings);
+        }
+        CreateIndexResponse response;
+        try {
+        	//不再先判断是否存在，直接创建，已存在的会返回 resource_already_exists_exception
+        	response = getRestHighLevelClient().indices().create(request, getRequestOptions());
+		} catch (ElasticsearchStatusException e) {
+			if(e.status() != RestStatus.BAD_REQUEST || e.getMessage() == null || e.getMessage().indexOf("resource_already_exists_exception") < 0){
+				throw e;
+			}
+			indexRegistry.known(indexName);
+			return null;
+		}
+        if(mapping != null){
+        	indexRegistry.putMapping(indexName, mapping);
+        }
+        indexRegistry.known(indexName);
         return response;
     }
 	
@@ -305,65 +844,332 @@ public class ElasticSearchUtil {
      * 		</ul>
      */
     public boolean existIndex(String index){
+    	if(indexRegistry.isKnown(index)){
+    		return true;
+    	}
         GetIndexRequest request = new GetIndexRequest();
         request.indices(index);
         boolean exists;
 		try {
-			exists = getRestHighLevelClient().indices().exists(request, RequestOptions.DEFAULT);
+			exists = getRestHighLevelClient().indices().exists(request, getRequestOptions());
 		} catch (IOException e) {
 			e.printStackTrace();
 			return false;
 		}
+		if(exists){
+			indexRegistry.known(index);
+		}
         return exists;
     }
-	
+    
     /**
-     * 数据添加，网 elasticsearch 中添加一条数据
-     * @param params 要增加的数据，key-value形式。 其中map.value 支持的类型有 String、int、long、float、double、boolean
-     * @param indexName 索引名字，类似数据库的表，是添加进那个表
-     * @param id 要添加的这条数据的id, 如果传入null，则由es系统自动生成一个唯一ID
-     * @return 创建结果。如果 {@link IndexResponse#getId()} 不为null、且id长度大于0，那么就成功了
+     * 获取索引的 mapping 。获取过的缓存在 {@link #getIndexRegistry()} 中，再次获取时不再请求elasticsearch
+     * @param indexName 索引名字
+     * @return mapping，如 {properties={name={type=keyword}}} 。索引不存在或出错返回null
      */
-    public IndexResponse put(Map<String, Object> params, String indexName, String id){
-        //创建请求
-        IndexRequest request = new IndexRequest(indexName);
-        if(id != null){
-        	request.id(id);
+    public Map<String, Object> getMapping(String indexName){
+    	Map<String, Object> mapping = indexRegistry.getMapping(indexName);
+    	if(mapping != null){
+    		return mapping;
     	}
-        //v1.2 
-//        request.timeout(TimeValue.timeValueSeconds(5));
-        
-        IndexResponse response = null;
-		try {
-			response = getRestHighLevelClient().index(request.source(jsonFormatInterface.mapToJsonString(params), XContentType.JSON), RequestOptions.DEFAULT);
-		} catch (IOException e) {
+    	GetMappingsRequest request = new GetMappingsRequest().indices(indexName);
+    	try {
+    		GetMappingsResponse response = getRestHighLevelClient().indices().getMapping(request, getRequestOptions());
+    		MappingMetadata metadata = response.mappings().get(indexName);
+    		if(metadata == null){
+    			return null;
+    		}
+    		mapping = metadata.sourceAsMap();
+		} catch (IOException | ElasticsearchStatusException e) {
 			e.printStackTrace();
+			return null;
 		}
-        return response;
+    	indexRegistry.putMapping(indexName, mapping);
+    	return indexRegistry.getMapping(indexName);
     }
-
-
- /**
-  * 数据编辑，修改 elasticsearch 中的一条数据
-  * @param params 要修改的数据，key-value形式。 其中map.value 支持的类型有 String、int、long、float、double、boolean
-  * @param indexName 索引名字，类似数据库的表，是修改那个表
-  * @param id 要修改的这条数据的id, 如果传入null，则由es系统自动生成一个唯一ID
-  * @return 创建结果。如果 {@link IndexResponse#getId()} 不为null、且id长度大于0，那么就成功了
-  */
- public UpdateResponse edit(Map<String, Object> params, String indexName, String id){
-	 //创建请求
-	 UpdateRequest request = new UpdateRequest(indexName, id);
-	 request.timeout(TimeValue.timeValueSeconds(5));
-	
-	 UpdateResponse response = null;
-	 try {
-		 response = getRestHighLevelClient().update(request.doc(jsonFormatInterface.mapToJsonString(params), XContentType.JSON), RequestOptions.DEFAULT);
-	 } catch (IOException e) {
-		 e.printStackTrace();
-	 }
-	 return response;
- }
-
+    
+    /**
+     * 为索引增加字段的映射。已有的字段只能增加属性，不能修改类型
+     * @param indexName 索引名字
+     * @param mapping 字段的映射，传入如 {properties={age={type=integer}}}
+     * @return true:成功； false:失败
+     */
+    public boolean putMapping(String indexName, Map<String, Object> mapping){
+    	PutMappingRequest request = new PutMappingRequest(indexName).source(mapping);
+    	try {
+    		return getRestHighLevelClient().indices().putMapping(request, getRequestOptions()).isAcknowledged();
+		} catch (IOException | ElasticsearchStatusException e) {
+			e.printStackTrace();
+			return false;
+		} finally {
+			//合并后的 mapping 以elasticsearch为准，下次获取时重新请求
+			indexRegistry.putMapping(indexName, null);
+		}
+    }
+    
+    /**
+     * 创建或覆盖索引模板。之后新建的、名字匹配的索引，会自动使用模板中的 mapping 、 settings ，适合按日期拆分的索引，如 log-2021-06-01
+     * @param templateName 模板的名字
+     * @param indexPatterns 匹配的索引名字，如 log-*
+     * @param mapping 字段的映射，传入null则不设置
+     * @param settings 索引的设置，传入null则不设置
+     * @return true:成功； false:失败
+     */
+    public boolean putTemplate(String templateName, List<String> indexPatterns, Map<String, Object> mapping, Map<String, Object> settings){
+    	PutIndexTemplateRequest request = new PutIndexTemplateRequest(templateName).patterns(indexPatterns);
+    	if(mapping != null){
+    		request.mapping(mapping);
+    	}
+    	if(settings != null){
+    		request.settings(settings);
+    	}
+    	try {
+    		return getRestHighLevelClient().indices().putTemplate(request, getRequestOptions()).isAcknowledged();
+		} catch (IOException | ElasticsearchStatusException e) {
+			e.printStackTrace();
+			return false;
+		}
+    }
+    
+    /**
+     * 开始大批量导入，同 {@link #startBulkLoad(String, Map)}
+     * @param indexName 索引名字
+     * @return 这次导入。出错返回null
+     */
+    public BulkLoad startBulkLoad(String indexName){
+    	return startBulkLoad(indexName, null);
+    }
+    
+    /**
+     * 开始大批量导入，如历史数据的回填。导入期间这个索引不刷新（refresh_interval: -1）、没有副本（number_of_replicas: 0），写入会快很多，但新写入的数据查不到
+     * <p>导入完成后必须调用 {@link #finishBulkLoad(BulkLoad)} 或 {@link BulkLoad#close()} ，恢复导入前的设置</p>
+     * <p>同一个索引同时只能有一个导入，多个线程一起导入的，共用同一个 {@link BulkLoad} 。已经在导入中的，再次开始返回null</p>
+     * @param indexName 索引名字。不存在的会以不刷新、没有副本的设置创建
+     * @param mapping 字段的映射，传入null则不设置。索引已存在的，会增加到已有的 mapping 中
+     * @return 这次导入。出错、或这个索引已经在导入中的，返回null
+     */
+    public BulkLoad startBulkLoad(String indexName, Map<String, Object> mapping){
+    	if(!bulkLoadIndexSet.add(indexName)){
+    		log("index "+indexName+" is already in bulk load, finish it before starting another");
+    		return null;
+    	}
+    	BulkLoad bulkLoad = null;
+    	try {
+    		bulkLoad = doStartBulkLoad(indexName, mapping);
+    		return bulkLoad;
+		} finally {
+			if(bulkLoad == null){
+				bulkLoadIndexSet.remove(indexName);
+			}
+		}
+    }
+    
+    private BulkLoad doStartBulkLoad(String indexName, Map<String, Object> mapping){
+    	Map<String, Object> loadSettings = new HashMap<String, Object>();
+    	loadSettings.put(REFRESH_INTERVAL, "-1");
+    	loadSettings.put(NUMBER_OF_REPLICAS, 0);
+    	try {
+    		if(!existIndex(indexName) && createIndexIfAbsent(indexName, mapping, loadSettings) != null){
+    			//新建的索引，即使没有得到确认，也是以导入的设置创建的，导入完成后恢复为默认值
+    			return new BulkLoad(this, indexName, null, null);
+    		}
+    		
+    		GetSettingsRequest getRequest = new GetSettingsRequest().indices(indexName).names(REFRESH_INTERVAL, NUMBER_OF_REPLICAS);
+    		GetSettingsResponse settings = getRestHighLevelClient().indices().getSettings(getRequest, getRequestOptions());
+    		BulkLoad bulkLoad = new BulkLoad(this, indexName, settings.getSetting(indexName, REFRESH_INTERVAL), settings.getSetting(indexName, NUMBER_OF_REPLICAS));
+    		if(!putSettings(indexName, Settings.builder().loadFromMap(loadSettings))){
+    			return null;
+    		}
+    		if(mapping != null && !putMapping(indexName, mapping)){
+    			putSettings(indexName, restoreSettings(bulkLoad));
+    			return null;
+    		}
+    		return bulkLoad;
+		} catch (IOException | ElasticsearchStatusException e) {
+			e.printStackTrace();
+			return null;
+		}
+    }
+    
+    /**
+     * 完成大批量导入。先将 {@link #cache(Map, String)} 缓存中这个索引的数据提交，然后恢复导入前的刷新间隔、副本数，刷新，最后合并段
+     * <p>合并段会占用较多的磁盘IO，数据量大的可能超过请求的超时时间，超时后elasticsearch仍会在后台继续合并</p>
+     * @param bulkLoad {@link #startBulkLoad(String)} 返回的导入
+     * @return true:成功； false:有失败的步骤，已经完成过的也返回false
+     */
+    public boolean finishBulkLoad(BulkLoad bulkLoad){
+    	if(bulkLoad == null || !bulkLoad.finish()){
+    		return false;
+    	}
+    	String indexName = bulkLoad.getIndexName();
+    	boolean success = cacheSubmit(indexName);
+    	if(!putSettings(indexName, restoreSettings(bulkLoad))){
+    		success = false;
+    	}
+    	//设置已恢复，可以开始下一次导入了
+    	bulkLoadIndexSet.remove(indexName);
+    	try {
+    		getRestHighLevelClient().indices().refresh(new RefreshRequest(indexName), getRequestOptions());
+    		if(bulkLoad.getMaxNumSegments() > 0){
+    			ForceMergeRequest request = new ForceMergeRequest(indexName).maxNumSegments(bulkLoad.getMaxNumSegments());
+    			getRestHighLevelClient().indices().forcemerge(request, getRequestOptions());
+    		}
+		} catch (IOException | ElasticsearchStatusException e) {
+			e.printStackTrace();
+			success = false;
+		}
+    	invalidateIndex(indexName);
+    	return success;
+    }
+    
+    /**
+     * 导入前的设置。导入前没设置过的，恢复为默认值
+     */
+    private static Settings.Builder restoreSettings(BulkLoad bulkLoad){
+    	Settings.Builder builder = Settings.builder();
+    	if(bulkLoad.getRefreshInterval() == null){
+    		builder.putNull(REFRESH_INTERVAL);
+    	}else{
+    		builder.put(REFRESH_INTERVAL, bulkLoad.getRefreshInterval());
+    	}
+    	if(bulkLoad.getNumberOfReplicas() == null){
+    		builder.putNull(NUMBER_OF_REPLICAS);
+    	}else{
+    		builder.put(NUMBER_OF_REPLICAS, bulkLoad.getNumberOfReplicas());
+    	}
+    	return builder;
+    }
+    
+    /**
+     * 修改索引的设置
+     * @return true:成功； false:失败
+     */
+    private boolean putSettings(String indexName, Settings.Builder settings){
+    	UpdateSettingsRequest request = new UpdateSettingsRequest(indexName).settings(settings);
+    	try {
+    		return getRestHighLevelClient().indices().putSettings(request, getRequestOptions()).isAcknowledged();
+		} catch (IOException | ElasticsearchStatusException e) {
+			e.printStackTrace();
+			return false;
+		}
+    }
+	
+    /**
+     * 数据添加，网 elasticsearch 中添加一条数据
+     * @param params 要增加的数据，key-value形式。 其中map.value 支持的类型有 String、int、long、float、double、boolean
+     * @param indexName 索引名字，类似数据库的表，是添加进那个表
+     * @param id 要添加的这条数据的id, 如果传入null，则由es系统自动生成一个唯一ID
+     * @return 创建结果。如果 {@link IndexResponse#getId()} 不为null、且id长度大于0，那么就成功了
+     */
+    public IndexResponse put(Map<String, Object> params, String indexName, String id){
+        IndexResponse response = null;
+		try {
+			response = getRestHighLevelClient().index(putRequest(params, indexName, id), getRequestOptions());
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+        invalidate(indexName, id);
+        return response;
+    }
+    
+    /**
+     * 创建添加一条数据的请求
+     */
+    private IndexRequest putRequest(Map<String, Object> params, String indexName, String id){
+        //创建请求
+        IndexRequest request = new IndexRequest(indexName);
+        if(id != null){
+        	request.id(id);
+    	}
+        //v1.2 
+//        request.timeout(TimeValue.timeValueSeconds(5));
+        return request.source(toJsonBytes(params), XContentType.JSON);
+    }
+    
+    /**
+     * 将数据转为JSON，通过 {@link JsonFormatInterface#mapToJson(Map, java.io.OutputStream)} 直接写入字节，不经过中间的字符串
+     */
+    private BytesReference toJsonBytes(Map<String, Object> params){
+    	BytesStreamOutput out = new BytesStreamOutput();
+    	writeJson(params, out);
+    	return out.bytes();
+    }
+    
+    /**
+     * 将数据转为JSON，写入 out
+     */
+    private void writeJson(Map<String, Object> params, BytesStreamOutput out){
+    	try {
+    		jsonFormatInterface.mapToJson(params, out);
+		} catch (IOException e) {
+			//写入内存，不会出现
+			throw new UncheckedIOException(e);
+		}
+    }
+
+
+ /**
+  * 数据编辑，修改 elasticsearch 中的一条数据
+  * @param params 要修改的数据，key-value形式。 其中map.value 支持的类型有 String、int、long、float、double、boolean
+  * @param indexName 索引名字，类似数据库的表，是修改那个表
+  * @param id 要修改的这条数据的id, 如果传入null，则由es系统自动生成一个唯一ID
+  * @return 创建结果。如果 {@link IndexResponse#getId()} 不为null、且id长度大于0，那么就成功了
+  */
+ public UpdateResponse edit(Map<String, Object> params, String indexName, String id){
+	 UpdateResponse response = null;
+	 try {
+		 response = getRestHighLevelClient().update(editRequest(params, indexName, id), getRequestOptions());
+	 } catch (IOException e) {
+		 e.printStackTrace();
+	 }
+	 invalidate(indexName, id);
+	 return response;
+ }
+ 
+ /**
+  * 创建修改一条数据的请求
+  */
+ private UpdateRequest editRequest(Map<String, Object> params, String indexName, String id){
+	 //创建请求
+	 UpdateRequest request = new UpdateRequest(indexName, id);
+	 if(editTimeout > 0){
+		 request.timeout(TimeValue.timeValueMillis(editTimeout));
+	 }
+	 return request.doc(new IndexRequest().source(toJsonBytes(params), XContentType.JSON));
+ }
+ 
+ /**
+  * 批量修改数据，通过一次 _bulk 请求修改多条，只修改传入的这些字段
+  * <p>如果数据的总字节数超过了 {@link #setBulkMaxBytes(long)} 设置的大小，会拆分为多次提交，返回的是多次提交合并后的结果</p>
+  * @param map 要修改的数据。 key: 要修改的这条数据的id  value: 要修改的字段，key-value形式
+  * @param indexName 索引名字，类似数据库的表，是修改那个表
+  * @return {@link BulkResponse} ，不存在的数据，对应的那条是失败的。如果提交的是空，或者出错，那么会返回null
+  */
+ public BulkResponse editMany(Map<String, Map<String, Object>> map, String indexName){
+	 if(map.size() < 1){
+		 return null;
+	 }
+	 return bulk(editManyRequestList(map, indexName), indexName);
+ }
+ 
+ /**
+  * 创建批量修改数据的请求。超过 {@link #setBulkMaxBytes(long)} 设置的大小，会拆分为多个请求
+  */
+ private List<BulkRequest> editManyRequestList(Map<String, Map<String, Object>> map, String indexName){
+	 List<BulkRequest> bulkRequestList = new ArrayList<BulkRequest>();
+	 BytesStreamOutput out = new BytesStreamOutput();
+	 BulkRequest bulkAddRequest = new BulkRequest();
+	 for (Map.Entry<String, Map<String, Object>> entry : map.entrySet()) {
+		 int start = out.size();
+		 writeJson(entry.getValue(), out);
+		 UpdateRequest updateRequest = new UpdateRequest(indexName, entry.getKey());
+		 updateRequest.doc(new IndexRequest().source(out.bytes().slice(start, out.size() - start), XContentType.JSON));
+		 bulkAddRequest = addBulk(bulkRequestList, bulkAddRequest, updateRequest);
+	 }
+	 bulkRequestList.add(bulkAddRequest);
+	 return bulkRequestList;
+ }
+
     /**
      * 数据添加，网 elasticsearch 中添加一条数据
      * @param params 要增加的数据，key-value形式。 其中map.value 支持的类型有 String、int、long、float、double、boolean
@@ -377,6 +1183,7 @@ public class ElasticSearchUtil {
     
     /**
      * 批量添加数据
+     * <p>如果数据的总字节数超过了 {@link #setBulkMaxBytes(long)} 设置的大小，会拆分为多次提交，返回的是多次提交合并后的结果</p>
      * @param list 批量添加的数据的List
      * @param indexName 索引名字，类似数据库的表，是添加进那个表
      * @return {@link BulkResponse} ，如果没提交，或者提交的是空，或者出错，那么会返回null。判断其有没有提交成功可以使用  (res != null && !res.hasFailures())    
@@ -386,26 +1193,167 @@ public class ElasticSearchUtil {
     		return null;
     	}
     	
-    	//批量增加
+    	return bulk(putsRequestList(list, indexName), indexName);
+    }
+    
+    /**
+     * 创建批量添加数据的请求。超过 {@link #setBulkMaxBytes(long)} 设置的大小，会拆分为多个请求
+     */
+    private List<BulkRequest> putsRequestList(List<Map<String, Object>> list, String indexName){
+    	List<BulkRequest> bulkRequestList = new ArrayList<BulkRequest>();
+    	//批量增加。所有数据的JSON依次写入同一个 out ，每条数据引用其中的一段，不再单独复制
+    	BytesStreamOutput out = new BytesStreamOutput();
         BulkRequest bulkAddRequest = new BulkRequest();
         IndexRequest indexRequest;
         for (int i = 0; i < list.size(); i++) {
+        	int start = out.size();
+        	writeJson(list.get(i), out);
         	indexRequest = new IndexRequest(indexName);
-        	indexRequest.source(jsonFormatInterface.mapToJsonString(list.get(i)), XContentType.JSON);
-        	bulkAddRequest.add(indexRequest);
+        	indexRequest.source(out.bytes().slice(start, out.size() - start), XContentType.JSON);
+        	bulkAddRequest = addBulk(bulkRequestList, bulkAddRequest, indexRequest);
 		}
-        
-        BulkResponse bulkAddResponse = null;
-        try {
-        	bulkAddResponse = getRestHighLevelClient().bulk(bulkAddRequest, RequestOptions.DEFAULT);
-		} catch (IOException e) {
-			e.printStackTrace();
+        bulkRequestList.add(bulkAddRequest);
+        return bulkRequestList;
+    }
+    
+    /**
+     * 将一条数据加入批量请求，如果加入后超过了 {@link #setBulkMaxBytes(long)} 设置的大小，那么当前的批量请求拆分出来，加入到新的批量请求中
+     * @return 加入到的批量请求
+     */
+    private BulkRequest addBulk(List<BulkRequest> bulkRequestList, BulkRequest bulkAddRequest, DocWriteRequest<?> request){
+    	if(bulkAddRequest.numberOfActions() > 0 && bulkAddRequest.estimatedSizeInBytes() + sourceBytes(request) > this.bulkMaxBytes){
+    		//超过了最大字节数，拆分出来
+    		bulkRequestList.add(bulkAddRequest);
+    		bulkAddRequest = new BulkRequest();
+    	}
+    	bulkAddRequest.add(request);
+    	return bulkAddRequest;
+    }
+    
+    /**
+     * 批量请求中一条数据的字节数，删除的没有数据，为0
+     */
+    private static long sourceBytes(DocWriteRequest<?> request){
+    	if(request instanceof IndexRequest){
+    		return ((IndexRequest) request).source().length();
+    	}
+    	if(request instanceof UpdateRequest && ((UpdateRequest) request).doc() != null){
+    		return ((UpdateRequest) request).doc().source().length();
+    	}
+    	return 0;
+    }
+    
+    /**
+     * 依次提交拆分后的批量请求，返回合并后的结果。添加、修改、删除的批量请求都由这里提交
+     * @return 如果第一次提交就出错，什么都没提交，返回null。之前拆分的已提交成功、后面的出错的，返回已提交的结果，出错的及之后没提交的每条都是失败的
+     */
+    private BulkResponse bulk(List<BulkRequest> bulkRequestList, String indexName){
+    	List<BulkResponse> bulkResponseList = new ArrayList<BulkResponse>(bulkRequestList.size());
+    	for (int i = 0; i < bulkRequestList.size(); i++) {
+    		try {
+    			bulkResponseList.add(getBulkRestHighLevelClient().bulk(bulkRequest(bulkRequestList.get(i)), getRequestOptions()));
+    		} catch (IOException e) {
+    			e.printStackTrace();
+    			if(i == 0){
+    				return null;
+    			}
+    			//前面的已经提交了，不能当作都没提交。出错的及之后的，作为失败的加入结果
+    			for (int j = i; j < bulkRequestList.size(); j++) {
+    				bulkResponseList.add(failureBulkResponse(bulkRequestList.get(j), e));
+				}
+    			break;
+    		} finally {
+    			invalidateIndex(indexName);
+    		}
+		}
+    	return mergeBulkResponse(bulkResponseList);
+    }
+    
+    /**
+     * 一次批量请求整个出错了，每条都作为失败的结果
+     */
+    private static BulkResponse failureBulkResponse(BulkRequest bulkRequest, Exception e){
+    	List<DocWriteRequest<?>> requests = bulkRequest.requests();
+    	BulkItemResponse[] items = new BulkItemResponse[requests.size()];
+    	for (int i = 0; i < requests.size(); i++) {
+    		DocWriteRequest<?> request = requests.get(i);
+    		items[i] = new BulkItemResponse(i, request.opType(), new BulkItemResponse.Failure(request.index(), request.type(), request.id(), e));
+		}
+    	return new BulkResponse(items, 0);
+    }
+    
+    /**
+     * 同时提交拆分后的批量请求，返回合并后的结果，不会阻塞当前线程
+     * <p>全部出错的，以异常结束。部分出错的，返回的结果中出错的那几次的每条都是失败的，已提交成功的照常返回</p>
+     */
+    private CompletableFuture<BulkResponse> bulkAsync(final List<BulkRequest> bulkRequestList, final String indexName){
+    	final List<CompletableFuture<BulkResponse>> futureList = new ArrayList<CompletableFuture<BulkResponse>>(bulkRequestList.size());
+    	for (int i = 0; i < bulkRequestList.size(); i++) {
+    		CompletableFuture<BulkResponse> future = new CompletableFuture<BulkResponse>();
+    		getBulkRestHighLevelClient().bulkAsync(bulkRequest(bulkRequestList.get(i)), getRequestOptions(), actionListener(future));
+    		futureList.add(future);
+		}
+    	return CompletableFuture.allOf(futureList.toArray(new CompletableFuture<?>[futureList.size()])).handle(new BiFunction<Void, Throwable, BulkResponse>() {
+			public BulkResponse apply(Void v, Throwable e) {
+				List<BulkResponse> bulkResponseList = new ArrayList<BulkResponse>(futureList.size());
+				int successNumber = 0;
+				for (int i = 0; i < futureList.size(); i++) {
+					try {
+						bulkResponseList.add(futureList.get(i).join());
+						successNumber++;
+					} catch (CompletionException ex) {
+						Exception cause = ex.getCause() instanceof Exception ? (Exception) ex.getCause() : ex;
+						bulkResponseList.add(failureBulkResponse(bulkRequestList.get(i), cause));
+					}
+				}
+				if(successNumber == 0){
+					//全部出错，什么都没提交，以异常结束
+					throw e instanceof CompletionException ? (CompletionException) e : new CompletionException(e);
+				}
+				return mergeBulkResponse(bulkResponseList);
+			}
+		}).whenComplete(new BiConsumer<BulkResponse, Throwable>() {
+			public void accept(BulkResponse response, Throwable e) {
+				invalidateIndex(indexName);
+			}
+		});
+    }
+    
+    /**
+     * 提交前设置批量请求的参数。其中有修改、删除的，使用 {@link #setEditTimeout(long)} 的等待时间
+     */
+    private BulkRequest bulkRequest(BulkRequest bulkRequest){
+    	if(editTimeout > 0){
+    		for (DocWriteRequest<?> request : bulkRequest.requests()) {
+    			if(request.opType() != DocWriteRequest.OpType.INDEX && request.opType() != DocWriteRequest.OpType.CREATE){
+    				bulkRequest.timeout(TimeValue.timeValueMillis(editTimeout));
+    				break;
+    			}
+			}
+    	}
+    	return bulkRequest;
+    }
+    
+    /**
+     * 将拆分后多次提交的结果合并为一个
+     */
+    private static BulkResponse mergeBulkResponse(List<BulkResponse> bulkResponseList){
+    	if(bulkResponseList.size() == 1){
+        	//只提交了一次，不用合并
+    		return bulkResponseList.get(0);
+    	}
+    	List<BulkItemResponse> itemList = new ArrayList<BulkItemResponse>();
+    	long took = 0;
+    	for (int i = 0; i < bulkResponseList.size(); i++) {
+    		itemList.addAll(Arrays.asList(bulkResponseList.get(i).getItems()));
+    		took = took + bulkResponseList.get(i).getTook().millis();
 		}
-        return bulkAddResponse;
+        return new BulkResponse(itemList.toArray(new BulkItemResponse[itemList.size()]), took);
     }
 
     /**
      * 查询并分页
+     * <p>返回的是 elasticsearch 原始的响应，调用方可能会修改其中的内容，所以不经过 {@link ReadCache} 缓存</p>
      * @param indexName 索引名字
      * @param query 查询条件， {@link SearchSourceBuilder}
      * @param from 从第几条开始查询，相当于 limit a,b 中的a ，比如要从最开始第一条查，可传入： 0
@@ -413,19 +1361,101 @@ public class ElasticSearchUtil {
      * @return {@link SearchResponse} 结果，可以通过 response.status().getStatus() == 200 来判断是否执行成功
      */
     public SearchResponse search(String indexName, SearchSourceBuilder searchSourceBuilder, Integer from, Integer size){
-        SearchRequest request = new SearchRequest(indexName);
-        searchSourceBuilder.from(from);
-        searchSourceBuilder.size(size);
-        request.source(searchSourceBuilder);
         SearchResponse response = null;
 		try {
-			response = getRestHighLevelClient().search(request, RequestOptions.DEFAULT);
+			response = requestSearch(searchRequest(indexName, searchSourceBuilder, from, size));
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+        return response;
+    }
+    
+    /**
+     * 查询并分页。开启了 {@link ReadCache} 的，先从缓存中取
+     * <p>缓存的 {@link SearchResponse} 会返回给多个调用方，只能在内部使用，取出数据时要转为新的对象，不能修改其中的内容</p>
+     */
+    private SearchResponse cachedSearch(String indexName, SearchSourceBuilder searchSourceBuilder, Integer from, Integer size){
+        SearchRequest request = searchRequest(indexName, searchSourceBuilder, from, size);
+        ReadCache cache = readCache;
+        String key = null;
+        long[] version = null;
+        if(cache != null){
+        	key = ReadCache.queryKey(indexName, searchSourceBuilder.toString());
+        	SearchResponse cached = (SearchResponse) cache.get(indexName, key);
+        	if(cached != null){
+        		return cached;
+        	}
+        	version = cache.version(indexName);
+        }
+        SearchResponse response = null;
+		try {
+			response = requestSearch(request);
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
+		if(cache != null && response != null && response.status().getStatus() == 200){
+			cache.put(indexName, key, false, response, responseBytes(response), version);
+		}
         return response;
     }
     
+    /**
+     * 请求 elasticsearch 查询。开启了 {@link SearchBatcher} 的，跟其他线程的查询合并提交
+     */
+    private SearchResponse requestSearch(SearchRequest request) throws IOException {
+    	SearchBatcher batcher = searchBatcher;
+    	if(batcher == null){
+    		return getRestHighLevelClient().search(request, getRequestOptions());
+    	}
+    	try {
+    		return batcher.search(request).join();
+		} catch (CompletionException e) {
+			if(e.getCause() instanceof IOException){
+				throw (IOException) e.getCause();
+			}
+			throw new IOException(e.getCause());
+		}
+    }
+    
+    /**
+     * 异步请求 elasticsearch 查询。开启了 {@link SearchBatcher} 的，跟其他线程的查询合并提交
+     */
+    private CompletableFuture<SearchResponse> requestSearchAsync(SearchRequest request){
+    	SearchBatcher batcher = searchBatcher;
+    	if(batcher != null){
+    		return batcher.search(request);
+    	}
+    	CompletableFuture<SearchResponse> future = new CompletableFuture<SearchResponse>();
+    	getRestHighLevelClient().searchAsync(request, getRequestOptions(), actionListener(future));
+    	return future;
+    }
+    
+    /**
+     * 查询结果大概占用的内存，单位字节。用于 {@link ReadCache}
+     */
+    private static long responseBytes(SearchResponse response){
+    	long bytes = 256;
+    	SearchHit[] hits = response.getHits().getHits();
+    	for (int i = 0; i < hits.length; i++) {
+    		BytesReference source = hits[i].getSourceRef();
+    		bytes = bytes + 128 + (source == null ? 0 : source.length());
+		}
+    	return bytes;
+    }
+    
+    /**
+     * 创建查询的请求
+     */
+    private SearchRequest searchRequest(String indexName, SearchSourceBuilder searchSourceBuilder, Integer from, Integer size){
+        SearchRequest request = new SearchRequest(indexName);
+        searchSourceBuilder.from(from);
+        searchSourceBuilder.size(size);
+        if(trackTotalHits != null && searchSourceBuilder.trackTotalHitsUpTo() == null){
+        	searchSourceBuilder.trackTotalHitsUpTo(trackTotalHits);
+        }
+        request.source(searchSourceBuilder);
+        return request;
+    }
 
     /**
      * 查询数据
@@ -438,9 +1468,40 @@ public class ElasticSearchUtil {
      * 		<p>返回的结果集中，每条会自动加入一项 esid ，这个是在es中本条记录的唯一id编号，es自动赋予的。</p> 
      */
     public List<Map<String,Object>> search(String indexName, String queryString, Integer from, Integer size, SortBuilder sort){
-    	List<Map<String,Object>> list = new ArrayList<Map<String,Object>>();
-    	
+        return search(indexName, queryString, from, size, sort, (SearchFields) null);
+    }
+    
+    /**
+     * 查询数据，只返回需要的字段
+     * @param indexName 索引名字
+     * @param queryString 查询条件，传入如： name:guanleiming AND age:123
+     * @param from 从第几条开始查询，相当于 limit a,b 中的a ，比如要从最开始第一条查，可传入： 0
+     * @param size 本次查询最大查询出多少条数据 ,相当于 limit a,b 中的b
+     * @param sort 排序方式。如果不需要排序，传入null即可
+     * @param fields 返回哪些字段，传入如 SearchFields.include("username", "age") 。传入null则返回全部
+     * @return 查询的结果，每条会自动加入一项 esid 。任何情况返回值不会为null
+     */
+    public List<Map<String,Object>> search(String indexName, String queryString, Integer from, Integer size, SortBuilder sort, SearchFields fields){
+        SearchResponse response = cachedSearch(indexName, searchSourceBuilder(queryString, sort, fields), from, size);
+        return searchResponseToList(response);
+    }
+    
+    /**
+     * 根据查询条件、排序方式，创建 {@link SearchSourceBuilder}
+     */
+    private static SearchSourceBuilder searchSourceBuilder(String queryString, SortBuilder sort){
+    	return searchSourceBuilder(queryString, sort, null);
+    }
+    
+    /**
+     * 根据查询条件、排序方式、返回的字段，创建 {@link SearchSourceBuilder}
+     * @param fields 返回哪些字段，传入null则返回全部
+     */
+    private static SearchSourceBuilder searchSourceBuilder(String queryString, SortBuilder sort, SearchFields fields){
     	SearchSourceBuilder searchSourceBuilder = new SearchSourceBuilder();
+    	if(fields != null){
+    		fields.apply(searchSourceBuilder);
+    	}
     	if(queryString != null && queryString.length() > 0){
     		//有查询条件，才会进行查询，否则会查出所有
     		QueryBuilder queryBuilder = QueryBuilders.queryStringQuery(queryString);
@@ -451,13 +1512,19 @@ public class ElasticSearchUtil {
         if(sort != null){
         	searchSourceBuilder.sort(sort);
         }
-        SearchResponse response = search(indexName, searchSourceBuilder, from, size);
-        if(response.status().getStatus() == 200){
+        return searchSourceBuilder;
+    }
+    
+    /**
+     * 将查询的结果转为list，每条会自动加入一项 esid
+     * @param response 查询的结果，传入null则返回空的list
+     */
+    private static List<Map<String,Object>> searchResponseToList(SearchResponse response){
+    	List<Map<String,Object>> list = new ArrayList<Map<String,Object>>();
+        if(response != null && response.status().getStatus() == 200){
         	SearchHit shs[] = response.getHits().getHits();
         	for (int i = 0; i < shs.length; i++) {
-        		Map<String, Object> map = shs[i].getSourceAsMap();
-        		map.put("esid", shs[i].getId());
-				list.add(map);
+				list.add(hitToMap(shs[i]));
 			}
         }else{
         	//异常
@@ -468,11 +1535,60 @@ public class ElasticSearchUtil {
     
 
     /**
-     * 查询数据
-     * <p>如果数据超过100条，那么只会返回前100条数据。<p>
-     * @param indexName 索引名字
-     * @param queryString 查询条件，传入如： name:guanleiming AND age:123
-     * @return 查询的结果，封装成list返回。list中的每条都是一条结果。如果链接es出错或者查询异常又或者什么都没查出，那么都是返回一个 new ArrayList<Map<String,Object>>(); ，任何情况返回值不会为null
+     * 将查询的一条结果转为map，并加入一项 esid 。有 docvalue_fields 、 stored_fields 的，也加入
+     */
+    private static Map<String,Object> hitToMap(SearchHit hit){
+    	Map<String, Object> map = sourceToMap(hit.getSourceRef());
+    	putFields(map, hit.getFields());
+    	map.put("esid", hit.getId());
+    	return map;
+    }
+    
+    /**
+     * 将一条数据的JSON转为新的map。不用 {@link SearchHit#getSourceAsMap()} ，那个会缓存在 SearchHit 中，查询结果被 {@link ReadCache} 缓存时，多次查询会拿到同一个map
+     * @param source 这条数据的JSON，没有返回 _source 的为null
+     */
+    private static Map<String, Object> sourceToMap(BytesReference source){
+    	if(source == null){
+    		return new HashMap<String, Object>();
+    	}
+    	return XContentHelper.convertToMap(source, false, XContentType.JSON).v2();
+    }
+    
+    /**
+     * 将 docvalue_fields 、 stored_fields 取得的字段加入 map ，只有一个值的取这个值，多个值的为 List
+     */
+    private static void putFields(Map<String, Object> map, Map<String, DocumentField> fields){
+    	if(fields == null){
+    		return;
+    	}
+    	for (DocumentField field : fields.values()) {
+    		if(field.getName().startsWith("_")){
+    			//_routing 等元数据，不加入
+    			continue;
+    		}
+    		map.put(field.getName(), field.getValues().size() == 1 ? field.getValue() : field.getValues());
+    	}
+    }
+    
+    /**
+     * 查询的一条结果的JSON，用于转为实体类。有 docvalue_fields 、 stored_fields 的，合并后重新生成
+     * @return 没有返回 _source 也没有其他字段的，返回null
+     */
+    private static BytesReference hitSource(SearchHit hit) throws IOException {
+    	if(hit.getFields().isEmpty()){
+    		return hit.getSourceRef();
+    	}
+    	XContentBuilder builder = XContentFactory.jsonBuilder().map(hitToMap(hit));
+    	return BytesReference.bytes(builder);
+    }
+    
+    /**
+     * 查询数据
+     * <p>如果数据超过100条，那么只会返回前100条数据。<p>
+     * @param indexName 索引名字
+     * @param queryString 查询条件，传入如： name:guanleiming AND age:123
+     * @return 查询的结果，封装成list返回。list中的每条都是一条结果。如果链接es出错或者查询异常又或者什么都没查出，那么都是返回一个 new ArrayList<Map<String,Object>>(); ，任何情况返回值不会为null
      * 		<p>返回的结果集中，每条会自动加入一项 esid ，这个是在es中本条记录的唯一id编号，es自动赋予的。</p> 
      */
     public List<Map<String,Object>> search(String indexName, String queryString){
@@ -488,26 +1604,386 @@ public class ElasticSearchUtil {
      * @return 这条数据的内容。 如果返回null，则是没有找到这条数据，或者执行过程出错。
      */
     public Map<String,Object> searchById(String indexName, String id){
-        GetRequest request = new GetRequest(indexName, id);
+    	return searchById(indexName, id, (SearchFields) null);
+    }
+    
+    /**
+     * 通过elasticsearch数据的id，获取这条数据，只返回需要的字段
+     * @param indexName 索引名字
+     * @param id elasticsearch数据的id
+     * @param fields 返回哪些字段，传入如 SearchFields.exclude("content") 。传入null则返回全部。 docvalue_fields 不支持
+     * @return 这条数据的内容，会加入一项 esid 。 如果返回null，则是没有找到这条数据，或者执行过程出错。
+     */
+    public Map<String,Object> searchById(String indexName, String id, SearchFields fields){
         GetResponse response = null;
 		try {
-			response = getRestHighLevelClient().get(request, RequestOptions.DEFAULT);
+			response = get(indexName, id, fields);
 		} catch (IOException e) {
 			e.printStackTrace();
 			return null;
 		}
-		if(response.isSourceEmpty()){
+		return getResponseToMap(response);
+    }
+    
+    /**
+     * 获取一条数据。开启了 {@link ReadCache} 的，先从缓存中取
+     * @param fields 返回哪些字段，传入null则返回全部
+     */
+    private GetResponse get(String indexName, String id, SearchFields fields) throws IOException {
+    	ReadCache cache = readCache;
+    	if(cache == null){
+    		return requestGet(indexName, id, fields);
+    	}
+    	String key = ReadCache.idKey(indexName, id, fields == null ? "" : fields.toString());
+    	GetResponse response = (GetResponse) cache.get(indexName, key);
+    	if(response == null){
+    		long[] version = cache.version(indexName);
+    		response = requestGet(indexName, id, fields);
+    		cache.put(indexName, key, true, response, responseBytes(response), version);
+    	}
+    	return response;
+    }
+    
+    /**
+     * 请求 elasticsearch 获取一条数据。开启了 {@link GetBatcher} 的，跟其他线程的获取请求合并提交
+     */
+    private GetResponse requestGet(String indexName, String id, SearchFields fields) throws IOException {
+    	GetBatcher batcher = getBatcher;
+    	if(batcher == null){
+    		return getRestHighLevelClient().get(getRequest(indexName, id, fields), getRequestOptions());
+    	}
+    	try {
+    		return batcher.get(indexName, id, fields).join();
+		} catch (CompletionException e) {
+			if(e.getCause() instanceof IOException){
+				throw (IOException) e.getCause();
+			}
+			throw new IOException(e.getCause());
+		}
+    }
+    
+    /**
+     * 异步请求 elasticsearch 获取一条数据。开启了 {@link GetBatcher} 的，跟其他线程的获取请求合并提交
+     */
+    private CompletableFuture<GetResponse> requestGetAsync(String indexName, String id, SearchFields fields){
+    	GetBatcher batcher = getBatcher;
+    	if(batcher != null){
+    		return batcher.get(indexName, id, fields);
+    	}
+    	CompletableFuture<GetResponse> future = new CompletableFuture<GetResponse>();
+    	getRestHighLevelClient().getAsync(getRequest(indexName, id, fields), getRequestOptions(), actionListener(future));
+    	return future;
+    }
+    
+    /**
+     * 异步获取一条数据。开启了 {@link ReadCache} 的，先从缓存中取
+     * @param fields 返回哪些字段，传入null则返回全部
+     */
+    private CompletableFuture<GetResponse> getAsync(final String indexName, String id, SearchFields fields){
+    	final ReadCache cache = readCache;
+    	if(cache == null){
+    		return requestGetAsync(indexName, id, fields);
+    	}
+    	final String key = ReadCache.idKey(indexName, id, fields == null ? "" : fields.toString());
+    	GetResponse cached = (GetResponse) cache.get(indexName, key);
+    	if(cached != null){
+    		return CompletableFuture.completedFuture(cached);
+    	}
+    	final long[] version = cache.version(indexName);
+    	return requestGetAsync(indexName, id, fields).thenApply(new Function<GetResponse, GetResponse>() {
+			public GetResponse apply(GetResponse response) {
+				cache.put(indexName, key, true, response, responseBytes(response), version);
+				return response;
+			}
+		});
+    }
+    
+    /**
+     * 获取的一条数据大概占用的内存，单位字节。用于 {@link ReadCache}
+     */
+    private static long responseBytes(GetResponse response){
+    	return 256 + (response.isSourceEmpty() ? 0 : response.getSourceAsBytesRef().length());
+    }
+    
+    /**
+     * 创建获取一条数据的请求
+     * @param fields 返回哪些字段，传入null则返回全部
+     */
+    private static GetRequest getRequest(String indexName, String id, SearchFields fields){
+    	GetRequest request = new GetRequest(indexName, id);
+    	if(fields != null){
+    		fields.apply(request);
+    	}
+    	return request;
+    }
+    
+    /**
+     * 将获取的一条数据转为map，并加入一项 esid 。有 stored_fields 的，也加入
+     * @return 如果没有这条数据，返回null
+     */
+    private static Map<String,Object> getResponseToMap(GetResponse response){
+		if(!response.isExists()){
 			//没有这条数据
 			return null;
 		}
 		
-        Map<String, Object> map = response.getSource();
+        Map<String, Object> map = sourceToMap(response.isSourceEmpty() ? null : response.getSourceAsBytesRef());
+        putFields(map, response.getFields());
         //为返回的数据添加id
         map.put("esid",response.getId());
         return map;
     }
     
 
+    /**
+     * 通过elasticsearch数据的id，一次获取多条数据。通过一次 _mget 请求，比循环 {@link #searchById(String, String)} 少了多次网络往返
+     * @param indexName 索引名字
+     * @param ids elasticsearch数据的id
+     * @return 获取到的数据，按 ids 的顺序。 key: id  value: 这条数据的内容，会加入一项 esid 。没有找到的id不会加入。如果执行过程出错，返回空的map
+     */
+    public Map<String, Map<String,Object>> searchByIds(String indexName, Collection<String> ids){
+    	return searchByIds(indexName, ids, (SearchFields) null);
+    }
+    
+    /**
+     * 通过elasticsearch数据的id，一次获取多条数据，只返回需要的字段。同 {@link #searchByIds(String, Collection)}
+     * @param indexName 索引名字
+     * @param ids elasticsearch数据的id
+     * @param fields 返回哪些字段，传入null则返回全部。 docvalue_fields 不支持
+     * @return 获取到的数据，按 ids 的顺序。没有找到的id不会加入。如果执行过程出错，返回空的map
+     */
+    public Map<String, Map<String,Object>> searchByIds(String indexName, Collection<String> ids, SearchFields fields){
+    	try {
+    		return multiGetToMap(multiGetAsync(indexName, ids, fields).join());
+		} catch (CompletionException e) {
+			e.getCause().printStackTrace();
+			return new LinkedHashMap<String, Map<String,Object>>();
+		}
+    }
+    
+    /**
+     * 通过elasticsearch数据的id，一次获取多条数据，结果转为实体类。同 {@link #searchByIds(String, Collection)}
+     * @param indexName 索引名字
+     * @param ids elasticsearch数据的id
+     * @param clazz 实体类，需要有无参构造方法。如果有名为 esid 的 String 属性，会赋予这条数据在es中的id
+     * @return 获取到的数据，按 ids 的顺序。没有找到的id不会加入。如果执行过程出错，返回空的map
+     */
+    public <T> Map<String, T> searchByIds(String indexName, Collection<String> ids, Class<T> clazz){
+    	return searchByIds(indexName, ids, null, clazz);
+    }
+    
+    /**
+     * 通过elasticsearch数据的id，一次获取多条数据，只返回需要的字段，结果转为实体类。同 {@link #searchByIds(String, Collection)}
+     * @param indexName 索引名字
+     * @param ids elasticsearch数据的id
+     * @param fields 返回哪些字段，没返回的属性为null。传入null则返回全部
+     * @param clazz 实体类，需要有无参构造方法
+     * @return 获取到的数据，按 ids 的顺序。没有找到的id不会加入。如果执行过程出错，返回空的map
+     */
+    public <T> Map<String, T> searchByIds(String indexName, Collection<String> ids, SearchFields fields, Class<T> clazz){
+    	try {
+    		return multiGetToBean(multiGetAsync(indexName, ids, fields).join(), BeanMapper.get(clazz));
+		} catch (CompletionException e) {
+			e.getCause().printStackTrace();
+			return new LinkedHashMap<String, T>();
+		}
+    }
+    
+    /**
+     * 通过一次 _mget 获取多条数据，不会阻塞当前线程。开启了 {@link ReadCache} 的，缓存中有的不再请求
+     * @return key: id  value: 获取的结果，按 ids 的顺序
+     */
+    private CompletableFuture<Map<String, GetResponse>> multiGetAsync(final String indexName, Collection<String> ids, SearchFields fields){
+    	final Map<String, GetResponse> result = new LinkedHashMap<String, GetResponse>();
+    	final ReadCache cache = readCache;
+    	final String fieldsKey = fields == null ? "" : fields.toString();
+    	MultiGetRequest request = new MultiGetRequest();
+    	for (String id : ids) {
+    		if(result.containsKey(id)){
+    			//重复的id
+    			continue;
+    		}
+    		GetResponse cached = cache == null ? null : (GetResponse) cache.get(indexName, ReadCache.idKey(indexName, id, fieldsKey));
+    		//先占位，保持 ids 的顺序
+    		result.put(id, cached);
+    		if(cached == null){
+    			MultiGetRequest.Item item = new MultiGetRequest.Item(indexName, id);
+    			if(fields != null){
+    				fields.apply(item);
+    			}
+    			request.add(item);
+    		}
+		}
+    	if(request.getItems().isEmpty()){
+    		return CompletableFuture.completedFuture(result);
+    	}
+    	
+    	final long[] version = cache == null ? null : cache.version(indexName);
+    	CompletableFuture<MultiGetResponse> future = new CompletableFuture<MultiGetResponse>();
+    	getRestHighLevelClient().mgetAsync(request, getRequestOptions(), actionListener(future));
+    	return future.thenApply(new Function<MultiGetResponse, Map<String, GetResponse>>() {
+			public Map<String, GetResponse> apply(MultiGetResponse response) {
+				for (MultiGetItemResponse item : response.getResponses()) {
+					if(item.isFailed()){
+						//这条获取失败，如索引不存在，当做没有找到
+						continue;
+					}
+					GetResponse getResponse = item.getResponse();
+					result.put(item.getId(), getResponse);
+					if(cache != null){
+						cache.put(indexName, ReadCache.idKey(indexName, item.getId(), fieldsKey), true, getResponse, responseBytes(getResponse), version);
+					}
+				}
+				return result;
+			}
+		});
+    }
+    
+    /**
+     * 将 _mget 的结果转为map，没有找到的不加入
+     */
+    private static Map<String, Map<String,Object>> multiGetToMap(Map<String, GetResponse> responseMap){
+    	Map<String, Map<String,Object>> map = new LinkedHashMap<String, Map<String,Object>>();
+    	for (Map.Entry<String, GetResponse> entry : responseMap.entrySet()) {
+    		if(entry.getValue() == null){
+    			continue;
+    		}
+    		Map<String, Object> item = getResponseToMap(entry.getValue());
+    		if(item != null){
+    			map.put(entry.getKey(), item);
+    		}
+		}
+    	return map;
+    }
+    
+    /**
+     * 将 _mget 的结果转为实体类，没有找到的不加入
+     */
+    private static <T> Map<String, T> multiGetToBean(Map<String, GetResponse> responseMap, BeanMapper<T> mapper){
+    	Map<String, T> map = new LinkedHashMap<String, T>();
+    	try {
+    		for (Map.Entry<String, GetResponse> entry : responseMap.entrySet()) {
+    			if(entry.getValue() == null){
+    				continue;
+    			}
+    			T bean = getResponseToBean(entry.getValue(), mapper);
+    			if(bean != null){
+    				map.put(entry.getKey(), bean);
+    			}
+    		}
+		} catch (IOException e) {
+			//解析内存中的数据，不会出现
+			throw new UncheckedIOException(e);
+		}
+    	return map;
+    }
+    
+    /**
+     * 一次发起多个查询。通过一次 _msearch 请求，比循环 {@link #search(String, String, Integer, Integer, SortBuilder)} 少了多次网络往返，多个查询在es中并行执行
+     * <p>使用如：</p>
+     * <pre>
+     * List&lt;MultiSearchItem&gt; items = new ArrayList&lt;MultiSearchItem&gt;();
+     * items.add(new MultiSearchItem("user", "age:26", 0, 10, null));
+     * items.add(new MultiSearchItem("article", "userid:1", 0, 20, null));
+     * List&lt;List&lt;Map&lt;String, Object&gt;&gt;&gt; results = es.multiSearch(items);
+     * </pre>
+     * @param items 多个查询
+     * @return 每个查询的结果，跟 items 的顺序对应，每条会自动加入一项 esid 。某个查询出错或者什么都没查出，对应的是空的list ，任何情况返回值不会为null
+     */
+    public List<List<Map<String,Object>>> multiSearch(List<MultiSearchItem> items){
+    	List<SearchResponse> responses;
+    	try {
+    		responses = requestMultiSearchAsync(items).join();
+		} catch (CompletionException e) {
+			e.getCause().printStackTrace();
+			responses = new ArrayList<SearchResponse>();
+		}
+    	List<List<Map<String,Object>>> list = new ArrayList<List<Map<String,Object>>>(items.size());
+    	for (int i = 0; i < items.size(); i++) {
+    		list.add(searchResponseToList(i < responses.size() ? responses.get(i) : null));
+		}
+    	return list;
+    }
+    
+    /**
+     * 一次发起多个查询，结果转为实体类。同 {@link #multiSearch(List)}
+     * @param items 多个查询
+     * @param clazz 实体类，需要有无参构造方法。如果有名为 esid 的 String 属性，会赋予这条数据在es中的id
+     * @return 每个查询的结果，跟 items 的顺序对应。某个查询出错或者什么都没查出，对应的是空的list ，任何情况返回值不会为null
+     */
+    public <T> List<List<T>> multiSearch(List<MultiSearchItem> items, Class<T> clazz){
+    	BeanMapper<T> mapper = BeanMapper.get(clazz);
+    	List<SearchResponse> responses;
+    	try {
+    		responses = requestMultiSearchAsync(items).join();
+		} catch (CompletionException e) {
+			e.getCause().printStackTrace();
+			responses = new ArrayList<SearchResponse>();
+		}
+    	List<List<T>> list = new ArrayList<List<T>>(items.size());
+    	for (int i = 0; i < items.size(); i++) {
+    		list.add(searchResponseToList(i < responses.size() ? responses.get(i) : null, mapper));
+		}
+    	return list;
+    }
+    
+    /**
+     * 通过一次 _msearch 发起多个查询，不会阻塞当前线程。开启了 {@link ReadCache} 的，缓存中有的不再请求
+     * @return 每个查询的结果，跟 items 的顺序对应。某个查询出错的，对应的是null
+     */
+    private CompletableFuture<List<SearchResponse>> requestMultiSearchAsync(List<MultiSearchItem> items){
+    	final ReadCache cache = readCache;
+    	final SearchResponse[] result = new SearchResponse[items.size()];
+    	final String[] indexNames = new String[items.size()];
+    	final String[] keys = new String[items.size()];
+    	final long[][] versions = new long[items.size()][];
+    	final List<Integer> sendIndexes = new ArrayList<Integer>();	//需要请求的，在 items 中的下标
+    	MultiSearchRequest request = new MultiSearchRequest();
+    	for (int i = 0; i < items.size(); i++) {
+    		MultiSearchItem item = items.get(i);
+    		SearchSourceBuilder searchSourceBuilder = item.getSearchSourceBuilder();
+    		if(searchSourceBuilder == null){
+    			searchSourceBuilder = searchSourceBuilder(item.getQueryString(), item.getSort(), item.getFields());
+    		}
+    		SearchRequest searchRequest = searchRequest(item.getIndexName(), searchSourceBuilder, item.getFrom(), item.getSize());
+    		indexNames[i] = item.getIndexName();
+    		if(cache != null){
+    			keys[i] = ReadCache.queryKey(indexNames[i], searchSourceBuilder.toString());
+    			result[i] = (SearchResponse) cache.get(indexNames[i], keys[i]);
+    			if(result[i] != null){
+    				continue;
+    			}
+    			versions[i] = cache.version(indexNames[i]);
+    		}
+    		request.add(searchRequest);
+    		sendIndexes.add(i);
+		}
+    	if(sendIndexes.isEmpty()){
+    		return CompletableFuture.completedFuture(Arrays.asList(result));
+    	}
+    	
+    	CompletableFuture<MultiSearchResponse> future = new CompletableFuture<MultiSearchResponse>();
+    	getRestHighLevelClient().msearchAsync(request, getRequestOptions(), actionListener(future));
+    	return future.thenApply(new Function<MultiSearchResponse, List<SearchResponse>>() {
+			public List<SearchResponse> apply(MultiSearchResponse response) {
+				MultiSearchResponse.Item[] responseItems = response.getResponses();
+				for (int i = 0; i < responseItems.length && i < sendIndexes.size(); i++) {
+					int index = sendIndexes.get(i);
+					if(responseItems[i].isFailure()){
+						//这个查询失败，如索引不存在，当做没有查出
+						log("multiSearch item "+index+" failure: "+responseItems[i].getFailureMessage());
+						continue;
+					}
+					result[index] = responseItems[i].getResponse();
+					if(cache != null && result[index].status().getStatus() == 200){
+						cache.put(indexNames[index], keys[index], false, result[index], responseBytes(result[index]), versions[index]);
+					}
+				}
+				return Arrays.asList(result);
+			}
+		});
+    }
+    
     /**
      * 通过elasticsearch数据的id，来删除这条数据
      * @param indexName 索引名字
@@ -517,13 +1993,21 @@ public class ElasticSearchUtil {
         DeleteRequest request = new DeleteRequest(indexName, id);
         DeleteResponse delete = null;
 		try {
-			delete = getRestHighLevelClient().delete(request, RequestOptions.DEFAULT);
+			delete = getRestHighLevelClient().delete(request, getRequestOptions());
 		} catch (IOException e) {
 			e.printStackTrace();
 			//删除失败
 			return false;
+		} finally {
+			invalidate(indexName, id);
 		}
-		
+		return isDeleted(delete);
+    }
+    
+    /**
+     * 判断删除是否成功
+     */
+    private static boolean isDeleted(DeleteResponse delete){
 		if(delete == null){
 			//这种情况应该不存在
 			return false;
@@ -535,53 +2019,217 @@ public class ElasticSearchUtil {
 		}
     }
     
+    /**
+     * 通过id批量删除数据，通过一次 _bulk 请求删除多条
+     * @param indexName 索引名字
+     * @param ids 要删除的数据的id
+     * @return {@link BulkResponse} ，不存在的数据，对应的那条 {@link DocWriteResponse#getResult()} 为 NOT_FOUND 。如果提交的是空，或者出错，那么会返回null
+     */
+    public BulkResponse deleteByIds(String indexName, Collection<String> ids){
+    	if(ids.size() < 1){
+    		return null;
+    	}
+    	return bulk(deleteByIdsRequestList(indexName, ids), indexName);
+    }
+    
+    /**
+     * 创建批量删除的请求。删除的请求很小，按 {@link #cacheMaxNumber} 的10倍拆分，避免一次删除太多
+     */
+    private List<BulkRequest> deleteByIdsRequestList(String indexName, Collection<String> ids){
+    	List<BulkRequest> bulkRequestList = new ArrayList<BulkRequest>();
+    	int maxNumber = Math.max(cacheMaxNumber * 10, 1000);
+    	BulkRequest bulkAddRequest = new BulkRequest();
+    	for (String id : ids) {
+    		if(bulkAddRequest.numberOfActions() >= maxNumber){
+    			bulkRequestList.add(bulkAddRequest);
+    			bulkAddRequest = new BulkRequest();
+    		}
+    		bulkAddRequest = addBulk(bulkRequestList, bulkAddRequest, new DeleteRequest(indexName, id));
+		}
+    	bulkRequestList.add(bulkAddRequest);
+    	return bulkRequestList;
+    }
+    
+    /**
+     * 按查询条件批量修改，符合条件的数据都修改传入的这些字段。在elasticsearch中执行，不用先查出来再一条条修改
+     * <p>执行中遇到其他程序同时修改的数据（版本冲突），跳过这条继续执行，跳过的条数见 {@link BulkByScrollResponse#getVersionConflicts()}</p>
+     * @param indexName 索引名字
+     * @param queryBuilder 查询条件，传入如 QueryBuilders.termQuery("status", 1) 。传入null则是修改全部
+     * @param params 要修改的字段，key-value形式。 其中map.value 支持的类型有 String、int、long、float、double、boolean
+     * @return 执行结果，修改的条数见 {@link BulkByScrollResponse#getUpdated()} 。如果出错，返回null
+     */
+    public BulkByScrollResponse updateByQuery(String indexName, QueryBuilder queryBuilder, Map<String, Object> params){
+    	try {
+    		return getRestHighLevelClient().updateByQuery(updateByQueryRequest(indexName, queryBuilder, params), getRequestOptions());
+		} catch (IOException e) {
+			e.printStackTrace();
+			return null;
+		} finally {
+			invalidateIndex(indexName);
+		}
+    }
+    
+    /**
+     * 创建按查询条件批量修改的请求。要修改的字段通过脚本参数传入，脚本内容固定，elasticsearch只需编译一次
+     */
+    private static UpdateByQueryRequest updateByQueryRequest(String indexName, QueryBuilder queryBuilder, Map<String, Object> params){
+    	UpdateByQueryRequest request = new UpdateByQueryRequest(indexName);
+    	if(queryBuilder != null){
+    		request.setQuery(queryBuilder);
+    	}
+    	request.setAbortOnVersionConflict(false);
+    	Map<String, Object> scriptParams = new HashMap<String, Object>();
+    	scriptParams.put("doc", params);
+    	request.setScript(new Script(ScriptType.INLINE, Script.DEFAULT_SCRIPT_LANG, "ctx._source.putAll(params.doc)", scriptParams));
+    	return request;
+    }
+    
+    /**
+     * 按查询条件批量删除，符合条件的数据都删除。在elasticsearch中执行，不用先查出id再删除
+     * <p>执行中遇到其他程序同时修改的数据（版本冲突），跳过这条继续执行</p>
+     * @param indexName 索引名字
+     * @param queryBuilder 查询条件，传入如 QueryBuilders.rangeQuery("time").lt(1600000000) ，不能为null
+     * @return 执行结果，删除的条数见 {@link BulkByScrollResponse#getDeleted()} 。如果出错，返回null
+     */
+    public BulkByScrollResponse deleteByQuery(String indexName, QueryBuilder queryBuilder){
+    	try {
+    		return getRestHighLevelClient().deleteByQuery(deleteByQueryRequest(indexName, queryBuilder), getRequestOptions());
+		} catch (IOException e) {
+			e.printStackTrace();
+			return null;
+		} finally {
+			invalidateIndex(indexName);
+		}
+    }
+    
+    /**
+     * 创建按查询条件批量删除的请求
+     */
+    private static DeleteByQueryRequest deleteByQueryRequest(String indexName, QueryBuilder queryBuilder){
+    	DeleteByQueryRequest request = new DeleteByQueryRequest(indexName);
+    	request.setQuery(queryBuilder);
+    	request.setAbortOnVersionConflict(false);
+    	return request;
+    }
+    
     /**
      * 以 sql查询语句的形式，搜索 elasticsearch
+     * <p>结果会跟随 cursor 一页页请求，每页 {@link #setSqlFetchSize(int)} 条，直到取得全部结果。结果很多时，建议使用 {@link #searchBySqlQueryIterator(String)} 逐行遍历</p>
      * @param sqlQuery sql查询语句，传入如： select * from user WHERE username = 'guanleiming'
      * @return List结果
      */
     public List<Map<String, Object>> searchBySqlQuery(String sqlQuery){
-    	List<Map<String, Object>> list = new ArrayList<Map<String,Object>>();
-    	
-    	String method = "GET";
-        String endPoint = "/_sql";
-        Request request = new Request(method, endPoint);
-        request.addParameter("format", "json");
-        request.setJsonEntity("{\"query\":\""+sqlQuery+"\"}");
-    	
+    	return sqlToList(searchBySqlQueryIterator(sqlQuery));
+    }
+    
+    /**
+     * 将sql查询的全部结果读取到list。出错时打印异常，返回已读取的
+     */
+    private static <T> List<T> sqlToList(SqlIterator<T> iterator){
+    	List<T> list = new ArrayList<T>();
     	try {
-			Response response = getRestClient().performRequest(request);
-			String text = EntityUtils.toString(response.getEntity());
-			
-			JSONObject json = JSONObject.parseObject(text);
-			JSONArray columnsJsonArray = json.getJSONArray("columns");
-			String columns[] = new String[columnsJsonArray.size()];
-			//遍历columns
-			for (int i = 0; i < columnsJsonArray.size(); i++) {
-				JSONObject columnJsonObject = columnsJsonArray.getJSONObject(i);
-				columns[i] = columnJsonObject.getString("name");
-			}
-			
-			//遍历数据
-			JSONArray rowsJsonArray = json.getJSONArray("rows");
-			for (int i = 0; i < rowsJsonArray.size(); i++) {
-				JSONArray row = rowsJsonArray.getJSONArray(i);
-				
-				Map<String, Object> map = new HashMap<String, Object>();
-				for (int j = 0; j < row.size(); j++) {
-					Object obj = row.get(j);
-					if(obj != null){
-						//如果此项不为null，那么加入 map
-						map.put(columns[j], obj);
-					}
-				}
-				list.add(map);
-			}
+    		while(iterator.hasNext()){
+    			list.add(iterator.next());
+    		}
+		} catch (UncheckedIOException e) {
+			e.getCause().printStackTrace();
+		} finally {
+			iterator.close();
+		}
+    	return list;
+    }
+    
+    /**
+     * 逐行遍历sql查询的全部结果。按 {@link #setSqlFetchSize(int)} 一页页请求，遍历到哪一行才解析哪一行，内存中不会有全部结果
+     * <p>中途不再遍历时，需要调用 {@link SqlIterator#close()} 关闭 cursor 。使用如：</p>
+     * <pre>
+     * try(SqlIterator&lt;Map&lt;String,Object&gt;&gt; it = es.searchBySqlQueryIterator("SELECT * FROM useraction")){
+     * 	while(it.hasNext()){
+     * 		Map&lt;String,Object&gt; map = it.next();
+     * 	}
+     * }
+     * </pre>
+     * @param sqlQuery sql查询语句，传入如： select * from user WHERE username = 'guanleiming'
+     * @return 遍历结果的 {@link SqlIterator} 。请求出错时，遍历会抛出异常
+     */
+    public SqlIterator<Map<String, Object>> searchBySqlQueryIterator(String sqlQuery){
+    	return new SqlIterator<Map<String,Object>>(getRestClient(), sqlQuery, sqlFetchSize, SqlIterator.mapRowReader());
+    }
+    
+    /**
+     * 逐行遍历sql查询的全部结果，结果转为实体类。同 {@link #searchBySqlQueryIterator(String)}
+     * @param sqlQuery sql查询语句，传入如： select * from user WHERE username = 'guanleiming'
+     * @param clazz 实体类，需要有无参构造方法。查询结果的列名对应实体类的属性名
+     * @return 遍历结果的 {@link SqlIterator} 。请求出错时，遍历会抛出异常
+     */
+    public <T> SqlIterator<T> searchBySqlQueryIterator(String sqlQuery, Class<T> clazz){
+    	return new SqlIterator<T>(getRestClient(), sqlQuery, sqlFetchSize, SqlIterator.beanRowReader(clazz));
+    }
+    
+    /**
+     * 逐行遍历sql查询的全部结果，以 {@link Stream} 的形式。同 {@link #searchBySqlQueryIterator(String)} ，中途不再遍历时，需要关闭 Stream
+     * @param sqlQuery sql查询语句，传入如： select * from user WHERE username = 'guanleiming'
+     * @return 全部结果
+     */
+    public Stream<Map<String, Object>> searchBySqlQueryStream(String sqlQuery){
+    	return searchBySqlQueryIterator(sqlQuery).stream();
+    }
+    
+    /**
+     * 逐行遍历sql查询的全部结果，结果转为实体类，以 {@link Stream} 的形式。中途不再遍历时，需要关闭 Stream
+     * @param sqlQuery sql查询语句，传入如： select * from user WHERE username = 'guanleiming'
+     * @param clazz 实体类
+     * @return 全部结果
+     */
+    public <T> Stream<T> searchBySqlQueryStream(String sqlQuery, Class<T> clazz){
+    	return searchBySqlQueryIterator(sqlQuery, clazz).stream();
+    }
+    
+    /**
+     * 以 sql查询语句的形式，搜索 elasticsearch ，结果按列存储。列名只存一份，数字类型的列存为 long[]、double[] ，适合返回大量数字的统计、报表查询
+     * <p>结果会跟随 cursor 一页页请求，每页 {@link #setSqlFetchSize(int)} 条，直到取得全部结果</p>
+     * @param sqlQuery sql查询语句，传入如： select username, price from order WHERE time > 1610340207219
+     * @return 查询结果 {@link SqlResultSet} 。如果执行出错，返回null
+     */
+    public SqlResultSet searchBySqlQueryResultSet(String sqlQuery){
+    	try {
+    		return SqlResultSet.read(getRestClient(), sqlQuery, null, sqlFetchSize);
 		} catch (IOException e) {
 			e.printStackTrace();
+			return null;
+		}
+    }
+    
+    /**
+     * 预编译sql查询。sql中的参数用 ? 代替，执行时传入参数，参数通过 _sql 的 params 传递，不用担心引号等转义问题
+     * <p>{@link PreparedSql#query(Object...)} 通过 _sql 带参数执行。也可以主动使用 {@link PreparedSql#queryTranslated(Object...)} ，转换为DSL模板后直接请求 _search ，es不用再解析sql，但结果是文档而不是sql的列，详见 {@link PreparedSql}</p>
+     * <p>同一个sql只会创建一次，可多线程同时使用</p>
+     * @param sqlQuery sql查询语句，传入如： select * from user WHERE username = ? AND age > ? LIMIT 10
+     * @return {@link PreparedSql}
+     */
+    public PreparedSql prepareSql(String sqlQuery){
+    	final RestClient client = getRestClient();
+    	//创建 PreparedSql 不会请求，在锁内创建，同一个sql不会创建多个
+    	return preparedSqlMap.computeIfAbsent(sqlQuery, new Function<String, PreparedSql>() {
+			public PreparedSql apply(String sql) {
+				return new PreparedSql(client, sql, sqlFetchSize);
+			}
+		});
+    }
+    
+    /**
+     * 以带参数的 sql查询语句的形式，搜索 elasticsearch 。同 {@link #prepareSql(String)} 后执行 {@link PreparedSql#query(Object...)}
+     * @param sqlQuery sql查询语句，其中的参数用 ? 代替，传入如： select * from user WHERE username = ? AND age > ? LIMIT 10
+     * @param params sql中 ? 对应的参数，按顺序。支持 String、数字、boolean、Date
+     * @return List结果。出错时打印异常，返回空的list
+     */
+    public List<Map<String, Object>> searchBySqlQuery(String sqlQuery, Object... params){
+    	try {
+    		return prepareSql(sqlQuery).query(params);
+		} catch (UncheckedIOException e) {
+			e.getCause().printStackTrace();
+			return new ArrayList<Map<String,Object>>();
 		}
-    	
-    	return list;
     }
     
     /**
@@ -600,30 +2248,14 @@ public class ElasticSearchUtil {
      * 				<li>lt : 小于</li>
      * 				<li>lte : 小于等于</li>
      * 			</ul>
-     * @return 结果，按照统计条数有大到小排序。如果失败，那么返回的 list.size() 为0
+     * @return 结果，按照统计条数有大到小排序，最多100个。如果失败，那么返回的 list.size() 为0 。分组多的，使用 {@link #groupBy(String, GroupBy)}
      */
     public List<GroupByListItem> groupBy(String indexName, String field, QueryBuilder queryBuilder){
-    	SearchRequest searchRequest = new SearchRequest();
-    	searchRequest.indices(indexName);
-    	TermsAggregationBuilder aggregation = AggregationBuilders.terms("termsname").field(field+".keyword").order(BucketOrder.count(false)).size(100);
-    	SearchSourceBuilder searchSourceBuilder = new SearchSourceBuilder();
-    	searchSourceBuilder.aggregation(aggregation);
-    	if(queryBuilder != null){
-    		searchSourceBuilder.query(queryBuilder);
-    	}
-    	searchRequest.source(searchSourceBuilder);
-    	
     	List<GroupByListItem> list = new ArrayList<GroupByListItem>();
     	SearchResponse response;
     	try {
-			response = getRestHighLevelClient().search(searchRequest, RequestOptions.DEFAULT);
-			Terms byAgeAggregation = response.getAggregations().get("termsname");
-			for (Terms.Bucket buck : byAgeAggregation.getBuckets()) {
-				GroupByListItem item = new GroupByListItem();
-				item.setName(buck.getKeyAsString());
-				item.setCount(buck.getDocCount());
-				list.add(item);
-			}
+			response = getRestHighLevelClient().search(groupByRequest(indexName, field, queryBuilder), getRequestOptions());
+			list = groupByResponseToList(response);
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
@@ -631,17 +2263,1064 @@ public class ElasticSearchUtil {
     	return list;
     }
     
+    /**
+     * 创建 group by 统计的请求
+     */
+    private static SearchRequest groupByRequest(String indexName, String field, QueryBuilder queryBuilder){
+    	SearchRequest searchRequest = new SearchRequest();
+    	searchRequest.indices(indexName);
+    	TermsAggregationBuilder aggregation = AggregationBuilders.terms("termsname").field(field+".keyword").order(BucketOrder.count(false)).size(100);
+    	SearchSourceBuilder searchSourceBuilder = new SearchSourceBuilder();
+    	searchSourceBuilder.aggregation(aggregation);
+    	if(queryBuilder != null){
+    		searchSourceBuilder.query(queryBuilder);
+    	}
+    	searchRequest.source(searchSourceBuilder);
+    	return searchRequest;
+    }
+    
+    /**
+     * 将 group by 统计的结果转为list
+     */
+    private static List<GroupByListItem> groupByResponseToList(SearchResponse response){
+    	List<GroupByListItem> list = new ArrayList<GroupByListItem>();
+		Terms byAgeAggregation = response.getAggregations().get("termsname");
+		for (Terms.Bucket buck : byAgeAggregation.getBuckets()) {
+			GroupByListItem item = new GroupByListItem();
+			item.setName(buck.getKeyAsString());
+			item.setCount(buck.getDocCount());
+			list.add(item);
+		}
+    	return list;
+    }
+    
+    /**
+     * group by 统计，支持多个分组字段、时间间隔分组，以及 sum、avg、min、max 统计。通过 composite 聚合一页页取得全部分组，不会截断
+     * <p>使用如：</p>
+     * <pre>
+     * List&lt;GroupByBucket&gt; list = es.groupBy("order", GroupBy.by("username.keyword").dateHistogram("time", "1d").sum("price"));
+     * for (GroupByBucket bucket : list) {
+     * 	bucket.getKey(0);	//username
+     * 	bucket.getKeyAsLong(1);	//这一天开始的时间戳
+     * 	bucket.getCount();
+     * 	bucket.getMetric("sum(price)");
+     * }
+     * </pre>
+     * <p>全部分组都会读入内存，分组很多的，使用 {@link #groupByStream(String, GroupBy)}</p>
+     * @param indexName 索引名字
+     * @param groupBy 统计的条件，见 {@link GroupBy}
+     * @return 全部分组，按分组字段的值由小到大排列（ {@link GroupBy#top(int)} 的按条数由大到小）。如果失败，那么返回的 list.size() 为0
+     */
+    public List<GroupByBucket> groupBy(String indexName, GroupBy groupBy){
+    	List<GroupByBucket> list = new ArrayList<GroupByBucket>();
+    	GroupByIterator iterator = groupByIterator(indexName, groupBy);
+    	try {
+    		while(iterator.hasNext()){
+    			list.add(iterator.next());
+    		}
+		} catch (RuntimeException e) {
+			e.printStackTrace();
+			return new ArrayList<GroupByBucket>();
+		} finally {
+			iterator.close();
+		}
+    	return list;
+    }
+    
+    /**
+     * 逐个遍历 group by 统计的全部分组，一页页请求，内存中只有两页的分组。中途不再遍历时，需要调用 {@link GroupByIterator#close()}
+     * @param indexName 索引名字
+     * @param groupBy 统计的条件，见 {@link GroupBy}
+     * @return 全部分组。遍历时请求出错，会抛出异常
+     */
+    public GroupByIterator groupByIterator(String indexName, GroupBy groupBy){
+    	return new GroupByIterator(getRestHighLevelClient(), indexName, groupBy);
+    }
+    
+    /**
+     * 遍历 group by 统计的全部分组，以 {@link Stream} 的形式。 同 {@link #groupByIterator(String, GroupBy)} ，中途不再遍历时，需要关闭 Stream
+     * @param indexName 索引名字
+     * @param groupBy 统计的条件，见 {@link GroupBy}
+     * @return 全部分组
+     */
+    public Stream<GroupByBucket> groupByStream(String indexName, GroupBy groupBy){
+    	return groupByIterator(indexName, groupBy).stream();
+    }
+    
+    /**
+     * 添加一条数据，数据为实体类，通过 {@link BeanMapper} 直接转为JSON字节，不经过 Map
+     * @param bean 要增加的数据，实体类。值为null的属性不会写入
+     * @param indexName 索引名字，类似数据库的表，是添加进那个表
+     * @param id 要添加的这条数据的id, 如果传入null，则使用实体类的 esid 属性，如果也没有，由es系统自动生成一个唯一ID
+     * @return 创建结果。如果 {@link IndexResponse#getId()} 不为null、且id长度大于0，那么就成功了
+     */
+    public <T> IndexResponse putBean(T bean, String indexName, String id){
+        IndexResponse response = null;
+		try {
+			response = getRestHighLevelClient().index(beanRequest(bean, indexName, id), getRequestOptions());
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+        invalidate(indexName, response != null ? response.getId() : id);
+        return response;
+    }
+    
+    /**
+     * 添加一条数据，数据为实体类。id 使用实体类的 esid 属性，如果没有，由es系统自动生成一个唯一ID
+     * @param bean 要增加的数据，实体类。值为null的属性不会写入
+     * @param indexName 索引名字，类似数据库的表，是添加进那个表
+     * @return 创建结果。如果 {@link IndexResponse#getId()} 不为null、且id长度大于0，那么就成功了
+     */
+    public <T> IndexResponse putBean(T bean, String indexName){
+    	return putBean(bean, indexName, null);
+    }
+    
+    /**
+     * 创建添加一条实体类数据的请求
+     */
+    @SuppressWarnings("unchecked")
+    private static <T> IndexRequest beanRequest(T bean, String indexName, String id){
+    	BeanMapper<T> mapper = BeanMapper.get((Class<T>) bean.getClass());
+    	BytesStreamOutput out = new BytesStreamOutput();
+    	writeBean(mapper, bean, out);
+    	IndexRequest request = new IndexRequest(indexName);
+    	if(id == null){
+    		id = mapper.getId(bean);
+    	}
+    	if(id != null){
+    		request.id(id);
+    	}
+    	return request.source(out.bytes(), XContentType.JSON);
+    }
+    
+    /**
+     * 将实体类转为JSON，写入 out
+     */
+    private static <T> void writeBean(BeanMapper<T> mapper, T bean, BytesStreamOutput out){
+    	try {
+    		mapper.write(bean, out);
+		} catch (IOException e) {
+			//写入内存，不会出现
+			throw new UncheckedIOException(e);
+		}
+    }
+    
+    /**
+     * 批量添加数据，数据为实体类。每条数据的 id 使用实体类的 esid 属性，如果没有，由es系统自动生成
+     * <p>如果数据的总字节数超过了 {@link #setBulkMaxBytes(long)} 设置的大小，会拆分为多次提交，返回的是多次提交合并后的结果</p>
+     * @param list 批量添加的数据的List，其中都是同一个实体类
+     * @param indexName 索引名字，类似数据库的表，是添加进那个表
+     * @return {@link BulkResponse} ，如果没提交，或者提交的是空，或者出错，那么会返回null。判断其有没有提交成功可以使用  (res != null && !res.hasFailures())
+     */
+    public <T> BulkResponse putsBean(List<T> list, String indexName){
+    	if(list.size() < 1){
+    		return null;
+    	}
+    	
+    	return bulk(beansRequestList(list, indexName), indexName);
+    }
+    
+    /**
+     * 创建批量添加实体类数据的请求。超过 {@link #setBulkMaxBytes(long)} 设置的大小，会拆分为多个请求
+     */
+    @SuppressWarnings("unchecked")
+    private <T> List<BulkRequest> beansRequestList(List<T> list, String indexName){
+    	List<BulkRequest> bulkRequestList = new ArrayList<BulkRequest>();
+    	BeanMapper<T> mapper = BeanMapper.get((Class<T>) list.get(0).getClass());
+    	BytesStreamOutput out = new BytesStreamOutput();
+    	BulkRequest bulkAddRequest = new BulkRequest();
+    	for (int i = 0; i < list.size(); i++) {
+    		T bean = list.get(i);
+    		int start = out.size();
+    		writeBean(mapper, bean, out);
+    		IndexRequest indexRequest = new IndexRequest(indexName);
+    		String id = mapper.getId(bean);
+    		if(id != null){
+    			indexRequest.id(id);
+    		}
+    		indexRequest.source(out.bytes().slice(start, out.size() - start), XContentType.JSON);
+    		bulkAddRequest = addBulk(bulkRequestList, bulkAddRequest, indexRequest);
+    	}
+    	bulkRequestList.add(bulkAddRequest);
+    	return bulkRequestList;
+    }
+    
+    /**
+     * 查询数据，结果转为实体类。直接从返回的JSON解析到实体类的属性上，不经过中间的 Map
+     * @param indexName 索引名字
+     * @param queryString 查询条件，传入如： name:guanleiming AND age:123
+     * @param from 从第几条开始查询，相当于 limit a,b 中的a ，比如要从最开始第一条查，可传入： 0
+     * @param size 本次查询最大查询出多少条数据 ,相当于 limit a,b 中的b
+     * @param sort 排序方式。如果不需要排序，传入null即可
+     * @param clazz 实体类，需要有无参构造方法。如果有名为 esid 的 String 属性，会赋予这条数据在es中的id
+     * @return 查询的结果，任何情况返回值不会为null
+     */
+    public <T> List<T> search(String indexName, String queryString, Integer from, Integer size, SortBuilder sort, Class<T> clazz){
+    	return search(indexName, queryString, from, size, sort, null, clazz);
+    }
+    
+    /**
+     * 查询数据，只返回需要的字段，结果转为实体类
+     * @param indexName 索引名字
+     * @param queryString 查询条件，传入如： name:guanleiming AND age:123
+     * @param from 从第几条开始查询，相当于 limit a,b 中的a ，比如要从最开始第一条查，可传入： 0
+     * @param size 本次查询最大查询出多少条数据 ,相当于 limit a,b 中的b
+     * @param sort 排序方式。如果不需要排序，传入null即可
+     * @param fields 返回哪些字段，没返回的属性为null。传入null则返回全部
+     * @param clazz 实体类，需要有无参构造方法。如果有名为 esid 的 String 属性，会赋予这条数据在es中的id
+     * @return 查询的结果，任何情况返回值不会为null
+     */
+    public <T> List<T> search(String indexName, String queryString, Integer from, Integer size, SortBuilder sort, SearchFields fields, Class<T> clazz){
+    	SearchResponse response = cachedSearch(indexName, searchSourceBuilder(queryString, sort, fields), from, size);
+    	return searchResponseToList(response, BeanMapper.get(clazz));
+    }
+    
+    /**
+     * 查询数据，结果转为实体类
+     * <p>如果数据超过100条，那么只会返回前100条数据。<p>
+     * @param indexName 索引名字
+     * @param queryString 查询条件，传入如： name:guanleiming AND age:123
+     * @param clazz 实体类，需要有无参构造方法。如果有名为 esid 的 String 属性，会赋予这条数据在es中的id
+     * @return 查询的结果，任何情况返回值不会为null
+     */
+    public <T> List<T> search(String indexName, String queryString, Class<T> clazz){
+    	return search(indexName, queryString, 0, 100, null, clazz);
+    }
+    
+    /**
+     * 将查询的结果转为实体类的list
+     * @param response 查询的结果，传入null则返回空的list
+     */
+    private static <T> List<T> searchResponseToList(SearchResponse response, BeanMapper<T> mapper){
+    	if(response == null || response.status().getStatus() != 200){
+    		return new ArrayList<T>();
+    	}
+    	SearchHit shs[] = response.getHits().getHits();
+    	List<T> list = new ArrayList<T>(shs.length);
+    	try {
+    		for (int i = 0; i < shs.length; i++) {
+    			T bean = mapper.read(hitSource(shs[i]), shs[i].getId());
+    			if(bean != null){
+    				list.add(bean);
+    			}
+    		}
+		} catch (IOException e) {
+			//解析内存中的数据，不会出现
+			throw new UncheckedIOException(e);
+		}
+    	return list;
+    }
+    
+    /**
+     * 通过elasticsearch数据的id，获取这条数据，结果转为实体类
+     * @param indexName 索引名字
+     * @param id elasticsearch数据的id
+     * @param clazz 实体类，需要有无参构造方法。如果有名为 esid 的 String 属性，会赋予这条数据在es中的id
+     * @return 这条数据。 如果返回null，则是没有找到这条数据，或者执行过程出错。
+     */
+    public <T> T searchById(String indexName, String id, Class<T> clazz){
+    	return searchById(indexName, id, null, clazz);
+    }
+    
+    /**
+     * 通过elasticsearch数据的id，获取这条数据，只返回需要的字段，结果转为实体类
+     * @param indexName 索引名字
+     * @param id elasticsearch数据的id
+     * @param fields 返回哪些字段，没返回的属性为null。传入null则返回全部
+     * @param clazz 实体类，需要有无参构造方法。如果有名为 esid 的 String 属性，会赋予这条数据在es中的id
+     * @return 这条数据。 如果返回null，则是没有找到这条数据，或者执行过程出错。
+     */
+    public <T> T searchById(String indexName, String id, SearchFields fields, Class<T> clazz){
+    	try {
+    		GetResponse response = get(indexName, id, fields);
+    		return getResponseToBean(response, BeanMapper.get(clazz));
+		} catch (IOException e) {
+			e.printStackTrace();
+			return null;
+		}
+    }
+    
+    /**
+     * 将获取的一条数据转为实体类
+     * @return 如果没有这条数据，返回null
+     */
+    private static <T> T getResponseToBean(GetResponse response, BeanMapper<T> mapper) throws IOException {
+    	if(!response.isExists()){
+    		return null;
+    	}
+    	if(response.getFields().isEmpty() && !response.isSourceEmpty()){
+    		return mapper.read(response.getSourceAsBytesRef(), response.getId());
+    	}
+    	//有 stored_fields ，或者没有返回 _source 的，合并后再转
+    	XContentBuilder builder = XContentFactory.jsonBuilder().map(getResponseToMap(response));
+    	return mapper.read(BytesReference.bytes(builder), response.getId());
+    }
+    
+    /**
+     * 以 sql查询语句的形式，搜索 elasticsearch ，结果转为实体类。直接从返回的JSON流解析到实体类的属性上，不经过中间的 Map
+     * <p>结果会跟随 cursor 一页页请求，直到取得全部结果</p>
+     * @param sqlQuery sql查询语句，传入如： select * from user WHERE username = 'guanleiming'
+     * @param clazz 实体类，需要有无参构造方法。查询结果的列名对应实体类的属性名
+     * @return List结果，任何情况返回值不会为null
+     */
+    public <T> List<T> searchBySqlQuery(String sqlQuery, Class<T> clazz){
+    	return sqlToList(searchBySqlQueryIterator(sqlQuery, clazz));
+    }
+    
+    /**
+     * 遍历查询的全部结果，不受 from+size 最多1万条的限制，数据再多，内存中也只有两页数据。当前页遍历时，下一页已在后台请求
+     * <p>有排序、且设置了 {@link #setSearchAfterTiebreaker(String)} 的，使用 search_after 翻页，并在排序最后加上这个字段；其他情况使用 scroll 翻页，没有排序时速度最快</p>
+     * <p>中途不再遍历时，需要调用 {@link SearchIterator#close()} 。使用如：</p>
+     * <pre>
+     * try(SearchIterator&lt;Map&lt;String,Object&gt;&gt; it = es.searchIterator("useraction", "username:guanleiming", null, 1000)){
+     * 	while(it.hasNext()){
+     * 		Map&lt;String,Object&gt; map = it.next();
+     * 	}
+     * }
+     * </pre>
+     * @param indexName 索引名字
+     * @param queryString 查询条件，传入如： name:guanleiming AND age:123
+     * @param sort 排序方式。如果不需要排序，传入null即可
+     * @param pageSize 每页的条数，如 1000
+     * @return 遍历结果的 {@link SearchIterator} ，每条会自动加入一项 esid 。请求出错时，遍历会抛出异常
+     */
+    public SearchIterator<Map<String,Object>> searchIterator(String indexName, String queryString, SortBuilder sort, int pageSize){
+    	return searchIterator(indexName, queryString, sort, pageSize, (SearchFields) null);
+    }
+    
+    /**
+     * 遍历查询的全部结果，只返回需要的字段。 同 {@link #searchIterator(String, String, SortBuilder, int)}
+     * @param indexName 索引名字
+     * @param queryString 查询条件，传入如： name:guanleiming AND age:123
+     * @param sort 排序方式。如果不需要排序，传入null即可
+     * @param pageSize 每页的条数，如 1000
+     * @param fields 返回哪些字段，传入null则返回全部
+     * @return 遍历结果的 {@link SearchIterator} ，每条会自动加入一项 esid 。请求出错时，遍历会抛出异常
+     */
+    public SearchIterator<Map<String,Object>> searchIterator(String indexName, String queryString, SortBuilder sort, int pageSize, SearchFields fields){
+    	return new SearchIterator<Map<String,Object>>(getRestHighLevelClient(), indexName, searchSourceBuilder(queryString, sort, fields), pageSize, searchAfterTiebreaker, mapConverter());
+    }
+    
+    /**
+     * 遍历查询的全部结果，结果转为实体类。 同 {@link #searchIterator(String, String, SortBuilder, int)}
+     * @param indexName 索引名字
+     * @param queryString 查询条件，传入如： name:guanleiming AND age:123
+     * @param sort 排序方式。如果不需要排序，传入null即可
+     * @param pageSize 每页的条数，如 1000
+     * @param clazz 实体类，需要有无参构造方法。如果有名为 esid 的 String 属性，会赋予这条数据在es中的id
+     * @return 遍历结果的 {@link SearchIterator} 。请求出错时，遍历会抛出异常
+     */
+    public <T> SearchIterator<T> searchIterator(String indexName, String queryString, SortBuilder sort, int pageSize, Class<T> clazz){
+    	return searchIterator(indexName, queryString, sort, pageSize, null, clazz);
+    }
+    
+    /**
+     * 遍历查询的全部结果，只返回需要的字段，结果转为实体类。 同 {@link #searchIterator(String, String, SortBuilder, int)}
+     * @param indexName 索引名字
+     * @param queryString 查询条件，传入如： name:guanleiming AND age:123
+     * @param sort 排序方式。如果不需要排序，传入null即可
+     * @param pageSize 每页的条数，如 1000
+     * @param fields 返回哪些字段，没返回的属性为null。传入null则返回全部
+     * @param clazz 实体类
+     * @return 遍历结果的 {@link SearchIterator} 。请求出错时，遍历会抛出异常
+     */
+    public <T> SearchIterator<T> searchIterator(String indexName, String queryString, SortBuilder sort, int pageSize, SearchFields fields, Class<T> clazz){
+    	return new SearchIterator<T>(getRestHighLevelClient(), indexName, searchSourceBuilder(queryString, sort, fields), pageSize, searchAfterTiebreaker, beanConverter(clazz));
+    }
+    
+    /**
+     * 将查询的一条结果转为map，并加入一项 esid
+     */
+    private static Function<SearchHit, Map<String,Object>> mapConverter(){
+    	return new Function<SearchHit, Map<String,Object>>() {
+			public Map<String, Object> apply(SearchHit hit) {
+				return hitToMap(hit);
+			}
+		};
+    }
+    
+    /**
+     * 将查询的一条结果转为实体类
+     */
+    private static <T> Function<SearchHit, T> beanConverter(Class<T> clazz){
+    	final BeanMapper<T> mapper = BeanMapper.get(clazz);
+    	return new Function<SearchHit, T>() {
+			public T apply(SearchHit hit) {
+				try {
+					return mapper.read(hitSource(hit), hit.getId());
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			}
+		};
+    }
+    
+    /**
+     * 遍历查询的全部结果，以 {@link Stream} 的形式。 同 {@link #searchIterator(String, String, SortBuilder, int)} ，中途不再遍历时，需要关闭 Stream
+     * @param indexName 索引名字
+     * @param queryString 查询条件，传入如： name:guanleiming AND age:123
+     * @param sort 排序方式。如果不需要排序，传入null即可
+     * @param pageSize 每页的条数，如 1000
+     * @return 全部结果，每条会自动加入一项 esid
+     */
+    public Stream<Map<String,Object>> searchStream(String indexName, String queryString, SortBuilder sort, int pageSize){
+    	return searchIterator(indexName, queryString, sort, pageSize).stream();
+    }
+    
+    /**
+     * 遍历查询的全部结果，结果转为实体类，以 {@link Stream} 的形式。 同 {@link #searchIterator(String, String, SortBuilder, int, Class)} ，中途不再遍历时，需要关闭 Stream
+     * @param indexName 索引名字
+     * @param queryString 查询条件，传入如： name:guanleiming AND age:123
+     * @param sort 排序方式。如果不需要排序，传入null即可
+     * @param pageSize 每页的条数，如 1000
+     * @param clazz 实体类
+     * @return 全部结果
+     */
+    public <T> Stream<T> searchStream(String indexName, String queryString, SortBuilder sort, int pageSize, Class<T> clazz){
+    	return searchIterator(indexName, queryString, sort, pageSize, clazz).stream();
+    }
+    
+    /**
+     * 并行导出整个索引（或符合查询条件的数据）。拆分为 sliceNumber 个分片，在 {@link #getSliceExporter()} 的线程池中同时导出，当前线程会等待导出完成
+     * <p>导出不排序。线程数、每页条数可通过 {@link #getSliceExporter()} 设置</p>
+     * @param indexName 索引名字
+     * @param queryString 查询条件，传入如： name:guanleiming AND age:123 。传入null则导出全部
+     * @param sliceNumber 分片数量，建议为索引的分片数，或其整数倍。传入1则不拆分
+     * @param sink 接收导出的数据，每条会自动加入一项 esid 。会被多个线程同时调用，需要线程安全
+     * @return 导出的总条数。如果出错，返回-1
+     */
+    public long export(String indexName, String queryString, int sliceNumber, ExportSink<Map<String,Object>> sink){
+    	try {
+    		return exportAsync(indexName, queryString, sliceNumber, mapConverter(), sink).join();
+		} catch (RuntimeException e) {
+			e.printStackTrace();
+			return -1;
+		}
+    }
+    
+    /**
+     * 并行导出，结果转为实体类。同 {@link #export(String, String, int, ExportSink)}
+     * @param indexName 索引名字
+     * @param queryString 查询条件，传入如： name:guanleiming AND age:123 。传入null则导出全部
+     * @param sliceNumber 分片数量，建议为索引的分片数，或其整数倍。传入1则不拆分
+     * @param clazz 实体类，需要有无参构造方法。如果有名为 esid 的 String 属性，会赋予这条数据在es中的id
+     * @param sink 接收导出的数据。会被多个线程同时调用，需要线程安全
+     * @return 导出的总条数。如果出错，返回-1
+     */
+    public <T> long export(String indexName, String queryString, int sliceNumber, Class<T> clazz, ExportSink<T> sink){
+    	try {
+    		return exportAsync(indexName, queryString, sliceNumber, beanConverter(clazz), sink).join();
+		} catch (RuntimeException e) {
+			e.printStackTrace();
+			return -1;
+		}
+    }
+    
+    /**
+     * 异步并行导出，不会阻塞当前线程。同 {@link #export(String, String, int, ExportSink)}
+     * @return 导出的总条数。如果出错，会以异常结束。调用其 cancel 可停止导出
+     */
+    public CompletableFuture<Long> exportAsync(String indexName, String queryString, int sliceNumber, ExportSink<Map<String,Object>> sink){
+    	return exportAsync(indexName, queryString, sliceNumber, mapConverter(), sink);
+    }
+    
+    /**
+     * 异步并行导出，不会阻塞当前线程。同 {@link #export(String, String, int, Class, ExportSink)}
+     * @return 导出的总条数。如果出错，会以异常结束。调用其 cancel 可停止导出
+     */
+    public <T> CompletableFuture<Long> exportAsync(String indexName, String queryString, int sliceNumber, Class<T> clazz, ExportSink<T> sink){
+    	return exportAsync(indexName, queryString, sliceNumber, beanConverter(clazz), sink);
+    }
+    
+    private <T> CompletableFuture<Long> exportAsync(String indexName, String queryString, int sliceNumber, Function<SearchHit, T> converter, ExportSink<T> sink){
+    	return sliceExporter.export(getRestHighLevelClient(), indexName, searchSourceBuilder(queryString, null), sliceNumber, converter, sink);
+    }
+    
+    /**
+     * 并行导出，所有分片的数据合并为一个 {@link Stream} 。中途不再遍历时，需要关闭 Stream
+     * @param indexName 索引名字
+     * @param queryString 查询条件，传入如： name:guanleiming AND age:123 。传入null则导出全部
+     * @param sliceNumber 分片数量，建议为索引的分片数，或其整数倍。传入1则不拆分
+     * @return 导出的数据，每条会自动加入一项 esid 。导出出错时，遍历会抛出异常
+     */
+    public Stream<Map<String,Object>> exportStream(String indexName, String queryString, int sliceNumber){
+    	return sliceExporter.stream(getRestHighLevelClient(), indexName, searchSourceBuilder(queryString, null), sliceNumber, mapConverter());
+    }
+    
+    /**
+     * 并行导出，结果转为实体类，所有分片的数据合并为一个 {@link Stream} 。中途不再遍历时，需要关闭 Stream
+     * @param indexName 索引名字
+     * @param queryString 查询条件，传入如： name:guanleiming AND age:123 。传入null则导出全部
+     * @param sliceNumber 分片数量，建议为索引的分片数，或其整数倍。传入1则不拆分
+     * @param clazz 实体类
+     * @return 导出的数据。导出出错时，遍历会抛出异常
+     */
+    public <T> Stream<T> exportStream(String indexName, String queryString, int sliceNumber, Class<T> clazz){
+    	return sliceExporter.stream(getRestHighLevelClient(), indexName, searchSourceBuilder(queryString, null), sliceNumber, beanConverter(clazz));
+    }
+    
+    /**
+     * 异步添加一条数据，不会阻塞当前线程。 同 {@link #put(Map, String, String)}
+     * @param params 要增加的数据，key-value形式。 其中map.value 支持的类型有 String、int、long、float、double、boolean
+     * @param indexName 索引名字，类似数据库的表，是添加进那个表
+     * @param id 要添加的这条数据的id, 如果传入null，则由es系统自动生成一个唯一ID
+     * @return 创建结果。如果执行出错，会以异常结束，可通过 {@link CompletableFuture#exceptionally(java.util.function.Function)} 处理
+     */
+    public CompletableFuture<IndexResponse> putAsync(Map<String, Object> params, String indexName, String id){
+    	CompletableFuture<IndexResponse> future = new CompletableFuture<IndexResponse>();
+    	getRestHighLevelClient().indexAsync(putRequest(params, indexName, id), getRequestOptions(), actionListener(future));
+    	return invalidateOnComplete(future, indexName, id);
+    }
+    
+    /**
+     * 异步添加一条数据，id由es系统自动生成，不会阻塞当前线程。 同 {@link #put(Map, String)}
+     * @param params 要增加的数据，key-value形式。 其中map.value 支持的类型有 String、int、long、float、double、boolean
+     * @param indexName 索引名字，类似数据库的表，是添加进那个表
+     * @return 创建结果。如果执行出错，会以异常结束
+     */
+    public CompletableFuture<IndexResponse> putAsync(Map<String, Object> params, String indexName){
+    	return putAsync(params, indexName, null);
+    }
+    
+    /**
+     * 异步修改一条数据，不会阻塞当前线程。 同 {@link #edit(Map, String, String)}
+     * @param params 要修改的数据，key-value形式。 其中map.value 支持的类型有 String、int、long、float、double、boolean
+     * @param indexName 索引名字，类似数据库的表，是修改那个表
+     * @param id 要修改的这条数据的id
+     * @return 修改结果。如果执行出错，会以异常结束
+     */
+    public CompletableFuture<UpdateResponse> editAsync(Map<String, Object> params, String indexName, String id){
+    	CompletableFuture<UpdateResponse> future = new CompletableFuture<UpdateResponse>();
+    	getRestHighLevelClient().updateAsync(editRequest(params, indexName, id), getRequestOptions(), actionListener(future));
+    	return invalidateOnComplete(future, indexName, id);
+    }
+    
+    /**
+     * 异步批量添加数据，不会阻塞当前线程。 同 {@link #puts(List, String)} ，超过 {@link #setBulkMaxBytes(long)} 拆分后的多个请求会同时提交
+     * @param list 批量添加的数据的List
+     * @param indexName 索引名字，类似数据库的表，是添加进那个表
+     * @return 多次提交合并后的结果。如果提交的是空，结果为null。如果执行出错，会以异常结束
+     */
+    public CompletableFuture<BulkResponse> putsAsync(List<Map<String, Object>> list, final String indexName){
+    	if(list.size() < 1){
+    		return CompletableFuture.completedFuture(null);
+    	}
+    	
+    	return bulkAsync(putsRequestList(list, indexName), indexName);
+    }
+    
+    /**
+     * 异步批量修改数据，不会阻塞当前线程。 同 {@link #editMany(Map, String)} ，超过 {@link #setBulkMaxBytes(long)} 拆分后的多个请求会同时提交
+     * @param map 要修改的数据。 key: 要修改的这条数据的id  value: 要修改的字段
+     * @param indexName 索引名字
+     * @return 多次提交合并后的结果。如果提交的是空，结果为null。如果执行出错，会以异常结束
+     */
+    public CompletableFuture<BulkResponse> editManyAsync(Map<String, Map<String, Object>> map, String indexName){
+    	if(map.size() < 1){
+    		return CompletableFuture.completedFuture(null);
+    	}
+    	return bulkAsync(editManyRequestList(map, indexName), indexName);
+    }
+    
+    /**
+     * 异步通过id批量删除数据，不会阻塞当前线程。 同 {@link #deleteByIds(String, Collection)}
+     * @param indexName 索引名字
+     * @param ids 要删除的数据的id
+     * @return 多次提交合并后的结果。如果提交的是空，结果为null。如果执行出错，会以异常结束
+     */
+    public CompletableFuture<BulkResponse> deleteByIdsAsync(String indexName, Collection<String> ids){
+    	if(ids.size() < 1){
+    		return CompletableFuture.completedFuture(null);
+    	}
+    	return bulkAsync(deleteByIdsRequestList(indexName, ids), indexName);
+    }
+    
+    /**
+     * 异步按查询条件批量修改，不会阻塞当前线程。 同 {@link #updateByQuery(String, QueryBuilder, Map)}
+     * @param indexName 索引名字
+     * @param queryBuilder 查询条件
+     * @param params 要修改的字段
+     * @return 执行结果。如果执行出错，会以异常结束
+     */
+    public CompletableFuture<BulkByScrollResponse> updateByQueryAsync(final String indexName, QueryBuilder queryBuilder, Map<String, Object> params){
+    	CompletableFuture<BulkByScrollResponse> future = new CompletableFuture<BulkByScrollResponse>();
+    	getRestHighLevelClient().updateByQueryAsync(updateByQueryRequest(indexName, queryBuilder, params), getRequestOptions(), actionListener(future));
+    	return invalidateIndexOnComplete(future, indexName);
+    }
+    
+    /**
+     * 异步按查询条件批量删除，不会阻塞当前线程。 同 {@link #deleteByQuery(String, QueryBuilder)}
+     * @param indexName 索引名字
+     * @param queryBuilder 查询条件
+     * @return 执行结果。如果执行出错，会以异常结束
+     */
+    public CompletableFuture<BulkByScrollResponse> deleteByQueryAsync(final String indexName, QueryBuilder queryBuilder){
+    	CompletableFuture<BulkByScrollResponse> future = new CompletableFuture<BulkByScrollResponse>();
+    	getRestHighLevelClient().deleteByQueryAsync(deleteByQueryRequest(indexName, queryBuilder), getRequestOptions(), actionListener(future));
+    	return invalidateIndexOnComplete(future, indexName);
+    }
+    
+    /**
+     * 异步查询并分页，不会阻塞当前线程。 同 {@link #search(String, SearchSourceBuilder, Integer, Integer)} ，不经过 {@link ReadCache} 缓存
+     * @param indexName 索引名字
+     * @param searchSourceBuilder 查询条件， {@link SearchSourceBuilder}
+     * @param from 从第几条开始查询，相当于 limit a,b 中的a ，比如要从最开始第一条查，可传入： 0
+     * @param size 本次查询最大查询出多少条数据 ,相当于 limit a,b 中的b
+     * @return {@link SearchResponse} 结果。如果执行出错，会以异常结束
+     */
+    public CompletableFuture<SearchResponse> searchAsync(String indexName, SearchSourceBuilder searchSourceBuilder, Integer from, Integer size){
+    	return requestSearchAsync(searchRequest(indexName, searchSourceBuilder, from, size));
+    }
+    
+    /**
+     * 异步查询并分页。开启了 {@link ReadCache} 的，先从缓存中取。同 {@link #cachedSearch(String, SearchSourceBuilder, Integer, Integer)} ，只能在内部使用
+     */
+    private CompletableFuture<SearchResponse> cachedSearchAsync(final String indexName, SearchSourceBuilder searchSourceBuilder, Integer from, Integer size){
+    	SearchRequest request = searchRequest(indexName, searchSourceBuilder, from, size);
+    	final ReadCache cache = readCache;
+    	if(cache == null){
+    		return requestSearchAsync(request);
+    	}
+    	final String key = ReadCache.queryKey(indexName, searchSourceBuilder.toString());
+    	SearchResponse cached = (SearchResponse) cache.get(indexName, key);
+    	if(cached != null){
+    		return CompletableFuture.completedFuture(cached);
+    	}
+    	final long[] version = cache.version(indexName);
+    	return requestSearchAsync(request).thenApply(new Function<SearchResponse, SearchResponse>() {
+			public SearchResponse apply(SearchResponse response) {
+				if(response.status().getStatus() == 200){
+					cache.put(indexName, key, false, response, responseBytes(response), version);
+				}
+				return response;
+			}
+		});
+    }
+    
+    /**
+     * 异步查询数据，不会阻塞当前线程。 同 {@link #search(String, String, Integer, Integer, SortBuilder)}
+     * @param indexName 索引名字
+     * @param queryString 查询条件，传入如： name:guanleiming AND age:123
+     * @param from 从第几条开始查询，相当于 limit a,b 中的a ，比如要从最开始第一条查，可传入： 0
+     * @param size 本次查询最大查询出多少条数据 ,相当于 limit a,b 中的b
+     * @param sort 排序方式。如果不需要排序，传入null即可
+     * @return 查询的结果，每条会自动加入一项 esid 。如果执行出错，会以异常结束
+     */
+    public CompletableFuture<List<Map<String,Object>>> searchAsync(String indexName, String queryString, Integer from, Integer size, SortBuilder sort){
+    	return searchAsync(indexName, queryString, from, size, sort, (SearchFields) null);
+    }
+    
+    /**
+     * 异步查询数据，只返回需要的字段，不会阻塞当前线程。 同 {@link #search(String, String, Integer, Integer, SortBuilder, SearchFields)}
+     * @param fields 返回哪些字段，传入null则返回全部
+     * @return 查询的结果，每条会自动加入一项 esid 。如果执行出错，会以异常结束
+     */
+    public CompletableFuture<List<Map<String,Object>>> searchAsync(String indexName, String queryString, Integer from, Integer size, SortBuilder sort, SearchFields fields){
+    	return cachedSearchAsync(indexName, searchSourceBuilder(queryString, sort, fields), from, size).thenApply(new Function<SearchResponse, List<Map<String,Object>>>() {
+			public List<Map<String, Object>> apply(SearchResponse response) {
+				return searchResponseToList(response);
+			}
+		});
+    }
+    
+    /**
+     * 异步查询数据，最多返回前100条，不会阻塞当前线程。 同 {@link #search(String, String)}
+     * @param indexName 索引名字
+     * @param queryString 查询条件，传入如： name:guanleiming AND age:123
+     * @return 查询的结果，每条会自动加入一项 esid 。如果执行出错，会以异常结束
+     */
+    public CompletableFuture<List<Map<String,Object>>> searchAsync(String indexName, String queryString){
+    	return searchAsync(indexName, queryString, 0, 100, null);
+    }
+    
+    /**
+     * 异步通过elasticsearch数据的id，获取这条数据，不会阻塞当前线程。 同 {@link #searchById(String, String)}
+     * @param indexName 索引名字
+     * @param id elasticsearch数据的id
+     * @return 这条数据的内容。 如果没有找到这条数据，结果为null。如果执行出错，会以异常结束
+     */
+    public CompletableFuture<Map<String,Object>> searchByIdAsync(String indexName, String id){
+    	return searchByIdAsync(indexName, id, (SearchFields) null);
+    }
+    
+    /**
+     * 异步通过elasticsearch数据的id，获取这条数据，只返回需要的字段，不会阻塞当前线程。 同 {@link #searchById(String, String, SearchFields)}
+     * @param fields 返回哪些字段，传入null则返回全部
+     * @return 这条数据的内容。 如果没有找到这条数据，结果为null。如果执行出错，会以异常结束
+     */
+    public CompletableFuture<Map<String,Object>> searchByIdAsync(String indexName, String id, SearchFields fields){
+    	return getAsync(indexName, id, fields).thenApply(new Function<GetResponse, Map<String,Object>>() {
+			public Map<String, Object> apply(GetResponse response) {
+				return getResponseToMap(response);
+			}
+		});
+    }
+    
+    /**
+     * 异步通过elasticsearch数据的id，一次获取多条数据，不会阻塞当前线程。 同 {@link #searchByIds(String, Collection)}
+     * @param indexName 索引名字
+     * @param ids elasticsearch数据的id
+     * @return 获取到的数据，按 ids 的顺序。没有找到的id不会加入。如果执行出错，会以异常结束
+     */
+    public CompletableFuture<Map<String, Map<String,Object>>> searchByIdsAsync(String indexName, Collection<String> ids){
+    	return multiGetAsync(indexName, ids, null).thenApply(new Function<Map<String, GetResponse>, Map<String, Map<String,Object>>>() {
+			public Map<String, Map<String, Object>> apply(Map<String, GetResponse> responseMap) {
+				return multiGetToMap(responseMap);
+			}
+		});
+    }
+    
+    /**
+     * 异步通过elasticsearch数据的id，一次获取多条数据，结果转为实体类，不会阻塞当前线程。 同 {@link #searchByIds(String, Collection, Class)}
+     * @param indexName 索引名字
+     * @param ids elasticsearch数据的id
+     * @param clazz 实体类
+     * @return 获取到的数据，按 ids 的顺序。没有找到的id不会加入。如果执行出错，会以异常结束
+     */
+    public <T> CompletableFuture<Map<String, T>> searchByIdsAsync(String indexName, Collection<String> ids, Class<T> clazz){
+    	final BeanMapper<T> mapper = BeanMapper.get(clazz);
+    	return multiGetAsync(indexName, ids, null).thenApply(new Function<Map<String, GetResponse>, Map<String, T>>() {
+			public Map<String, T> apply(Map<String, GetResponse> responseMap) {
+				return multiGetToBean(responseMap, mapper);
+			}
+		});
+    }
+    
+    /**
+     * 异步一次发起多个查询，不会阻塞当前线程。 同 {@link #multiSearch(List)}
+     * @param items 多个查询
+     * @return 每个查询的结果，跟 items 的顺序对应。某个查询出错或者什么都没查出，对应的是空的list 。整个请求出错，会以异常结束
+     */
+    public CompletableFuture<List<List<Map<String,Object>>>> multiSearchAsync(List<MultiSearchItem> items){
+    	return requestMultiSearchAsync(items).thenApply(new Function<List<SearchResponse>, List<List<Map<String,Object>>>>() {
+			public List<List<Map<String, Object>>> apply(List<SearchResponse> responses) {
+				List<List<Map<String,Object>>> list = new ArrayList<List<Map<String,Object>>>(responses.size());
+				for (int i = 0; i < responses.size(); i++) {
+					list.add(searchResponseToList(responses.get(i)));
+				}
+				return list;
+			}
+		});
+    }
+    
+    /**
+     * 异步一次发起多个查询，结果转为实体类，不会阻塞当前线程。 同 {@link #multiSearch(List, Class)}
+     * @param items 多个查询
+     * @param clazz 实体类
+     * @return 每个查询的结果，跟 items 的顺序对应。整个请求出错，会以异常结束
+     */
+    public <T> CompletableFuture<List<List<T>>> multiSearchAsync(List<MultiSearchItem> items, Class<T> clazz){
+    	final BeanMapper<T> mapper = BeanMapper.get(clazz);
+    	return requestMultiSearchAsync(items).thenApply(new Function<List<SearchResponse>, List<List<T>>>() {
+			public List<List<T>> apply(List<SearchResponse> responses) {
+				List<List<T>> list = new ArrayList<List<T>>(responses.size());
+				for (int i = 0; i < responses.size(); i++) {
+					list.add(searchResponseToList(responses.get(i), mapper));
+				}
+				return list;
+			}
+		});
+    }
+    
+    /**
+     * 异步查询数据，结果转为实体类，不会阻塞当前线程。 同 {@link #search(String, String, Integer, Integer, SortBuilder, Class)}
+     * @param indexName 索引名字
+     * @param queryString 查询条件，传入如： name:guanleiming AND age:123
+     * @param from 从第几条开始查询，相当于 limit a,b 中的a ，比如要从最开始第一条查，可传入： 0
+     * @param size 本次查询最大查询出多少条数据 ,相当于 limit a,b 中的b
+     * @param sort 排序方式。如果不需要排序，传入null即可
+     * @param clazz 实体类
+     * @return 查询的结果。如果执行出错，会以异常结束
+     */
+    public <T> CompletableFuture<List<T>> searchAsync(String indexName, String queryString, Integer from, Integer size, SortBuilder sort, Class<T> clazz){
+    	return searchAsync(indexName, queryString, from, size, sort, null, clazz);
+    }
+    
+    /**
+     * 异步查询数据，只返回需要的字段，结果转为实体类，不会阻塞当前线程。 同 {@link #search(String, String, Integer, Integer, SortBuilder, SearchFields, Class)}
+     * @param fields 返回哪些字段，传入null则返回全部
+     * @return 查询的结果。如果执行出错，会以异常结束
+     */
+    public <T> CompletableFuture<List<T>> searchAsync(String indexName, String queryString, Integer from, Integer size, SortBuilder sort, SearchFields fields, Class<T> clazz){
+    	final BeanMapper<T> mapper = BeanMapper.get(clazz);
+    	return cachedSearchAsync(indexName, searchSourceBuilder(queryString, sort, fields), from, size).thenApply(new Function<SearchResponse, List<T>>() {
+			public List<T> apply(SearchResponse response) {
+				return searchResponseToList(response, mapper);
+			}
+		});
+    }
+    
+    /**
+     * 异步通过elasticsearch数据的id，获取这条数据，结果转为实体类，不会阻塞当前线程。 同 {@link #searchById(String, String, Class)}
+     * @param indexName 索引名字
+     * @param id elasticsearch数据的id
+     * @param clazz 实体类
+     * @return 这条数据。 如果没有找到这条数据，结果为null。如果执行出错，会以异常结束
+     */
+    public <T> CompletableFuture<T> searchByIdAsync(String indexName, String id, Class<T> clazz){
+    	return searchByIdAsync(indexName, id, null, clazz);
+    }
+    
+    /**
+     * 异步通过elasticsearch数据的id，获取这条数据，只返回需要的字段，结果转为实体类，不会阻塞当前线程。 同 {@link #searchById(String, String, SearchFields, Class)}
+     * @param fields 返回哪些字段，传入null则返回全部
+     * @return 这条数据。 如果没有找到这条数据，结果为null。如果执行出错，会以异常结束
+     */
+    public <T> CompletableFuture<T> searchByIdAsync(String indexName, String id, SearchFields fields, Class<T> clazz){
+    	final BeanMapper<T> mapper = BeanMapper.get(clazz);
+    	return getAsync(indexName, id, fields).thenApply(new Function<GetResponse, T>() {
+			public T apply(GetResponse response) {
+				try {
+					return getResponseToBean(response, mapper);
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			}
+		});
+    }
+    
+    /**
+     * 异步通过elasticsearch数据的id，来删除这条数据，不会阻塞当前线程。 同 {@link #deleteById(String, String)}
+     * @param indexName 索引名字
+     * @param id 要删除的elasticsearch这行数据的id
+     * @return 是否删除成功。如果执行出错，会以异常结束
+     */
+    public CompletableFuture<Boolean> deleteByIdAsync(String indexName, String id){
+    	CompletableFuture<DeleteResponse> future = new CompletableFuture<DeleteResponse>();
+    	getRestHighLevelClient().deleteAsync(new DeleteRequest(indexName, id), getRequestOptions(), actionListener(future));
+    	return invalidateOnComplete(future, indexName, id).thenApply(new Function<DeleteResponse, Boolean>() {
+			public Boolean apply(DeleteResponse delete) {
+				return isDeleted(delete);
+			}
+		});
+    }
+    
+    /**
+     * 异步以 sql查询语句的形式，搜索 elasticsearch ，不会阻塞当前线程。 同 {@link #searchBySqlQuery(String)}
+     * @param sqlQuery sql查询语句，传入如： select * from user WHERE username = 'guanleiming'
+     * @return List结果。如果执行出错，会以异常结束
+     */
+    public CompletableFuture<List<Map<String, Object>>> searchBySqlQueryAsync(String sqlQuery){
+    	return SqlIterator.readAllAsync(getRestClient(), sqlQuery, null, sqlFetchSize, SqlIterator.mapRowReader());
+    }
+    
+    /**
+     * 异步 group by 统计，不会阻塞当前线程。 同 {@link #groupBy(String, String, QueryBuilder)}
+     * @param indexName 要统计的是哪个索引（数据库表）
+     * @param field 针对的是哪个字段，也就是 group by field ，如传入 username
+     * @param queryBuilder 查询条件，传入如 QueryBuilders.rangeQuery("time").gt(1).lt(10)
+     * @return 结果，按照统计条数有大到小排序。如果执行出错，会以异常结束
+     */
+    public CompletableFuture<List<GroupByListItem>> groupByAsync(String indexName, String field, QueryBuilder queryBuilder){
+    	CompletableFuture<SearchResponse> future = new CompletableFuture<SearchResponse>();
+    	getRestHighLevelClient().searchAsync(groupByRequest(indexName, field, queryBuilder), getRequestOptions(), actionListener(future));
+    	return future.thenApply(new Function<SearchResponse, List<GroupByListItem>>() {
+			public List<GroupByListItem> apply(SearchResponse response) {
+				return groupByResponseToList(response);
+			}
+		});
+    }
+    
+    /**
+     * 某条数据修改了，让 {@link ReadCache} 中这条数据、这个索引的查询结果缓存失效
+     * @param id 数据的id，传入null则是新增了数据，只有查询结果的缓存失效
+     */
+    private void invalidate(String indexName, String id){
+    	ReadCache cache = readCache;
+    	if(cache != null){
+    		cache.invalidate(indexName, id);
+    	}
+    }
+    
+    /**
+     * 这个索引的数据有批量修改，让 {@link ReadCache} 中这个索引的全部缓存失效。 {@link CacheBuffer} 打包提交后也会调用
+     * @param indexName 索引名字
+     */
+    public void invalidateIndex(String indexName){
+    	ReadCache cache = readCache;
+    	if(cache != null){
+    		cache.invalidateIndex(indexName);
+    	}
+    }
+    
+    /**
+     * 异步修改完成后（不论成功失败），让 {@link ReadCache} 中这条数据的缓存失效
+     */
+    private <T> CompletableFuture<T> invalidateOnComplete(CompletableFuture<T> future, final String indexName, final String id){
+    	if(readCache == null){
+    		return future;
+    	}
+    	return future.whenComplete(new BiConsumer<T, Throwable>() {
+			public void accept(T response, Throwable e) {
+				invalidate(indexName, id);
+			}
+		});
+    }
+    
+    /**
+     * 异步批量修改完成后（不论成功失败），让 {@link ReadCache} 中这个索引的缓存失效
+     */
+    private <T> CompletableFuture<T> invalidateIndexOnComplete(CompletableFuture<T> future, final String indexName){
+    	if(readCache == null){
+    		return future;
+    	}
+    	return future.whenComplete(new BiConsumer<T, Throwable>() {
+			public void accept(T response, Throwable e) {
+				invalidateIndex(indexName);
+			}
+		});
+    }
+    
+    /**
+     * 将异步请求的结果转给 {@link CompletableFuture}
+     */
+    private static <T> ActionListener<T> actionListener(final CompletableFuture<T> future){
+    	return new ActionListener<T>() {
+			public void onResponse(T response) {
+				future.complete(response);
+			}
+			public void onFailure(Exception e) {
+				future.completeExceptionally(e);
+			}
+		};
+    }
+    
     /**
      * @param countSql 统计的sql语句，传入格式如： 
      * 	<pre>
      * select count(*) from useraction WHERE action='我是字符串类型' AND time > 1624001953
      * 	</pre>
-     * @return 执行统计语句所获取到的结果，返回值为int类型
+     * @return 执行统计语句所获取到的结果。如果出错，返回-1 。没有sql条件的，建议使用 {@link #count(String, QueryBuilder)} ，少了sql的转换
      */
-    public int count(String countSql){
+    public long count(String countSql){
     	List<Map<String, Object>> list = searchBySqlQuery(countSql);
-    	int count = (Integer) list.get(0).values().stream().findAny().get();
-	    return count;
+    	if(list.isEmpty() || list.get(0).isEmpty()){
+    		return -1;
+    	}
+    	//条数多的，es返回的是 Long
+    	Object count = list.get(0).values().iterator().next();
+	    return count instanceof Number ? ((Number) count).longValue() : -1;
+    }
+    
+    /**
+     * 统计符合条件的条数。通过 _count 请求，只统计条数，不取数据、不排序，总条数再多也是精确的
+     * @param indexName 索引名字
+     * @param queryBuilder 查询条件，传入如 QueryBuilders.rangeQuery("time").gt(1).lt(10) 。传入null则统计全部
+     * @return 条数。如果出错，返回-1
+     */
+    public long count(String indexName, QueryBuilder queryBuilder){
+    	try {
+    		return countAsync(indexName, queryBuilder).join();
+		} catch (CompletionException e) {
+			e.getCause().printStackTrace();
+			return -1;
+		}
+    }
+    
+    /**
+     * 异步统计符合条件的条数，不会阻塞当前线程。 同 {@link #count(String, QueryBuilder)}
+     * @param indexName 索引名字
+     * @param queryBuilder 查询条件。传入null则统计全部
+     * @return 条数。如果执行出错，会以异常结束
+     */
+    public CompletableFuture<Long> countAsync(String indexName, QueryBuilder queryBuilder){
+    	CountRequest request = new CountRequest(indexName);
+    	if(queryBuilder != null){
+    		request.query(queryBuilder);
+    	}
+    	final CompletableFuture<CountResponse> future = new CompletableFuture<CountResponse>();
+    	final String key = "count:" + (queryBuilder == null ? "" : queryBuilder.toString());
+    	final CountRequest countRequest = request;
+    	return cachedCount(indexName, key, new Supplier<CompletableFuture<Long>>() {
+			public CompletableFuture<Long> get() {
+				getRestHighLevelClient().countAsync(countRequest, getRequestOptions(), actionListener(future));
+				return future.thenApply(new Function<CountResponse, Long>() {
+					public Long apply(CountResponse response) {
+						return response.getCount();
+					}
+				});
+			}
+		});
+    }
+    
+    /**
+     * 统计某个字段有多少个不同的值，相当于 select count(distinct field) 。使用 HyperLogLog++ 近似统计，内存占用固定，数据再多也很快
+     * <p>不同的值在3000个以内时基本是精确的，超过后误差一般在1%以内</p>
+     * @param indexName 索引名字
+     * @param field 字段名，如 username.keyword
+     * @param queryBuilder 查询条件。传入null则统计全部
+     * @return 不同的值的个数。如果出错，返回-1
+     */
+    public long cardinality(String indexName, String field, QueryBuilder queryBuilder){
+    	return cardinality(indexName, field, queryBuilder, 3000);
+    }
+    
+    /**
+     * 统计某个字段有多少个不同的值，使用 HyperLogLog++ 近似统计。同 {@link #cardinality(String, String, QueryBuilder)}
+     * @param indexName 索引名字
+     * @param field 字段名，如 username.keyword
+     * @param queryBuilder 查询条件。传入null则统计全部
+     * @param precisionThreshold 精度。不同的值在这个数以内时基本是精确的，越大越准确，每个分片占用的内存约为 precisionThreshold*8 字节。最大40000
+     * @return 不同的值的个数。如果出错，返回-1
+     */
+    public long cardinality(String indexName, String field, QueryBuilder queryBuilder, int precisionThreshold){
+    	try {
+    		return cardinalityAsync(indexName, field, queryBuilder, precisionThreshold).join();
+		} catch (CompletionException e) {
+			e.getCause().printStackTrace();
+			return -1;
+		}
+    }
+    
+    /**
+     * 异步统计某个字段有多少个不同的值，不会阻塞当前线程。 同 {@link #cardinality(String, String, QueryBuilder, int)}
+     * @return 不同的值的个数。如果执行出错，会以异常结束
+     */
+    public CompletableFuture<Long> cardinalityAsync(String indexName, String field, QueryBuilder queryBuilder, int precisionThreshold){
+    	SearchSourceBuilder searchSourceBuilder = new SearchSourceBuilder();
+    	searchSourceBuilder.size(0);
+    	searchSourceBuilder.trackTotalHits(false);
+    	if(queryBuilder != null){
+    		searchSourceBuilder.query(queryBuilder);
+    	}
+    	searchSourceBuilder.aggregation(AggregationBuilders.cardinality("cardinality").field(field).precisionThreshold(precisionThreshold));
+    	final SearchRequest request = new SearchRequest(indexName).source(searchSourceBuilder);
+    	final CompletableFuture<SearchResponse> future = new CompletableFuture<SearchResponse>();
+    	return cachedCount(indexName, "cardinality:" + searchSourceBuilder.toString(), new Supplier<CompletableFuture<Long>>() {
+			public CompletableFuture<Long> get() {
+				getRestHighLevelClient().searchAsync(request, getRequestOptions(), actionListener(future));
+				return future.thenApply(new Function<SearchResponse, Long>() {
+					public Long apply(SearchResponse response) {
+						Cardinality cardinality = response.getAggregations().get("cardinality");
+						return cardinality.getValue();
+					}
+				});
+			}
+		});
+    }
+    
+    /**
+     * 开启了统计结果的本地缓存的，先从缓存中取，没有再统计
+     * @param key 缓存的key，相同的统计相同
+     * @param counter 统计
+     */
+    private CompletableFuture<Long> cachedCount(final String indexName, String key, Supplier<CompletableFuture<Long>> counter){
+    	final ReadCache cache = countCache;
+    	if(cache == null){
+    		return counter.get();
+    	}
+    	final String queryKey = ReadCache.queryKey(indexName, key);
+    	Long cached = (Long) cache.get(indexName, queryKey);
+    	if(cached != null){
+    		return CompletableFuture.completedFuture(cached);
+    	}
+    	final long[] version = cache.version(indexName);
+    	return counter.get().thenApply(new Function<Long, Long>() {
+			public Long apply(Long count) {
+				cache.put(indexName, queryKey, false, count, 64, version);
+				return count;
+			}
+		});
     }
     
     
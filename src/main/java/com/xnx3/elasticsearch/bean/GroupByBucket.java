@@ -0,0 +1,114 @@
+package com.xnx3.elasticsearch.bean;
+
+import java.util.Arrays;
+import com.xnx3.elasticsearch.ElasticSearchUtil;
+
+/**
+ * group by 统计的一个分组。条数为 long 、统计值为 double ，不装箱，也不为每个分组创建 Map
+ * <p>服务于 {@link ElasticSearchUtil#groupByIterator(String, com.xnx3.elasticsearch.search.GroupBy)}</p>
+ * @author 管雷鸣
+ */
+public class GroupByBucket {
+	private String[] keyNames;		//分组字段的名字，同一次统计的各个分组共用
+	private Object[] keys;			//分组的值，跟 keyNames 对应
+	private long count;				//统计的条数
+	private String[] metricNames;	//统计值的名字，如 sum(price) ，同一次统计的各个分组共用
+	private double[] metrics;		//统计值，跟 metricNames 对应
+
+	public GroupByBucket(String[] keyNames, Object[] keys, long count, String[] metricNames, double[] metrics) {
+		this.keyNames = keyNames;
+		this.keys = keys;
+		this.count = count;
+		this.metricNames = metricNames;
+		this.metrics = metrics;
+	}
+
+	/**
+	 * 获取分组的值
+	 * @param index 第几个分组字段，从0开始
+	 * @return 分组的值。 keyword 为 String ，数字为 Long 或 Double ，时间间隔为其开始的13位时间戳 Long
+	 */
+	public Object getKey(int index) {
+		return keys[index];
+	}
+
+	/**
+	 * 获取分组的值
+	 * @param name 分组字段的名字，如 username.keyword
+	 * @return 分组的值。没有这个分组字段，返回null
+	 */
+	public Object getKey(String name) {
+		int index = indexOf(keyNames, name);
+		return index < 0 ? null : keys[index];
+	}
+
+	/**
+	 * 获取分组的值，转为字符串
+	 * @param index 第几个分组字段，从0开始
+	 */
+	public String getKeyAsString(int index) {
+		return keys[index] == null ? null : keys[index].toString();
+	}
+
+	/**
+	 * 获取分组的值，转为 long ，用于数字、时间间隔分组
+	 * @param index 第几个分组字段，从0开始
+	 */
+	public long getKeyAsLong(int index) {
+		return ((Number) keys[index]).longValue();
+	}
+
+	/**
+	 * @return 这个分组统计的条数
+	 */
+	public long getCount() {
+		return count;
+	}
+
+	/**
+	 * 获取统计值
+	 * @param index 第几个统计值，按添加的顺序，从0开始
+	 * @return 统计值。这个分组中都没有这个字段的，sum为0，avg为NaN，min为正无穷，max为负无穷
+	 */
+	public double getMetric(int index) {
+		return metrics[index];
+	}
+
+	/**
+	 * 获取统计值
+	 * @param name 统计值的名字，如 sum(price) 、 avg(age)
+	 * @return 统计值。没有这个统计值，返回NaN
+	 */
+	public double getMetric(String name) {
+		int index = indexOf(metricNames, name);
+		return index < 0 ? Double.NaN : metrics[index];
+	}
+
+	/**
+	 * @return 分组字段的名字
+	 */
+	public String[] getKeyNames() {
+		return keyNames;
+	}
+
+	/**
+	 * @return 统计值的名字
+	 */
+	public String[] getMetricNames() {
+		return metricNames;
+	}
+
+	private static int indexOf(String[] names, String name){
+		for (int i = 0; i < names.length; i++) {
+			if(names[i].equals(name)){
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	@Override
+	public String toString() {
+		return "GroupByBucket [keys=" + Arrays.toString(keys) + ", count=" + count + ", metrics=" + Arrays.toString(metrics) + "]";
+	}
+}
@@ -0,0 +1,1049 @@
+package com.xnx3.elasticsearch.cache;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.action.DocWriteRequest;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.delete.DeleteRequest;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.update.UpdateRequest;
+import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.io.stream.BytesStreamOutput;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.elasticsearch.rest.RestStatus;
+import com.xnx3.elasticsearch.ElasticSearchUtil;
+
+/**
+ * 缓存打包提交。服务于 {@link ElasticSearchUtil#cache(Map, String)}
+ * <p>每个索引一个缓存，缓存内部是多个无锁队列，写入时不加锁。数据加入缓存时就序列化为JSON，当某个索引缓存的字节数达到 {@link ElasticSearchUtil#bulkMaxBytes} 或者条数达到 {@link ElasticSearchUtil#cacheMaxNumber} 时，会取出一批交给后台线程池提交到 elasticsearch，写入线程不会等待网络请求。</p>
+ * <p>另外有一个定时任务，某个索引缓存中最早的一条数据等待超过 {@link #setCacheMaxLinger(long)} 设置的时间后，即使没达到条数也会提交，避免数据量小的索引一直不提交。</p>
+ * <p>所有索引缓存占用的内存（按序列化后的字节数计算，包含正在提交、等待重试的）不超过 {@link #setCacheMaxMemory(long)} ，超过后按 {@link CacheFullPolicy} 处理新加入的数据。</p>
+ * <p>可通过 {@link #setSpool(String, int)} 开启磁盘缓存，加入缓存的数据同时写入磁盘，提交完成后删除。进程重启后，开启磁盘缓存时会恢复上次未提交的数据。</p>
+ * <p>除了添加，也可以通过 {@link #cache(String, String, Map, CacheOperation)} 缓存修改、删除，同一个索引中的各种操作混在一起打包提交，同一条数据（id相同）的多次操作按加入的顺序提交。</p>
+ * <p>可通过 {@link #setCoalesce(boolean)} 开启合并，同一条数据（id相同）在缓存中还没提交时，之后的操作与之合并为一个，每次打包提交中同一条数据最多只有一个操作。</p>
+ * <p>提交后只有失败的那几条会重新提交。elasticsearch繁忙（429）、节点不可用（5xx）、网络异常，会等待一段时间后重试，等待时间按重试次数指数增长并加入随机抖动；字段类型不匹配等重试也不会成功的错误，会交给 {@link CacheFailureListener} 处理，不再重试。</p>
+ * @author 管雷鸣
+ */
+public class CacheBuffer implements Closeable {
+	/**
+	 * 定时检查缓存等待时间的间隔，单位毫秒
+	 */
+	public static final long LINGER_CHECK_INTERVAL = 100;
+	/**
+	 * 删除时的 source ，只是占位，提交时不使用
+	 */
+	private static final byte[] EMPTY_SOURCE = "{}".getBytes(StandardCharsets.UTF_8);
+	/**
+	 * 修改时，数据版本冲突（同时有其他修改）的重试次数
+	 */
+	private static final int RETRY_ON_CONFLICT = 3;
+	
+	private ElasticSearchUtil es;
+	private ConcurrentHashMap<String, IndexCache> indexCacheMap;
+	private int stripeNumber;			//每个索引缓存的条带数量
+	private int flushThreadNumber;		//后台提交的线程数量
+	private volatile ThreadPoolExecutor flushExecutor;
+	private volatile ScheduledExecutorService scheduledExecutor;
+	private long cacheMaxLinger = 3000;	//缓存中数据最长的等待时间，单位毫秒，默认3秒
+	private ConcurrentHashMap<String, Long> indexMaxLingerMap;	//单独设置了等待时间的索引。 key:indexName  value:等待时间
+	private volatile boolean closed = false;
+	private int maxRetryNumber = 10;		//某条数据因elasticsearch繁忙等原因提交失败后，最多重试的次数
+	private long retryBackoff = 100;		//第一次重试前等待的时间，单位毫秒，之后每次重试翻倍
+	private long maxRetryBackoff = 30000;	//重试前最长的等待时间，单位毫秒
+	private CacheFailureListener cacheFailureListener;
+	private Set<RetryTask> retryTaskSet;	//等待重试的
+	private long cacheMaxMemory;			//所有索引缓存最多占用的内存，单位字节
+	private CacheFullPolicy cacheFullPolicy = CacheFullPolicy.BLOCK;
+	private long cacheFullTimeout = 60000;	//CacheFullPolicy.BLOCK 时，最长等待的时间，单位毫秒
+	private AtomicLong memoryBytes;			//所有索引缓存当前占用的内存，单位字节
+	private AtomicInteger memoryWaitNumber;	//当前因内存超出而等待的线程数量
+	private Object memoryLock = new Object();
+	private File spoolDirectory;			//磁盘缓存的目录，为null则是没有开启磁盘缓存
+	private int spoolSegmentSize;			//磁盘缓存段文件的大小，单位字节
+	private ThreadLocal<BytesStreamOutput> jsonOutput;	//每个线程复用的，序列化JSON时写入
+	private volatile boolean coalesce = false;	//是否合并同一条数据在缓存中的多次操作
+	private LongAdder coalescedCount;			//合并掉的操作数
+
+	/**
+	 * @param es 提交时所使用的 {@link ElasticSearchUtil}
+	 */
+	public CacheBuffer(ElasticSearchUtil es) {
+		this.es = es;
+		this.indexCacheMap = new ConcurrentHashMap<String, IndexCache>();
+		this.indexMaxLingerMap = new ConcurrentHashMap<String, Long>();
+		this.retryTaskSet = Collections.newSetFromMap(new ConcurrentHashMap<RetryTask, Boolean>());
+		this.memoryBytes = new AtomicLong();
+		this.jsonOutput = new ThreadLocal<BytesStreamOutput>() {
+			protected BytesStreamOutput initialValue() {
+				return new BytesStreamOutput();
+			}
+		};
+		this.memoryWaitNumber = new AtomicInteger();
+		this.coalescedCount = new LongAdder();
+		this.cacheMaxMemory = Runtime.getRuntime().maxMemory() / 4;
+		int processors = Runtime.getRuntime().availableProcessors();
+		//条带数量取不小于cpu核数的2的n次方
+		this.stripeNumber = Integer.highestOneBit(Math.max(processors - 1, 1)) << 1;
+		this.flushThreadNumber = processors;
+		this.cacheFailureListener = new CacheFailureListener() {
+			public void failure(String indexName, CacheItem item, Exception cause) {
+				ElasticSearchUtil.log("cache submit failure, index "+indexName+", "+item+", cause: "+cause);
+			}
+		};
+	}
+
+	/**
+	 * 设置后台打包提交所用的线程数量。需要在第一次使用缓存之前设置才会生效
+	 * @param flushThreadNumber 线程数量，默认为cpu核数
+	 */
+	public void setFlushThreadNumber(int flushThreadNumber) {
+		if(flushThreadNumber > 0){
+			this.flushThreadNumber = flushThreadNumber;
+		}
+	}
+
+	/**
+	 * 设置缓存中数据最长的等待时间。某个索引缓存中最早的一条数据等待超过这个时间，即使没达到 {@link ElasticSearchUtil#cacheMaxNumber} 条，也会自动打包提交
+	 * @param cacheMaxLinger 等待时间，单位毫秒，默认3000。传入0则是不限制，只有达到条数才会提交
+	 */
+	public void setCacheMaxLinger(long cacheMaxLinger) {
+		this.cacheMaxLinger = cacheMaxLinger;
+	}
+	
+	/**
+	 * 单独设置某个索引缓存中数据最长的等待时间，优先级高于 {@link #setCacheMaxLinger(long)}
+	 * @param indexName 索引名字
+	 * @param cacheMaxLinger 等待时间，单位毫秒。传入0则是不限制，只有达到条数才会提交
+	 */
+	public void setCacheMaxLinger(String indexName, long cacheMaxLinger) {
+		this.indexMaxLingerMap.put(indexName, cacheMaxLinger);
+	}
+	
+	/**
+	 * 将数据转为JSON。先写入当前线程复用的 out ，再复制出刚好大小的 byte[] ，不经过中间的字符串
+	 */
+	private byte[] toJsonBytes(Map<String, Object> params){
+		BytesStreamOutput out = jsonOutput.get();
+		try {
+			es.getJsonFormatInterface().mapToJson(params, out);
+			return BytesReference.toBytes(out.bytes());
+		} catch (IOException e) {
+			//写入内存，不会出现
+			throw new UncheckedIOException(e);
+		} finally {
+			out.reset();
+		}
+	}
+	
+	/**
+	 * 设置某条数据因elasticsearch繁忙（429）、节点不可用（5xx）提交失败后，最多重试的次数。超过这个次数，交给 {@link CacheFailureListener} 处理
+	 * <p>网络异常、整个请求被拒绝导致的整批提交失败，同样按这个次数重试</p>
+	 * @param maxRetryNumber 最多重试的次数，默认10
+	 */
+	public void setMaxRetryNumber(int maxRetryNumber) {
+		this.maxRetryNumber = maxRetryNumber;
+	}
+	
+	/**
+	 * 设置重试前等待的时间。第n次重试，等待的时间是在 0 ~ retryBackoff*2^(n-1) 之间随机，最长不超过 maxRetryBackoff
+	 * @param retryBackoff 第一次重试前等待的时间，单位毫秒，默认100
+	 * @param maxRetryBackoff 重试前最长的等待时间，单位毫秒，默认30000
+	 */
+	public void setRetryBackoff(long retryBackoff, long maxRetryBackoff) {
+		this.retryBackoff = retryBackoff;
+		this.maxRetryBackoff = maxRetryBackoff;
+	}
+	
+	/**
+	 * 设置数据最终提交失败时的处理。如果不设置，默认只是打印出失败的信息
+	 * @param cacheFailureListener {@link CacheFailureListener}
+	 */
+	public void setCacheFailureListener(CacheFailureListener cacheFailureListener) {
+		this.cacheFailureListener = cacheFailureListener;
+	}
+	
+	/**
+	 * 设置所有索引缓存最多占用的内存。按数据序列化后的字节数计算，包含正在提交、等待重试的数据
+	 * @param cacheMaxMemory 最多占用的内存，单位字节。默认是JVM最大内存的四分之一
+	 */
+	public void setCacheMaxMemory(long cacheMaxMemory) {
+		this.cacheMaxMemory = cacheMaxMemory;
+	}
+	
+	/**
+	 * 设置缓存占用的内存达到上限后，新加入的数据如何处理
+	 * @param cacheFullPolicy {@link CacheFullPolicy} ，默认是 {@link CacheFullPolicy#BLOCK}
+	 * @param cacheFullTimeout {@link CacheFullPolicy#BLOCK} 时，加入缓存的线程最长等待的时间，单位毫秒，默认60000。其他方式时无效
+	 */
+	public void setCacheFullPolicy(CacheFullPolicy cacheFullPolicy, long cacheFullTimeout) {
+		this.cacheFullPolicy = cacheFullPolicy;
+		this.cacheFullTimeout = cacheFullTimeout;
+	}
+	
+	/**
+	 * 设置是否合并同一条数据的多次操作。开启后，同一个索引中指定了id的数据，上一个操作还在缓存中没有提交的，与之合并为一个操作：
+	 * <ul>
+	 * 	<li>添加（INDEX）、删除（DELETE），替换之前的操作</li>
+	 * 	<li>修改（UPDATE、UPSERT），要修改的字段合并到之前的添加、修改中，嵌套的对象按字段合并，跟elasticsearch的修改一致。之前是UPSERT，或者之后是UPSERT的，合并后为UPSERT</li>
+	 * 	<li>删除后修改（UPDATE）的，修改不会成功，交给 {@link CacheFailureListener} ；删除后UPSERT的，合并为以这些字段添加</li>
+	 * </ul>
+	 * <p>同一条数据频繁变化时，可以大大减少提交的数量。已经取出提交中的，不再合并；提交失败重试的，放回缓存时同样按id合并。没有指定id的添加不合并</p>
+	 * @param coalesce true:开启； false:关闭，默认关闭
+	 */
+	public void setCoalesce(boolean coalesce) {
+		this.coalesce = coalesce;
+	}
+	
+	/**
+	 * @return 开启合并后，合并掉的操作数
+	 */
+	public long getCoalescedCount() {
+		return coalescedCount.sum();
+	}
+	
+	/**
+	 * 开启磁盘缓存。加入缓存的数据同时写入磁盘缓存的段文件（内存映射写入），提交完成后删除，这样进程重启、elasticsearch长时间不可用时数据不会丢失
+	 * <p>开启时会恢复这个目录中上次未提交完成的数据，并开始提交。需要在第一次使用缓存之前设置</p>
+	 * <p>进程崩溃时，恢复的数据中可能会有已经提交成功、但还没来得及删除的，会重复提交</p>
+	 * @param directory 磁盘缓存的目录，传入如 /data/es_spool ，每个索引会在其中创建一个子目录
+	 * @param segmentSize 每个段文件的大小，单位字节，如 64*1024*1024 。写满后会创建新的段文件，其中的数据全部提交完成后删除
+	 * @throws IOException 目录创建失败、上次的数据恢复失败
+	 */
+	public void setSpool(String directory, int segmentSize) throws IOException {
+		File spoolDirectory = new File(directory);
+		if(!spoolDirectory.exists() && !spoolDirectory.mkdirs()){
+			throw new IOException("spool directory create failure : "+spoolDirectory.getAbsolutePath());
+		}
+		this.spoolSegmentSize = segmentSize;
+		this.spoolDirectory = spoolDirectory;
+		
+		//恢复上次未提交完成的数据
+		File[] indexDirectorys = spoolDirectory.listFiles();
+		for (int i = 0; i < indexDirectorys.length; i++) {
+			if(indexDirectorys[i].isDirectory()){
+				IndexCache indexCache = getIndexCache(indexDirectorys[i].getName());
+				if(indexCache.size() > 0){
+					drain(indexCache, true);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * 开启磁盘缓存，每个段文件的大小为64MB。具体说明见 {@link #setSpool(String, int)}
+	 * @param directory 磁盘缓存的目录，传入如 /data/es_spool ，每个索引会在其中创建一个子目录
+	 * @throws IOException 目录创建失败、上次的数据恢复失败
+	 */
+	public void setSpool(String directory) throws IOException {
+		setSpool(directory, 64 * 1024 * 1024);
+	}
+	
+	/**
+	 * 将一条数据加入缓存。如果这个索引缓存的字节数达到了 {@link ElasticSearchUtil#bulkMaxBytes} 或者条数达到了 {@link ElasticSearchUtil#cacheMaxNumber} ，那么交给后台线程打包提交
+	 * @param params 要增加的数据
+	 * @param indexName 索引名字
+	 * @return true:加入成功；  false:缓存占用的内存达到上限，按 {@link CacheFullPolicy} 丢弃了这条数据
+	 */
+	public boolean cache(Map<String, Object> params, String indexName){
+		return add(indexName, new CacheItem(null, toJsonBytes(params)));
+	}
+
+	/**
+	 * 将一条数据的添加、修改、删除加入缓存，同 {@link #cache(Map, String)} 达到条数或字节数后打包提交
+	 * <p>同一个索引中，添加、修改、删除混在一起提交。同一条数据（id相同）的多次操作，在一次打包提交中按加入的顺序；如果被拆分到并行提交的不同批次中，先后顺序不能保证</p>
+	 * @param indexName 索引名字
+	 * @param id 数据的id。 {@link CacheOperation#INDEX} 时可以为null，由es系统自动生成
+	 * @param params {@link CacheOperation#INDEX} 时是整条数据， {@link CacheOperation#UPDATE} 、 {@link CacheOperation#UPSERT} 时是要修改的字段， {@link CacheOperation#DELETE} 时不使用，可以为null
+	 * @param operation 操作类型
+	 * @return true:加入成功；  false:缓存占用的内存达到上限，按 {@link CacheFullPolicy} 丢弃了这条数据
+	 */
+	public boolean cache(String indexName, String id, Map<String, Object> params, CacheOperation operation){
+		if(id == null && operation != CacheOperation.INDEX){
+			throw new IllegalArgumentException(operation+" requires id");
+		}
+		byte[] source = operation == CacheOperation.DELETE ? EMPTY_SOURCE : toJsonBytes(params);
+		return add(indexName, new CacheItem(id, operation, source));
+	}
+
+	/**
+	 * 将一条已序列化的数据加入缓存。开启了合并的，先与这条数据之前的操作合并
+	 */
+	private boolean add(String indexName, CacheItem item){
+		IndexCache indexCache = getIndexCache(indexName);
+		//先占用内存。按 BLOCK 等待时不能持有id锁，否则落在同一把锁上的其他id也要跟着等待
+		if(!acquire(indexCache, item)){
+			failure(indexName, item, new RejectedExecutionException("cache is full, memory "+memoryBytes.get()+" bytes"));
+			return false;
+		}
+		if(item.id == null){
+			return enqueue(indexCache, item, false);
+		}
+		synchronized (indexCache.idLock(item.id)) {
+			IndexCache.IdState state = indexCache.idState(item.id);
+			CacheItem old = state == null ? null : state.latest;
+			boolean success;
+			if(coalesce && old != null && indexCache.supersede(old)){
+				coalescedCount.increment();
+				CacheItem merged = merge(indexName, old, item);
+				merged.spilled = item.spilled;
+				if(!item.spilled){
+					//已占用的是合并前的大小，按合并后的调整。之前的那条被合并后，取出时释放其占用的内存
+					long delta = merged.size() - item.size();
+					if(delta > 0){
+						memoryBytes.addAndGet(delta);
+					}else if(delta < 0){
+						release(-delta);
+					}
+				}
+				//之前的操作已被合并，合并后的这条不能再丢弃，否则两次操作都丢失了
+				success = enqueue(indexCache, merged, true);
+				item = merged;
+			}else{
+				success = enqueue(indexCache, item, false);
+			}
+			if(success){
+				indexCache.register(item);
+			}
+			return success;
+		}
+	}
+	
+	/**
+	 * 将同一条数据的两个操作合并为一个。合并规则见 {@link #setCoalesce(boolean)}
+	 * @param old 缓存中之前的操作，已标记为被合并
+	 * @param item 新的操作
+	 * @return 合并后的操作
+	 */
+	private CacheItem merge(String indexName, CacheItem old, CacheItem item){
+		if(item.operation == CacheOperation.INDEX || item.operation == CacheOperation.DELETE){
+			return item;
+		}
+		switch (old.operation) {
+		case DELETE:
+			if(item.operation == CacheOperation.UPDATE){
+				//删除后再修改，elasticsearch中也会因数据不存在而失败
+				failure(indexName, item, new IllegalStateException("document "+item.id+" deleted before update"));
+				return new CacheItem(item.id, CacheOperation.DELETE, EMPTY_SOURCE);
+			}
+			return new CacheItem(item.id, CacheOperation.INDEX, item.source);
+		case INDEX:
+			return new CacheItem(item.id, CacheOperation.INDEX, mergeSource(old.getSource(), item.source));
+		case UPSERT:
+			return new CacheItem(item.id, CacheOperation.UPSERT, mergeSource(old.getSource(), item.source));
+		default:
+			return new CacheItem(item.id, item.operation, mergeSource(old.getSource(), item.source));
+		}
+	}
+	
+	/**
+	 * 将修改的字段合并到之前的数据中，嵌套的对象按字段合并
+	 */
+	private byte[] mergeSource(byte[] source, byte[] changes){
+		Map<String, Object> map = XContentHelper.convertToMap(new BytesArray(source), true, XContentType.JSON).v2();
+		XContentHelper.update(map, XContentHelper.convertToMap(new BytesArray(changes), true, XContentType.JSON).v2(), false);
+		return toJsonBytes(map);
+	}
+	
+	/**
+	 * 将一条已占用了内存的数据加入某个索引缓存，并写入磁盘缓存
+	 * @param force 不能丢弃。只写入磁盘缓存的数据写入失败时，改为占用内存保留
+	 * @return false:只写入磁盘缓存的数据写入失败，丢弃了
+	 */
+	private boolean enqueue(IndexCache indexCache, CacheItem item, boolean force){
+		if(indexCache.spool != null){
+			try {
+				indexCache.spool.append(item);
+			} catch (IOException e) {
+				e.printStackTrace();
+				if(item.spilled){
+					if(!force){
+						//内存已满，又没能写入磁盘缓存
+						failure(indexCache.indexName, item, e);
+						return false;
+					}
+					item.spilled = false;
+					memoryBytes.addAndGet(item.size());
+				}
+			}
+			if(item.spilled){
+				item.source = null;
+			}
+		}
+		indexCache.add(item);
+		if(isFull(indexCache)){
+			drain(indexCache, false);
+		}
+		return true;
+	}
+
+	/**
+	 * 将某个索引缓存中的数据立即提交到elasticsearch中，当前线程会等待提交完成
+	 * @param indexName 索引名字
+	 * @return true:成功；  false:有提交失败的数据。可以重试的会等待一段时间后重新放回缓存，不能重试的交给 {@link CacheFailureListener}
+	 */
+	public boolean submit(String indexName){
+		IndexCache indexCache = indexCacheMap.get(indexName);
+		if(indexCache == null){
+			return true;
+		}
+
+		boolean success = true;
+		List<CacheItem> list;
+		int number = indexCache.size();	//只提交当前已有的，避免提交的同时不断有新的写入，一直提交不完
+		while(number > 0 && (list = poll(indexCache)).size() > 0){
+			number = number - list.size();
+			if(!bulk(indexCache, list)){
+				success = false;
+			}
+		}
+		return success;
+	}
+
+	/**
+	 * 获取某个索引缓存中当前的条数
+	 * @param indexName 索引名字
+	 * @return 缓存中的条数
+	 */
+	public int size(String indexName){
+		IndexCache indexCache = indexCacheMap.get(indexName);
+		return indexCache == null ? 0 : indexCache.size();
+	}
+
+	/**
+	 * 获取所有索引缓存当前占用的内存，包含正在提交、等待重试的数据。可以用来判断是否要减少写入
+	 * @return 占用的内存，单位字节
+	 */
+	public long memoryBytes(){
+		return memoryBytes.get();
+	}
+	
+	/**
+	 * 获取所有索引缓存中当前等待提交的条数，不包含正在提交、等待重试的数据
+	 * @return 缓存中的条数
+	 */
+	public int size(){
+		int size = 0;
+		for (IndexCache indexCache : indexCacheMap.values()) {
+			size = size + indexCache.size();
+		}
+		return size;
+	}
+	
+	/**
+	 * 获取某个索引缓存中当前数据的字节数
+	 * @param indexName 索引名字
+	 * @return 缓存中数据的字节数
+	 */
+	public long bytes(String indexName){
+		IndexCache indexCache = indexCacheMap.get(indexName);
+		return indexCache == null ? 0 : indexCache.bytes();
+	}
+
+	/**
+	 * 为新加入的数据占用内存。如果超出上限，按 {@link CacheFullPolicy} 处理
+	 * @return true:可以加入缓存； false:要丢弃这条新加入的数据
+	 */
+	private boolean acquire(IndexCache indexCache, CacheItem item){
+		if(tryAcquire(item.size())){
+			return true;
+		}
+		
+		//超出了，先将这个索引缓存中的全部提交，尽快腾出空间
+		drain(indexCache, true);
+		switch (cacheFullPolicy) {
+		case DROP_OLDEST:
+			while(!tryAcquire(item.size())){
+				List<CacheItem> supersededList = new ArrayList<CacheItem>();
+				List<CacheItem> oldList = indexCache.poll(1, Long.MAX_VALUE, supersededList);
+				finish(indexCache, supersededList);
+				if(oldList.size() == 0){
+					//都在提交中，没有可丢弃的
+					return false;
+				}
+				CacheItem old = oldList.get(0);
+				failure(indexCache.indexName, old, new RejectedExecutionException("cache is full, drop oldest"));
+				finish(indexCache, old);
+			}
+			return true;
+		case SPILL:
+			if(indexCache.spool != null){
+				//只写入磁盘缓存，不占用内存
+				item.spilled = true;
+				return true;
+			}
+			//没有开启磁盘缓存，按 BLOCK 处理
+			return awaitAcquire(item.size());
+		case BLOCK:
+			return awaitAcquire(item.size());
+		default:
+			return false;
+		}
+	}
+	
+	/**
+	 * 等待其他数据提交后腾出内存，最多等待 {@link #setCacheFullPolicy(CacheFullPolicy, long)} 中设置的时间
+	 * @param bytes 要占用的字节数
+	 * @return true:占用成功； false:超时或被中断
+	 */
+	private boolean awaitAcquire(long bytes){
+		long endTime = System.currentTimeMillis() + cacheFullTimeout;
+		synchronized (memoryLock) {
+			memoryWaitNumber.incrementAndGet();
+			try {
+				while(!tryAcquire(bytes)){
+					long waitTime = endTime - System.currentTimeMillis();
+					if(waitTime <= 0){
+						return false;
+					}
+					memoryLock.wait(waitTime);
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return false;
+			} finally {
+				memoryWaitNumber.decrementAndGet();
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * 尝试占用内存
+	 * @param bytes 要占用的字节数
+	 * @return true:占用成功。如果当前缓存为空，即使这一条就超过了上限，也允许加入
+	 */
+	private boolean tryAcquire(long bytes){
+		while(true){
+			long current = memoryBytes.get();
+			if(current > 0 && current + bytes > cacheMaxMemory){
+				return false;
+			}
+			if(memoryBytes.compareAndSet(current, current + bytes)){
+				return true;
+			}
+		}
+	}
+	
+	/**
+	 * 一条数据提交成功或最终提交失败，不在缓存中了。释放其占用的内存，并从磁盘缓存中删除
+	 */
+	private void finish(IndexCache indexCache, CacheItem item){
+		if(!item.spilled){
+			release(item.size());
+		}
+		if(item.id != null){
+			synchronized (indexCache.idLock(item.id)) {
+				indexCache.unregister(item);
+			}
+		}
+		if(indexCache.spool != null){
+			indexCache.spool.ack(item);
+		}
+	}
+	
+	/**
+	 * 一批数据提交成功或最终提交失败，不在缓存中了
+	 */
+	private void finish(IndexCache indexCache, List<CacheItem> list){
+		for (int i = 0; i < list.size(); i++) {
+			finish(indexCache, list.get(i));
+		}
+	}
+	
+	/**
+	 * 释放占用的内存，并唤醒等待的线程
+	 * @param bytes 释放的字节数
+	 */
+	private void release(long bytes){
+		memoryBytes.addAndGet(-bytes);
+		if(memoryWaitNumber.get() > 0){
+			synchronized (memoryLock) {
+				memoryLock.notifyAll();
+			}
+		}
+	}
+	
+	/**
+	 * 某个索引缓存是否已经满了，满了就要取出一批提交
+	 */
+	private boolean isFull(IndexCache indexCache){
+		return indexCache.size() >= es.cacheMaxNumber || indexCache.bytes() >= es.bulkMaxBytes;
+	}
+
+	/**
+	 * 从某个索引缓存中取出一批要提交的数据
+	 */
+	private List<CacheItem> poll(IndexCache indexCache){
+		List<CacheItem> supersededList = new ArrayList<CacheItem>();
+		List<CacheItem> list = indexCache.poll(Math.max(es.cacheMaxNumber, 1), es.bulkMaxBytes, supersededList);
+		//已被合并的，不用提交，直接释放
+		finish(indexCache, supersededList);
+		return list;
+	}
+
+	private IndexCache getIndexCache(String indexName){
+		IndexCache indexCache = indexCacheMap.get(indexName);
+		if(indexCache == null){
+			IndexCache newIndexCache = new IndexCache(indexName, stripeNumber);
+			indexCache = indexCacheMap.putIfAbsent(indexName, newIndexCache);
+			if(indexCache == null){
+				indexCache = newIndexCache;
+				if(spoolDirectory != null){
+					openSpool(indexCache);
+				}
+				startLinger();
+			}
+		}
+		return indexCache;
+	}
+
+	/**
+	 * 打开某个索引的磁盘缓存，并恢复其中上次未提交完成的数据
+	 */
+	private void openSpool(IndexCache indexCache){
+		IndexSpool spool = new IndexSpool(new File(spoolDirectory, indexCache.indexName), spoolSegmentSize);
+		try {
+			List<CacheItem> list = spool.recover();
+			for (int i = 0; i < list.size(); i++) {
+				//恢复的数据只存在于磁盘缓存中，不占用内存
+				list.get(i).spilled = true;
+			}
+			indexCache.spool = spool;
+			for (int i = 0; i < list.size(); i++) {
+				CacheItem item = list.get(i);
+				if(item.id != null){
+					synchronized (indexCache.idLock(item.id)) {
+						indexCache.register(item);
+					}
+				}
+				indexCache.add(item);
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+			ElasticSearchUtil.log("index "+indexCache.indexName+" spool open failure, only use memory cache");
+		}
+	}
+	
+	/**
+	 * 将某个索引缓存中满了的批次取出，交给后台线程提交。同一个索引同时只会有一个取出的任务，取出后的提交是并行的
+	 * @param all true:缓存中的全部取出提交，最后一批不满也提交；  false:只取出满了的批次
+	 */
+	private void drain(final IndexCache indexCache, final boolean all){
+		if(closed){
+			//关闭中，由 close() 统一提交
+			return;
+		}
+		if(!indexCache.draining.compareAndSet(false, true)){
+			//已经有线程在取了
+			return;
+		}
+		try {
+			getFlushExecutor().execute(new Runnable() {
+				public void run() {
+					try {
+						while(isFull(indexCache) || (all && indexCache.size() > 0)){
+							final List<CacheItem> list = poll(indexCache);
+							if(list.size() == 0){
+								break;
+							}
+							try {
+								getFlushExecutor().execute(new Runnable() {
+									public void run() {
+										bulk(indexCache, list);
+									}
+								});
+							} catch (RejectedExecutionException e) {
+								//已关闭，放回缓存，由 close() 统一提交
+								requeue(indexCache, list);
+								break;
+							}
+						}
+					} finally {
+						indexCache.draining.set(false);
+					}
+					//取出的过程中又写满了
+					if(isFull(indexCache)){
+						drain(indexCache, false);
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			indexCache.draining.set(false);
+		}
+	}
+
+	/**
+	 * 打包提交一批数据。只有提交失败的那几条会重新提交
+	 * @return true:全部成功； false:有失败的
+	 */
+	private boolean bulk(IndexCache indexCache, List<CacheItem> list){
+		BulkRequest bulkRequest = new BulkRequest();
+		for (int i = 0; i < list.size(); i++) {
+			bulkRequest.add(writeRequest(indexCache.indexName, list.get(i)));
+		}
+		
+		BulkResponse res;
+		try {
+			res = es.getBulkRestHighLevelClient().bulk(bulkRequest, es.getRequestOptions());
+		} catch (IOException e) {
+			//网络异常，整批重试
+			e.printStackTrace();
+			requestFailure(indexCache, list, e, true);
+			return false;
+		} catch (ElasticsearchException e) {
+			//整个请求被拒绝，如 413 超过了 http.max_content_length ，按状态码判断是否重试
+			e.printStackTrace();
+			requestFailure(indexCache, list, e, isRetryable(e.status()));
+			return false;
+		} catch (RuntimeException e) {
+			e.printStackTrace();
+			requestFailure(indexCache, list, e, true);
+			return false;
+		}
+		//查询结果的本地缓存中，这个索引的缓存失效。放在 try 外，这里出错不能让已提交成功的再重复提交
+		es.invalidateIndex(indexCache.indexName);
+		if(!res.hasFailures()){
+			finish(indexCache, list);
+			return true;
+		}
+		
+		//找出失败的那几条。 res.getItems() 的顺序与提交的顺序一致
+		BulkItemResponse[] items = res.getItems();
+		List<CacheItem> retryList = new ArrayList<CacheItem>();
+		for (int i = 0; i < items.length; i++) {
+			if(!items[i].isFailed()){
+				continue;
+			}
+			CacheItem item = list.get(i);
+			BulkItemResponse.Failure failure = items[i].getFailure();
+			if(isRetryable(failure.getStatus()) && item.retryNumber < maxRetryNumber){
+				retryList.add(item);
+			}else{
+				failure(indexCache.indexName, item, failure.getCause());
+				finish(indexCache, item);
+			}
+		}
+		//提交成功的
+		for (int i = 0; i < items.length; i++) {
+			if(!items[i].isFailed()){
+				finish(indexCache, list.get(i));
+			}
+		}
+		if(retryList.size() > 0){
+			retry(indexCache, retryList);
+		}
+		return false;
+	}
+	
+	/**
+	 * 整个批量请求失败。还可以重试、且没有超过 {@link #setMaxRetryNumber(int)} 次数的重新提交，其他的交给 {@link CacheFailureListener}
+	 * @param retryable 这个失败是否可以重试
+	 */
+	private void requestFailure(IndexCache indexCache, List<CacheItem> list, Exception cause, boolean retryable){
+		List<CacheItem> retryList = new ArrayList<CacheItem>();
+		for (int i = 0; i < list.size(); i++) {
+			CacheItem item = list.get(i);
+			if(retryable && item.retryNumber < maxRetryNumber){
+				retryList.add(item);
+			}else{
+				failure(indexCache.indexName, item, cause);
+				finish(indexCache, item);
+			}
+		}
+		if(retryList.size() > 0){
+			retry(indexCache, retryList);
+		}
+	}
+	
+	/**
+	 * 按操作类型，创建缓存中一条数据的请求
+	 */
+	private static DocWriteRequest<?> writeRequest(String indexName, CacheItem item){
+		switch (item.operation) {
+		case DELETE:
+			return new DeleteRequest(indexName, item.id);
+		case UPDATE:
+		case UPSERT:
+			UpdateRequest updateRequest = new UpdateRequest(indexName, item.id);
+			updateRequest.doc(item.getSource(), XContentType.JSON);
+			updateRequest.docAsUpsert(item.operation == CacheOperation.UPSERT);
+			updateRequest.retryOnConflict(RETRY_ON_CONFLICT);
+			return updateRequest;
+		default:
+			IndexRequest indexRequest = new IndexRequest(indexName);
+			if(item.id != null){
+				indexRequest.id(item.id);
+			}
+			return indexRequest.source(item.getSource(), XContentType.JSON);
+		}
+	}
+	
+	/**
+	 * 提交失败的状态码，是否可以重试。 429 elasticsearch繁忙， 5xx 节点、分片不可用，等一会可能就好了，可以重试。其他的如400字段类型不匹配，重试也不会成功
+	 */
+	private static boolean isRetryable(RestStatus status){
+		return status == RestStatus.TOO_MANY_REQUESTS || status.getStatus() >= 500;
+	}
+	
+	/**
+	 * 等待一段时间后，将提交失败的数据重新放回缓存。等待的时间按重试次数指数增长，并在 0 ~ 这个时间之间随机，避免大量数据同一时间重试
+	 */
+	private void retry(final IndexCache indexCache, final List<CacheItem> list){
+		int retryNumber = 0;
+		for (int i = 0; i < list.size(); i++) {
+			CacheItem item = list.get(i);
+			item.retryNumber++;
+			retryNumber = Math.max(retryNumber, item.retryNumber);
+		}
+		long delay = ThreadLocalRandom.current().nextLong(backoff(retryNumber) + 1);
+		
+		RetryTask retryTask = new RetryTask(indexCache, list);
+		ScheduledExecutorService executor = scheduledExecutor;
+		if(executor != null && !closed){
+			retryTaskSet.add(retryTask);
+			try {
+				executor.schedule(retryTask, delay, TimeUnit.MILLISECONDS);
+				return;
+			} catch (RejectedExecutionException e) {
+			}
+		}
+		//已关闭，直接放回缓存
+		retryTask.run();
+	}
+	
+	/**
+	 * 第几次重试前等待的最长时间，每次翻倍，不超过 {@link #setRetryBackoff(long, long)} 设置的最长时间
+	 * @param retryNumber 第几次重试，从1开始
+	 * @return 单位毫秒
+	 */
+	private long backoff(int retryNumber){
+		long backoff = retryBackoff << Math.min(retryNumber - 1, 30);
+		if(backoff <= 0 || backoff > maxRetryBackoff){
+			backoff = maxRetryBackoff;
+		}
+		return backoff;
+	}
+	
+	/**
+	 * 将取出后没有提交成功的数据重新放回缓存。放回后会排在同一条数据之后加入的操作后面，所以先按序号判断之后是否又有了新的操作（还在缓存中的、已提交的都算），避免旧的操作覆盖新的：
+	 * <ul>
+	 * 	<li>这条数据之后没有新的操作，放回缓存，开启合并时之后的操作可以与之合并</li>
+	 * 	<li>之后有新的添加（INDEX）、删除（DELETE），这条已经被替换了，直接丢弃</li>
+	 * 	<li>之后只有一个修改，还在缓存中没有取出，合并为一个，这条在前。每次打包提交中同一条数据依然最多只有一个操作</li>
+	 * 	<li>其他的，如之后的修改已经取出提交了，这条再提交会覆盖之后修改的字段，交给 {@link CacheFailureListener}</li>
+	 * </ul>
+	 */
+	private void requeue(IndexCache indexCache, List<CacheItem> list){
+		for (int i = 0; i < list.size(); i++) {
+			CacheItem item = list.get(i);
+			if(item.id == null){
+				item.reset();
+				indexCache.add(item);
+				continue;
+			}
+			synchronized (indexCache.idLock(item.id)) {
+				IndexCache.IdState state = indexCache.idState(item.id);
+				CacheItem latest = state.latest;
+				if(state.sequence == item.sequence){
+					item.reset();
+					indexCache.add(item);
+				}else if(latest.operation == CacheOperation.INDEX || latest.operation == CacheOperation.DELETE){
+					coalescedCount.increment();
+					finish(indexCache, item);
+				}else if(state.outstanding == 2 && state.takenSequence <= item.sequence && indexCache.supersede(latest)){
+					coalescedCount.increment();
+					CacheItem merged = merge(indexCache.indexName, item, latest);
+					finish(indexCache, item);
+					//之后的那条被合并后，取出时释放其占用的内存。合并后的这条不能再丢弃
+					memoryBytes.addAndGet(merged.size());
+					enqueue(indexCache, merged, true);
+					indexCache.register(merged);
+				}else{
+					failure(indexCache.indexName, item, new IllegalStateException("document "+item.id+" changed by a newer operation before retry"));
+					finish(indexCache, item);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * 等待重试的一批数据，到时间后放回缓存
+	 */
+	private class RetryTask implements Runnable {
+		private IndexCache indexCache;
+		private List<CacheItem> list;
+		private AtomicBoolean done = new AtomicBoolean(false);
+		
+		RetryTask(IndexCache indexCache, List<CacheItem> list) {
+			this.indexCache = indexCache;
+			this.list = list;
+		}
+		
+		public void run() {
+			if(done.compareAndSet(false, true)){
+				retryTaskSet.remove(this);
+				requeue(indexCache, list);
+			}
+		}
+	}
+	
+	/**
+	 * 某条数据最终提交失败，交给 {@link CacheFailureListener} 。调用后还需要 {@link #finish(IndexCache, CacheItem)} 将其从缓存中去掉
+	 */
+	private void failure(String indexName, CacheItem item, Exception cause){
+		try {
+			cacheFailureListener.failure(indexName, item, cause);
+		} catch (RuntimeException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * 启动定时任务，检查各个索引缓存的等待时间
+	 */
+	private void startLinger(){
+		if(scheduledExecutor != null){
+			return;
+		}
+		synchronized (this) {
+			if(scheduledExecutor != null || closed){
+				return;
+			}
+			scheduledExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "elasticsearch-cache-scheduled");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+			scheduledExecutor.scheduleWithFixedDelay(new Runnable() {
+				public void run() {
+					try {
+						checkLinger();
+					} catch (RuntimeException e) {
+						e.printStackTrace();
+					}
+				}
+			}, LINGER_CHECK_INTERVAL, LINGER_CHECK_INTERVAL, TimeUnit.MILLISECONDS);
+		}
+	}
+	
+	/**
+	 * 检查各个索引缓存，等待超时的全部提交
+	 */
+	private void checkLinger(){
+		long now = System.currentTimeMillis();
+		for (IndexCache indexCache : indexCacheMap.values()) {
+			if(indexCache.size() == 0){
+				continue;
+			}
+			long firstTime = indexCache.firstTime;
+			if(firstTime == 0){
+				//取出与加入同时发生时可能没记录上，从现在开始计算
+				indexCache.firstTime = now;
+				continue;
+			}
+			Long linger = indexMaxLingerMap.get(indexCache.indexName);
+			if(linger == null){
+				linger = cacheMaxLinger;
+			}
+			if(linger > 0 && now - firstTime >= linger){
+				drain(indexCache, true);
+			}
+		}
+	}
+	
+	/**
+	 * 关闭。停止定时任务，等待后台正在提交的完成，然后将所有索引缓存中剩余的数据全部提交
+	 * <p>关闭后再调用 {@link #cache(Map, String)} 的数据不会再自动提交，只能通过 {@link #submit(String)} 提交</p>
+	 */
+	public void close(){
+		synchronized (this) {
+			if(closed){
+				return;
+			}
+			closed = true;
+			if(scheduledExecutor != null){
+				scheduledExecutor.shutdownNow();
+			}
+		}
+		//还在等待重试的，直接放回缓存
+		for (RetryTask retryTask : retryTaskSet) {
+			retryTask.run();
+		}
+		if(flushExecutor != null){
+			flushExecutor.shutdown();
+			try {
+				flushExecutor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		for (IndexCache indexCache : indexCacheMap.values()) {
+			//失败的会直接放回缓存，等待一段时间后再次提交。最多重试 maxRetryNumber 次，避免elasticsearch不可用时一直提交
+			boolean success = submit(indexCache.indexName);
+			for (int i = 0; !success && i < maxRetryNumber && indexCache.size() > 0; i++) {
+				try {
+					Thread.sleep(backoff(i + 1));
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					break;
+				}
+				success = submit(indexCache.indexName);
+			}
+			if(indexCache.spool != null){
+				//提交完成的段文件删除，未提交的保留，下次开启磁盘缓存时恢复
+				indexCache.spool.close();
+			}
+			if(indexCache.size() > 0){
+				ElasticSearchUtil.log("cache close, index "+indexCache.indexName+" submit failure, "+indexCache.size()+" items not submitted");
+			}
+		}
+	}
+	
+	private ExecutorService getFlushExecutor(){
+		if(flushExecutor == null){
+			synchronized (this) {
+				if(flushExecutor == null){
+					flushExecutor = new ThreadPoolExecutor(flushThreadNumber, flushThreadNumber, 60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+						private AtomicInteger number = new AtomicInteger();
+						public Thread newThread(Runnable r) {
+							Thread thread = new Thread(r, "elasticsearch-cache-flush-" + number.incrementAndGet());
+							thread.setDaemon(true);
+							return thread;
+						}
+					});
+					flushExecutor.allowCoreThreadTimeOut(true);
+				}
+			}
+		}
+		return flushExecutor;
+	}
+}
@@ -0,0 +1,17 @@
+package com.xnx3.elasticsearch.cache;
+
+/**
+ * 缓存中的数据最终提交失败的回调。比如字段类型不匹配这种重试也不会成功的错误，或者重试次数已用完，都会回调这里，这条数据不会再提交
+ * <p>通过 {@link CacheBuffer#setCacheFailureListener(CacheFailureListener)} 设置。如果不设置，默认只是打印出失败的信息</p>
+ * @author 管雷鸣
+ */
+public interface CacheFailureListener {
+	
+	/**
+	 * 某条数据提交失败，不会再提交了
+	 * @param indexName 索引名字
+	 * @param item 提交失败的这条数据，可通过 {@link CacheItem#getSource()} 获取其JSON内容
+	 * @param cause 失败的原因
+	 */
+	public void failure(String indexName, CacheItem item, Exception cause);
+}
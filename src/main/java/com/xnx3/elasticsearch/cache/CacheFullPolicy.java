@@ -0,0 +1,25 @@
+package com.xnx3.elasticsearch.cache;
+
+/**
+ * 缓存占用的内存达到 {@link CacheBuffer#setCacheMaxMemory(long)} 的上限后，新加入的数据如何处理
+ * <p>被丢弃的数据会交给 {@link CacheFailureListener} 处理</p>
+ * @author 管雷鸣
+ */
+public enum CacheFullPolicy {
+	/**
+	 * 加入缓存的线程等待，直到缓存中的数据提交出去、有了空间。等待超时则丢弃这条新加入的数据
+	 */
+	BLOCK,
+	/**
+	 * 丢弃这个索引缓存中最早加入、还未提交的数据，为新加入的数据腾出空间
+	 */
+	DROP_OLDEST,
+	/**
+	 * 直接丢弃这条新加入的数据
+	 */
+	DROP_NEWEST,
+	/**
+	 * 新加入的数据只写入磁盘缓存，不占用内存，提交时再从磁盘缓存中读取。需要先通过 {@link CacheBuffer#setSpool(String, int)} 开启磁盘缓存，没有开启的话按 {@link #BLOCK} 处理
+	 */
+	SPILL
+}
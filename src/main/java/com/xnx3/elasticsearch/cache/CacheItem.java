@@ -0,0 +1,107 @@
+package com.xnx3.elasticsearch.cache;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 缓存中的一条数据。加入缓存时就已序列化为JSON，这样能按字节大小来打包提交
+ * @author 管雷鸣
+ */
+public class CacheItem {
+	static final int PENDING = 0;		//在缓存中等待提交
+	static final int POLLED = 1;		//已取出提交
+	static final int SUPERSEDED = 2;	//开启合并时，已被同一条数据之后的操作合并，不再提交
+
+	String id;			//这条数据的id，如果为null，则由es系统自动生成
+	CacheOperation operation;	//操作类型
+	byte[] source;		//这条数据序列化后的JSON，UTF-8编码。如果只存在于磁盘缓存中，这里为null
+	int length;			//source的字节数
+	int retryNumber;	//已经重试提交的次数
+	long sequence;		//指定了id的，在这条数据的操作中的序号，越大越新
+	boolean spilled;	//是否只存在于磁盘缓存中，不占用内存
+	SpoolSegment segment;	//开启了磁盘缓存时，这条数据所在的段文件
+	int position;			//开启了磁盘缓存时，这条数据在段文件中的位置
+	AtomicInteger state = new AtomicInteger(PENDING);	//PENDING、POLLED、SUPERSEDED
+
+	CacheItem(String id, byte[] source) {
+		this(id, CacheOperation.INDEX, source, source.length);
+	}
+
+	CacheItem(String id, CacheOperation operation, byte[] source) {
+		this(id, operation, source, source.length);
+	}
+
+	CacheItem(String id, CacheOperation operation, byte[] source, int length) {
+		this.id = id;
+		this.operation = operation;
+		this.source = source;
+		this.length = length;
+	}
+
+	/**
+	 * 取出提交
+	 * @return false:已被合并，不用提交了
+	 */
+	boolean take(){
+		return state.compareAndSet(PENDING, POLLED);
+	}
+
+	/**
+	 * 提交失败后重新放回缓存，可以再次取出，也可以被同一条数据之后的操作合并
+	 */
+	void reset(){
+		state.set(PENDING);
+	}
+
+	/**
+	 * 被同一条数据之后的操作合并
+	 * @return false:已经取出提交了，不能再合并
+	 */
+	boolean supersede(){
+		return state.compareAndSet(PENDING, SUPERSEDED);
+	}
+
+	/**
+	 * @return 这条数据的id，如果为null，则由es系统自动生成
+	 */
+	public String getId() {
+		return id;
+	}
+
+	/**
+	 * @return 操作类型
+	 */
+	public CacheOperation getOperation() {
+		return operation;
+	}
+
+	/**
+	 * @return 这条数据序列化后的JSON，UTF-8编码。如果只存在于磁盘缓存中，会从磁盘缓存中读取
+	 */
+	public byte[] getSource() {
+		byte[] source = this.source;
+		if(source != null){
+			return source;
+		}
+		SpoolSegment segment = this.segment;
+		return segment == null ? null : segment.readSource(position);
+	}
+
+	/**
+	 * @return 已经重试提交的次数
+	 */
+	public int getRetryNumber() {
+		return retryNumber;
+	}
+
+	/**
+	 * @return 这条数据占用的字节数
+	 */
+	public int size() {
+		return length;
+	}
+
+	@Override
+	public String toString() {
+		return "CacheItem [id=" + id + ", operation=" + operation + ", size=" + length + ", retryNumber=" + retryNumber + "]";
+	}
+}
@@ -0,0 +1,24 @@
+package com.xnx3.elasticsearch.cache;
+
+/**
+ * 缓存中一条数据的操作类型，打包提交时按此创建对应的请求
+ * @author 管雷鸣
+ */
+public enum CacheOperation {
+	/**
+	 * 添加，已存在的会整条覆盖。 id 为null时由es系统自动生成
+	 */
+	INDEX,
+	/**
+	 * 修改其中的部分字段，这条数据不存在时提交失败
+	 */
+	UPDATE,
+	/**
+	 * 修改其中的部分字段，这条数据不存在时以这些字段添加
+	 */
+	UPSERT,
+	/**
+	 * 删除
+	 */
+	DELETE
+}
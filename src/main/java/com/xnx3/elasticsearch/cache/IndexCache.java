@@ -0,0 +1,214 @@
+package com.xnx3.elasticsearch.cache;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 某个索引的缓存。内部按条带（stripe）拆分为多个无锁队列，多个写入线程落在不同的条带上，互不争抢。
+ * <p>指定了id的数据按id落在固定的条带上，同一条数据的多次操作在一个队列中，取出时保持加入的顺序；没有id的按写入线程分配条带</p>
+ * @author 管雷鸣
+ */
+class IndexCache {
+	String indexName;
+	private ConcurrentLinkedQueue<CacheItem>[] stripes;
+	private int stripeMask;
+	private AtomicInteger size;			//当前缓存中的条数
+	private AtomicLong bytes;			//当前缓存中数据的字节数
+	private AtomicInteger pollIndex;	//取出时从哪个条带开始，轮流取，避免总是先取第一个条带
+	AtomicBoolean draining;				//当前是否已有打包提交的任务在执行
+	volatile long firstTime;			//当前缓存中最早一条数据加入的时间，13位时间戳。缓存为空时为0
+	IndexSpool spool;					//这个索引的磁盘缓存，没有开启磁盘缓存时为null
+	private ConcurrentHashMap<String, IdState> idStateMap;	//指定了id的数据，每条数据在缓存中的操作情况。 key: id
+	private Object[] idLocks;			//同一个id的加入、取出、重试按顺序进行
+
+	/**
+	 * @param indexName 索引名字
+	 * @param stripeNumber 条带数量，必须是2的n次方
+	 */
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	IndexCache(String indexName, int stripeNumber) {
+		this.indexName = indexName;
+		this.stripes = new ConcurrentLinkedQueue[stripeNumber];
+		for (int i = 0; i < stripeNumber; i++) {
+			this.stripes[i] = new ConcurrentLinkedQueue<CacheItem>();
+		}
+		this.stripeMask = stripeNumber - 1;
+		this.size = new AtomicInteger();
+		this.bytes = new AtomicLong();
+		this.pollIndex = new AtomicInteger();
+		this.draining = new AtomicBoolean(false);
+		this.idStateMap = new ConcurrentHashMap<String, IdState>();
+		this.idLocks = new Object[stripeNumber * 4];
+		for (int i = 0; i < idLocks.length; i++) {
+			idLocks[i] = new Object();
+		}
+	}
+
+	/**
+	 * 加入、取出、重试某个id的数据，以及读写其 {@link IdState} 时，需要先锁住这个
+	 */
+	Object idLock(String id){
+		return idLocks[hash(id) % idLocks.length];
+	}
+
+	private static int hash(String id){
+		int hash = id.hashCode();
+		return (hash ^ (hash >>> 16)) & 0x7fffffff;
+	}
+
+	/**
+	 * 加入一条数据
+	 * @return 加入后，当前缓存中的条数
+	 */
+	int add(CacheItem item){
+		//同一条数据的操作放在同一个条带中，保证先后顺序
+		int stripe = item.id == null ? (int) Thread.currentThread().getId() : hash(item.id);
+		stripes[stripe & stripeMask].offer(item);
+		bytes.addAndGet(item.size());
+		int number = size.incrementAndGet();
+		if(firstTime == 0){
+			firstTime = System.currentTimeMillis();
+		}
+		return number;
+	}
+
+	/**
+	 * 从缓存中取出一批数据，条数不超过 maxNumber ，字节数不超过 maxBytes 。如果第一条就超过了 maxBytes ，那么这一批只有这一条
+	 * <p>取出的只有后台提交线程，这里加锁不影响写入线程</p>
+	 * @param maxNumber 最多取出多少条
+	 * @param maxBytes 最多取出多少字节
+	 * @param supersededList 开启合并时，取出过程中遇到的已被合并的数据加入这里，不计入条数、字节数，调用方负责释放
+	 * @return 取出的数据，如果缓存中没有数据，返回的 list.size() 为0
+	 */
+	synchronized List<CacheItem> poll(int maxNumber, long maxBytes, List<CacheItem> supersededList){
+		List<CacheItem> list = new ArrayList<CacheItem>(Math.min(maxNumber, Math.max(size.get(), 1)));
+		long pollBytes = 0;
+		long supersededBytes = 0;
+		int supersededNumber = 0;
+		int start = pollIndex.getAndIncrement();
+		for (int i = 0; i <= stripeMask && list.size() < maxNumber && pollBytes < maxBytes; i++) {
+			ConcurrentLinkedQueue<CacheItem> queue = stripes[(start + i) & stripeMask];
+			CacheItem item;
+			while(list.size() < maxNumber && (item = queue.peek()) != null){
+				if(list.size() > 0 && pollBytes + item.size() > maxBytes){
+					break;
+				}
+				queue.poll();
+				if(!take(item)){
+					supersededList.add(item);
+					supersededNumber++;
+					supersededBytes = supersededBytes + item.size();
+					continue;
+				}
+				list.add(item);
+				pollBytes = pollBytes + item.size();
+			}
+		}
+		bytes.addAndGet(-pollBytes - supersededBytes);
+		if(size.addAndGet(-list.size() - supersededNumber) == 0){
+			//取空了，剩下的不存在等待时间
+			firstTime = 0;
+		}
+		return list;
+	}
+
+	/**
+	 * 取出一条数据，并记录这条数据已取出提交的最新操作
+	 * @return false:已被合并，不用提交了
+	 */
+	private boolean take(CacheItem item){
+		if(item.id == null){
+			return item.take();
+		}
+		synchronized (idLock(item.id)) {
+			if(!item.take()){
+				return false;
+			}
+			IdState state = idStateMap.get(item.id);
+			if(state != null && state.takenSequence < item.sequence){
+				state.takenSequence = item.sequence;
+			}
+			return true;
+		}
+	}
+
+	/**
+	 * 获取某条数据在缓存中的操作情况。需要先锁住 {@link #idLock(String)}
+	 * @return 这条数据没有还未提交完成的操作时，返回null
+	 */
+	IdState idState(String id){
+		return idStateMap.get(id);
+	}
+
+	/**
+	 * 一条指定了id的数据已加入缓存，记为这条数据最新的操作，并分配序号。需要先锁住 {@link #idLock(String)}
+	 */
+	void register(CacheItem item){
+		IdState state = idStateMap.get(item.id);
+		if(state == null){
+			state = new IdState();
+			idStateMap.put(item.id, state);
+		}
+		item.sequence = ++state.sequence;
+		state.latest = item;
+		state.outstanding++;
+	}
+
+	/**
+	 * 一条指定了id的数据提交完成了（提交成功或最终失败）。已被合并的在合并时已经去掉了。需要先锁住 {@link #idLock(String)}
+	 */
+	void unregister(CacheItem item){
+		if(item.state.get() != CacheItem.SUPERSEDED){
+			decrement(item.id);
+		}
+	}
+
+	/**
+	 * 将一条还在缓存中的数据标记为被之后的操作合并。需要先锁住 {@link #idLock(String)}
+	 * @return false:已经取出提交了，不能再合并
+	 */
+	boolean supersede(CacheItem item){
+		if(!item.supersede()){
+			return false;
+		}
+		decrement(item.id);
+		return true;
+	}
+
+	private void decrement(String id){
+		IdState state = idStateMap.get(id);
+		if(state != null && --state.outstanding == 0){
+			idStateMap.remove(id);
+		}
+	}
+
+	/**
+	 * @return 当前缓存中的条数
+	 */
+	int size(){
+		return size.get();
+	}
+
+	/**
+	 * @return 当前缓存中数据的字节数
+	 */
+	long bytes(){
+		return bytes.get();
+	}
+
+	/**
+	 * 一条数据（id相同）在缓存中的操作情况，包含已取出提交、等待重试的。这条数据的操作都提交完成后移除
+	 * <p>提交失败的重新放回缓存时，按这个判断之后是否又有了新的操作，避免旧的操作覆盖新的</p>
+	 */
+	static class IdState {
+		CacheItem latest;		//最新加入的那个操作
+		long sequence;			//最新加入的那个操作的序号，每加入一个操作加1
+		long takenSequence;		//已取出提交的操作中，最大的序号
+		int outstanding;		//还未提交完成、也没有被合并的操作数
+	}
+}
@@ -0,0 +1,170 @@
+package com.xnx3.elasticsearch.cache;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.Collections;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 某个索引的磁盘缓存。加入缓存的数据同时写入这里的段文件，提交完成后删除，进程重启后可恢复未提交的数据
+ * <p>目录结构： 磁盘缓存目录/索引名字/00000000000000000001.spool</p>
+ * @author 管雷鸣
+ */
+class IndexSpool {
+	static final String SUFFIX = ".spool";
+
+	private File directory;
+	private int segmentSize;
+	private volatile SpoolSegment current;	//当前正在写入的段文件
+	private AtomicLong segmentNumber;		//段文件的编号，按写入顺序递增
+	private Set<SpoolSegment> segmentSet;	//还未删除的段文件
+
+	/**
+	 * @param directory 这个索引的磁盘缓存目录
+	 * @param segmentSize 段文件的大小，单位字节
+	 */
+	IndexSpool(File directory, int segmentSize) {
+		this.directory = directory;
+		this.segmentSize = segmentSize;
+		this.segmentNumber = new AtomicLong();
+		this.segmentSet = Collections.newSetFromMap(new ConcurrentHashMap<SpoolSegment, Boolean>());
+	}
+
+	/**
+	 * 恢复上次未提交完成的数据。需要在写入之前执行
+	 * @return 恢复的数据，其内容在段文件中，没有读入内存
+	 */
+	List<CacheItem> recover() throws IOException {
+		List<CacheItem> list = new ArrayList<CacheItem>();
+		if(!directory.exists() && !directory.mkdirs()){
+			throw new IOException("spool directory create failure : "+directory.getAbsolutePath());
+		}
+		File[] files = directory.listFiles(new FileFilter() {
+			public boolean accept(File file) {
+				return file.isFile() && file.getName().endsWith(SUFFIX);
+			}
+		});
+		//按编号顺序恢复
+		Arrays.sort(files);
+		for (int i = 0; i < files.length; i++) {
+			String name = files[i].getName();
+			try {
+				long number = Long.parseLong(name.substring(0, name.length() - SUFFIX.length()));
+				segmentNumber.set(Math.max(segmentNumber.get(), number));
+			} catch (NumberFormatException e) {
+				continue;
+			}
+
+			List<Integer> positionList = new ArrayList<Integer>();
+			SpoolSegment segment = SpoolSegment.open(files[i], positionList);
+			if(segment == null){
+				continue;
+			}
+			if(positionList.size() == 0){
+				segment.delete();
+				continue;
+			}
+			segmentSet.add(segment);
+			for (int j = 0; j < positionList.size(); j++) {
+				int position = positionList.get(j);
+				CacheItem item = new CacheItem(segment.readId(position), segment.readOperation(position), null, segment.readSourceLength(position));
+				item.segment = segment;
+				item.position = position;
+				list.add(item);
+			}
+		}
+		return list;
+	}
+
+	/**
+	 * 将一条数据写入段文件，写入后 item 会记录其所在的段文件及位置
+	 * @param item 要写入的数据， item.source 不能为null
+	 * @throws IOException 段文件创建失败，或者 id 的UTF-8编码超过了4095字节、source超过了1GB
+	 */
+	void append(CacheItem item) throws IOException {
+		byte[] id = item.id == null ? null : item.id.getBytes(StandardCharsets.UTF_8);
+		if(id != null && id.length > SpoolSegment.ID_LENGTH_MASK){
+			//段文件中id长度只有12位，写入会破坏后面的数据。es的id最长也只有512字节
+			throw new IOException("id is too long for the spool : "+id.length+" bytes");
+		}
+		if(item.source.length > SpoolSegment.LENGTH_MASK){
+			//source长度的高两位是标记
+			throw new IOException("source is too long for the spool : "+item.source.length+" bytes");
+		}
+		while(true){
+			SpoolSegment segment = current;
+			if(segment != null){
+				int position = segment.append(id, item.operation, item.source);
+				if(position >= 0){
+					item.segment = segment;
+					item.position = position;
+					return;
+				}
+			}
+			roll(segment, SpoolSegment.recordLength(id, item.source.length));
+		}
+	}
+
+	/**
+	 * 当前段文件写满了，封存，并创建一个新的段文件
+	 * @param full 写满了的段文件
+	 * @param recordLength 要写入的这条数据的长度，如果一条数据就超过了段文件的大小，那么新的段文件按这条数据的大小创建
+	 */
+	private synchronized void roll(SpoolSegment full, int recordLength) throws IOException {
+		if(current != full){
+			//其他线程已经创建了
+			return;
+		}
+		int size = Math.max(segmentSize, SpoolSegment.HEADER_LENGTH + recordLength);
+		File file = new File(directory, String.format("%020d", segmentNumber.incrementAndGet()) + SUFFIX);
+		SpoolSegment segment = SpoolSegment.create(file, size);
+		segmentSet.add(segment);
+		current = segment;
+		if(full != null){
+			full.seal();
+			removeIfDeleted(full);
+		}
+	}
+
+	/**
+	 * 一条数据提交完成了（提交成功或最终失败）
+	 */
+	void ack(CacheItem item){
+		SpoolSegment segment = item.segment;
+		if(segment == null){
+			return;
+		}
+		item.segment = null;
+		segment.ack(item.position);
+		removeIfDeleted(segment);
+	}
+
+	private void removeIfDeleted(SpoolSegment segment){
+		if(segment != current && segment.pending() == 0){
+			segment.deleteIfDone();
+			segmentSet.remove(segment);
+		}
+	}
+
+	/**
+	 * 关闭。数据都提交完成了的段文件删除，还有未提交完成的保留，下次启动时恢复
+	 */
+	synchronized void close(){
+		for (SpoolSegment segment : segmentSet) {
+			if(segment.pending() == 0){
+				segment.delete();
+				segmentSet.remove(segment);
+			}else{
+				segment.seal();
+			}
+		}
+		current = null;
+	}
+}
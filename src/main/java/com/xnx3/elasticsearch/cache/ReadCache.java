@@ -0,0 +1,390 @@
+package com.xnx3.elasticsearch.cache;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import com.xnx3.elasticsearch.ElasticSearchUtil;
+
+/**
+ * 查询结果的本地缓存。服务于 {@link ElasticSearchUtil#searchById(String, String)} 、 {@link ElasticSearchUtil#search(String, String)} 等查询
+ * <p>同一条数据、同一个查询，在有效期内再次查询时直接从内存返回，不再请求 elasticsearch</p>
+ * <ul>
+ * 	<li>按 key 的hash拆分为多个段，每段一把锁、按最近最少使用（LRU）淘汰，多线程查询时不会争抢同一把锁</li>
+ * 	<li>所有段加起来占用的内存不超过设置的字节数</li>
+ * 	<li>每条缓存有有效期，过期后再查询会重新请求</li>
+ * 	<li>同一个 {@link ElasticSearchUtil} 执行 put、edit、deleteById、批量添加，或 cache 打包提交时，这个索引相关的缓存会自动失效</li>
+ * </ul>
+ * <p>其他程序、其他 ElasticSearchUtil 对象修改的数据，只能等缓存过期，所以有效期不要设置得太长</p>
+ * @author 管雷鸣
+ */
+public class ReadCache {
+	private static final int SEGMENT_NUMBER = 16;	//段的数量，必须是2的n次方
+	private static final int ENTRY_OVERHEAD = 96;	//每条缓存除了值之外，key、链表节点等大概占用的字节数
+
+	private Segment[] segments;
+	private long maxBytes;			//最多占用的内存，单位字节
+	private long ttl;				//有效期，单位毫秒
+	/**
+	 * 每个索引的版本号，这个索引有数据修改时加1，缓存中的版本号跟这个不一样的就是失效了
+	 * <p>key: indexName  value: [0] 查询结果的版本，任何修改都加1；  [1] 按id获取的数据的版本，不知道修改了哪条数据时加1</p>
+	 */
+	private ConcurrentHashMap<String, AtomicLong[]> versionMap = new ConcurrentHashMap<String, AtomicLong[]>();
+	private LongAdder hitCount = new LongAdder();
+	private LongAdder missCount = new LongAdder();
+	private LongAdder evictionCount = new LongAdder();
+
+	/**
+	 * @param maxBytes 最多占用的内存，单位字节，如 64MB 传入 64*1024*1024
+	 * @param ttl 每条缓存的有效期，单位毫秒，如 5000
+	 */
+	public ReadCache(long maxBytes, long ttl) {
+		this.maxBytes = maxBytes;
+		this.ttl = ttl;
+		this.segments = new Segment[SEGMENT_NUMBER];
+		for (int i = 0; i < SEGMENT_NUMBER; i++) {
+			this.segments[i] = new Segment(maxBytes / SEGMENT_NUMBER);
+		}
+	}
+
+	/**
+	 * 按id获取的数据的缓存key
+	 * @param fields 返回的字段，同一条数据返回的字段不同，是不同的缓存。返回全部的传入空字符串
+	 */
+	public static String idKey(String indexName, String id, String fields){
+		return idPrefix(indexName, id) + fields;
+	}
+
+	/**
+	 * 同一条数据的缓存key的前缀，同一条数据的缓存都在同一个段中
+	 */
+	private static String idPrefix(String indexName, String id){
+		return indexName + "\u0000id\u0000" + id + "\u0000";
+	}
+
+	/**
+	 * 查询结果的缓存key
+	 * @param query 查询条件，如 SearchSourceBuilder 的JSON，相同的查询条件JSON相同
+	 */
+	public static String queryKey(String indexName, String query){
+		return indexName + "\u0000query\u0000" + query;
+	}
+
+	private AtomicLong[] versions(String indexName){
+		AtomicLong[] versions = versionMap.get(indexName);
+		if(versions == null){
+			versions = new AtomicLong[]{ new AtomicLong(), new AtomicLong() };
+			AtomicLong[] old = versionMap.putIfAbsent(indexName, versions);
+			if(old != null){
+				versions = old;
+			}
+		}
+		return versions;
+	}
+
+	/**
+	 * 查询前调用，获取这个索引当前的版本号。查询完成后传给 {@link #put(String, String, boolean, Object, long, long[])} ，查询期间有修改的，不会加入缓存
+	 * @return [0] 查询结果的版本；  [1] 按id获取的数据的版本
+	 */
+	public long[] version(String indexName){
+		AtomicLong[] versions = versions(indexName);
+		return new long[]{ versions[0].get(), versions[1].get() };
+	}
+
+	/**
+	 * 从缓存中取
+	 * @param indexName 索引名字
+	 * @param key {@link #idKey(String, String, String)} 或 {@link #queryKey(String, String)}
+	 * @return 缓存的值。没有、已过期、已失效的返回null
+	 */
+	public Object get(String indexName, String key){
+		Segment segment = segment(segmentKey(key));
+		Entry entry;
+		segment.lock.lock();
+		try {
+			entry = segment.map.get(key);
+			if(entry != null && (entry.expireTime < System.currentTimeMillis() || entry.version != versions(indexName)[entry.byId ? 1 : 0].get())){
+				segment.remove(key);
+				entry = null;
+			}
+		} finally {
+			segment.lock.unlock();
+		}
+		if(entry == null){
+			missCount.increment();
+			return null;
+		}
+		hitCount.increment();
+		return entry.value;
+	}
+
+	/**
+	 * 加入缓存
+	 * @param indexName 索引名字
+	 * @param key {@link #idKey(String, String, String)} 或 {@link #queryKey(String, String)}
+	 * @param byId 是否是按id获取的数据。按id获取的只在这条数据被修改时失效，查询结果在这个索引有任何修改时失效
+	 * @param value 缓存的值，需要是不会被修改的
+	 * @param bytes 值大概占用的字节数
+	 * @param version 查询前 {@link #version(String)} 获取的。查询期间这个索引有修改的，不加入
+	 */
+	public void put(String indexName, String key, boolean byId, Object value, long bytes, long[] version){
+		AtomicLong[] versions = versions(indexName);
+		Entry entry = new Entry();
+		entry.key = key;
+		entry.value = value;
+		entry.byId = byId;
+		//记录查询前的版本号。查询期间又有修改的，取到时版本号对不上，便是失效了
+		entry.version = version[byId ? 1 : 0];
+		entry.bytes = bytes + key.length() * 2 + ENTRY_OVERHEAD;
+		entry.expireTime = System.currentTimeMillis() + ttl;
+		if(byId){
+			entry.prefix = segmentKey(key);
+		}
+		Segment segment = segment(segmentKey(key));
+		if(entry.bytes > segment.maxBytes){
+			//太大了，不缓存
+			return;
+		}
+		segment.lock.lock();
+		try {
+			//在锁内判断。 invalidate 是先加版本号、再在锁内删除，这里判断通过的，加入后还会被删除
+			if(versions[0].get() != version[0] || versions[1].get() != version[1]){
+				return;
+			}
+			segment.remove(key);
+			segment.add(entry);
+			//超出的，淘汰最久没用的
+			while(segment.bytes > segment.maxBytes){
+				Iterator<Entry> iterator = segment.map.values().iterator();
+				Entry eldest = iterator.next();
+				iterator.remove();
+				segment.removed(eldest);
+				evictionCount.increment();
+			}
+		} finally {
+			segment.lock.unlock();
+		}
+	}
+
+	/**
+	 * 某条数据修改了。这条数据的缓存、这个索引的查询结果缓存失效
+	 * @param indexName 索引名字
+	 * @param id 数据的id，传入null则是新增了数据，只有查询结果的缓存失效
+	 */
+	public void invalidate(String indexName, String id){
+		versions(indexName)[0].incrementAndGet();
+		if(id == null){
+			return;
+		}
+		String prefix = idPrefix(indexName, id);
+		Segment segment = segment(prefix);
+		segment.lock.lock();
+		try {
+			List<String> keys = segment.idKeyMap.get(prefix);
+			if(keys != null){
+				String[] array = keys.toArray(new String[keys.size()]);
+				for (int i = 0; i < array.length; i++) {
+					segment.remove(array[i]);
+				}
+			}
+		} finally {
+			segment.lock.unlock();
+		}
+	}
+
+	/**
+	 * 这个索引的数据有修改，但不知道是哪些，如批量提交。这个索引的全部缓存失效
+	 * @param indexName 索引名字
+	 */
+	public void invalidateIndex(String indexName){
+		AtomicLong[] versions = versions(indexName);
+		versions[0].incrementAndGet();
+		versions[1].incrementAndGet();
+	}
+
+	/**
+	 * 清空全部缓存
+	 */
+	public void clear(){
+		for (int i = 0; i < segments.length; i++) {
+			Segment segment = segments[i];
+			segment.lock.lock();
+			try {
+				segment.map.clear();
+				segment.idKeyMap.clear();
+				segment.bytes = 0;
+			} finally {
+				segment.lock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * @return 命中缓存的次数
+	 */
+	public long getHitCount(){
+		return hitCount.sum();
+	}
+
+	/**
+	 * @return 没命中缓存，需要请求 elasticsearch 的次数
+	 */
+	public long getMissCount(){
+		return missCount.sum();
+	}
+
+	/**
+	 * @return 命中率，0~1 。还没有查询过的返回0
+	 */
+	public double getHitRate(){
+		long hit = hitCount.sum();
+		long total = hit + missCount.sum();
+		return total == 0 ? 0 : (double) hit / total;
+	}
+
+	/**
+	 * @return 因内存超出而淘汰的条数
+	 */
+	public long getEvictionCount(){
+		return evictionCount.sum();
+	}
+
+	/**
+	 * @return 当前缓存的条数，包括已过期还没清除的
+	 */
+	public int size(){
+		int size = 0;
+		for (int i = 0; i < segments.length; i++) {
+			segments[i].lock.lock();
+			try {
+				size = size + segments[i].map.size();
+			} finally {
+				segments[i].lock.unlock();
+			}
+		}
+		return size;
+	}
+
+	/**
+	 * @return 当前缓存大概占用的内存，单位字节
+	 */
+	public long bytes(){
+		long bytes = 0;
+		for (int i = 0; i < segments.length; i++) {
+			segments[i].lock.lock();
+			try {
+				bytes = bytes + segments[i].bytes;
+			} finally {
+				segments[i].lock.unlock();
+			}
+		}
+		return bytes;
+	}
+
+	/**
+	 * @return 最多占用的内存，单位字节
+	 */
+	public long getMaxBytes() {
+		return maxBytes;
+	}
+
+	/**
+	 * @return 有效期，单位毫秒
+	 */
+	public long getTtl() {
+		return ttl;
+	}
+
+	/**
+	 * 按id获取的数据，用 {@link #idPrefix(String, String)} 确定在哪个段，同一条数据的缓存在同一个段中
+	 */
+	private static String segmentKey(String key){
+		int index = key.indexOf("\u0000id\u0000");
+		if(index < 0){
+			return key;
+		}
+		//前缀是 indexName \0id\0 id \0
+		int end = key.indexOf('\u0000', index + 4);
+		return end < 0 ? key : key.substring(0, end + 1);
+	}
+
+	private Segment segment(String key){
+		int hash = key.hashCode();
+		hash = hash ^ (hash >>> 16);
+		return segments[hash & (SEGMENT_NUMBER - 1)];
+	}
+
+	@Override
+	public String toString() {
+		return "ReadCache [size=" + size() + ", bytes=" + bytes() + ", hitCount=" + getHitCount() + ", missCount=" + getMissCount() + ", evictionCount=" + getEvictionCount() + "]";
+	}
+
+	/**
+	 * 一段缓存。 map 按访问顺序排列，最前面的是最久没用的。调用需要先获取 lock
+	 */
+	private static class Segment {
+		private ReentrantLock lock = new ReentrantLock();
+		private LinkedHashMap<String, Entry> map = new LinkedHashMap<String, Entry>(64, 0.75f, true);
+		private HashMap<String, List<String>> idKeyMap = new HashMap<String, List<String>>();	//同一条数据的缓存key。 key: idPrefix
+		private long bytes;		//当前占用的字节数
+		private long maxBytes;
+
+		Segment(long maxBytes) {
+			this.maxBytes = maxBytes;
+		}
+
+		void add(Entry entry){
+			map.put(entry.key, entry);
+			bytes += entry.bytes;
+			if(entry.prefix != null){
+				List<String> keys = idKeyMap.get(entry.prefix);
+				if(keys == null){
+					keys = new ArrayList<String>(2);
+					idKeyMap.put(entry.prefix, keys);
+				}
+				keys.add(entry.key);
+			}
+		}
+
+		void remove(String key){
+			Entry old = map.remove(key);
+			if(old != null){
+				removed(old);
+			}
+		}
+
+		/**
+		 * 已从 map 中去掉了，更新字节数、 idKeyMap
+		 */
+		void removed(Entry entry){
+			bytes -= entry.bytes;
+			if(entry.prefix != null){
+				List<String> keys = idKeyMap.get(entry.prefix);
+				if(keys != null){
+					keys.remove(entry.key);
+					if(keys.isEmpty()){
+						idKeyMap.remove(entry.prefix);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * 一条缓存
+	 */
+	private static class Entry {
+		private String key;
+		private String prefix;		//按id获取的数据，为 idPrefix ，否则为null
+		private Object value;
+		private boolean byId;
+		private long version;		//加入时，这个索引的版本号
+		private long bytes;
+		private long expireTime;	//过期时间，13位时间戳
+	}
+}
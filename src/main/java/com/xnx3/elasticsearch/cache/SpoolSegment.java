@@ -0,0 +1,251 @@
+package com.xnx3.elasticsearch.cache;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 磁盘缓存的一个段文件，通过内存映射（mmap）写入。只追加，除了提交完成的标记外不修改
+ * <p>文件格式： 4字节文件头，之后是一条条数据，每条为 [4字节source长度][2字节操作类型及id长度][id][source] ，source长度为0表示后面没有数据了</p>
+ * <p>source长度的最高位是提交完成的标记，一条数据提交完成后置为1，启动恢复时跳过这些数据，不会重复提交</p>
+ * <p>source长度的次高位是未写完的标记。多个线程同时写入时，各自占好位置后先写入带这个标记的长度，内容写完后再去掉。进程崩溃时还没写完的那条，启动恢复时按长度跳过，后面已写完的数据依然可以恢复</p>
+ * <p>操作类型在2字节的高4位，为 {@link CacheOperation#ordinal()} ，低12位是id长度（es的id最长512字节）。之前没有操作类型的段文件，高4位为0，即 {@link CacheOperation#INDEX}</p>
+ * <p>段文件写满后封存，封存后其中的数据全部提交完成（提交成功或最终失败），这个段文件便会删除</p>
+ * @author 管雷鸣
+ */
+class SpoolSegment {
+	static final int MAGIC = 0x45535350;	//文件头 ESSP
+	static final int HEADER_LENGTH = 4;		//文件头的长度
+	static final int RECORD_HEADER_LENGTH = 6;	//每条数据，除了id、source外，占用的长度
+	static final int ID_LENGTH_MASK = 0x0FFF;	//2字节中，id长度所在的低12位
+	static final int ACKED_FLAG = 0x80000000;	//source长度的最高位，为1表示这条数据已提交完成
+	static final int INCOMPLETE_FLAG = 0x40000000;	//source长度的次高位，为1表示这条数据还没写完
+	static final int LENGTH_MASK = ~(ACKED_FLAG | INCOMPLETE_FLAG);		//source长度中，去掉标记后的长度，最大1GB
+	private static final CacheOperation[] OPERATIONS = CacheOperation.values();
+
+	File file;
+	private MappedByteBuffer buffer;
+	private AtomicInteger writePosition;	//下一条数据写入的位置
+	private AtomicInteger pending;			//写入了、但还没提交完成的条数
+	private volatile boolean sealed = false;	//是否已封存，封存后不再写入
+	private AtomicBoolean deleted = new AtomicBoolean(false);
+
+	private SpoolSegment(File file, MappedByteBuffer buffer, int writePosition, int pending) {
+		this.file = file;
+		this.buffer = buffer;
+		this.writePosition = new AtomicInteger(writePosition);
+		this.pending = new AtomicInteger(pending);
+	}
+
+	/**
+	 * 创建一个新的段文件
+	 * @param file 段文件
+	 * @param size 段文件的大小，单位字节
+	 */
+	static SpoolSegment create(File file, int size) throws IOException {
+		MappedByteBuffer buffer = map(file, size);
+		buffer.putInt(0, MAGIC);
+		return new SpoolSegment(file, buffer, HEADER_LENGTH, 0);
+	}
+
+	/**
+	 * 打开一个已有的段文件，用于启动时恢复其中的数据。打开的段文件是已封存的，不再写入
+	 * @param file 段文件
+	 * @param positionList 传入一个空的list，会将其中每条未提交完成的数据的位置加入这个list
+	 * @return 如果不是段文件，返回null
+	 */
+	static SpoolSegment open(File file, List<Integer> positionList) throws IOException {
+		MappedByteBuffer buffer = map(file, (int) file.length());
+		if(buffer.capacity() < HEADER_LENGTH || buffer.getInt(0) != MAGIC){
+			return null;
+		}
+		int position = HEADER_LENGTH;
+		while(position + RECORD_HEADER_LENGTH <= buffer.capacity()){
+			int sourceLength = buffer.getInt(position);
+			if(sourceLength == 0){
+				//后面没有数据了
+				break;
+			}
+			int recordLength = RECORD_HEADER_LENGTH + (buffer.getShort(position + 4) & ID_LENGTH_MASK) + (sourceLength & LENGTH_MASK);
+			if(position + recordLength > buffer.capacity()){
+				break;
+			}
+			if((sourceLength & (ACKED_FLAG | INCOMPLETE_FLAG)) == 0){
+				//已提交完成的、进程崩溃时还没写完的，都跳过
+				positionList.add(position);
+			}
+			position = position + recordLength;
+		}
+		SpoolSegment segment = new SpoolSegment(file, buffer, buffer.capacity(), positionList.size());
+		segment.sealed = true;
+		return segment;
+	}
+
+	private static MappedByteBuffer map(File file, int size) throws IOException {
+		RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+		try {
+			return randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+		} finally {
+			//映射后关闭文件，映射依然有效
+			randomAccessFile.close();
+		}
+	}
+
+	/**
+	 * 计算一条数据写入后占用的长度
+	 */
+	static int recordLength(byte[] id, int sourceLength){
+		return RECORD_HEADER_LENGTH + (id == null ? 0 : id.length) + sourceLength;
+	}
+
+	/**
+	 * 写入一条数据。多个线程可同时写入，各自先占好位置，再写到各自的位置，互不影响
+	 * @param id 这条数据的id，UTF-8编码，可以为null
+	 * @param operation 操作类型
+	 * @param source 这条数据的JSON，UTF-8编码
+	 * @return 写入的位置。如果这个段文件已封存或者剩余空间不够，返回-1
+	 */
+	int append(byte[] id, CacheOperation operation, byte[] source){
+		if(sealed){
+			return -1;
+		}
+		int recordLength = recordLength(id, source.length);
+		//先计数，再占位置，避免占了位置还没计数时，这个段文件被删除
+		pending.incrementAndGet();
+		int position = writePosition.getAndAdd(recordLength);
+		if(position + recordLength > buffer.capacity()){
+			//空间不够了。占位置失败后 writePosition 已超出文件大小，之后的写入也都会失败
+			ack();
+			return -1;
+		}
+
+		//占好位置后先写入长度，标记为未写完。进程崩溃时，恢复能按长度跳过这条，不影响之后其他线程已写完的
+		buffer.putShort(position + 4, (short) ((operation.ordinal() << 12) | (id == null ? 0 : id.length)));
+		buffer.putInt(position, source.length | INCOMPLETE_FLAG);
+
+		ByteBuffer writeBuffer = buffer.duplicate();
+		writeBuffer.position(position + RECORD_HEADER_LENGTH);
+		if(id != null){
+			writeBuffer.put(id);
+		}
+		writeBuffer.put(source);
+		//最后去掉未写完的标记，这条数据完整了
+		buffer.putInt(position, source.length);
+		return position;
+	}
+
+	/**
+	 * 读取某个位置上这条数据的id
+	 * @return id，如果没有id，返回null
+	 */
+	String readId(int position){
+		int idLength = buffer.getShort(position + 4) & ID_LENGTH_MASK;
+		if(idLength == 0){
+			return null;
+		}
+		byte[] id = new byte[idLength];
+		ByteBuffer readBuffer = buffer.duplicate();
+		readBuffer.position(position + RECORD_HEADER_LENGTH);
+		readBuffer.get(id);
+		return new String(id, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * 读取某个位置上这条数据的操作类型
+	 */
+	CacheOperation readOperation(int position){
+		int operation = (buffer.getShort(position + 4) >>> 12) & 0x0F;
+		return operation < OPERATIONS.length ? OPERATIONS[operation] : CacheOperation.INDEX;
+	}
+
+	/**
+	 * 读取某个位置上这条数据的JSON
+	 */
+	byte[] readSource(int position){
+		int sourceLength = readSourceLength(position);
+		int idLength = buffer.getShort(position + 4) & ID_LENGTH_MASK;
+		byte[] source = new byte[sourceLength];
+		ByteBuffer readBuffer = buffer.duplicate();
+		readBuffer.position(position + RECORD_HEADER_LENGTH + idLength);
+		readBuffer.get(source);
+		return source;
+	}
+
+	/**
+	 * 读取某个位置上这条数据的source长度
+	 */
+	int readSourceLength(int position){
+		return buffer.getInt(position) & LENGTH_MASK;
+	}
+
+	/**
+	 * 封存，不再写入。还有未提交完成的数据时，将写入的内容刷到磁盘上
+	 */
+	void seal(){
+		sealed = true;
+		if(pending.get() > 0){
+			force();
+		}
+		deleteIfDone();
+	}
+
+	/**
+	 * 将内存映射中写入的内容刷到磁盘上
+	 */
+	void force(){
+		if(!deleted.get()){
+			buffer.force();
+		}
+	}
+
+	/**
+	 * 某个位置上的这条数据提交完成了，标记后启动恢复时不再恢复这条
+	 */
+	void ack(int position){
+		buffer.putInt(position, buffer.getInt(position) | ACKED_FLAG);
+		ack();
+	}
+
+	/**
+	 * 其中的一条数据提交完成了
+	 */
+	void ack(){
+		if(pending.decrementAndGet() == 0){
+			deleteIfDone();
+		}
+	}
+
+	/**
+	 * @return 还没提交完成的条数
+	 */
+	int pending(){
+		return pending.get();
+	}
+
+	/**
+	 * 封存了，并且其中的数据都提交完成了，那么删除这个段文件
+	 */
+	void deleteIfDone(){
+		if(sealed && pending.get() == 0){
+			delete();
+		}
+	}
+
+	/**
+	 * 删除这个段文件
+	 */
+	void delete(){
+		if(deleted.compareAndSet(false, true)){
+			if(!file.delete()){
+				file.deleteOnExit();
+			}
+		}
+	}
+}
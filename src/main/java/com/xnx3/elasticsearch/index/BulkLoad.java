@@ -0,0 +1,94 @@
+package com.xnx3.elasticsearch.index;
+
+import java.io.Closeable;
+import com.xnx3.elasticsearch.ElasticSearchUtil;
+
+/**
+ * 一次大批量导入。由 {@link ElasticSearchUtil#startBulkLoad(String)} 开始，导入期间索引不刷新、没有副本
+ * <p>导入完成后调用 {@link #close()} ，恢复导入前的刷新间隔、副本数，然后刷新、合并段。可以使用 try-with-resources</p>
+ * <pre>
+ * try(BulkLoad load = es.startBulkLoad("useraction")){
+ *     es.puts(list, "useraction");
+ *     ...
+ * }
+ * </pre>
+ * @author 管雷鸣
+ */
+public class BulkLoad implements Closeable {
+	private ElasticSearchUtil es;
+	private String indexName;
+	private String refreshInterval;		//导入前的 index.refresh_interval ，为null是没设置过，使用的默认值
+	private String numberOfReplicas;	//导入前的 index.number_of_replicas ，为null是没设置过，使用的默认值
+	private int maxNumSegments = 1;		//导入完成后，每个分片合并为几个段。0则不合并
+	private volatile boolean finished = false;
+
+	/**
+	 * @param es 执行导入的 {@link ElasticSearchUtil}
+	 * @param indexName 索引名字
+	 * @param refreshInterval 导入前的刷新间隔，导入完成后恢复。传入null则恢复为默认值
+	 * @param numberOfReplicas 导入前的副本数，导入完成后恢复。传入null则恢复为默认值
+	 */
+	public BulkLoad(ElasticSearchUtil es, String indexName, String refreshInterval, String numberOfReplicas) {
+		this.es = es;
+		this.indexName = indexName;
+		this.refreshInterval = refreshInterval;
+		this.numberOfReplicas = numberOfReplicas;
+	}
+
+	/**
+	 * 设置导入完成后，每个分片合并为几个段。段越少查询越快，但合并本身需要时间
+	 * @param maxNumSegments 段的数量，默认为1。传入0则不合并
+	 * @return 当前对象
+	 */
+	public BulkLoad forceMerge(int maxNumSegments){
+		this.maxNumSegments = maxNumSegments;
+		return this;
+	}
+
+	public String getIndexName() {
+		return indexName;
+	}
+
+	public String getRefreshInterval() {
+		return refreshInterval;
+	}
+
+	public String getNumberOfReplicas() {
+		return numberOfReplicas;
+	}
+
+	public int getMaxNumSegments() {
+		return maxNumSegments;
+	}
+
+	/**
+	 * @return 是否已经完成，也就是已经调用过 {@link #close()}
+	 */
+	public boolean isFinished() {
+		return finished;
+	}
+
+	/**
+	 * 完成导入。同 {@link ElasticSearchUtil#finishBulkLoad(BulkLoad)} ，多次调用只执行一次
+	 */
+	public void close() {
+		es.finishBulkLoad(this);
+	}
+
+	/**
+	 * 标记为已完成
+	 * @return 之前没有完成过的返回true
+	 */
+	public synchronized boolean finish(){
+		if(finished){
+			return false;
+		}
+		finished = true;
+		return true;
+	}
+
+	@Override
+	public String toString() {
+		return "BulkLoad [indexName=" + indexName + ", refreshInterval=" + refreshInterval + ", numberOfReplicas=" + numberOfReplicas + ", maxNumSegments=" + maxNumSegments + ", finished=" + finished + "]";
+	}
+}
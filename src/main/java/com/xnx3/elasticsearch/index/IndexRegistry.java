@@ -0,0 +1,86 @@
+package com.xnx3.elasticsearch.index;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import com.xnx3.elasticsearch.ElasticSearchUtil;
+
+/**
+ * 已知索引的本地登记。确认存在、或由 {@link ElasticSearchUtil#createIndex(String)} 创建过的索引记录在这里，再次 existIndex 、 createIndex 时不再请求 elasticsearch
+ * <p>同时缓存 {@link ElasticSearchUtil#getMapping(String)} 获取到的 mapping</p>
+ * <p>索引如果被其他程序删除了，需要调用 {@link #remove(String)} ，否则会一直认为存在</p>
+ * @author 管雷鸣
+ */
+public class IndexRegistry {
+	private Set<String> indexSet = ConcurrentHashMap.<String>newKeySet();	//已知存在的索引
+	private Map<String, Map<String, Object>> mappingMap = new ConcurrentHashMap<String, Map<String, Object>>();	//key: indexName  value: mapping
+
+	/**
+	 * 是否已知这个索引存在
+	 * @param indexName 索引名字
+	 */
+	public boolean isKnown(String indexName){
+		return indexSet.contains(indexName);
+	}
+
+	/**
+	 * 登记这个索引已存在
+	 * @param indexName 索引名字
+	 */
+	public void known(String indexName){
+		indexSet.add(indexName);
+	}
+
+	/**
+	 * 获取缓存的 mapping
+	 * @param indexName 索引名字
+	 * @return mapping，如 {properties={name={type=keyword}}} 。没有缓存返回null
+	 */
+	public Map<String, Object> getMapping(String indexName){
+		return mappingMap.get(indexName);
+	}
+
+	/**
+	 * 缓存这个索引的 mapping，同时登记这个索引已存在
+	 * @param indexName 索引名字
+	 * @param mapping mapping。传入null则只清除缓存的 mapping
+	 */
+	public void putMapping(String indexName, Map<String, Object> mapping){
+		if(mapping == null){
+			mappingMap.remove(indexName);
+			return;
+		}
+		indexSet.add(indexName);
+		mappingMap.put(indexName, Collections.unmodifiableMap(mapping));
+	}
+
+	/**
+	 * 移除这个索引的登记及缓存的 mapping，下次 existIndex 时会重新请求 elasticsearch
+	 * @param indexName 索引名字
+	 */
+	public void remove(String indexName){
+		indexSet.remove(indexName);
+		mappingMap.remove(indexName);
+	}
+
+	/**
+	 * 清空全部登记
+	 */
+	public void clear(){
+		indexSet.clear();
+		mappingMap.clear();
+	}
+
+	/**
+	 * @return 已知存在的索引的数量
+	 */
+	public int size(){
+		return indexSet.size();
+	}
+
+	@Override
+	public String toString() {
+		return "IndexRegistry [indices=" + indexSet + ", mappings=" + mappingMap.keySet() + "]";
+	}
+}
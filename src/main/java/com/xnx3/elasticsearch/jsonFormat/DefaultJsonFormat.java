@@ -1,5 +1,7 @@
 package com.xnx3.elasticsearch.jsonFormat;
 
+import java.io.IOException;
+import java.io.OutputStream;
 import java.util.HashMap;
 import java.util.Map;
 import com.alibaba.fastjson.JSON;
@@ -23,4 +25,17 @@ public class DefaultJsonFormat implements JsonFormatInterface{
         return JSON.toJSONString(params);
 	}
 	
+	/**
+	 * 将Map<String, Object>转化为json，以UTF-8编码直接写入 out
+	 * @param params {@link Map}
+	 * @param out 写入的输出流
+	 */
+	public void mapToJson(Map<String, Object> params, OutputStream out) throws IOException {
+		if(params == null){
+    		params = new HashMap<String, Object>();
+    	}
+		
+		JSON.writeJSONString(out, params);
+	}
+	
 }
@@ -1,5 +1,8 @@
 package com.xnx3.elasticsearch.jsonFormat;
 
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
 import java.util.Map;
 
 /**
@@ -16,4 +19,15 @@ public interface JsonFormatInterface {
 	 * 		<p>返回如： {"username":"管雷鸣","age":29}</p>
 	 */
 	public String mapToJsonString(Map<String, Object> params);
+	
+	/**
+	 * 将 {@link Map} 转化为JSON，以UTF-8编码直接写入 out ，不经过中间的字符串。添加、批量添加数据时使用的是这个
+	 * <p>默认是将 {@link #mapToJsonString(Map)} 的结果写入，实现类可以重写此方法，直接写入字节</p>
+	 * @param params {@link Map}String, Object ，如果传入的 map为null，那么写入 {}
+	 * @param out 写入的输出流
+	 * @throws IOException 写入 out 出错
+	 */
+	public default void mapToJson(Map<String, Object> params, OutputStream out) throws IOException {
+		out.write(mapToJsonString(params).getBytes(StandardCharsets.UTF_8));
+	}
 }
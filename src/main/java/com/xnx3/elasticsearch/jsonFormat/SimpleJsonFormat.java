@@ -1,13 +1,22 @@
 package com.xnx3.elasticsearch.jsonFormat;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
 import java.util.Map;
 
 /**
  * 简单的的json格式化接口，只支持map.value的类型是 String、int、long、float、double、boolean 这几个的转换
+ * <p>直接以UTF-8编码写入字节，字符串中的引号、反斜杠、控制字符会转义</p>
  * @author 管雷鸣
  *
  */
 public class SimpleJsonFormat implements JsonFormatInterface{
+	private static final byte[] HEX = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] TRUE = "true".getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] FALSE = "false".getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] MIN_LONG = Long.toString(Long.MIN_VALUE).getBytes(StandardCharsets.US_ASCII);
 	
 	/**
      * 将Map<String, Object>转化为json字符串
@@ -17,37 +26,142 @@ public class SimpleJsonFormat implements JsonFormatInterface{
     	if(params == null){
     		return "{}";
     	}
-    	StringBuffer sb = new StringBuffer();
-        sb.append("{");
+    	ByteArrayOutputStream out = new ByteArrayOutputStream();
+    	try {
+			mapToJson(params, out);
+		} catch (IOException e) {
+			//ByteArrayOutputStream 不会出现
+			e.printStackTrace();
+		}
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+	}
+	
+	/**
+	 * 将Map<String, Object>转化为json，以UTF-8编码直接写入 out
+	 * @param params 其中map.value 支持的类型有 String、int、long、float、double、boolean
+	 * @param out 写入的输出流
+	 */
+	public void mapToJson(Map<String, Object> params, OutputStream out) throws IOException {
+		out.write('{');
+		if(params == null){
+			out.write('}');
+			return;
+		}
+		
+		boolean first = true;
         for(Map.Entry<String, Object> entry : params.entrySet()){
         	Object obj = entry.getValue();
-        	if(sb.length() > 1){
-        		sb.append(",");
+        	if(!first){
+        		out.write(',');
         	}
+        	first = false;
+        	writeString(entry.getKey(), out);
+        	out.write(':');
         	
         	if(obj == null){
-        		sb.append("\""+entry.getKey()+"\":\"\"");
+        		out.write('"');
+        		out.write('"');
         	}else if(obj instanceof String){
-        		sb.append("\""+entry.getKey()+"\":\""+((String)obj).replaceAll("\"", "\\\\\"")+"\"");
-        	}else if(obj instanceof Integer){
-        		sb.append("\""+entry.getKey()+"\":"+(Integer)obj+"");
-        	}else if(obj instanceof Long){
-        		sb.append("\""+entry.getKey()+"\":"+(Long)obj+"");
-        	}else if(obj instanceof Float){
-        		sb.append("\""+entry.getKey()+"\":"+(Float)obj+"");
-        	}else if( obj instanceof Double){
-        		sb.append("\""+entry.getKey()+"\":"+(Double)obj+"");
+        		writeString((String) obj, out);
+        	}else if(obj instanceof Integer || obj instanceof Long || obj instanceof Short || obj instanceof Byte){
+        		writeLong(((Number) obj).longValue(), out);
         	}else if(obj instanceof Boolean){
-        		sb.append("\""+entry.getKey()+"\":"+(Boolean)obj+"");
+        		out.write((Boolean) obj ? TRUE : FALSE);
+        	}else if(obj instanceof Number){
+        		//Float、Double 等
+        		writeAscii(obj.toString(), out);
         	}else{
         		//其他类型全当成toString()来处理
-        		sb.append("\""+entry.getKey()+"\":"+obj.toString()+"");
+        		out.write(obj.toString().getBytes(StandardCharsets.UTF_8));
         	}
         }
-        sb.append("}");
-        
-        return sb.toString();
+        out.write('}');
+	}
+	
+	/**
+	 * 写入一个带引号的JSON字符串，UTF-8编码，并转义引号、反斜杠、控制字符
+	 */
+	private static void writeString(String text, OutputStream out) throws IOException {
+		out.write('"');
+		int length = text.length();
+		for (int i = 0; i < length; i++) {
+			char c = text.charAt(i);
+			if(c < 0x80){
+				if(c == '"' || c == '\\'){
+					out.write('\\');
+					out.write(c);
+				}else if(c >= 0x20){
+					out.write(c);
+				}else if(c == '\n'){
+					out.write('\\');
+					out.write('n');
+				}else if(c == '\r'){
+					out.write('\\');
+					out.write('r');
+				}else if(c == '\t'){
+					out.write('\\');
+					out.write('t');
+				}else{
+					out.write('\\');
+					out.write('u');
+					out.write('0');
+					out.write('0');
+					out.write(HEX[c >> 4]);
+					out.write(HEX[c & 0xF]);
+				}
+			}else if(c < 0x800){
+				out.write(0xC0 | (c >> 6));
+				out.write(0x80 | (c & 0x3F));
+			}else if(Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(text.charAt(i + 1))){
+				int codePoint = Character.toCodePoint(c, text.charAt(++i));
+				out.write(0xF0 | (codePoint >> 18));
+				out.write(0x80 | ((codePoint >> 12) & 0x3F));
+				out.write(0x80 | ((codePoint >> 6) & 0x3F));
+				out.write(0x80 | (codePoint & 0x3F));
+			}else if(Character.isSurrogate(c)){
+				//不成对的代理字符，无法编码
+				out.write('?');
+			}else{
+				out.write(0xE0 | (c >> 12));
+				out.write(0x80 | ((c >> 6) & 0x3F));
+				out.write(0x80 | (c & 0x3F));
+			}
+		}
+		out.write('"');
 	}
 	
+	/**
+	 * 写入一个整数，不产生中间的字符串
+	 */
+	private static void writeLong(long value, OutputStream out) throws IOException {
+		if(value == Long.MIN_VALUE){
+			out.write(MIN_LONG);
+			return;
+		}
+		if(value < 0){
+			out.write('-');
+			value = -value;
+		}
+		//从高位到低位逐位写入
+		long divisor = 1;
+		while(value / divisor >= 10){
+			divisor = divisor * 10;
+		}
+		while(divisor > 0){
+			out.write('0' + (int) (value / divisor));
+			value = value % divisor;
+			divisor = divisor / 10;
+		}
+	}
+	
+	/**
+	 * 写入只包含ASCII字符的文本，如数字
+	 */
+	private static void writeAscii(String text, OutputStream out) throws IOException {
+		int length = text.length();
+		for (int i = 0; i < length; i++) {
+			out.write(text.charAt(i));
+		}
+	}
 	
 }
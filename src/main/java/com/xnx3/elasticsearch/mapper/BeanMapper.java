@@ -0,0 +1,273 @@
+package com.xnx3.elasticsearch.mapper;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.xcontent.DeprecationHandler;
+import org.elasticsearch.common.xcontent.NamedXContentRegistry;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.elasticsearch.common.xcontent.XContentParser;
+import org.elasticsearch.common.xcontent.XContentType;
+
+/**
+ * 实体类与es数据之间的转换。每个实体类只在第一次使用时分析一次其属性，生成读写属性的 {@link MethodHandle} ，之后一直复用
+ * <p>读取时直接从es返回的JSON字节流解析到实体类的属性上，不经过中间的 Map ；基本类型的属性不会装箱</p>
+ * <p>实体类需要有无参构造方法。属性为其非 static、非 transient 的字段（包括父类的），有 getXxx / setXxx 方法的通过方法读写，没有的直接读写字段</p>
+ * <p>属性可以是枚举、嵌套的实体类等，支持的类型见 {@link BeanProperty} ，有不支持的类型的属性，创建时便会报错</p>
+ * <p>如果实体类有名为 esid 的 String 字段，读取时会赋予这条数据在es中的id；写入时不会作为数据写入，而是作为这条数据的id</p>
+ * @author 管雷鸣
+ */
+public class BeanMapper<T> {
+	/**
+	 * 存放es中这条数据的id的属性名
+	 */
+	public static final String ESID = "esid";
+
+	private static final ConcurrentHashMap<Class<?>, BeanMapper<?>> MAPPER_MAP = new ConcurrentHashMap<Class<?>, BeanMapper<?>>();
+
+	private Class<T> clazz;
+	private MethodHandle constructor;	//()Object
+	private BeanProperty[] properties;	//写入es的属性，不包括 esid
+	private Map<String, BeanProperty> propertyMap;	//属性名-属性
+	private BeanProperty esidProperty;	//esid 属性，没有则为null
+
+	/**
+	 * 获取某个实体类的 BeanMapper 。每个实体类只创建一次
+	 * @param clazz 实体类
+	 * @throws IllegalArgumentException 实体类没有无参构造方法，或者有不支持的类型的属性
+	 */
+	@SuppressWarnings("unchecked")
+	public static <T> BeanMapper<T> get(Class<T> clazz){
+		BeanMapper<?> mapper = MAPPER_MAP.get(clazz);
+		if(mapper == null){
+			BeanMapper<?> newMapper = new BeanMapper<T>(clazz);
+			mapper = MAPPER_MAP.putIfAbsent(clazz, newMapper);
+			if(mapper == null){
+				mapper = newMapper;
+			}
+		}
+		return (BeanMapper<T>) mapper;
+	}
+
+	private BeanMapper(Class<T> clazz) {
+		this.clazz = clazz;
+		MethodHandles.Lookup lookup = MethodHandles.lookup();
+		try {
+			Constructor<T> c = clazz.getDeclaredConstructor();
+			c.setAccessible(true);
+			this.constructor = lookup.unreflectConstructor(c).asType(MethodType.methodType(Object.class));
+		} catch (NoSuchMethodException | IllegalAccessException e) {
+			throw new IllegalArgumentException(clazz.getName()+" need a no-argument constructor", e);
+		}
+
+		List<BeanProperty> list = new ArrayList<BeanProperty>();
+		this.propertyMap = new HashMap<String, BeanProperty>();
+		for (Class<?> c = clazz; c != null && c != Object.class; c = c.getSuperclass()) {
+			for (Field field : c.getDeclaredFields()) {
+				int modifiers = field.getModifiers();
+				if(Modifier.isStatic(modifiers) || Modifier.isTransient(modifiers) || propertyMap.containsKey(field.getName())){
+					//子类的同名字段优先
+					continue;
+				}
+				BeanProperty property;
+				try {
+					property = new BeanProperty(field.getName(), field.getType(), getter(lookup, field), setter(lookup, field));
+				} catch (IllegalAccessException e) {
+					throw new IllegalArgumentException(clazz.getName()+"."+field.getName()+" can not access", e);
+				} catch (IllegalArgumentException e) {
+					throw new IllegalArgumentException(clazz.getName()+"."+field.getName()+" "+e.getMessage(), e);
+				}
+				propertyMap.put(property.name, property);
+				if(property.name.equals(ESID) && property.kind == BeanProperty.STRING){
+					esidProperty = property;
+				}else{
+					list.add(property);
+				}
+			}
+		}
+		this.properties = list.toArray(new BeanProperty[list.size()]);
+	}
+
+	/**
+	 * 读取字段的 MethodHandle ，有 getXxx / isXxx 方法则用方法，否则直接读取字段
+	 */
+	private static MethodHandle getter(MethodHandles.Lookup lookup, Field field) throws IllegalAccessException {
+		String suffix = Character.toUpperCase(field.getName().charAt(0)) + field.getName().substring(1);
+		Method method = method(field.getDeclaringClass(), "get"+suffix);
+		if(method == null && field.getType() == boolean.class){
+			method = method(field.getDeclaringClass(), "is"+suffix);
+		}
+		if(method != null && method.getReturnType() == field.getType()){
+			return lookup.unreflect(method);
+		}
+		field.setAccessible(true);
+		return lookup.unreflectGetter(field);
+	}
+
+	/**
+	 * 赋值字段的 MethodHandle ，有 setXxx 方法则用方法，否则直接赋值字段
+	 */
+	private static MethodHandle setter(MethodHandles.Lookup lookup, Field field) throws IllegalAccessException {
+		String suffix = Character.toUpperCase(field.getName().charAt(0)) + field.getName().substring(1);
+		Method method = method(field.getDeclaringClass(), "set"+suffix, field.getType());
+		if(method != null){
+			MethodHandle handle = lookup.unreflect(method);
+			if(method.getReturnType() != void.class){
+				//链式的set方法，忽略返回值
+				handle = MethodHandles.dropReturn(handle);
+			}
+			return handle;
+		}
+		field.setAccessible(true);
+		return lookup.unreflectSetter(field);
+	}
+
+	private static Method method(Class<?> clazz, String name, Class<?>... parameterTypes){
+		try {
+			Method method = clazz.getDeclaredMethod(name, parameterTypes);
+			if(Modifier.isStatic(method.getModifiers())){
+				return null;
+			}
+			method.setAccessible(true);
+			return method;
+		} catch (NoSuchMethodException | SecurityException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * @return 实体类
+	 */
+	public Class<T> getBeanClass() {
+		return clazz;
+	}
+
+	/**
+	 * 创建一个实体类的对象
+	 */
+	@SuppressWarnings("unchecked")
+	public T newInstance(){
+		try {
+			return (T) (Object) constructor.invokeExact();
+		} catch (RuntimeException | Error e) {
+			throw e;
+		} catch (Throwable e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * 将es中一条数据的JSON转为实体类
+	 * @param source 这条数据的JSON，如 {@link org.elasticsearch.search.SearchHit#getSourceRef()}
+	 * @param id 这条数据在es中的id，会赋予 esid 属性，可以为null
+	 * @return 实体类的对象。如果 source 为null，返回null
+	 */
+	public T read(BytesReference source, String id) throws IOException {
+		if(source == null){
+			return null;
+		}
+		XContentParser parser = XContentHelper.createParser(NamedXContentRegistry.EMPTY, DeprecationHandler.THROW_UNSUPPORTED_OPERATION, source, XContentType.JSON);
+		try {
+			parser.nextToken();
+			return read(parser, id);
+		} finally {
+			parser.close();
+		}
+	}
+
+	/**
+	 * 从 parser 读取一个JSON对象，转为实体类。 parser 当前需要在这个对象的开始 '{' 上，读取完后在这个对象的结束 '}' 上
+	 * @param id 这条数据在es中的id，会赋予 esid 属性，可以为null
+	 */
+	public T read(XContentParser parser, String id) throws IOException {
+		if(parser.currentToken() != XContentParser.Token.START_OBJECT){
+			throw new IOException("expected an object but was "+parser.currentToken());
+		}
+		T bean = newInstance();
+		XContentParser.Token token;
+		while((token = parser.nextToken()) == XContentParser.Token.FIELD_NAME){
+			BeanProperty property = propertyMap.get(parser.currentName());
+			token = parser.nextToken();
+			if(property == null){
+				//实体类中没有这个属性
+				parser.skipChildren();
+			}else if(token != XContentParser.Token.VALUE_NULL){
+				property.read(parser, bean);
+			}
+		}
+		if(id != null && esidProperty != null){
+			esidProperty.setText(bean, id);
+		}
+		return bean;
+	}
+
+	/**
+	 * 从 parser 读取一个JSON数组，数组中的每个值按顺序对应 columns 中的属性，转为实体类。用于sql查询结果的每一行
+	 * <p>parser 当前需要在这个数组的开始 '[' 上，读取完后在这个数组的结束 ']' 上</p>
+	 * @param columns 每个值对应的属性名，实体类中没有的属性，跳过这个值
+	 */
+	public T readRow(XContentParser parser, String[] columns) throws IOException {
+		if(parser.currentToken() != XContentParser.Token.START_ARRAY){
+			throw new IOException("expected an array but was "+parser.currentToken());
+		}
+		T bean = newInstance();
+		XContentParser.Token token;
+		int i = 0;
+		while((token = parser.nextToken()) != XContentParser.Token.END_ARRAY){
+			BeanProperty property = i < columns.length ? propertyMap.get(columns[i]) : null;
+			i++;
+			if(property == null){
+				parser.skipChildren();
+			}else if(token != XContentParser.Token.VALUE_NULL){
+				property.read(parser, bean);
+			}
+		}
+		return bean;
+	}
+
+	/**
+	 * 将实体类转为JSON，写入 out 。值为null的属性不写入， esid 不写入
+	 */
+	public void write(T bean, OutputStream out) throws IOException {
+		XContentBuilder builder = XContentFactory.jsonBuilder(out);
+		writeObject(builder, bean);
+		//只 flush ，不关闭 out
+		builder.flush();
+	}
+
+	/**
+	 * 将实体类作为一个JSON对象写入 builder ，嵌套的实体类也通过这个写入
+	 */
+	void writeObject(XContentBuilder builder, Object bean) throws IOException {
+		builder.startObject();
+		for (int i = 0; i < properties.length; i++) {
+			properties[i].write(builder, bean);
+		}
+		builder.endObject();
+	}
+
+	/**
+	 * 获取实体类的 esid 属性的值
+	 * @return 如果没有 esid 属性，或者其值为null，返回null
+	 */
+	public String getId(T bean){
+		if(esidProperty == null){
+			return null;
+		}
+		return esidProperty.getText(bean);
+	}
+}
@@ -0,0 +1,282 @@
+package com.xnx3.elasticsearch.mapper;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Modifier;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentParser;
+
+/**
+ * 实体类的一个属性，以及读写这个属性的 {@link MethodHandle} 。创建 {@link BeanMapper} 时生成一次，之后一直复用
+ * <p>基本类型的属性，其 MethodHandle 的参数就是基本类型，读写时不会装箱</p>
+ * <p>支持的属性类型：基本类型及其包装类、String、Date、BigDecimal、BigInteger、枚举（按名字存储）、Map、List、Object ，以及嵌套的实体类（存储为JSON对象，按其自己的 {@link BeanMapper} 读写）。其他类型在创建 {@link BeanMapper} 时便会报错</p>
+ * @author 管雷鸣
+ */
+class BeanProperty {
+	static final int INT = 1;
+	static final int LONG = 2;
+	static final int FLOAT = 3;
+	static final int DOUBLE = 4;
+	static final int BOOLEAN = 5;
+	static final int STRING = 6;
+	static final int OBJECT = 7;	//其他类型，包括基本类型的包装类，读写时按对象处理
+	static final int ENUM = 8;		//枚举，按名字存储
+	static final int BEAN = 9;		//嵌套的实体类，存储为JSON对象
+
+	String name;		//属性名字，也就是es中的字段名
+	Class<?> type;		//属性的类型
+	int kind;			//属性的类型分类，上面的 INT、LONG ...
+	private MethodHandle getter;	//(Object)xxx ，xxx为基本类型或者Object
+	private MethodHandle setter;	//(Object,xxx)void
+	private volatile BeanMapper<?> mapper;	//嵌套的实体类的 BeanMapper ，第一次用到时获取，避免实体类引用自己时无限递归
+
+	/**
+	 * @throws IllegalArgumentException 不支持这个属性的类型
+	 */
+	BeanProperty(String name, Class<?> type, MethodHandle getter, MethodHandle setter) {
+		this.name = name;
+		this.type = type;
+		this.kind = kind(type);
+		if(kind == OBJECT && !isSupported(type)){
+			throw new IllegalArgumentException("type "+type.getName()+" is not supported");
+		}
+		Class<?> handleType = kind <= STRING ? type : Object.class;
+		this.getter = getter.asType(MethodType.methodType(handleType, Object.class));
+		this.setter = setter.asType(MethodType.methodType(void.class, Object.class, handleType));
+	}
+
+	private static int kind(Class<?> type){
+		if(type == int.class){
+			return INT;
+		}else if(type == long.class){
+			return LONG;
+		}else if(type == float.class){
+			return FLOAT;
+		}else if(type == double.class){
+			return DOUBLE;
+		}else if(type == boolean.class){
+			return BOOLEAN;
+		}else if(type == String.class){
+			return STRING;
+		}else if(type.isEnum()){
+			return ENUM;
+		}else if(isBean(type)){
+			return BEAN;
+		}
+		return OBJECT;
+	}
+
+	/**
+	 * 是否是嵌套的实体类。 java 自带的类、数组、接口、抽象类都不是
+	 */
+	private static boolean isBean(Class<?> type){
+		if(type.isPrimitive() || type.isArray() || type.isInterface() || Modifier.isAbstract(type.getModifiers())){
+			return false;
+		}
+		String className = type.getName();
+		return !className.startsWith("java.") && !className.startsWith("javax.");
+	}
+
+	/**
+	 * 按对象读写的属性，是否支持这个类型
+	 */
+	private static boolean isSupported(Class<?> type){
+		return type.isPrimitive() || type == Object.class || type == Integer.class || type == Long.class || type == Float.class || type == Double.class
+				|| type == Boolean.class || type == Short.class || type == Byte.class || type == Character.class
+				|| type == Date.class || type == BigDecimal.class || type == BigInteger.class
+				|| type.isAssignableFrom(LinkedHashMap.class) || type.isAssignableFrom(ArrayList.class);
+	}
+
+	/**
+	 * 从 parser 当前的值读取，赋给 bean 的这个属性。 parser 当前需要在这个字段的值上，且值不为null
+	 */
+	void read(XContentParser parser, Object bean) throws IOException {
+		try {
+			switch (kind) {
+			case INT:
+				setter.invokeExact(bean, parser.intValue());
+				break;
+			case LONG:
+				setter.invokeExact(bean, parser.longValue());
+				break;
+			case FLOAT:
+				setter.invokeExact(bean, parser.floatValue());
+				break;
+			case DOUBLE:
+				setter.invokeExact(bean, parser.doubleValue());
+				break;
+			case BOOLEAN:
+				setter.invokeExact(bean, parser.booleanValue());
+				break;
+			case STRING:
+				if(parser.currentToken().isValue()){
+					setter.invokeExact(bean, parser.text());
+				}else{
+					//是对象或数组，跳过
+					parser.skipChildren();
+				}
+				break;
+			default:
+				setter.invokeExact(bean, readObject(parser));
+				break;
+			}
+		} catch (IOException | RuntimeException | Error e) {
+			throw e;
+		} catch (Throwable e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * 按属性的类型，读取 parser 当前的值
+	 */
+	private Object readObject(XContentParser parser) throws IOException {
+		if(kind == BEAN){
+			if(parser.currentToken() != XContentParser.Token.START_OBJECT){
+				throw new IOException("property "+name+" expected an object but was "+parser.currentToken());
+			}
+			return mapper().read(parser, null);
+		}else if(kind == ENUM){
+			return enumValue(parser.text());
+		}else if(type == Integer.class){
+			return parser.intValue();
+		}else if(type == Long.class){
+			return parser.longValue();
+		}else if(type == Double.class){
+			return parser.doubleValue();
+		}else if(type == Float.class){
+			return parser.floatValue();
+		}else if(type == Boolean.class){
+			return parser.booleanValue();
+		}else if(type == Short.class || type == short.class){
+			return (short) parser.intValue();
+		}else if(type == Byte.class || type == byte.class){
+			return (byte) parser.intValue();
+		}else if(type == Character.class || type == char.class){
+			String text = parser.text();
+			if(text.length() == 0){
+				return type == char.class ? Character.valueOf('\u0000') : null;
+			}
+			return text.charAt(0);
+		}else if(type == Date.class){
+			//跟 DefaultJsonFormat 一样，时间以13位时间戳存储
+			return new Date(parser.longValue());
+		}else if(type == BigDecimal.class){
+			return new BigDecimal(parser.text());
+		}else if(type == BigInteger.class){
+			return new BigInteger(parser.text());
+		}else if(type.isAssignableFrom(LinkedHashMap.class)){
+			return parser.mapOrdered();
+		}else if(type.isAssignableFrom(ArrayList.class)){
+			return parser.list();
+		}
+
+		//Object 类型的属性
+		XContentParser.Token token = parser.currentToken();
+		if(token == XContentParser.Token.START_OBJECT){
+			return parser.mapOrdered();
+		}else if(token == XContentParser.Token.START_ARRAY){
+			return parser.list();
+		}
+		return parser.objectText();
+	}
+
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	private Object enumValue(String text){
+		return Enum.valueOf((Class) type, text);
+	}
+
+	private BeanMapper<?> mapper(){
+		BeanMapper<?> beanMapper = mapper;
+		if(beanMapper == null){
+			beanMapper = BeanMapper.get(type);
+			mapper = beanMapper;
+		}
+		return beanMapper;
+	}
+
+	/**
+	 * 将 bean 的这个属性写入 builder 。如果属性值为null，不写入
+	 */
+	void write(XContentBuilder builder, Object bean) throws IOException {
+		try {
+			switch (kind) {
+			case INT:
+				builder.field(name, (int) getter.invokeExact(bean));
+				break;
+			case LONG:
+				builder.field(name, (long) getter.invokeExact(bean));
+				break;
+			case FLOAT:
+				builder.field(name, (float) getter.invokeExact(bean));
+				break;
+			case DOUBLE:
+				builder.field(name, (double) getter.invokeExact(bean));
+				break;
+			case BOOLEAN:
+				builder.field(name, (boolean) getter.invokeExact(bean));
+				break;
+			case STRING:
+				String text = (String) getter.invokeExact(bean);
+				if(text != null){
+					builder.field(name, text);
+				}
+				break;
+			default:
+				Object value = (Object) getter.invokeExact(bean);
+				if(value == null){
+					break;
+				}
+				if(kind == BEAN){
+					builder.field(name);
+					mapper().writeObject(builder, value);
+				}else if(value instanceof Enum){
+					builder.field(name, ((Enum<?>) value).name());
+				}else if(value instanceof Character){
+					builder.field(name, value.toString());
+				}else if(value instanceof Date){
+					builder.field(name, ((Date) value).getTime());
+				}else{
+					builder.field(name, value);
+				}
+				break;
+			}
+		} catch (IOException | RuntimeException | Error e) {
+			throw e;
+		} catch (Throwable e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * 给 bean 的这个 String 属性赋值，用于 esid
+	 */
+	void setText(Object bean, String value){
+		try {
+			setter.invokeExact(bean, value);
+		} catch (RuntimeException | Error e) {
+			throw e;
+		} catch (Throwable e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * 获取 bean 的这个 String 属性的值，用于 esid
+	 */
+	String getText(Object bean){
+		try {
+			return (String) getter.invokeExact(bean);
+		} catch (RuntimeException | Error e) {
+			throw e;
+		} catch (Throwable e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
@@ -0,0 +1,16 @@
+package com.xnx3.elasticsearch.search;
+
+/**
+ * 导出数据的接收。服务于 {@link SliceExporter}
+ * <p>多个分片同时导出，这里会被多个线程同时调用，实现时需要线程安全</p>
+ * @author 管雷鸣
+ */
+public interface ExportSink<T> {
+
+	/**
+	 * 接收导出的一条数据
+	 * @param item 导出的数据
+	 * @throws Exception 抛出异常，则整个导出停止，以这个异常结束
+	 */
+	public void write(T item) throws Exception;
+}
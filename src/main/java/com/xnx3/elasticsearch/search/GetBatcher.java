@@ -0,0 +1,68 @@
+package com.xnx3.elasticsearch.search;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.get.GetResponse;
+import org.elasticsearch.action.get.MultiGetItemResponse;
+import org.elasticsearch.action.get.MultiGetRequest;
+import org.elasticsearch.action.get.MultiGetResponse;
+import com.xnx3.elasticsearch.ElasticSearchUtil;
+
+/**
+ * 将多个线程同时发起的按id获取合并为一次 _mget 请求。服务于 {@link ElasticSearchUtil#searchById(String, String)}
+ * <p>合并的方式见 {@link RequestBatcher}</p>
+ * @author 管雷鸣
+ */
+public class GetBatcher extends RequestBatcher<MultiGetRequest.Item, GetResponse> {
+	private ElasticSearchUtil es;
+
+	/**
+	 * @param es 提交时所使用的 {@link ElasticSearchUtil}
+	 * @param window 等待合并的时间窗口，单位毫秒，如 2
+	 * @param maxBatchSize 一次 _mget 最多的条数，达到后立即提交，如 100
+	 */
+	public GetBatcher(ElasticSearchUtil es, long window, int maxBatchSize) {
+		super(window, maxBatchSize, "elasticsearch-get-batcher");
+		this.es = es;
+	}
+
+	/**
+	 * 获取一条数据。不会阻塞当前线程，跟同一时间窗口内的其他获取请求一起提交
+	 * @param indexName 索引名字
+	 * @param id elasticsearch数据的id
+	 * @param fields 返回哪些字段，传入null则返回全部
+	 * @return 获取的结果。如果执行出错，会以异常结束
+	 */
+	public CompletableFuture<GetResponse> get(String indexName, String id, SearchFields fields){
+		MultiGetRequest.Item item = new MultiGetRequest.Item(indexName, id);
+		if(fields != null){
+			fields.apply(item);
+		}
+		return add(item);
+	}
+
+	protected void send(List<MultiGetRequest.Item> requests, final List<CompletableFuture<GetResponse>> futures) {
+		MultiGetRequest request = new MultiGetRequest();
+		for (int i = 0; i < requests.size(); i++) {
+			request.add(requests.get(i));
+		}
+		es.getRestHighLevelClient().mgetAsync(request, es.getRequestOptions(), new ActionListener<MultiGetResponse>() {
+			public void onResponse(MultiGetResponse response) {
+				MultiGetItemResponse[] items = response.getResponses();
+				for (int i = 0; i < futures.size(); i++) {
+					if(i >= items.length){
+						futures.get(i).completeExceptionally(new IllegalStateException("mget response missing item "+i));
+					}else if(items[i].isFailed()){
+						futures.get(i).completeExceptionally(items[i].getFailure().getFailure());
+					}else{
+						futures.get(i).complete(items[i].getResponse());
+					}
+				}
+			}
+			public void onFailure(Exception e) {
+				failAll(futures, e);
+			}
+		});
+	}
+}
@@ -0,0 +1,308 @@
+package com.xnx3.elasticsearch.search;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.search.aggregations.AggregationBuilder;
+import org.elasticsearch.search.aggregations.AggregationBuilders;
+import org.elasticsearch.search.aggregations.Aggregations;
+import org.elasticsearch.search.aggregations.BucketOrder;
+import org.elasticsearch.search.aggregations.bucket.composite.CompositeAggregation;
+import org.elasticsearch.search.aggregations.bucket.composite.CompositeAggregationBuilder;
+import org.elasticsearch.search.aggregations.bucket.composite.CompositeValuesSourceBuilder;
+import org.elasticsearch.search.aggregations.bucket.composite.DateHistogramValuesSourceBuilder;
+import org.elasticsearch.search.aggregations.bucket.composite.TermsValuesSourceBuilder;
+import org.elasticsearch.search.aggregations.bucket.histogram.DateHistogramAggregationBuilder;
+import org.elasticsearch.search.aggregations.bucket.histogram.DateHistogramInterval;
+import org.elasticsearch.search.aggregations.bucket.terms.Terms;
+import org.elasticsearch.search.aggregations.bucket.terms.TermsAggregationBuilder;
+import org.elasticsearch.search.aggregations.metrics.NumericMetricsAggregation;
+import org.elasticsearch.search.aggregations.support.ValuesSourceAggregationBuilder;
+import org.elasticsearch.search.builder.SearchSourceBuilder;
+import com.xnx3.elasticsearch.ElasticSearchUtil;
+import com.xnx3.elasticsearch.bean.GroupByBucket;
+
+/**
+ * group by 统计的条件。服务于 {@link ElasticSearchUtil#groupByIterator(String, GroupBy)}
+ * <p>默认通过 composite 聚合一页页取得全部分组，分组再多也不会截断，每次请求只占用一页的内存。也可以通过 {@link #top(int)} 只取条数最多的前几个分组</p>
+ * <p>使用如：</p>
+ * <pre>
+ * //select username, city, count(*), sum(price), avg(age) ... group by username, city
+ * GroupBy groupBy = GroupBy.by("username.keyword", "city.keyword").sum("price").avg("age").query(QueryBuilders.rangeQuery("time").gt(1));
+ * //按天统计每个用户的条数
+ * GroupBy groupBy = GroupBy.by("username.keyword").dateHistogram("time", "1d");
+ * //条数最多的前10个用户
+ * GroupBy groupBy = GroupBy.by("username.keyword").top(10).shardSize(100).executionHint("map");
+ * </pre>
+ * <p>分组的字段需要是 keyword、数字、时间、布尔类型，text 类型的字段一般使用其 .keyword 子字段</p>
+ * @author 管雷鸣
+ */
+public class GroupBy {
+	/**
+	 * 聚合的名字
+	 */
+	static final String AGGREGATION_NAME = "groupby";
+
+	private List<CompositeValuesSourceBuilder<?>> sources = new ArrayList<CompositeValuesSourceBuilder<?>>();
+	private List<String> keyNames = new ArrayList<String>();
+	private List<ValuesSourceAggregationBuilder<?>> metrics = new ArrayList<ValuesSourceAggregationBuilder<?>>();
+	private List<String> metricNames = new ArrayList<String>();
+	private String termsField;		//第一个按字段值分组的字段，top时使用
+	private QueryBuilder query;
+	private int pageSize = 1000;	//composite 每页的分组数
+	private int top = 0;			//大于0时，只取条数最多的前这些个分组
+	private String executionHint;
+	private int shardSize = 0;
+
+	/**
+	 * 按这些字段的值分组
+	 * @param fields 字段名，如 username.keyword
+	 */
+	public static GroupBy by(String... fields){
+		GroupBy groupBy = new GroupBy();
+		for (int i = 0; i < fields.length; i++) {
+			groupBy.terms(fields[i]);
+		}
+		return groupBy;
+	}
+
+	/**
+	 * 增加一个分组字段，按字段的值分组
+	 * @param field 字段名，如 username.keyword 。结果中这个分组值的名字也是这个
+	 * @return 当前对象
+	 */
+	public GroupBy terms(String field){
+		sources.add(new TermsValuesSourceBuilder(field).field(field));
+		keyNames.add(field);
+		if(termsField == null){
+			termsField = field;
+		}
+		return this;
+	}
+
+	/**
+	 * 增加一个分组字段，将时间按间隔分组，如按天、按小时
+	 * @param field 时间类型的字段名。分组值为这个间隔开始的13位时间戳
+	 * @param interval 间隔。日历间隔如 1m 、 1h 、 1d 、 1w 、 1M 、 1q 、 1y ；固定间隔如 30m 、 12h 、 7d
+	 * @return 当前对象
+	 */
+	public GroupBy dateHistogram(String field, String interval){
+		DateHistogramValuesSourceBuilder source = new DateHistogramValuesSourceBuilder(field).field(field);
+		if(DateHistogramAggregationBuilder.DATE_FIELD_UNITS.containsKey(interval)){
+			source.calendarInterval(new DateHistogramInterval(interval));
+		}else{
+			source.fixedInterval(new DateHistogramInterval(interval));
+		}
+		sources.add(source);
+		keyNames.add(field);
+		return this;
+	}
+
+	/**
+	 * 统计每个分组中这个字段的和。结果中的名字为 sum(field)
+	 * @param field 数字类型的字段名
+	 * @return 当前对象
+	 */
+	public GroupBy sum(String field){
+		return metric("sum(" + field + ")", AggregationBuilders.sum("sum(" + field + ")").field(field));
+	}
+
+	/**
+	 * 统计每个分组中这个字段的平均值。结果中的名字为 avg(field)
+	 * @param field 数字类型的字段名
+	 * @return 当前对象
+	 */
+	public GroupBy avg(String field){
+		return metric("avg(" + field + ")", AggregationBuilders.avg("avg(" + field + ")").field(field));
+	}
+
+	/**
+	 * 统计每个分组中这个字段的最小值。结果中的名字为 min(field)
+	 * @param field 数字、时间类型的字段名
+	 * @return 当前对象
+	 */
+	public GroupBy min(String field){
+		return metric("min(" + field + ")", AggregationBuilders.min("min(" + field + ")").field(field));
+	}
+
+	/**
+	 * 统计每个分组中这个字段的最大值。结果中的名字为 max(field)
+	 * @param field 数字、时间类型的字段名
+	 * @return 当前对象
+	 */
+	public GroupBy max(String field){
+		return metric("max(" + field + ")", AggregationBuilders.max("max(" + field + ")").field(field));
+	}
+
+	private GroupBy metric(String name, ValuesSourceAggregationBuilder<?> aggregation){
+		metrics.add(aggregation);
+		metricNames.add(name);
+		return this;
+	}
+
+	/**
+	 * 只统计符合条件的数据
+	 * @param query 查询条件，传入如 QueryBuilders.rangeQuery("time").gt(1).lt(10) 。传入null则统计全部
+	 * @return 当前对象
+	 */
+	public GroupBy query(QueryBuilder query){
+		this.query = query;
+		return this;
+	}
+
+	/**
+	 * 设置每次请求取得的分组数
+	 * @param pageSize 分组数，默认1000
+	 * @return 当前对象
+	 */
+	public GroupBy pageSize(int pageSize){
+		this.pageSize = Math.max(pageSize, 1);
+		return this;
+	}
+
+	/**
+	 * 只取条数最多的前这些个分组，按条数由大到小排序。只支持一个按字段值分组的字段
+	 * <p>结果是近似的，各分片先各自取前 shardSize 个，再合并，分组很多时可能有误差。可通过 {@link #shardSize(int)} 调大来提高准确度</p>
+	 * @param top 分组数，如 10 。传入0则取全部分组
+	 * @return 当前对象
+	 */
+	public GroupBy top(int top){
+		this.top = top;
+		return this;
+	}
+
+	/**
+	 * 设置 {@link #top(int)} 时，各分片取的分组数。越大越准确，也越占内存
+	 * @param shardSize 分组数，默认由elasticsearch按 top*1.5+10 计算
+	 * @return 当前对象
+	 */
+	public GroupBy shardSize(int shardSize){
+		this.shardSize = shardSize;
+		return this;
+	}
+
+	/**
+	 * 设置 {@link #top(int)} 时的执行方式
+	 * @param executionHint map:直接使用字段值，适合符合条件的数据很少的情况； global_ordinals:使用全局序号，默认
+	 * @return 当前对象
+	 */
+	public GroupBy executionHint(String executionHint){
+		this.executionHint = executionHint;
+		return this;
+	}
+
+	/**
+	 * @return 是否只取条数最多的前几个分组，只需请求一次
+	 */
+	boolean isTop(){
+		return top > 0;
+	}
+
+	int getPageSize(){
+		return pageSize;
+	}
+
+	/**
+	 * 创建统计的请求
+	 * @param indexName 索引名字
+	 * @param afterKey composite 上一页最后的分组值，第一页传入null
+	 */
+	SearchRequest searchRequest(String indexName, Map<String, Object> afterKey){
+		if(sources.isEmpty()){
+			throw new IllegalStateException("GroupBy requires at least one group field");
+		}
+		AggregationBuilder aggregation;
+		if(isTop()){
+			if(sources.size() != 1 || termsField == null){
+				throw new IllegalStateException("GroupBy top() supports only one terms field");
+			}
+			TermsAggregationBuilder terms = AggregationBuilders.terms(AGGREGATION_NAME).field(termsField).order(BucketOrder.count(false)).size(top);
+			if(shardSize > 0){
+				terms.shardSize(shardSize);
+			}
+			if(executionHint != null){
+				terms.executionHint(executionHint);
+			}
+			aggregation = terms;
+		}else{
+			CompositeAggregationBuilder composite = new CompositeAggregationBuilder(AGGREGATION_NAME, sources).size(pageSize);
+			if(afterKey != null){
+				composite.aggregateAfter(afterKey);
+			}
+			aggregation = composite;
+		}
+		for (int i = 0; i < metrics.size(); i++) {
+			aggregation.subAggregation(metrics.get(i));
+		}
+
+		SearchSourceBuilder searchSourceBuilder = new SearchSourceBuilder();
+		searchSourceBuilder.size(0);
+		searchSourceBuilder.trackTotalHits(false);
+		if(query != null){
+			searchSourceBuilder.query(query);
+		}
+		searchSourceBuilder.aggregation(aggregation);
+		return new SearchRequest(indexName).source(searchSourceBuilder);
+	}
+
+	/**
+	 * 将一次请求的结果转为分组
+	 */
+	List<GroupByBucket> buckets(SearchResponse response){
+		String[] keyNames = this.keyNames.toArray(new String[this.keyNames.size()]);
+		String[] metricNames = this.metricNames.toArray(new String[this.metricNames.size()]);
+		List<GroupByBucket> list = new ArrayList<GroupByBucket>();
+		if(response.getAggregations() == null){
+			return list;
+		}
+		if(isTop()){
+			Terms terms = response.getAggregations().get(AGGREGATION_NAME);
+			for (Terms.Bucket bucket : terms.getBuckets()) {
+				list.add(new GroupByBucket(keyNames, new Object[]{bucket.getKey()}, bucket.getDocCount(), metricNames, metricValues(bucket.getAggregations(), metricNames)));
+			}
+		}else{
+			CompositeAggregation composite = response.getAggregations().get(AGGREGATION_NAME);
+			for (CompositeAggregation.Bucket bucket : composite.getBuckets()) {
+				Map<String, Object> key = bucket.getKey();
+				Object[] keys = new Object[keyNames.length];
+				for (int i = 0; i < keyNames.length; i++) {
+					keys[i] = key.get(keyNames[i]);
+				}
+				list.add(new GroupByBucket(keyNames, keys, bucket.getDocCount(), metricNames, metricValues(bucket.getAggregations(), metricNames)));
+			}
+		}
+		return list;
+	}
+
+	/**
+	 * composite 下一页的起始位置
+	 * @return 没有下一页了，返回null
+	 */
+	Map<String, Object> afterKey(SearchResponse response){
+		if(isTop() || response.getAggregations() == null){
+			return null;
+		}
+		CompositeAggregation composite = response.getAggregations().get(AGGREGATION_NAME);
+		if(composite.getBuckets().size() < pageSize){
+			return null;
+		}
+		return composite.afterKey();
+	}
+
+	private static double[] metricValues(Aggregations aggregations, String[] metricNames){
+		double[] values = new double[metricNames.length];
+		for (int i = 0; i < metricNames.length; i++) {
+			NumericMetricsAggregation.SingleValue metric = aggregations.get(metricNames[i]);
+			values[i] = metric == null ? Double.NaN : metric.value();
+		}
+		return values;
+	}
+
+	@Override
+	public String toString() {
+		return "GroupBy [keys=" + keyNames + ", metrics=" + metricNames + ", query=" + query + ", pageSize=" + pageSize + ", top=" + top + "]";
+	}
+}
@@ -0,0 +1,142 @@
+package com.xnx3.elasticsearch.search;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.client.Cancellable;
+import org.elasticsearch.client.RequestOptions;
+import org.elasticsearch.client.RestHighLevelClient;
+import com.xnx3.elasticsearch.bean.GroupByBucket;
+
+/**
+ * 逐个遍历 group by 统计的全部分组。通过 composite 聚合一页页请求，内存中只有两页的分组
+ * <p>当前这一页在遍历时，下一页已经在后台请求了。分组按分组字段的值由小到大排列</p>
+ * <p>中途不再遍历时，需要调用 {@link #close()} 。可以使用 try-with-resources</p>
+ * @author 管雷鸣
+ */
+public class GroupByIterator implements Iterator<GroupByBucket>, Closeable {
+	private RestHighLevelClient client;
+	private String indexName;
+	private GroupBy groupBy;
+	private List<GroupByBucket> buckets;	//当前这一页
+	private int index;						//当前这一页遍历到第几个
+	private CompletableFuture<SearchResponse> nextPage;	//正在请求的下一页，没有下一页了为null
+	private Cancellable cancellable;
+	private boolean closed = false;
+
+	/**
+	 * 创建后便开始请求第一页
+	 * @param client {@link RestHighLevelClient}
+	 * @param indexName 索引名字
+	 * @param groupBy 统计的条件
+	 */
+	public GroupByIterator(RestHighLevelClient client, String indexName, GroupBy groupBy) {
+		this.client = client;
+		this.indexName = indexName;
+		this.groupBy = groupBy;
+		this.buckets = Collections.<GroupByBucket>emptyList();
+		fetch(null);
+	}
+
+	private void fetch(Map<String, Object> afterKey){
+		final CompletableFuture<SearchResponse> future = new CompletableFuture<SearchResponse>();
+		nextPage = future;
+		cancellable = client.searchAsync(groupBy.searchRequest(indexName, afterKey), RequestOptions.DEFAULT, new ActionListener<SearchResponse>() {
+			public void onResponse(SearchResponse response) {
+				future.complete(response);
+			}
+			public void onFailure(Exception e) {
+				future.completeExceptionally(e);
+			}
+		});
+	}
+
+	/**
+	 * @throws UncheckedIOException 请求出错
+	 */
+	public boolean hasNext() {
+		while(index >= buckets.size()){
+			if(nextPage == null){
+				return false;
+			}
+			SearchResponse response = join(nextPage);
+			nextPage = null;
+			cancellable = null;
+			buckets = groupBy.buckets(response);
+			index = 0;
+			Map<String, Object> afterKey = groupBy.afterKey(response);
+			if(afterKey != null && !closed){
+				//当前页遍历的同时，请求下一页
+				fetch(afterKey);
+			}
+		}
+		return true;
+	}
+
+	private static SearchResponse join(CompletableFuture<SearchResponse> future){
+		try {
+			return future.join();
+		} catch (CompletionException e) {
+			Throwable cause = e.getCause();
+			if(cause instanceof RuntimeException){
+				throw (RuntimeException) cause;
+			}
+			if(cause instanceof IOException){
+				throw new UncheckedIOException((IOException) cause);
+			}
+			throw e;
+		}
+	}
+
+	/**
+	 * @throws UncheckedIOException 请求出错
+	 */
+	public GroupByBucket next() {
+		if(!hasNext()){
+			throw new NoSuchElementException();
+		}
+		return buckets.get(index++);
+	}
+
+	/**
+	 * 转为 {@link Stream} 。 Stream 关闭时，会关闭这个 GroupByIterator
+	 */
+	public Stream<GroupByBucket> stream(){
+		Stream<GroupByBucket> stream = StreamSupport.stream(Spliterators.spliteratorUnknownSize(this, Spliterator.ORDERED | Spliterator.NONNULL), false);
+		return stream.onClose(new Runnable() {
+			public void run() {
+				close();
+			}
+		});
+	}
+
+	/**
+	 * 不再遍历，取消正在请求的下一页
+	 */
+	public void close() {
+		if(closed){
+			return;
+		}
+		closed = true;
+		if(nextPage != null){
+			if(cancellable != null){
+				cancellable.cancel();
+			}
+			nextPage = null;
+		}
+		buckets = Collections.<GroupByBucket>emptyList();
+	}
+}
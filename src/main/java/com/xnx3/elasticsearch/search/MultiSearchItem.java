@@ -0,0 +1,97 @@
+package com.xnx3.elasticsearch.search;
+
+import org.elasticsearch.search.builder.SearchSourceBuilder;
+import org.elasticsearch.search.sort.SortBuilder;
+import com.xnx3.elasticsearch.ElasticSearchUtil;
+
+/**
+ * {@link ElasticSearchUtil#multiSearch(java.util.List)} 中的一个查询
+ * <p>使用如：</p>
+ * <pre>
+ * List&lt;MultiSearchItem&gt; items = new ArrayList&lt;MultiSearchItem&gt;();
+ * items.add(new MultiSearchItem("user", "age:26", 0, 10, null));
+ * items.add(new MultiSearchItem("article", "userid:1", 0, 20, SortBuilders.fieldSort("time").order(SortOrder.DESC)).fields(SearchFields.exclude("content")));
+ * List&lt;List&lt;Map&lt;String, Object&gt;&gt;&gt; results = es.multiSearch(items);
+ * </pre>
+ * @author 管雷鸣
+ */
+public class MultiSearchItem {
+	private String indexName;
+	private String queryString;		//查询条件，如 name:guanleiming AND age:123
+	private SearchSourceBuilder searchSourceBuilder;	//查询条件，跟 queryString 二选一
+	private Integer from;
+	private Integer size;
+	private SortBuilder sort;
+	private SearchFields fields;
+
+	/**
+	 * @param indexName 索引名字
+	 * @param queryString 查询条件，传入如： name:guanleiming AND age:123 。传入null或空字符串则查询全部
+	 * @param from 从第几条开始查询，相当于 limit a,b 中的a
+	 * @param size 本次查询最大查询出多少条数据 ,相当于 limit a,b 中的b
+	 * @param sort 排序方式。如果不需要排序，传入null即可
+	 */
+	public MultiSearchItem(String indexName, String queryString, Integer from, Integer size, SortBuilder sort) {
+		this.indexName = indexName;
+		this.queryString = queryString;
+		this.from = from;
+		this.size = size;
+		this.sort = sort;
+	}
+
+	/**
+	 * @param indexName 索引名字
+	 * @param searchSourceBuilder 查询条件。每个查询需要单独的对象，不要多个查询共用一个
+	 * @param from 从第几条开始查询，相当于 limit a,b 中的a
+	 * @param size 本次查询最大查询出多少条数据 ,相当于 limit a,b 中的b
+	 */
+	public MultiSearchItem(String indexName, SearchSourceBuilder searchSourceBuilder, Integer from, Integer size) {
+		this.indexName = indexName;
+		this.searchSourceBuilder = searchSourceBuilder;
+		this.from = from;
+		this.size = size;
+	}
+
+	/**
+	 * 只返回需要的字段。只用于通过 queryString 创建的查询，传入 {@link SearchSourceBuilder} 的，在其中设置
+	 * @param fields 返回哪些字段，传入null则返回全部
+	 * @return 当前对象
+	 */
+	public MultiSearchItem fields(SearchFields fields){
+		this.fields = fields;
+		return this;
+	}
+
+	public String getIndexName() {
+		return indexName;
+	}
+
+	public String getQueryString() {
+		return queryString;
+	}
+
+	public SearchSourceBuilder getSearchSourceBuilder() {
+		return searchSourceBuilder;
+	}
+
+	public Integer getFrom() {
+		return from;
+	}
+
+	public Integer getSize() {
+		return size;
+	}
+
+	public SortBuilder getSort() {
+		return sort;
+	}
+
+	public SearchFields getFields() {
+		return fields;
+	}
+
+	@Override
+	public String toString() {
+		return "MultiSearchItem [indexName=" + indexName + ", queryString=" + queryString + ", from=" + from + ", size=" + size + "]";
+	}
+}
@@ -0,0 +1,467 @@
+package com.xnx3.elasticsearch.search;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.elasticsearch.client.Request;
+import org.elasticsearch.client.Response;
+import org.elasticsearch.client.RestClient;
+import org.elasticsearch.common.Strings;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.xcontent.DeprecationHandler;
+import org.elasticsearch.common.xcontent.NamedXContentRegistry;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.common.xcontent.XContentParser;
+import org.elasticsearch.common.xcontent.XContentType;
+import com.xnx3.elasticsearch.mapper.BeanMapper;
+
+/**
+ * 预编译的sql查询。sql中的参数用 ? 代替，执行时传入参数，参数通过 _sql 的 params 传递，不拼接到sql中
+ * <p>{@link #query(Object...)} 通过 _sql 带参数执行，结果跟 {@link com.xnx3.elasticsearch.ElasticSearchUtil#searchBySqlQuery(String)} 一样，是sql的列，不管参数是什么类型</p>
+ * <p>{@link #queryTranslated(Object...)} 需要主动使用：第一次执行时，通过 /_sql/translate 将sql转换为查询的DSL，其中参数的位置记录下来作为模板缓存。之后再执行，直接将参数填入模板，请求 _search ，es不用再解析sql。
+ * 结果是查到的文档，不是sql的列：每行是文档中的原始值（如时间为时间戳、嵌套的对象不展开），列名为字段名。以下情况无法使用模板：</p>
+ * <ul>
+ * 	<li>group by、count 等统计查询（转换后有 aggregations）</li>
+ * 	<li>没有 LIMIT ，或 LIMIT 不小于 fetch_size 的查询，结果需要跟随 cursor 翻页</li>
+ * 	<li>参数是 boolean、null 等无法在DSL中定位的类型，或参数在DSL中被es改写了，如 LIKE ?</li>
+ * 	<li>select 中有 AS 别名、函数、表达式的。只有 select 的都是 * 或字段名时才使用模板</li>
+ * </ul>
+ * <p>线程安全，同一个sql只需创建一次，可多线程同时执行。使用如：</p>
+ * <pre>
+ * PreparedSql sql = es.prepareSql("SELECT * FROM user WHERE username = ? AND age > ? LIMIT 10");
+ * List&lt;Map&lt;String,Object&gt;&gt; list = sql.query("guanleiming", 18);
+ * </pre>
+ * @author 管雷鸣
+ */
+public class PreparedSql {
+	/**
+	 * FROM 后的索引名，支持加双引号的
+	 */
+	private static final Pattern FROM_PATTERN = Pattern.compile("\\bFROM\\s+(\"([^\"]+)\"|([^\\s,;()]+))", Pattern.CASE_INSENSITIVE);
+	/**
+	 * SELECT 与 FROM 之间的列
+	 */
+	private static final Pattern SELECT_PATTERN = Pattern.compile("^\\s*SELECT\\s+(.+?)\\s+FROM\\b", Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+	/**
+	 * 可以使用模板的列： * 、字段名、加双引号的字段名
+	 */
+	private static final Pattern COLUMN_PATTERN = Pattern.compile("\\*|\"[^\"]+\"|[A-Za-z_@][\\w.@]*");
+	private static final String STRING_SENTINEL = "__xnx3_sql_param_";	//转换时字符串参数的占位值，后面加参数的序号
+	private static final long LONG_SENTINEL = 7340128395120000L;		//转换时整数参数的占位值，加参数的序号
+	private static final double DOUBLE_SENTINEL = 7340128395.125;		//转换时小数参数的占位值，加参数的序号
+	/**
+	 * 无法使用模板的，缓存这个，不用再次转换
+	 */
+	private static final Template UNTRANSLATABLE = new Template(null, null);
+
+	private RestClient client;
+	private String sqlQuery;
+	private int fetchSize;
+	private String indexName;	//FROM 的索引，找不到为null，这时不会使用模板。 select 中有别名、函数的，也为null
+	/**
+	 * 转换后的模板。 key: 参数类型的签名，参数类型不同，转换出来的DSL也不同
+	 */
+	private Map<String, Template> templateMap = new ConcurrentHashMap<String, Template>();
+
+	/**
+	 * 创建时不会请求，第一次执行时才会转换
+	 * @param client {@link RestClient}
+	 * @param sqlQuery sql查询语句，其中的参数用 ? 代替，传入如： select * from user WHERE username = ? AND age > ? LIMIT 10
+	 * @param fetchSize 每页的条数
+	 */
+	public PreparedSql(RestClient client, String sqlQuery, int fetchSize) {
+		this.client = client;
+		this.sqlQuery = sqlQuery;
+		this.fetchSize = fetchSize;
+		Matcher matcher = FROM_PATTERN.matcher(sqlQuery);
+		if(matcher.find() && isPlainColumns(sqlQuery)){
+			indexName = matcher.group(2) != null ? matcher.group(2) : matcher.group(3);
+		}
+	}
+
+	/**
+	 * select 的是否都是 * 或字段名。有 AS 别名、函数、表达式、DISTINCT 的，模板查出的结果跟 _sql 的不一样
+	 */
+	private static boolean isPlainColumns(String sqlQuery){
+		Matcher matcher = SELECT_PATTERN.matcher(sqlQuery);
+		if(!matcher.find()){
+			return false;
+		}
+		String[] columns = matcher.group(1).split(",");
+		for (int i = 0; i < columns.length; i++) {
+			if(!COLUMN_PATTERN.matcher(columns[i].trim()).matches()){
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return sql查询语句
+	 */
+	public String getSqlQuery() {
+		return sqlQuery;
+	}
+
+	/**
+	 * 执行查询，通过 _sql 带参数执行，跟随 cursor 取得全部结果
+	 * @param params sql中 ? 对应的参数，按顺序。支持 String、数字、boolean、Date
+	 * @return 全部结果，值为null的列不加入
+	 * @throws UncheckedIOException 请求出错
+	 */
+	public List<Map<String, Object>> query(Object... params){
+		return readAll(new SqlIterator<Map<String,Object>>(client, sqlQuery, params, fetchSize, SqlIterator.mapRowReader()));
+	}
+
+	/**
+	 * 执行查询，结果转为实体类。同 {@link #query(Object...)}
+	 * @param clazz 实体类，需要有无参构造方法。查询结果的列名对应实体类的属性名
+	 * @param params sql中 ? 对应的参数，按顺序
+	 * @return 全部结果
+	 * @throws UncheckedIOException 请求出错
+	 */
+	public <T> List<T> query(Class<T> clazz, Object... params){
+		return readAll(new SqlIterator<T>(client, sqlQuery, params, fetchSize, SqlIterator.beanRowReader(clazz)));
+	}
+
+	/**
+	 * 使用转换后的DSL模板执行查询，直接请求 _search 。结果是查到的文档，跟 {@link #query(Object...)} 的sql列不一样，见 {@link PreparedSql}
+	 * @param params sql中 ? 对应的参数，按顺序。支持 String、数字、Date
+	 * @return 全部结果，每行是一条文档的 _source 加上 docvalue 字段
+	 * @throws UncheckedIOException 请求出错
+	 * @throws IllegalStateException 这个sql、这些类型的参数无法使用模板，可先通过 {@link #isTranslated(Object...)} 判断
+	 */
+	public List<Map<String, Object>> queryTranslated(Object... params){
+		Template template = translatedTemplate(params);
+		try {
+			return template.search(client, indexName, params);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * 使用转换后的DSL模板执行查询，结果转为实体类。同 {@link #queryTranslated(Object...)}
+	 * @param clazz 实体类，需要有无参构造方法。文档的字段名对应实体类的属性名
+	 * @param params sql中 ? 对应的参数，按顺序
+	 * @return 全部结果
+	 * @throws UncheckedIOException 请求出错
+	 * @throws IllegalStateException 这个sql、这些类型的参数无法使用模板
+	 */
+	public <T> List<T> queryTranslated(Class<T> clazz, Object... params){
+		Template template = translatedTemplate(params);
+		BeanMapper<T> mapper = BeanMapper.get(clazz);
+		try {
+			List<Map<String, Object>> rows = template.search(client, indexName, params);
+			List<T> list = new ArrayList<T>(rows.size());
+			for (int i = 0; i < rows.size(); i++) {
+				XContentBuilder builder = XContentFactory.jsonBuilder().map(rows.get(i));
+				list.add(mapper.read(BytesReference.bytes(builder), null));
+			}
+			return list;
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * 逐行遍历查询的全部结果，不使用模板，通过 _sql 带参数执行，跟随 cursor 一页页请求
+	 * @param params sql中 ? 对应的参数，按顺序
+	 * @return 遍历结果的 {@link SqlIterator} 。中途不再遍历时，需要关闭
+	 */
+	public SqlIterator<Map<String, Object>> iterator(Object... params){
+		return new SqlIterator<Map<String,Object>>(client, sqlQuery, params, fetchSize, SqlIterator.mapRowReader());
+	}
+
+	/**
+	 * 这些类型的参数，是否可以使用模板执行 {@link #queryTranslated(Object...)} 。第一次判断时会请求 /_sql/translate 转换
+	 * @param params sql中 ? 对应的参数，按顺序
+	 * @return true:可以直接请求 _search ； false:无法使用模板，只能通过 {@link #query(Object...)} 执行
+	 */
+	public boolean isTranslated(Object... params){
+		return template(params) != UNTRANSLATABLE;
+	}
+
+	private Template translatedTemplate(Object[] params){
+		Template template = template(params);
+		if(template == UNTRANSLATABLE){
+			throw new IllegalStateException("sql can not be translated to a _search template with these params : "+sqlQuery);
+		}
+		return template;
+	}
+
+	private static <T> List<T> readAll(SqlIterator<T> iterator){
+		List<T> list = new ArrayList<T>();
+		try {
+			while(iterator.hasNext()){
+				list.add(iterator.next());
+			}
+		} finally {
+			iterator.close();
+		}
+		return list;
+	}
+
+	/**
+	 * 获取这些参数类型对应的模板，没有的进行转换
+	 */
+	private Template template(Object[] params){
+		String signature = signature(params);
+		if(signature == null){
+			return UNTRANSLATABLE;
+		}
+		Template template = templateMap.get(signature);
+		if(template == null){
+			template = translate(params);
+			templateMap.put(signature, template);
+		}
+		return template;
+	}
+
+	/**
+	 * 参数类型的签名，每个参数一个字符： S 字符串， L 整数（包括Date）， D 小数
+	 * @return 有无法使用模板的参数，返回null
+	 */
+	private String signature(Object[] params){
+		if(indexName == null){
+			return null;
+		}
+		StringBuilder sb = new StringBuilder(params == null ? 0 : params.length);
+		for (int i = 0; params != null && i < params.length; i++) {
+			Object param = params[i];
+			if(param instanceof String){
+				sb.append('S');
+			}else if(param instanceof Long || param instanceof Integer || param instanceof Short || param instanceof Byte || param instanceof Date){
+				sb.append('L');
+			}else if(param instanceof Double || param instanceof Float){
+				sb.append('D');
+			}else{
+				return null;
+			}
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * 用占位值代替参数，通过 /_sql/translate 转换为DSL，找到每个占位值在DSL中的位置
+	 * @return 无法使用模板的，返回 {@link #UNTRANSLATABLE}
+	 */
+	private Template translate(Object[] params){
+		int length = params == null ? 0 : params.length;
+		Object[] sentinels = new Object[length];
+		for (int i = 0; i < length; i++) {
+			if(params[i] instanceof String){
+				sentinels[i] = STRING_SENTINEL + i;
+			}else if(params[i] instanceof Double || params[i] instanceof Float){
+				sentinels[i] = DOUBLE_SENTINEL + i;
+			}else{
+				sentinels[i] = LONG_SENTINEL + i;
+			}
+		}
+
+		Map<String, Object> dsl;
+		try {
+			Response response = client.performRequest(SqlIterator.request("/_sql/translate", SqlIterator.queryBody(sqlQuery, sentinels, fetchSize)));
+			try (InputStream in = response.getEntity().getContent();
+					XContentParser parser = XContentType.JSON.xContent().createParser(NamedXContentRegistry.EMPTY, DeprecationHandler.THROW_UNSUPPORTED_OPERATION, in)) {
+				dsl = parser.map();
+			}
+		} catch (IOException e) {
+			//sql不支持转换，如 SHOW TABLES 等，通过 _sql 执行
+			return UNTRANSLATABLE;
+		}
+
+		if(dsl.containsKey("aggregations") || dsl.containsKey("aggs")){
+			return UNTRANSLATABLE;
+		}
+		Object size = dsl.get("size");
+		if(!(size instanceof Number) || ((Number) size).intValue() >= fetchSize){
+			//结果可能不止一页，需要跟随 cursor
+			return UNTRANSLATABLE;
+		}
+		int[] found = new int[length];
+		Object body = replaceSentinels(dsl, sentinels, found);
+		for (int i = 0; i < length; i++) {
+			if(found[i] == 0){
+				//参数被es改写了，找不到
+				return UNTRANSLATABLE;
+			}
+		}
+		return new Template(body, sentinels);
+	}
+
+	/**
+	 * 将DSL中的占位值替换为 {@link Slot} ，执行时写入对应的参数
+	 * @param found 每个参数找到的次数
+	 */
+	@SuppressWarnings("unchecked")
+	private static Object replaceSentinels(Object node, Object[] sentinels, int[] found){
+		if(node instanceof Map){
+			Map<String, Object> map = (Map<String, Object>) node;
+			Map<String, Object> result = new HashMap<String, Object>(map.size() * 2);
+			for (Map.Entry<String, Object> entry : map.entrySet()) {
+				result.put(entry.getKey(), replaceSentinels(entry.getValue(), sentinels, found));
+			}
+			return result;
+		}
+		if(node instanceof List){
+			List<Object> list = (List<Object>) node;
+			List<Object> result = new ArrayList<Object>(list.size());
+			for (int i = 0; i < list.size(); i++) {
+				result.add(replaceSentinels(list.get(i), sentinels, found));
+			}
+			return result;
+		}
+		for (int i = 0; i < sentinels.length; i++) {
+			if(isSentinel(node, sentinels[i])){
+				found[i]++;
+				return new Slot(i);
+			}
+		}
+		return node;
+	}
+
+	private static boolean isSentinel(Object node, Object sentinel){
+		if(node == null){
+			return false;
+		}
+		if(sentinel instanceof String){
+			return sentinel.equals(node);
+		}
+		if(!(node instanceof Number)){
+			return false;
+		}
+		if(sentinel instanceof Long){
+			return ((Number) node).longValue() == (Long) sentinel && ((Number) node).doubleValue() == ((Long) sentinel).doubleValue();
+		}
+		return ((Number) node).doubleValue() == (Double) sentinel;
+	}
+
+	/**
+	 * DSL中参数的位置
+	 */
+	private static class Slot {
+		private int index;	//第几个参数
+
+		Slot(int index) {
+			this.index = index;
+		}
+	}
+
+	/**
+	 * 转换后的DSL模板，参数的位置为 {@link Slot}
+	 */
+	private static class Template {
+		private Object body;
+		private Object[] sentinels;
+
+		Template(Object body, Object[] sentinels) {
+			this.body = body;
+			this.sentinels = sentinels;
+		}
+
+		/**
+		 * 填入参数，请求 _search ，每条结果的 _source 、 fields 合并为一行
+		 */
+		List<Map<String, Object>> search(RestClient client, String indexName, Object[] params) throws IOException {
+			XContentBuilder builder = XContentFactory.jsonBuilder();
+			write(builder, body, params);
+			Request request = new Request("POST", "/" + indexName + "/_search");
+			request.addParameter("filter_path", "hits.hits._source,hits.hits.fields");
+			request.setJsonEntity(Strings.toString(builder));
+			Response response = client.performRequest(request);
+
+			List<Map<String, Object>> list = new ArrayList<Map<String,Object>>();
+			try (InputStream in = response.getEntity().getContent();
+					XContentParser parser = XContentType.JSON.xContent().createParser(NamedXContentRegistry.EMPTY, DeprecationHandler.THROW_UNSUPPORTED_OPERATION, in)) {
+				if(!moveTo(parser, "hits") || !moveTo(parser, "hits")){
+					//没有结果，filter_path 过滤后是 {}
+					return list;
+				}
+				while(parser.nextToken() == XContentParser.Token.START_OBJECT){
+					list.add(readHit(parser));
+				}
+			}
+			return list;
+		}
+
+		/**
+		 * 写入DSL，遇到 {@link Slot} 写入对应的参数
+		 */
+		@SuppressWarnings("unchecked")
+		private static void write(XContentBuilder builder, Object node, Object[] params) throws IOException {
+			if(node instanceof Map){
+				builder.startObject();
+				for (Map.Entry<String, Object> entry : ((Map<String, Object>) node).entrySet()) {
+					builder.field(entry.getKey());
+					write(builder, entry.getValue(), params);
+				}
+				builder.endObject();
+			}else if(node instanceof List){
+				builder.startArray();
+				List<Object> list = (List<Object>) node;
+				for (int i = 0; i < list.size(); i++) {
+					write(builder, list.get(i), params);
+				}
+				builder.endArray();
+			}else if(node instanceof Slot){
+				SqlIterator.writeParam(builder, params[((Slot) node).index]);
+			}else{
+				builder.value(node);
+			}
+		}
+
+		/**
+		 * 在当前对象中找到 name ，移动到其值的开始
+		 * @return 是否找到
+		 */
+		private static boolean moveTo(XContentParser parser, String name) throws IOException {
+			if(parser.currentToken() == null){
+				parser.nextToken();
+			}
+			while(parser.nextToken() == XContentParser.Token.FIELD_NAME){
+				String field = parser.currentName();
+				parser.nextToken();
+				if(field.equals(name)){
+					return true;
+				}
+				parser.skipChildren();
+			}
+			return false;
+		}
+
+		/**
+		 * 读取一条结果。 fields 中只有一个值的，取这个值
+		 */
+		private static Map<String, Object> readHit(XContentParser parser) throws IOException {
+			Map<String, Object> row = new HashMap<String, Object>();
+			while(parser.nextToken() == XContentParser.Token.FIELD_NAME){
+				String name = parser.currentName();
+				parser.nextToken();
+				if(name.equals("_source")){
+					row.putAll(parser.map());
+				}else if(name.equals("fields")){
+					for (Map.Entry<String, Object> entry : parser.map().entrySet()) {
+						Object value = entry.getValue();
+						if(value instanceof List && ((List<?>) value).size() == 1){
+							value = ((List<?>) value).get(0);
+						}
+						row.put(entry.getKey(), value);
+					}
+				}else{
+					parser.skipChildren();
+				}
+			}
+			return row;
+		}
+	}
+}
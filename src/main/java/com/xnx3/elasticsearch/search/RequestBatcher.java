@@ -0,0 +1,164 @@
+package com.xnx3.elasticsearch.search;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 将多个线程同时发起的请求合并为一次批量请求。 {@link GetBatcher} 合并为 _mget ， {@link SearchBatcher} 合并为 _msearch
+ * <p>第一个请求到来后，等待一个很短的时间窗口，这期间到来的请求一起通过一次批量请求提交，返回后再分别交给各自的调用方。窗口内的请求数达到上限时，不再等待，立即提交</p>
+ * <p>并发高时，大量单个的 HTTP 请求合并为少量的批量请求；并发低时，每个请求最多多等待一个时间窗口</p>
+ * @param <Q> 单个请求
+ * @param <R> 单个请求的结果
+ * @author 管雷鸣
+ */
+public abstract class RequestBatcher<Q, R> implements Closeable {
+	private long window;			//等待合并的时间窗口，单位毫秒
+	private int maxBatchSize;		//一次批量请求最多的条数
+	private ConcurrentLinkedQueue<Pending<Q, R>> queue = new ConcurrentLinkedQueue<Pending<Q, R>>();
+	private AtomicInteger size = new AtomicInteger();			//queue 中的条数
+	private AtomicBoolean scheduled = new AtomicBoolean(false);	//是否已有等待中的提交
+	private ScheduledExecutorService scheduledExecutor;
+	private volatile boolean closed = false;
+	private LongAdder requestCount = new LongAdder();	//合并前的请求数
+	private LongAdder batchCount = new LongAdder();		//实际发出的批量请求数
+
+	/**
+	 * @param window 等待合并的时间窗口，单位毫秒，如 2
+	 * @param maxBatchSize 一次批量请求最多的条数，达到后立即提交，如 100
+	 * @param threadName 等待时间窗口的线程的名字
+	 */
+	protected RequestBatcher(long window, int maxBatchSize, final String threadName) {
+		this.window = window;
+		this.maxBatchSize = Math.max(maxBatchSize, 1);
+		this.scheduledExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, threadName);
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * 加入一个请求。不会阻塞当前线程，跟同一时间窗口内的其他请求一起提交
+	 * @return 这个请求的结果。如果执行出错，会以异常结束
+	 */
+	protected CompletableFuture<R> add(Q request){
+		Pending<Q, R> pending = new Pending<Q, R>(request);
+		if(closed){
+			pending.future.completeExceptionally(new RejectedExecutionException(getClass().getSimpleName()+" is closed"));
+			return pending.future;
+		}
+		requestCount.increment();
+		queue.offer(pending);
+		if(size.incrementAndGet() >= maxBatchSize){
+			flush();
+		}else if(scheduled.compareAndSet(false, true)){
+			try {
+				scheduledExecutor.schedule(new Runnable() {
+					public void run() {
+						scheduled.set(false);
+						flush();
+					}
+				}, window, TimeUnit.MILLISECONDS);
+			} catch (RejectedExecutionException e) {
+				//已关闭
+				scheduled.set(false);
+				flush();
+			}
+		}
+		return pending.future;
+	}
+
+	/**
+	 * 将 queue 中的全部取出，每 maxBatchSize 条提交一次
+	 */
+	private void flush(){
+		while(true){
+			List<Q> requests = new ArrayList<Q>();
+			List<CompletableFuture<R>> futures = new ArrayList<CompletableFuture<R>>();
+			Pending<Q, R> pending;
+			while(requests.size() < maxBatchSize && (pending = queue.poll()) != null){
+				requests.add(pending.request);
+				futures.add(pending.future);
+			}
+			if(requests.isEmpty()){
+				return;
+			}
+			size.addAndGet(-requests.size());
+			batchCount.increment();
+			try {
+				send(requests, futures);
+			} catch (RuntimeException e) {
+				failAll(futures, e);
+			}
+		}
+	}
+
+	/**
+	 * 将一批请求通过一次批量请求提交，不要阻塞。返回后，结果按顺序交给 futures 中对应的那个
+	 * @param requests 这一批的请求
+	 * @param futures 跟 requests 按顺序对应
+	 */
+	protected abstract void send(List<Q> requests, List<CompletableFuture<R>> futures);
+
+	/**
+	 * 整批请求失败，全部以异常结束
+	 */
+	protected static <R> void failAll(List<CompletableFuture<R>> futures, Exception e){
+		for (int i = 0; i < futures.size(); i++) {
+			futures.get(i).completeExceptionally(e);
+		}
+	}
+
+	/**
+	 * @return 合并前的请求数
+	 */
+	public long getRequestCount(){
+		return requestCount.sum();
+	}
+
+	/**
+	 * @return 实际发出的批量请求数。跟 {@link #getRequestCount()} 相比，可以看出合并的效果
+	 */
+	public long getBatchCount(){
+		return batchCount.sum();
+	}
+
+	/**
+	 * 关闭。还在等待的请求立即提交
+	 */
+	public void close() {
+		closed = true;
+		scheduledExecutor.shutdownNow();
+		flush();
+	}
+
+	@Override
+	public String toString() {
+		return getClass().getSimpleName() + " [window=" + window + ", maxBatchSize=" + maxBatchSize + ", requestCount=" + getRequestCount() + ", batchCount=" + getBatchCount() + "]";
+	}
+
+	/**
+	 * 等待合并提交的一个请求
+	 */
+	private static class Pending<Q, R> {
+		private Q request;
+		private CompletableFuture<R> future = new CompletableFuture<R>();
+
+		Pending(Q request) {
+			this.request = request;
+		}
+	}
+}
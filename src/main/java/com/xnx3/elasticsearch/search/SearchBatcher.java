@@ -0,0 +1,62 @@
+package com.xnx3.elasticsearch.search;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.search.MultiSearchRequest;
+import org.elasticsearch.action.search.MultiSearchResponse;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.action.search.SearchResponse;
+import com.xnx3.elasticsearch.ElasticSearchUtil;
+
+/**
+ * 将多个线程同时发起的查询合并为一次 _msearch 请求。服务于 {@link ElasticSearchUtil#search(String, String)} 等查询
+ * <p>合并后少了多次 HTTP 往返，协调节点会并行执行其中的各个查询。合并的方式见 {@link RequestBatcher}</p>
+ * @author 管雷鸣
+ */
+public class SearchBatcher extends RequestBatcher<SearchRequest, SearchResponse> {
+	private ElasticSearchUtil es;
+
+	/**
+	 * @param es 提交时所使用的 {@link ElasticSearchUtil}
+	 * @param window 等待合并的时间窗口，单位毫秒，如 2
+	 * @param maxBatchSize 一次 _msearch 最多的查询数，达到后立即提交，如 20
+	 */
+	public SearchBatcher(ElasticSearchUtil es, long window, int maxBatchSize) {
+		super(window, maxBatchSize, "elasticsearch-search-batcher");
+		this.es = es;
+	}
+
+	/**
+	 * 查询。不会阻塞当前线程，跟同一时间窗口内的其他查询一起提交
+	 * @param request 查询的请求
+	 * @return 查询的结果。如果执行出错，会以异常结束
+	 */
+	public CompletableFuture<SearchResponse> search(SearchRequest request){
+		return add(request);
+	}
+
+	protected void send(List<SearchRequest> requests, final List<CompletableFuture<SearchResponse>> futures) {
+		MultiSearchRequest request = new MultiSearchRequest();
+		for (int i = 0; i < requests.size(); i++) {
+			request.add(requests.get(i));
+		}
+		es.getRestHighLevelClient().msearchAsync(request, es.getRequestOptions(), new ActionListener<MultiSearchResponse>() {
+			public void onResponse(MultiSearchResponse response) {
+				MultiSearchResponse.Item[] items = response.getResponses();
+				for (int i = 0; i < futures.size(); i++) {
+					if(i >= items.length){
+						futures.get(i).completeExceptionally(new IllegalStateException("msearch response missing item "+i));
+					}else if(items[i].isFailure()){
+						futures.get(i).completeExceptionally(items[i].getFailure());
+					}else{
+						futures.get(i).complete(items[i].getResponse());
+					}
+				}
+			}
+			public void onFailure(Exception e) {
+				failAll(futures, e);
+			}
+		});
+	}
+}
@@ -0,0 +1,148 @@
+package com.xnx3.elasticsearch.search;
+
+import java.util.Arrays;
+import org.elasticsearch.action.get.GetRequest;
+import org.elasticsearch.action.get.MultiGetRequest;
+import org.elasticsearch.search.builder.SearchSourceBuilder;
+import org.elasticsearch.search.fetch.subphase.FetchSourceContext;
+
+/**
+ * 查询时返回哪些字段。只取需要的字段，es返回的数据少，解析也快，适合数据中有大段文本、但列表只显示几个字段的情况
+ * <p>使用如：</p>
+ * <pre>
+ * //只返回 username、age
+ * es.search("user", "age:26", 0, 100, null, SearchFields.include("username", "age"));
+ * //返回除 content 外的全部字段
+ * es.searchById("article", id, SearchFields.exclude("content"));
+ * //不返回 _source ，只从 doc_values 取 time
+ * es.search("useraction", "", 0, 100, null, SearchFields.noSource().docValue("time"));
+ * </pre>
+ * <p>docvalue_fields 、 stored_fields 取得的字段会合并到返回的结果中，只有一个值的取这个值，多个值的为 List 。 esid 依旧会加入</p>
+ * @author 管雷鸣
+ */
+public class SearchFields {
+	private static final String[] EMPTY = new String[0];
+
+	private boolean fetchSource = true;	//是否返回 _source
+	private String[] includes = EMPTY;	//_source 中只返回这些字段，为空则全部返回。支持通配符，如 user.*
+	private String[] excludes = EMPTY;	//_source 中不返回这些字段
+	private String[] docValueFields = EMPTY;	//从 doc_values 中取的字段，只用于 search
+	private String[] storedFields = EMPTY;		//mapping 中设置了 store:true 的字段
+
+	/**
+	 * 只返回这些字段
+	 * @param includes 字段名，支持通配符，如 user.*
+	 */
+	public static SearchFields include(String... includes){
+		return new SearchFields().includes(includes);
+	}
+
+	/**
+	 * 返回除这些字段外的全部字段
+	 * @param excludes 字段名，支持通配符，如 content*
+	 */
+	public static SearchFields exclude(String... excludes){
+		return new SearchFields().excludes(excludes);
+	}
+
+	/**
+	 * 不返回 _source ，需要再通过 {@link #docValue(String...)} 、 {@link #stored(String...)} 设置要取的字段
+	 */
+	public static SearchFields noSource(){
+		SearchFields fields = new SearchFields();
+		fields.fetchSource = false;
+		return fields;
+	}
+
+	/**
+	 * _source 中只返回这些字段
+	 * @param includes 字段名，支持通配符
+	 * @return 当前对象
+	 */
+	public SearchFields includes(String... includes){
+		this.includes = includes == null ? EMPTY : includes;
+		return this;
+	}
+
+	/**
+	 * _source 中不返回这些字段
+	 * @param excludes 字段名，支持通配符
+	 * @return 当前对象
+	 */
+	public SearchFields excludes(String... excludes){
+		this.excludes = excludes == null ? EMPTY : excludes;
+		return this;
+	}
+
+	/**
+	 * 从 doc_values 中取这些字段，不用解析 _source 。适合 keyword、数字、时间类型的字段。只用于 search ， searchById 不支持
+	 * @param docValueFields 字段名
+	 * @return 当前对象
+	 */
+	public SearchFields docValue(String... docValueFields){
+		this.docValueFields = docValueFields == null ? EMPTY : docValueFields;
+		return this;
+	}
+
+	/**
+	 * 取这些单独存储的字段，字段的 mapping 需要设置 store:true
+	 * @param storedFields 字段名
+	 * @return 当前对象
+	 */
+	public SearchFields stored(String... storedFields){
+		this.storedFields = storedFields == null ? EMPTY : storedFields;
+		return this;
+	}
+
+	/**
+	 * @return 取 _source 的设置
+	 */
+	public FetchSourceContext fetchSourceContext(){
+		if(!fetchSource){
+			return FetchSourceContext.DO_NOT_FETCH_SOURCE;
+		}
+		return new FetchSourceContext(true, includes, excludes);
+	}
+
+	/**
+	 * 设置到查询中
+	 * @param searchSourceBuilder 查询条件
+	 */
+	public void apply(SearchSourceBuilder searchSourceBuilder){
+		searchSourceBuilder.fetchSource(fetchSourceContext());
+		for (int i = 0; i < docValueFields.length; i++) {
+			searchSourceBuilder.docValueField(docValueFields[i]);
+		}
+		if(storedFields.length > 0){
+			searchSourceBuilder.storedFields(Arrays.asList(storedFields));
+		}
+	}
+
+	/**
+	 * 设置到获取一条数据的请求中。 docvalue_fields 不支持，会忽略
+	 * @param request 获取一条数据的请求
+	 */
+	public void apply(GetRequest request){
+		request.fetchSourceContext(fetchSourceContext());
+		if(storedFields.length > 0){
+			request.storedFields(storedFields);
+		}
+	}
+
+	/**
+	 * 设置到批量获取中的一条。 docvalue_fields 不支持，会忽略
+	 * @param item 批量获取中的一条
+	 */
+	public void apply(MultiGetRequest.Item item){
+		item.fetchSourceContext(fetchSourceContext());
+		if(storedFields.length > 0){
+			item.storedFields(storedFields);
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "SearchFields [fetchSource=" + fetchSource + ", includes=" + Arrays.toString(includes) + ", excludes=" + Arrays.toString(excludes)
+				+ ", docValueFields=" + Arrays.toString(docValueFields) + ", storedFields=" + Arrays.toString(storedFields) + "]";
+	}
+}
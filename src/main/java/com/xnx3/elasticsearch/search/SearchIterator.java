@@ -0,0 +1,248 @@
+package com.xnx3.elasticsearch.search;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Function;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.search.ClearScrollRequest;
+import org.elasticsearch.action.search.ClearScrollResponse;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.action.search.SearchScrollRequest;
+import org.elasticsearch.client.Cancellable;
+import org.elasticsearch.client.RequestOptions;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.builder.SearchSourceBuilder;
+import org.elasticsearch.search.sort.FieldSortBuilder;
+import org.elasticsearch.search.sort.SortBuilder;
+import org.elasticsearch.search.sort.SortOrder;
+
+/**
+ * 逐条遍历查询的全部结果，不受 index.max_result_window （默认1万条）的限制，数据再多，内存中也只有两页数据
+ * <p>当前这一页在遍历时，下一页已经在后台请求了，遍历完当前页一般不用再等待</p>
+ * <ul>
+ * 	<li>有排序、且设置了唯一字段时，使用 search_after 翻页，并在排序最后加上这个唯一字段保证顺序确定，不会重复或遗漏</li>
+ * 	<li>有排序、没有设置唯一字段时，使用 scroll 按排序翻页，翻页期间数据的变化不影响结果</li>
+ * 	<li>没有排序（或只按 _doc 排序）时，使用 scroll 按 _doc 顺序翻页，这是遍历全部数据最快的方式</li>
+ * </ul>
+ * <p>遍历完会自动释放 scroll ；中途不再遍历时，需要调用 {@link #close()} 。可以使用 try-with-resources</p>
+ * @author 管雷鸣
+ */
+public class SearchIterator<T> implements Iterator<T>, Closeable {
+	/**
+	 * scroll 的保持时间，两页之间的间隔不能超过这个时间
+	 */
+	public static final TimeValue SCROLL_KEEP_ALIVE = TimeValue.timeValueMinutes(1);
+
+	private RestHighLevelClient client;
+	private String indexName;
+	private SearchSourceBuilder searchSourceBuilder;
+	private int pageSize;
+	private Function<SearchHit, T> converter;	//将每条结果转为需要的类型
+	private boolean scroll;			//是否使用 scroll 翻页，否则使用 search_after
+	private String scrollId;
+	private SearchHit[] hits;		//当前这一页
+	private int index;				//当前这一页遍历到第几条
+	private CompletableFuture<SearchResponse> nextPage;	//正在请求的下一页，没有下一页了为null
+	private Cancellable cancellable;	//正在请求的下一页，用于中途关闭时取消
+	private boolean closed = false;
+
+	/**
+	 * 创建后便开始请求第一页
+	 * @param client {@link RestHighLevelClient}
+	 * @param indexName 索引名字
+	 * @param searchSourceBuilder 查询条件及排序。其 from、size、searchAfter 会被修改
+	 * @param pageSize 每页的条数，不能小于1
+	 * @param tiebreaker 有排序时，加在排序最后的唯一字段，如存放id的 keyword 字段。传入null则有排序时也使用 scroll 翻页
+	 * @param converter 将每条结果转为需要的类型
+	 * @throws IllegalArgumentException pageSize 小于1
+	 */
+	public SearchIterator(RestHighLevelClient client, String indexName, SearchSourceBuilder searchSourceBuilder, int pageSize, String tiebreaker, Function<SearchHit, T> converter) {
+		if(pageSize < 1){
+			//为0时 search_after 每页都是0条，会当作满页一直请求下去
+			throw new IllegalArgumentException("pageSize must be >= 1, but was "+pageSize);
+		}
+		this.client = client;
+		this.indexName = indexName;
+		this.searchSourceBuilder = searchSourceBuilder;
+		this.pageSize = pageSize;
+		this.converter = converter;
+		this.hits = new SearchHit[0];
+
+		searchSourceBuilder.from(0);
+		searchSourceBuilder.size(pageSize);
+		List<SortBuilder<?>> sorts = searchSourceBuilder.sorts();
+		if(sorts == null || sorts.isEmpty()){
+			this.scroll = true;
+			searchSourceBuilder.sort(FieldSortBuilder.DOC_FIELD_NAME);
+		}else if(sorts.size() == 1 && hasSort(sorts, FieldSortBuilder.DOC_FIELD_NAME)){
+			//按 _doc 排序，也就是不需要排序
+			this.scroll = true;
+		}else if(tiebreaker == null){
+			//没有唯一字段，search_after 排序值相同的可能重复或遗漏，使用 scroll
+			this.scroll = true;
+		}else if(!hasSort(sorts, tiebreaker)){
+			searchSourceBuilder.sort(tiebreaker, SortOrder.ASC);
+		}
+
+		SearchRequest request = new SearchRequest(indexName);
+		request.source(searchSourceBuilder);
+		if(scroll){
+			request.scroll(SCROLL_KEEP_ALIVE);
+		}
+		nextPage = new CompletableFuture<SearchResponse>();
+		cancellable = client.searchAsync(request, RequestOptions.DEFAULT, listener(nextPage));
+	}
+
+	private static boolean hasSort(List<SortBuilder<?>> sorts, String field){
+		for (int i = 0; i < sorts.size(); i++) {
+			if(sorts.get(i) instanceof FieldSortBuilder && ((FieldSortBuilder) sorts.get(i)).getFieldName().equals(field)){
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static ActionListener<SearchResponse> listener(final CompletableFuture<SearchResponse> future){
+		return new ActionListener<SearchResponse>() {
+			public void onResponse(SearchResponse response) {
+				future.complete(response);
+			}
+			public void onFailure(Exception e) {
+				future.completeExceptionally(e);
+			}
+		};
+	}
+
+	/**
+	 * 请求下一页。当前页已取得，请求其后面的
+	 */
+	private void fetchNextPage(){
+		nextPage = new CompletableFuture<SearchResponse>();
+		if(scroll){
+			SearchScrollRequest request = new SearchScrollRequest(scrollId);
+			request.scroll(SCROLL_KEEP_ALIVE);
+			cancellable = client.scrollAsync(request, RequestOptions.DEFAULT, listener(nextPage));
+		}else{
+			//请求在发出前就已序列化，之后修改 searchSourceBuilder 不影响正在进行的请求
+			searchSourceBuilder.searchAfter(hits[hits.length - 1].getSortValues());
+			SearchRequest request = new SearchRequest(indexName);
+			request.source(searchSourceBuilder);
+			cancellable = client.searchAsync(request, RequestOptions.DEFAULT, listener(nextPage));
+		}
+	}
+
+	/**
+	 * @throws UncheckedIOException 请求出错
+	 */
+	public boolean hasNext() {
+		while(index >= hits.length){
+			if(nextPage == null){
+				return false;
+			}
+			SearchResponse response = join(nextPage);
+			nextPage = null;
+			cancellable = null;
+			hits = response.getHits().getHits();
+			index = 0;
+			if(scroll){
+				scrollId = response.getScrollId();
+			}
+			if(hits.length < pageSize){
+				//最后一页了
+				clearScroll();
+			}else{
+				//当前页遍历的同时，请求下一页
+				fetchNextPage();
+			}
+		}
+		return true;
+	}
+
+	private static SearchResponse join(CompletableFuture<SearchResponse> future){
+		try {
+			return future.join();
+		} catch (CompletionException e) {
+			Throwable cause = e.getCause();
+			if(cause instanceof RuntimeException){
+				throw (RuntimeException) cause;
+			}
+			if(cause instanceof IOException){
+				throw new UncheckedIOException((IOException) cause);
+			}
+			throw e;
+		}
+	}
+
+	/**
+	 * @throws UncheckedIOException 请求出错
+	 */
+	public T next() {
+		if(!hasNext()){
+			throw new NoSuchElementException();
+		}
+		SearchHit hit = hits[index];
+		//已遍历的不再引用
+		hits[index++] = null;
+		return converter.apply(hit);
+	}
+
+	/**
+	 * 转为 {@link Stream} 。 Stream 关闭时，会关闭这个 SearchIterator
+	 */
+	public Stream<T> stream(){
+		Stream<T> stream = StreamSupport.stream(Spliterators.spliteratorUnknownSize(this, Spliterator.ORDERED | Spliterator.NONNULL), false);
+		return stream.onClose(new Runnable() {
+			public void run() {
+				close();
+			}
+		});
+	}
+
+	/**
+	 * 释放 scroll
+	 */
+	private void clearScroll(){
+		if(scrollId == null){
+			return;
+		}
+		ClearScrollRequest request = new ClearScrollRequest();
+		request.addScrollId(scrollId);
+		scrollId = null;
+		//释放失败也不影响，到了保持时间会自动释放
+		client.clearScrollAsync(request, RequestOptions.DEFAULT, ActionListener.<ClearScrollResponse>wrap(new Runnable() {
+			public void run() {
+			}
+		}));
+	}
+
+	/**
+	 * 不再遍历，取消正在请求的下一页，释放 scroll
+	 */
+	public void close() {
+		if(closed){
+			return;
+		}
+		closed = true;
+		if(nextPage != null){
+			if(cancellable != null){
+				cancellable.cancel();
+			}
+			nextPage = null;
+		}
+		hits = new SearchHit[0];
+		clearScroll();
+	}
+}
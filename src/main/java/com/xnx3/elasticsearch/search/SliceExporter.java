@@ -0,0 +1,251 @@
+package com.xnx3.elasticsearch.search;
+
+import java.io.Closeable;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.builder.SearchSourceBuilder;
+import org.elasticsearch.search.slice.SliceBuilder;
+import org.elasticsearch.search.sort.FieldSortBuilder;
+import org.elasticsearch.search.sort.SortBuilder;
+
+/**
+ * 并行导出。将一次查询拆分为多个分片（sliced scroll），每个分片各自翻页，在线程池中同时导出，速度随客户端的CPU核数、es的分片数增加
+ * <p>导出不排序，按 _doc 顺序。每个分片内存中最多两页数据</p>
+ * @author 管雷鸣
+ */
+public class SliceExporter implements Closeable {
+	private int threadNumber = Runtime.getRuntime().availableProcessors();	//同时导出的分片数量，也就是线程数
+	private int pageSize = 1000;	//每个分片每页的条数
+	private ThreadPoolExecutor executor;	//导出线程，第一次导出时创建
+	private volatile boolean closed = false;
+
+	/**
+	 * 设置同时导出的线程数。分片数量超过线程数的，排队等待
+	 * @param threadNumber 线程数。如果不设置，默认是CPU核数
+	 */
+	public synchronized void setThreadNumber(int threadNumber) {
+		this.threadNumber = threadNumber;
+		if(executor != null){
+			if(threadNumber > executor.getMaximumPoolSize()){
+				executor.setMaximumPoolSize(threadNumber);
+				executor.setCorePoolSize(threadNumber);
+			}else{
+				executor.setCorePoolSize(threadNumber);
+				executor.setMaximumPoolSize(threadNumber);
+			}
+		}
+	}
+
+	/**
+	 * 设置每个分片每页的条数
+	 * @param pageSize 条数，不能小于1。如果不设置，默认是1000
+	 * @throws IllegalArgumentException pageSize 小于1
+	 */
+	public void setPageSize(int pageSize) {
+		if(pageSize < 1){
+			throw new IllegalArgumentException("pageSize must be >= 1, but was "+pageSize);
+		}
+		this.pageSize = pageSize;
+	}
+
+	private synchronized ThreadPoolExecutor executor(){
+		if(closed){
+			throw new IllegalStateException("slice exporter is closed");
+		}
+		if(executor == null){
+			final AtomicInteger threadIndex = new AtomicInteger();
+			executor = new ThreadPoolExecutor(threadNumber, threadNumber, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "elasticsearch-export-"+threadIndex.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+			executor.allowCoreThreadTimeOut(true);
+		}
+		return executor;
+	}
+
+	/**
+	 * 并行导出，每条数据交给 sink 。不会阻塞当前线程
+	 * @param client {@link RestHighLevelClient}
+	 * @param indexName 索引名字
+	 * @param searchSourceBuilder 查询条件，其排序会被忽略
+	 * @param sliceNumber 分片数量，建议为索引的分片数，或其整数倍。传入1则不拆分
+	 * @param converter 将每条结果转为需要的类型
+	 * @param sink 接收导出的数据，会被多个线程同时调用
+	 * @return 导出的总条数。如果出错，其他分片也随之停止，以异常结束。调用其 cancel 可停止导出
+	 * @throws IllegalArgumentException sliceNumber 小于1
+	 */
+	public <T> CompletableFuture<Long> export(final RestHighLevelClient client, final String indexName, SearchSourceBuilder searchSourceBuilder, int sliceNumber, final Function<SearchHit, T> converter, final ExportSink<T> sink){
+		if(sliceNumber < 1){
+			//为0时没有分片去完成 future ，会一直等待
+			throw new IllegalArgumentException("sliceNumber must be >= 1, but was "+sliceNumber);
+		}
+		final CompletableFuture<Long> future = new CompletableFuture<Long>();
+		final AtomicBoolean cancelled = new AtomicBoolean(false);
+		final AtomicLong count = new AtomicLong();
+		final AtomicInteger remaining = new AtomicInteger(sliceNumber);
+		future.whenComplete(new BiConsumer<Long, Throwable>() {
+			public void accept(Long result, Throwable e) {
+				if(e != null){
+					//出错或被取消，其他分片停止
+					cancelled.set(true);
+				}
+			}
+		});
+
+		List<SortBuilder<?>> sorts = searchSourceBuilder.sorts();
+		if(sorts != null){
+			sorts.clear();
+		}
+		searchSourceBuilder.sort(FieldSortBuilder.DOC_FIELD_NAME);
+		ThreadPoolExecutor executor = executor();
+		for (int i = 0; i < sliceNumber; i++) {
+			final SearchSourceBuilder sliceSource = searchSourceBuilder.shallowCopy();
+			if(sliceNumber > 1){
+				sliceSource.slice(new SliceBuilder(i, sliceNumber));
+			}
+			executor.execute(new Runnable() {
+				public void run() {
+					SearchIterator<T> iterator = null;
+					try {
+						if(!cancelled.get()){
+							iterator = new SearchIterator<T>(client, indexName, sliceSource, pageSize, null, converter);
+							while(!cancelled.get() && iterator.hasNext()){
+								sink.write(iterator.next());
+								count.incrementAndGet();
+							}
+						}
+					} catch (Exception e) {
+						future.completeExceptionally(e);
+					} finally {
+						if(iterator != null){
+							iterator.close();
+						}
+						if(remaining.decrementAndGet() == 0){
+							future.complete(count.get());
+						}
+					}
+				}
+			});
+		}
+		return future;
+	}
+
+	/**
+	 * 并行导出，所有分片的数据合并为一个 {@link Stream} 。分片导出得比遍历快时，会等待遍历，内存中最多缓存 分片数量*每页条数 条
+	 * <p>中途不再遍历时，需要关闭 Stream ，以停止导出</p>
+	 * @param client {@link RestHighLevelClient}
+	 * @param indexName 索引名字
+	 * @param searchSourceBuilder 查询条件，其排序会被忽略
+	 * @param sliceNumber 分片数量，建议为索引的分片数，或其整数倍。传入1则不拆分
+	 * @param converter 将每条结果转为需要的类型
+	 * @return 导出的数据，各个分片的数据交错。导出出错时，遍历会抛出异常
+	 */
+	public <T> Stream<T> stream(RestHighLevelClient client, String indexName, SearchSourceBuilder searchSourceBuilder, int sliceNumber, Function<SearchHit, T> converter){
+		final BlockingQueue<Object> queue = new ArrayBlockingQueue<Object>(Math.max(sliceNumber * pageSize, 1));
+		final AtomicBoolean streamClosed = new AtomicBoolean(false);
+		final Object end = new Object();	//导出结束的标记
+		final CompletableFuture<Long> future = export(client, indexName, searchSourceBuilder, sliceNumber, converter, new ExportSink<T>() {
+			public void write(T item) throws Exception {
+				put(queue, item, streamClosed);
+			}
+		});
+		future.whenComplete(new BiConsumer<Long, Throwable>() {
+			public void accept(Long result, Throwable e) {
+				try {
+					put(queue, end, streamClosed);
+				} catch (InterruptedException | CancellationException e1) {
+					//已关闭，不需要再标记
+				}
+			}
+		});
+
+		Iterator<T> iterator = new Iterator<T>() {
+			private Object next;
+			public boolean hasNext() {
+				if(next == null){
+					try {
+						next = queue.take();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						throw new CancellationException("interrupted");
+					}
+				}
+				if(next == end){
+					//结束了，如果是出错结束的，抛出异常
+					try {
+						future.join();
+					} catch (CompletionException e) {
+						if(e.getCause() instanceof RuntimeException){
+							throw (RuntimeException) e.getCause();
+						}
+						throw e;
+					}
+					return false;
+				}
+				return true;
+			}
+			@SuppressWarnings("unchecked")
+			public T next() {
+				if(!hasNext()){
+					throw new NoSuchElementException();
+				}
+				T item = (T) next;
+				next = null;
+				return item;
+			}
+		};
+		Stream<T> stream = StreamSupport.stream(Spliterators.spliteratorUnknownSize(iterator, Spliterator.NONNULL), false);
+		return stream.onClose(new Runnable() {
+			public void run() {
+				streamClosed.set(true);
+				future.cancel(false);
+				queue.clear();
+			}
+		});
+	}
+
+	/**
+	 * 放入队列。队列满了就等待，期间 Stream 关闭了则抛出 {@link CancellationException} 停止导出
+	 */
+	private static void put(BlockingQueue<Object> queue, Object item, AtomicBoolean streamClosed) throws InterruptedException {
+		while(!queue.offer(item, 100, TimeUnit.MILLISECONDS)){
+			if(streamClosed.get()){
+				throw new CancellationException("stream closed");
+			}
+		}
+	}
+
+	/**
+	 * 关闭，停止导出线程。正在导出的分片会被中断
+	 */
+	public synchronized void close(){
+		closed = true;
+		if(executor != null){
+			executor.shutdownNow();
+		}
+	}
+}
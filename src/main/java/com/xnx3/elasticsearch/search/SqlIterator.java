@@ -0,0 +1,431 @@
+package com.xnx3.elasticsearch.search;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+import org.elasticsearch.client.Request;
+import org.elasticsearch.client.Response;
+import org.elasticsearch.client.ResponseListener;
+import org.elasticsearch.client.RestClient;
+import org.elasticsearch.common.Strings;
+import org.elasticsearch.common.xcontent.DeprecationHandler;
+import org.elasticsearch.common.xcontent.NamedXContentRegistry;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.common.xcontent.XContentParser;
+import org.elasticsearch.common.xcontent.XContentType;
+import com.xnx3.elasticsearch.mapper.BeanMapper;
+
+/**
+ * 逐行遍历sql查询的全部结果。按 fetch_size 一页页请求，跟随返回的 cursor 请求下一页，直到没有 cursor
+ * <p>每一页的返回内容直接从输入流逐行解析，遍历到哪一行才解析哪一行，不会先转为字符串、JSON对象</p>
+ * <p>遍历完 cursor 自然结束；中途不再遍历时，需要调用 {@link #close()} ，会关闭 cursor 释放es的资源。可以使用 try-with-resources</p>
+ * @author 管雷鸣
+ */
+public class SqlIterator<T> implements Iterator<T>, Closeable {
+	private RestClient client;
+	private String sqlQuery;
+	private Object[] params;	//sql中 ? 对应的参数，没有为null
+	private int fetchSize;
+	private SqlRowReader<T> reader;
+	private String[] columns;		//列名，第一页返回的
+	private String[] columnTypes;	//列的类型，如 long、double、keyword ，跟列名按顺序对应
+	private String cursor;			//下一页的 cursor ，没有下一页为null
+	private XContentParser parser;	//当前页的解析，当前页遍历完为null
+	private T next;					//已读取、还未取出的一行
+	private boolean started = false;	//是否已请求第一页
+	private boolean closed = false;
+
+	/**
+	 * 创建后不会立即请求，第一次 {@link #hasNext()} 时请求第一页
+	 * @param client {@link RestClient}
+	 * @param sqlQuery sql查询语句，传入如： select * from user WHERE username = 'guanleiming'
+	 * @param fetchSize 每页的条数
+	 * @param reader 将每一行转为需要的类型
+	 */
+	public SqlIterator(RestClient client, String sqlQuery, int fetchSize, SqlRowReader<T> reader) {
+		this(client, sqlQuery, null, fetchSize, reader);
+	}
+
+	/**
+	 * 创建后不会立即请求，第一次 {@link #hasNext()} 时请求第一页
+	 * @param client {@link RestClient}
+	 * @param sqlQuery sql查询语句，其中的参数用 ? 代替，传入如： select * from user WHERE username = ? AND age > ?
+	 * @param params sql中 ? 对应的参数，按顺序。通过 _sql 的 params 传递，不拼接到sql中，不用担心引号等转义问题。没有参数传入null
+	 * @param fetchSize 每页的条数
+	 * @param reader 将每一行转为需要的类型
+	 */
+	public SqlIterator(RestClient client, String sqlQuery, Object[] params, int fetchSize, SqlRowReader<T> reader) {
+		this.client = client;
+		this.sqlQuery = sqlQuery;
+		this.params = params;
+		this.fetchSize = fetchSize;
+		this.reader = reader;
+	}
+
+	/**
+	 * 创建sql查询第一页的请求
+	 * @param params sql中 ? 对应的参数，没有传入null
+	 * @param fetchSize 每页的条数，传入0则使用es默认的
+	 */
+	public static Request queryRequest(String sqlQuery, Object[] params, int fetchSize){
+		return request("/_sql", queryBody(sqlQuery, params, fetchSize));
+	}
+
+	/**
+	 * 创建sql查询的请求内容，也用于 /_sql/translate
+	 * @param params sql中 ? 对应的参数，没有传入null
+	 * @param fetchSize 每页的条数，传入0则使用es默认的
+	 */
+	static XContentBuilder queryBody(String sqlQuery, Object[] params, int fetchSize){
+		try {
+			XContentBuilder builder = XContentFactory.jsonBuilder();
+			builder.startObject();
+			builder.field("query", sqlQuery);
+			if(params != null && params.length > 0){
+				builder.startArray("params");
+				for (int i = 0; i < params.length; i++) {
+					writeParam(builder, params[i]);
+				}
+				builder.endArray();
+			}
+			if(fetchSize > 0){
+				builder.field("fetch_size", fetchSize);
+			}
+			builder.endObject();
+			return builder;
+		} catch (IOException e) {
+			//写入内存，不会出现
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * 写入一个参数。时间以13位时间戳写入，跟 DefaultJsonFormat 一致
+	 */
+	static void writeParam(XContentBuilder builder, Object param) throws IOException {
+		if(param instanceof Date){
+			builder.value(((Date) param).getTime());
+		}else{
+			builder.value(param);
+		}
+	}
+
+	/**
+	 * 创建请求 cursor 对应页的请求，或者关闭 cursor 的请求
+	 * @param endPoint /_sql 为请求下一页， /_sql/close 为关闭
+	 */
+	private static Request cursorRequest(String endPoint, String cursor){
+		try {
+			XContentBuilder builder = XContentFactory.jsonBuilder();
+			builder.startObject().field("cursor", cursor).endObject();
+			return request(endPoint, builder);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	static Request request(String endPoint, XContentBuilder builder){
+		Request request = new Request("POST", endPoint);
+		request.addParameter("format", "json");
+		request.setJsonEntity(Strings.toString(builder));
+		return request;
+	}
+
+	/**
+	 * @return 列名。第一页请求之前为null
+	 */
+	public String[] getColumns() {
+		return columns;
+	}
+
+	/**
+	 * @return 列的类型，如 long、double、keyword、datetime ，跟 {@link #getColumns()} 按顺序对应。第一页请求之前为null
+	 */
+	public String[] getColumnTypes() {
+		return columnTypes;
+	}
+
+	/**
+	 * 请求一页，解析到 rows 的开始 '['
+	 */
+	private void openPage(Request request) throws IOException {
+		Response response = client.performRequest(request);
+		InputStream in = response.getEntity().getContent();
+		parser = XContentType.JSON.xContent().createParser(NamedXContentRegistry.EMPTY, DeprecationHandler.THROW_UNSUPPORTED_OPERATION, in);
+		cursor = null;
+		if(!readHead(parser)){
+			//没有 rows
+			closePage();
+		}
+	}
+
+	/**
+	 * 读取一页的开头，直到 rows 的开始 '[' 。 columns 只有第一页有
+	 * @return 是否有 rows
+	 */
+	private boolean readHead(XContentParser parser) throws IOException {
+		parser.nextToken();
+		while(parser.nextToken() == XContentParser.Token.FIELD_NAME){
+			String name = parser.currentName();
+			parser.nextToken();
+			if(name.equals("columns")){
+				readColumns(parser);
+			}else if(name.equals("cursor")){
+				cursor = parser.text();
+			}else if(name.equals("rows")){
+				return true;
+			}else{
+				parser.skipChildren();
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * 读取 columns ，得到列名、列的类型
+	 */
+	private void readColumns(XContentParser parser) throws IOException {
+		List<String> nameList = new ArrayList<String>();
+		List<String> typeList = new ArrayList<String>();
+		while(parser.nextToken() == XContentParser.Token.START_OBJECT){
+			String name = null;
+			String type = null;
+			while(parser.nextToken() == XContentParser.Token.FIELD_NAME){
+				String field = parser.currentName();
+				parser.nextToken();
+				if(field.equals("name")){
+					name = parser.text();
+				}else if(field.equals("type")){
+					type = parser.text();
+				}else{
+					parser.skipChildren();
+				}
+			}
+			nameList.add(name);
+			typeList.add(type);
+		}
+		columns = nameList.toArray(new String[nameList.size()]);
+		columnTypes = typeList.toArray(new String[typeList.size()]);
+	}
+
+	/**
+	 * rows 读取完后，读取剩下的，得到 cursor ，并关闭这一页
+	 */
+	private void readTail() throws IOException {
+		while(parser.nextToken() == XContentParser.Token.FIELD_NAME){
+			String name = parser.currentName();
+			parser.nextToken();
+			if(name.equals("cursor")){
+				cursor = parser.text();
+			}else{
+				parser.skipChildren();
+			}
+		}
+		closePage();
+	}
+
+	private void closePage(){
+		if(parser != null){
+			try {
+				parser.close();
+			} catch (IOException e) {
+				//已读取完，关闭失败不影响
+			}
+			parser = null;
+		}
+	}
+
+	/**
+	 * @throws UncheckedIOException 请求出错
+	 */
+	public boolean hasNext() {
+		if(next != null){
+			return true;
+		}
+		if(closed){
+			return false;
+		}
+		try {
+			if(!started){
+				started = true;
+				openPage(queryRequest(sqlQuery, params, fetchSize));
+			}
+			while(true){
+				if(parser != null){
+					if(parser.nextToken() == XContentParser.Token.START_ARRAY){
+						next = reader.read(parser, columns);
+						return true;
+					}
+					//这一页的 rows 读取完了
+					readTail();
+				}
+				if(cursor == null){
+					closed = true;
+					return false;
+				}
+				openPage(cursorRequest("/_sql", cursor));
+			}
+		} catch (IOException e) {
+			close();
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * @throws UncheckedIOException 请求出错
+	 */
+	public T next() {
+		if(!hasNext()){
+			throw new NoSuchElementException();
+		}
+		T item = next;
+		next = null;
+		return item;
+	}
+
+	/**
+	 * 转为 {@link Stream} 。 Stream 关闭时，会关闭这个 SqlIterator
+	 */
+	public Stream<T> stream(){
+		Stream<T> stream = StreamSupport.stream(Spliterators.spliteratorUnknownSize(this, Spliterator.ORDERED | Spliterator.NONNULL), false);
+		return stream.onClose(new Runnable() {
+			public void run() {
+				close();
+			}
+		});
+	}
+
+	/**
+	 * 不再遍历。还有下一页的，关闭 cursor
+	 */
+	public void close() {
+		closed = true;
+		next = null;
+		if(parser != null){
+			//当前页没读取完，需要读取到 cursor 才能关闭
+			try {
+				while(parser.nextToken() == XContentParser.Token.START_ARRAY){
+					parser.skipChildren();
+				}
+				readTail();
+			} catch (IOException e) {
+				closePage();
+			}
+		}
+		if(cursor != null){
+			try {
+				client.performRequest(cursorRequest("/_sql/close", cursor));
+			} catch (IOException e) {
+				//关闭失败也不影响，es会在一段时间后自动释放
+				e.printStackTrace();
+			}
+			cursor = null;
+		}
+	}
+
+	/**
+	 * 异步读取sql查询的全部结果，跟随 cursor 一页页请求，不会阻塞当前线程
+	 * @param client {@link RestClient}
+	 * @param sqlQuery sql查询语句
+	 * @param params sql中 ? 对应的参数，没有传入null
+	 * @param fetchSize 每页的条数
+	 * @param reader 将每一行转为需要的类型
+	 * @return 全部结果。如果执行出错，会以异常结束
+	 */
+	public static <T> CompletableFuture<List<T>> readAllAsync(RestClient client, String sqlQuery, Object[] params, int fetchSize, SqlRowReader<T> reader){
+		CompletableFuture<List<T>> future = new CompletableFuture<List<T>>();
+		SqlIterator<T> iterator = new SqlIterator<T>(client, sqlQuery, params, fetchSize, reader);
+		iterator.started = true;
+		iterator.readPageAsync(queryRequest(sqlQuery, params, fetchSize), new ArrayList<T>(), future);
+		return future;
+	}
+
+	/**
+	 * 异步请求一页，读取其全部行加入 list ，有下一页的继续请求下一页
+	 */
+	private void readPageAsync(Request request, final List<T> list, final CompletableFuture<List<T>> future){
+		client.performRequestAsync(request, new ResponseListener() {
+			public void onSuccess(Response response) {
+				try {
+					parser = XContentType.JSON.xContent().createParser(NamedXContentRegistry.EMPTY, DeprecationHandler.THROW_UNSUPPORTED_OPERATION, response.getEntity().getContent());
+					cursor = null;
+					if(readHead(parser)){
+						while(parser.nextToken() == XContentParser.Token.START_ARRAY){
+							list.add(reader.read(parser, columns));
+						}
+						readTail();
+					}else{
+						closePage();
+					}
+				} catch (IOException | RuntimeException e) {
+					closePage();
+					future.completeExceptionally(e);
+					return;
+				}
+				if(cursor == null){
+					future.complete(list);
+				}else{
+					readPageAsync(cursorRequest("/_sql", cursor), list, future);
+				}
+			}
+			public void onFailure(Exception exception) {
+				future.completeExceptionally(exception);
+			}
+		});
+	}
+
+	/**
+	 * 将sql查询结果的一行转为map，值为null的列不加入
+	 */
+	public static SqlRowReader<Map<String, Object>> mapRowReader(){
+		return new SqlRowReader<Map<String,Object>>() {
+			public Map<String, Object> read(XContentParser parser, String[] columns) throws IOException {
+				Map<String, Object> map = new HashMap<String, Object>();
+				XContentParser.Token token;
+				int i = 0;
+				while((token = parser.nextToken()) != XContentParser.Token.END_ARRAY){
+					Object value;
+					if(token == XContentParser.Token.START_OBJECT){
+						value = parser.map();
+					}else if(token == XContentParser.Token.START_ARRAY){
+						value = parser.list();
+					}else{
+						value = parser.objectText();
+					}
+					if(value != null && i < columns.length){
+						//如果此项不为null，那么加入 map
+						map.put(columns[i], value);
+					}
+					i++;
+				}
+				return map;
+			}
+		};
+	}
+
+	/**
+	 * 将sql查询结果的一行转为实体类
+	 */
+	public static <T> SqlRowReader<T> beanRowReader(Class<T> clazz){
+		final BeanMapper<T> mapper = BeanMapper.get(clazz);
+		return new SqlRowReader<T>() {
+			public T read(XContentParser parser, String[] columns) throws IOException {
+				return mapper.readRow(parser, columns);
+			}
+		};
+	}
+}
@@ -0,0 +1,19 @@
+package com.xnx3.elasticsearch.search;
+
+import java.io.IOException;
+import org.elasticsearch.common.xcontent.XContentParser;
+
+/**
+ * 将sql查询结果的一行，转为需要的类型。服务于 {@link SqlIterator}
+ * @author 管雷鸣
+ */
+public interface SqlRowReader<T> {
+
+	/**
+	 * 读取一行
+	 * @param parser 当前在这一行的开始 '[' 上，读取完后需要在这一行的结束 ']' 上
+	 * @param columns 每一列的列名，与这一行中的值按顺序对应
+	 * @return 这一行转为的对象
+	 */
+	public T read(XContentParser parser, String[] columns) throws IOException;
+}
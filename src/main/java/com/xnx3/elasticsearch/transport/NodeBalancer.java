@@ -0,0 +1,250 @@
+package com.xnx3.elasticsearch.transport;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpRequestInterceptor;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpResponseInterceptor;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.protocol.HttpContext;
+import org.elasticsearch.client.Node;
+import org.elasticsearch.client.NodeSelector;
+import com.xnx3.elasticsearch.ElasticSearchUtil;
+
+/**
+ * 按节点的角色、响应情况选择请求发往哪个elasticsearch节点。由 {@link TransportConfig#setBalanceNodes(boolean)} 开启
+ * <ul>
+ * 	<li>按角色：不发往专用的master节点。查询优先发往协调节点（没有任何角色的节点），没有再发往数据节点；批量写入优先发往数据节点（data、data_hot、data_content 等以 data 开头的角色）。节点的角色需要 {@link TransportConfig#setSniffInterval(long)} 开启节点发现后，由 {@link NodeSniffer} 通过 {@link #setRoles(Map)} 传入</li>
+ * 	<li>按响应情况：记录每个节点的平均响应时间 {@link NodeStats} ，只发往平均响应时间不超过最快节点 {@link #TOLERANCE} 倍的节点，这些节点间轮流发送。变慢、出错的节点会少收到请求</li>
+ * 	<li>一段时间没有请求的节点，平均响应时间已不准确，会重新参与轮流，恢复的节点可以重新收到请求</li>
+ * </ul>
+ * <p>同一个 {@link ElasticSearchUtil} 的查询、批量写入两个客户端共用一个 NodeBalancer 的响应记录</p>
+ * @author 管雷鸣
+ */
+public class NodeBalancer {
+	/**
+	 * 平均响应时间不超过最快节点的多少倍，会参与轮流
+	 */
+	public static final double TOLERANCE = 2;
+	/**
+	 * 默认多久没有请求的节点，重新参与轮流，单位毫秒
+	 */
+	public static final long STALE_AFTER = 10000;
+	/**
+	 * 出错的请求最少按多少毫秒的响应时间计入。超时时间设为0、-1（不超时）时也要有惩罚，否则出错的节点反而成了最快的
+	 */
+	public static final long MIN_ERROR_PENALTY = 30000;
+	private static final String START_ATTRIBUTE = NodeBalancer.class.getName() + ".start";	//请求发出的时间，存在 HttpContext 中
+
+	private long staleAfter;	//多久没有请求的节点，重新参与轮流，单位毫秒
+	private long errorPenalty;	//出错的请求按多少毫秒的响应时间计入
+	private Map<HttpHost, NodeStats> statsMap = new ConcurrentHashMap<HttpHost, NodeStats>();
+	private volatile Map<HttpHost, Set<String>> roleMap = Collections.<HttpHost, Set<String>>emptyMap();	//每个节点的角色，节点发现时更新
+
+	/**
+	 * @param staleAfter 多久没有请求的节点，重新参与轮流，单位毫秒，如 {@link #STALE_AFTER}
+	 * @param errorPenalty 出错的请求按多少毫秒的响应时间计入，如请求的超时时间。不足 {@link #MIN_ERROR_PENALTY} 的按 {@link #MIN_ERROR_PENALTY}
+	 */
+	public NodeBalancer(long staleAfter, long errorPenalty) {
+		this.staleAfter = staleAfter;
+		this.errorPenalty = Math.max(errorPenalty, MIN_ERROR_PENALTY);
+	}
+
+	/**
+	 * 查询使用的 {@link NodeSelector}
+	 */
+	public NodeSelector readSelector(){
+		return new Selector(false);
+	}
+
+	/**
+	 * 批量写入使用的 {@link NodeSelector}
+	 */
+	public NodeSelector writeSelector(){
+		return new Selector(true);
+	}
+
+	/**
+	 * 请求发出时记录时间，加到 HttpAsyncClientBuilder 中
+	 */
+	public HttpRequestInterceptor requestInterceptor(){
+		return new HttpRequestInterceptor() {
+			public void process(HttpRequest request, HttpContext context) {
+				context.setAttribute(START_ATTRIBUTE, System.nanoTime());
+			}
+		};
+	}
+
+	/**
+	 * 收到响应时记录响应时间，加到 HttpAsyncClientBuilder 中
+	 */
+	public HttpResponseInterceptor responseInterceptor(){
+		return new HttpResponseInterceptor() {
+			public void process(HttpResponse response, HttpContext context) {
+				Object start = context.getAttribute(START_ATTRIBUTE);
+				HttpHost host = HttpClientContext.adapt(context).getTargetHost();
+				if(start == null || host == null){
+					return;
+				}
+				int status = response.getStatusLine().getStatusCode();
+				if(status == 502 || status == 503 || status == 504){
+					//这几个RestClient会当作节点故障，通过 FailureListener 调用 failure(host)
+					return;
+				}
+				if(status == 429 || status >= 500){
+					stats(host).failure();
+				}else{
+					stats(host).success((System.nanoTime() - (Long) start) / 1000000.0);
+				}
+			}
+		};
+	}
+
+	/**
+	 * 记录一次节点故障，如连接失败、超时
+	 * @param host 节点
+	 */
+	public void failure(HttpHost host){
+		stats(host).failure();
+	}
+
+	/**
+	 * 更新每个节点的角色，由 {@link NodeSniffer} 每次发现节点后调用
+	 * @param roleMap key: 节点  value: _nodes/http 中这个节点的 roles ，没有任何角色的为空Set
+	 */
+	public void setRoles(Map<HttpHost, Set<String>> roleMap){
+		this.roleMap = roleMap;
+	}
+
+	/**
+	 * 获取每个节点的响应情况
+	 * @return key: 节点  value: 响应情况
+	 */
+	public Map<HttpHost, NodeStats> getStats(){
+		return Collections.unmodifiableMap(statsMap);
+	}
+
+	private NodeStats stats(HttpHost host){
+		NodeStats stats = statsMap.get(host);
+		if(stats == null){
+			NodeStats created = new NodeStats(errorPenalty);
+			stats = statsMap.putIfAbsent(host, created);
+			if(stats == null){
+				stats = created;
+			}
+		}
+		return stats;
+	}
+
+	/**
+	 * 节点是否是专用的master节点
+	 */
+	private boolean isDedicatedMaster(Node node){
+		return isDedicatedMaster(roleMap.get(node.getHost()));
+	}
+
+	/**
+	 * 是否是专用的master节点，只有 master 角色，没有数据、ingest 等角色
+	 * @param roles _nodes/http 中这个节点的 roles ，不知道角色的传入null
+	 */
+	static boolean isDedicatedMaster(Set<String> roles){
+		return roles != null && roles.contains("master") && !isData(roles) && !roles.contains("ingest");
+	}
+
+	/**
+	 * 节点是否是协调节点，没有任何角色
+	 */
+	private boolean isCoordinatingOnly(Node node){
+		Set<String> roles = roleMap.get(node.getHost());
+		return roles != null && roles.isEmpty();
+	}
+
+	/**
+	 * 节点是否是数据节点。7.10 起数据节点的角色分为 data_hot、data_warm、data_content 等，不一定有 data
+	 */
+	private boolean isData(Node node){
+		Set<String> roles = roleMap.get(node.getHost());
+		return roles != null && isData(roles);
+	}
+
+	private static boolean isData(Set<String> roles){
+		for (String role : roles) {
+			if(role.startsWith("data")){
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private class Selector implements NodeSelector {
+		private boolean write;
+
+		Selector(boolean write) {
+			this.write = write;
+		}
+
+		public void select(Iterable<Node> nodes) {
+			boolean hasCoordinating = false;
+			boolean hasData = false;
+			boolean hasNonMaster = false;
+			for (Node node : nodes) {
+				hasCoordinating = hasCoordinating || isCoordinatingOnly(node);
+				hasData = hasData || isData(node);
+				hasNonMaster = hasNonMaster || !isDedicatedMaster(node);
+			}
+
+			//按响应情况：找出符合角色的节点中最快的
+			long now = System.currentTimeMillis();
+			double best = Double.MAX_VALUE;
+			for (Node node : nodes) {
+				if(!keepByRole(node, hasCoordinating, hasData, hasNonMaster)){
+					continue;
+				}
+				NodeStats stats = statsMap.get(node.getHost());
+				if(stats != null && now - stats.getLastUpdate() < staleAfter && stats.getEwma() < best){
+					best = stats.getEwma();
+				}
+			}
+
+			Iterator<Node> iterator = nodes.iterator();
+			while(iterator.hasNext()){
+				Node node = iterator.next();
+				if(!keepByRole(node, hasCoordinating, hasData, hasNonMaster)){
+					iterator.remove();
+					continue;
+				}
+				NodeStats stats = statsMap.get(node.getHost());
+				if(stats == null || now - stats.getLastUpdate() >= staleAfter){
+					//没有请求过，或者很久没有请求了，参与轮流
+					continue;
+				}
+				if(stats.getEwma() > best * TOLERANCE){
+					iterator.remove();
+				}
+			}
+		}
+
+		/**
+		 * 按角色判断是否保留这个节点。不知道角色的节点（没有开启节点发现）都保留
+		 */
+		private boolean keepByRole(Node node, boolean hasCoordinating, boolean hasData, boolean hasNonMaster){
+			if(!write && hasCoordinating){
+				return isCoordinatingOnly(node);
+			}
+			if(hasData){
+				return isData(node);
+			}
+			return !hasNonMaster || !isDedicatedMaster(node);
+		}
+
+		@Override
+		public String toString() {
+			return write ? "NodeBalancer[write]" : "NodeBalancer[read]";
+		}
+	}
+}
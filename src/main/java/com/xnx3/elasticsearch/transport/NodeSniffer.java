@@ -0,0 +1,251 @@
+package com.xnx3.elasticsearch.transport;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.apache.http.HttpHost;
+import org.elasticsearch.client.Node;
+import org.elasticsearch.client.Request;
+import org.elasticsearch.client.Response;
+import org.elasticsearch.client.RestClient;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.elasticsearch.common.xcontent.XContentType;
+
+/**
+ * 节点发现。定时通过 _nodes/http 获取集群中全部的节点及其角色，更新到 {@link RestClient} 中，集群扩容、缩容后不需要修改配置
+ * <p>由 {@link TransportConfig#setSniffInterval(long)} 开启。有节点故障时，会在 {@link #SNIFF_AFTER_FAILURE_DELAY} 毫秒后提前发现一次</p>
+ * <p>这里自己请求 _nodes/http ，没有引入 elasticsearch-rest-client-sniffer</p>
+ * @author 管雷鸣
+ */
+public class NodeSniffer implements Closeable {
+	/**
+	 * 有节点故障时，多久之后提前发现一次，单位毫秒
+	 */
+	public static final long SNIFF_AFTER_FAILURE_DELAY = 1000;
+
+	private RestClient client;			//请求 _nodes/http 的客户端
+	private List<RestClient> targets = new CopyOnWriteArrayList<RestClient>();	//发现的节点更新到这些客户端中
+	private String scheme;				//节点的协议，http 或 https ，_nodes/http 中没有
+	private long interval;				//多久发现一次，单位毫秒
+	private NodeBalancer balancer;		//发现的节点角色更新到这里，可以为null
+	private ScheduledExecutorService scheduledExecutor;
+	private AtomicBoolean failureScheduled = new AtomicBoolean(false);	//是否已有故障后等待中的发现
+	private volatile List<Node> nodes = Collections.<Node>emptyList();	//最后一次发现的节点
+	private volatile Map<HttpHost, Set<String>> roleMap = Collections.<HttpHost, Set<String>>emptyMap();	//最后一次发现的每个节点的角色
+
+	/**
+	 * 创建后便开始定时发现
+	 * @param client 请求 _nodes/http 的客户端，发现的节点也会更新到其中
+	 * @param scheme 节点的协议，http 或 https
+	 * @param interval 多久发现一次，单位毫秒，如 300000
+	 * @param balancer 发现的节点角色更新到这个 {@link NodeBalancer} 中，没有开启按角色选择节点的传入null
+	 */
+	public NodeSniffer(RestClient client, String scheme, long interval, NodeBalancer balancer) {
+		this.client = client;
+		this.scheme = scheme;
+		this.interval = interval;
+		this.balancer = balancer;
+		this.targets.add(client);
+		this.scheduledExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "elasticsearch-sniffer");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		this.scheduledExecutor.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				sniff();
+			}
+		}, 0, interval, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * 发现的节点，同时更新到这个客户端中
+	 * @param target 如批量写入使用的客户端
+	 */
+	public void addTarget(RestClient target){
+		targets.add(target);
+		List<Node> current = nodes;
+		if(!current.isEmpty()){
+			target.setNodes(current);
+		}
+	}
+
+	/**
+	 * 有节点故障，{@link #SNIFF_AFTER_FAILURE_DELAY} 毫秒后提前发现一次。这期间多次故障只发现一次
+	 */
+	public void sniffOnFailure(){
+		if(!failureScheduled.compareAndSet(false, true)){
+			return;
+		}
+		try {
+			scheduledExecutor.schedule(new Runnable() {
+				public void run() {
+					failureScheduled.set(false);
+					sniff();
+				}
+			}, SNIFF_AFTER_FAILURE_DELAY, TimeUnit.MILLISECONDS);
+		} catch (RejectedExecutionException e) {
+			//已关闭
+		}
+	}
+
+	/**
+	 * 立即发现一次，当前线程会等待完成
+	 * @return 发现的节点。出错或者没有发现节点，返回空List，客户端中的节点不变
+	 */
+	public List<Node> sniff(){
+		List<Node> list;
+		Map<HttpHost, Set<String>> roleMap = new HashMap<HttpHost, Set<String>>();
+		try {
+			list = readNodes(roleMap);
+		} catch (IOException | RuntimeException e) {
+			e.printStackTrace();
+			return Collections.<Node>emptyList();
+		}
+		if(list.isEmpty()){
+			return list;
+		}
+		//先更新角色，再更新节点，新的节点被选择时已经知道角色
+		this.roleMap = Collections.unmodifiableMap(roleMap);
+		if(balancer != null){
+			balancer.setRoles(this.roleMap);
+		}
+		nodes = Collections.unmodifiableList(list);
+		for (RestClient target : targets) {
+			target.setNodes(list);
+		}
+		return nodes;
+	}
+
+	/**
+	 * 请求 _nodes/http ，读取每个节点的地址、角色
+	 * @param roleMap 传入一个空的Map，会将每个节点原始的 roles 加入其中。 {@link Node.Roles} 只认识 master、data、ingest ，7.10 起的 data_hot 等角色需要从这里判断
+	 */
+	@SuppressWarnings("unchecked")
+	private List<Node> readNodes(Map<HttpHost, Set<String>> roleMap) throws IOException {
+		Request request = new Request("GET", "/_nodes/http");
+		request.addParameter("timeout", Math.min(interval, 5000) + "ms");
+		Response response = client.performRequest(request);
+		Map<String, Object> map;
+		InputStream in = response.getEntity().getContent();
+		try {
+			map = XContentHelper.convertToMap(XContentType.JSON.xContent(), in, false);
+		} finally {
+			in.close();
+		}
+
+		List<Node> list = new ArrayList<Node>();
+		Map<String, Object> nodeMap = (Map<String, Object>) map.get("nodes");
+		if(nodeMap == null){
+			return list;
+		}
+		for (Map.Entry<String, Object> entry : nodeMap.entrySet()) {
+			Map<String, Object> info = (Map<String, Object>) entry.getValue();
+			Map<String, Object> http = (Map<String, Object>) info.get("http");
+			if(http == null || http.get("publish_address") == null){
+				//没有开启http的节点，不能请求
+				continue;
+			}
+			HttpHost host = host(http.get("publish_address").toString());
+			Set<HttpHost> boundHosts = new LinkedHashSet<HttpHost>();
+			Object boundAddress = http.get("bound_address");
+			if(boundAddress instanceof Collection){
+				for (Object address : (Collection<Object>) boundAddress) {
+					boundHosts.add(host(address.toString()));
+				}
+			}
+			Set<String> roles = new TreeSet<String>();
+			if(info.get("roles") instanceof Collection){
+				for (Object role : (Collection<Object>) info.get("roles")) {
+					roles.add(role.toString());
+				}
+			}
+			Map<String, List<String>> attributes = new HashMap<String, List<String>>();
+			if(info.get("attributes") instanceof Map){
+				for (Map.Entry<String, Object> attribute : ((Map<String, Object>) info.get("attributes")).entrySet()) {
+					attributes.put(attribute.getKey(), Collections.singletonList(String.valueOf(attribute.getValue())));
+				}
+			}
+			roleMap.put(host, Collections.unmodifiableSet(roles));
+			list.add(new Node(host, boundHosts, (String) info.get("name"), (String) info.get("version"), new Node.Roles(roles), attributes));
+		}
+		return list;
+	}
+
+	/**
+	 * 将 publish_address 转为 {@link HttpHost} 。 publish_address 如 10.0.0.1:9200 ，设置了 network.publish_host 的为 es1.example.com/10.0.0.1:9200
+	 */
+	private HttpHost host(String address){
+		String hostname = null;
+		int slash = address.indexOf('/');
+		if(slash > -1){
+			hostname = address.substring(0, slash);
+			address = address.substring(slash + 1);
+		}
+		URI uri = URI.create(scheme + "://" + address);
+		return new HttpHost(hostname == null ? uri.getHost() : hostname, uri.getPort(), scheme);
+	}
+
+	/**
+	 * 去掉专用的master节点，没有开启 {@link NodeBalancer} 时使用。 master 节点负责管理集群，不应该处理查询、写入。如果只剩专用的master节点，那么都保留
+	 * @param nodes {@link org.elasticsearch.client.NodeSelector#select(Iterable)} 传入的节点，不知道角色的节点保留
+	 */
+	public void skipDedicatedMasters(Iterable<Node> nodes){
+		Map<HttpHost, Set<String>> roleMap = this.roleMap;
+		boolean hasNonMaster = false;
+		for (Node node : nodes) {
+			if(!NodeBalancer.isDedicatedMaster(roleMap.get(node.getHost()))){
+				hasNonMaster = true;
+				break;
+			}
+		}
+		if(!hasNonMaster){
+			return;
+		}
+		Iterator<Node> iterator = nodes.iterator();
+		while(iterator.hasNext()){
+			if(NodeBalancer.isDedicatedMaster(roleMap.get(iterator.next().getHost()))){
+				iterator.remove();
+			}
+		}
+	}
+
+	/**
+	 * @return 最后一次发现的节点
+	 */
+	public List<Node> getNodes() {
+		return nodes;
+	}
+
+	/**
+	 * 停止定时发现
+	 */
+	public void close() {
+		scheduledExecutor.shutdownNow();
+	}
+
+	@Override
+	public String toString() {
+		return "NodeSniffer [interval=" + interval + ", nodes=" + nodes.size() + "]";
+	}
+}
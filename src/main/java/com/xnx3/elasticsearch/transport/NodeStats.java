@@ -0,0 +1,83 @@
+package com.xnx3.elasticsearch.transport;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 一个elasticsearch节点的响应情况，服务于 {@link NodeBalancer}
+ * <p>响应时间使用指数加权移动平均（EWMA），越近的请求占的比重越大。出错的请求按 {@link #errorPenalty} 计入，出错多的节点平均响应时间会迅速变大</p>
+ * @author 管雷鸣
+ */
+public class NodeStats {
+	private static final double ALPHA = 0.3;	//最新一次响应时间所占的比重
+
+	private long errorPenalty;				//出错的请求按多少毫秒的响应时间计入
+	private double ewma = 0;				//平均响应时间，单位毫秒
+	private boolean sampled = false;		//是否已经有过请求。响应时间可能为0，不能用 ewma 是否为0判断
+	private volatile long lastUpdate = 0;	//最后一次更新的时间，13位时间戳
+	private LongAdder requestCount = new LongAdder();
+	private LongAdder errorCount = new LongAdder();
+
+	/**
+	 * @param errorPenalty 出错的请求按多少毫秒的响应时间计入，如 30000
+	 */
+	public NodeStats(long errorPenalty) {
+		this.errorPenalty = errorPenalty;
+	}
+
+	/**
+	 * 记录一次成功的请求
+	 * @param latency 响应时间，单位毫秒
+	 */
+	public void success(double latency){
+		requestCount.increment();
+		update(latency);
+	}
+
+	/**
+	 * 记录一次出错的请求，如连接失败、超时、节点返回 5xx 或 429
+	 */
+	public void failure(){
+		requestCount.increment();
+		errorCount.increment();
+		update(errorPenalty);
+	}
+
+	private synchronized void update(double latency){
+		ewma = sampled ? ALPHA * latency + (1 - ALPHA) * ewma : latency;
+		sampled = true;
+		lastUpdate = System.currentTimeMillis();
+	}
+
+	/**
+	 * @return 平均响应时间，单位毫秒。还没有请求过的为0
+	 */
+	public synchronized double getEwma() {
+		return ewma;
+	}
+
+	/**
+	 * @return 最后一次请求完成的时间，13位时间戳。还没有请求过的为0
+	 */
+	public long getLastUpdate() {
+		return lastUpdate;
+	}
+
+	/**
+	 * @return 请求的总数
+	 */
+	public long getRequestCount() {
+		return requestCount.sum();
+	}
+
+	/**
+	 * @return 出错的请求数
+	 */
+	public long getErrorCount() {
+		return errorCount.sum();
+	}
+
+	@Override
+	public String toString() {
+		return "NodeStats [ewma=" + getEwma() + ", requestCount=" + getRequestCount() + ", errorCount=" + getErrorCount() + "]";
+	}
+}
@@ -0,0 +1,272 @@
+package com.xnx3.elasticsearch.transport;
+
+import java.security.NoSuchAlgorithmException;
+import javax.net.ssl.SSLContext;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.nio.conn.PoolingNHttpClientConnectionManager;
+import org.apache.http.impl.nio.reactor.DefaultConnectingIOReactor;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
+import org.apache.http.nio.conn.NoopIOSessionStrategy;
+import org.apache.http.nio.conn.SchemeIOSessionStrategy;
+import org.apache.http.nio.conn.ssl.SSLIOSessionStrategy;
+import org.apache.http.nio.reactor.IOReactorException;
+import org.apache.http.protocol.HttpContext;
+import org.elasticsearch.client.HttpAsyncResponseConsumerFactory;
+import org.elasticsearch.client.RequestOptions;
+import com.xnx3.elasticsearch.ElasticSearchUtil;
+
+/**
+ * 连接elasticsearch的HTTP连接池、超时等设置。 {@link ElasticSearchUtil#getRestHighLevelClient()} 、 {@link ElasticSearchUtil#getRestClient()} 共用同一个连接池
+ * <p>需要在第一次请求之前设置，连接池创建后再修改不会生效。使用如：</p>
+ * <pre>
+ * es.getTransportConfig().setMaxConnTotal(200).setMaxConnPerRoute(50).setSocketTimeout(60000);
+ * </pre>
+ * @author 管雷鸣
+ */
+public class TransportConfig {
+	private static final int DEFAULT_RESPONSE_BUFFER_LIMIT = 100 * 1024 * 1024;	//跟 RequestOptions.DEFAULT 的一样
+
+	private int maxConnTotal = 100;			//连接池中最多的连接数
+	private int maxConnPerRoute = 30;		//连接每个elasticsearch节点最多的连接数
+	private long keepAlive = 60000;			//空闲的连接最多保持多久，单位毫秒
+	private int ioThreadCount = Runtime.getRuntime().availableProcessors();	//处理网络读写的I/O线程数
+	private int connectTimeout = 1000;		//建立连接的超时时间，单位毫秒
+	private int socketTimeout = 30000;		//等待响应的超时时间，单位毫秒
+	private int connectionRequestTimeout = -1;	//连接池满了时，等待空闲连接的超时时间，单位毫秒
+	private int responseBufferLimit = DEFAULT_RESPONSE_BUFFER_LIMIT;	//一次响应在内存中最多缓冲的字节数
+	private SSLContext sslContext;			//https时使用的SSLContext
+	private long sniffInterval = 0;			//多久发现一次集群中的节点，单位毫秒。0则不发现，只使用创建时传入的节点
+	private boolean balanceNodes = false;	//是否按节点的角色、响应情况选择节点
+
+	/**
+	 * 设置连接池中最多的连接数，所有elasticsearch节点加起来
+	 * @param maxConnTotal 默认100
+	 * @return 当前对象
+	 */
+	public TransportConfig setMaxConnTotal(int maxConnTotal) {
+		this.maxConnTotal = maxConnTotal;
+		return this;
+	}
+
+	/**
+	 * 设置连接每个elasticsearch节点最多的连接数。同时发起的请求超过这个数，多出的会等待空闲连接
+	 * @param maxConnPerRoute 默认30
+	 * @return 当前对象
+	 */
+	public TransportConfig setMaxConnPerRoute(int maxConnPerRoute) {
+		this.maxConnPerRoute = maxConnPerRoute;
+		return this;
+	}
+
+	/**
+	 * 设置空闲的连接最多保持多久，超过后关闭，不再复用。要比中间的负载均衡、防火墙断开空闲连接的时间短，避免复用已被断开的连接
+	 * <p>elasticsearch的响应中带有 Keep-Alive 的，取两者中较小的</p>
+	 * @param keepAlive 单位毫秒，默认60000。传入0则一直保持，直到被对方关闭
+	 * @return 当前对象
+	 */
+	public TransportConfig setKeepAlive(long keepAlive) {
+		this.keepAlive = keepAlive;
+		return this;
+	}
+
+	/**
+	 * 设置处理网络读写的I/O线程数。只负责收发数据，不执行请求的回调，一般不需要超过CPU核数
+	 * @param ioThreadCount 默认为CPU核数
+	 * @return 当前对象
+	 */
+	public TransportConfig setIoThreadCount(int ioThreadCount) {
+		this.ioThreadCount = ioThreadCount;
+		return this;
+	}
+
+	/**
+	 * 设置建立连接的超时时间
+	 * @param connectTimeout 单位毫秒，默认1000
+	 * @return 当前对象
+	 */
+	public TransportConfig setConnectTimeout(int connectTimeout) {
+		this.connectTimeout = connectTimeout;
+		return this;
+	}
+
+	/**
+	 * 设置等待响应的超时时间。导出、合并段等耗时的请求，需要调大
+	 * @param socketTimeout 单位毫秒，默认30000
+	 * @return 当前对象
+	 */
+	public TransportConfig setSocketTimeout(int socketTimeout) {
+		this.socketTimeout = socketTimeout;
+		return this;
+	}
+
+	/**
+	 * 设置连接池满了时，等待空闲连接的超时时间。超时后请求失败，而不是一直排队
+	 * @param connectionRequestTimeout 单位毫秒，默认-1，一直等待
+	 * @return 当前对象
+	 */
+	public TransportConfig setConnectionRequestTimeout(int connectionRequestTimeout) {
+		this.connectionRequestTimeout = connectionRequestTimeout;
+		return this;
+	}
+
+	/**
+	 * 设置一次响应在内存中最多缓冲的字节数，超过后这次请求失败，避免一次查询过多的数据撑爆内存
+	 * @param responseBufferLimit 单位字节，默认100MB
+	 * @return 当前对象
+	 */
+	public TransportConfig setResponseBufferLimit(int responseBufferLimit) {
+		this.responseBufferLimit = responseBufferLimit;
+		return this;
+	}
+
+	/**
+	 * 设置https时使用的 {@link SSLContext} ，如使用自签名的证书
+	 * @param sslContext 默认为null，使用 {@link SSLContext#getDefault()}
+	 * @return 当前对象
+	 */
+	public TransportConfig setSslContext(SSLContext sslContext) {
+		this.sslContext = sslContext;
+		return this;
+	}
+
+	/**
+	 * 开启节点发现。定时获取集群中全部的节点及其角色，集群扩容、缩容后不需要修改传入的节点，有节点故障时也会提前发现一次。见 {@link NodeSniffer}
+	 * <p>发现的节点中专用的master节点（只有 master 角色）不会收到请求。开启 {@link #setBalanceNodes(boolean)} 的，还会按角色、响应情况选择节点</p>
+	 * <p>elasticsearch跟程序之间有负载均衡、或者节点的 publish_address 程序访问不到的，不要开启</p>
+	 * @param sniffInterval 多久发现一次，单位毫秒，如 300000 。默认0，不发现
+	 * @return 当前对象
+	 */
+	public TransportConfig setSniffInterval(long sniffInterval) {
+		this.sniffInterval = sniffInterval;
+		return this;
+	}
+
+	/**
+	 * 开启按节点的角色、响应情况选择节点。查询、批量写入发往各自适合的节点，响应变慢、出错的节点少收到请求。见 {@link NodeBalancer}
+	 * <p>按角色选择需要同时开启 {@link #setSniffInterval(long)} ，否则不知道节点的角色，只按响应情况选择</p>
+	 * @param balanceNodes 默认false，在节点间轮流发送
+	 * @return 当前对象
+	 */
+	public TransportConfig setBalanceNodes(boolean balanceNodes) {
+		this.balanceNodes = balanceNodes;
+		return this;
+	}
+
+	public long getSniffInterval() {
+		return sniffInterval;
+	}
+
+	public boolean isBalanceNodes() {
+		return balanceNodes;
+	}
+
+	public int getMaxConnTotal() {
+		return maxConnTotal;
+	}
+
+	public int getMaxConnPerRoute() {
+		return maxConnPerRoute;
+	}
+
+	public long getKeepAlive() {
+		return keepAlive;
+	}
+
+	public int getIoThreadCount() {
+		return ioThreadCount;
+	}
+
+	public int getConnectTimeout() {
+		return connectTimeout;
+	}
+
+	public int getSocketTimeout() {
+		return socketTimeout;
+	}
+
+	public int getConnectionRequestTimeout() {
+		return connectionRequestTimeout;
+	}
+
+	public int getResponseBufferLimit() {
+		return responseBufferLimit;
+	}
+
+	/**
+	 * 按当前的设置创建连接池
+	 * @throws IOReactorException I/O线程创建失败
+	 */
+	public PoolingNHttpClientConnectionManager createConnectionManager() throws IOReactorException {
+		IOReactorConfig ioReactorConfig = IOReactorConfig.custom()
+				.setIoThreadCount(ioThreadCount)
+				.setConnectTimeout(connectTimeout)
+				.setSoTimeout(socketTimeout)
+				.setSoKeepAlive(true)
+				.build();
+		//自己创建连接池时，HttpAsyncClientBuilder 中的 SSLContext 不再生效，在这里设置
+		SSLContext ssl = sslContext;
+		if(ssl == null){
+			try {
+				ssl = SSLContext.getDefault();
+			} catch (NoSuchAlgorithmException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+		PoolingNHttpClientConnectionManager connectionManager = new PoolingNHttpClientConnectionManager(new DefaultConnectingIOReactor(ioReactorConfig),
+				RegistryBuilder.<SchemeIOSessionStrategy>create()
+					.register("http", NoopIOSessionStrategy.INSTANCE)
+					.register("https", new SSLIOSessionStrategy(ssl, SSLIOSessionStrategy.getDefaultHostnameVerifier()))
+					.build());
+		connectionManager.setMaxTotal(maxConnTotal);
+		connectionManager.setDefaultMaxPerRoute(maxConnPerRoute);
+		return connectionManager;
+	}
+
+	/**
+	 * 按当前的设置修改请求的超时时间
+	 */
+	public RequestConfig.Builder requestConfig(RequestConfig.Builder builder){
+		return builder.setConnectTimeout(connectTimeout)
+				.setSocketTimeout(socketTimeout)
+				.setConnectionRequestTimeout(connectionRequestTimeout);
+	}
+
+	/**
+	 * 空闲连接保持的时间。响应中带有 Keep-Alive 的，取两者中较小的
+	 */
+	public ConnectionKeepAliveStrategy keepAliveStrategy(){
+		final long keepAlive = this.keepAlive;
+		return new ConnectionKeepAliveStrategy() {
+			public long getKeepAliveDuration(HttpResponse response, HttpContext context) {
+				long duration = DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(response, context);
+				if(keepAlive <= 0){
+					return duration;
+				}
+				return duration > 0 ? Math.min(duration, keepAlive) : keepAlive;
+			}
+		};
+	}
+
+	/**
+	 * 按当前的设置创建请求的 {@link RequestOptions}
+	 */
+	public RequestOptions requestOptions(){
+		if(responseBufferLimit == DEFAULT_RESPONSE_BUFFER_LIMIT){
+			return RequestOptions.DEFAULT;
+		}
+		RequestOptions.Builder builder = RequestOptions.DEFAULT.toBuilder();
+		builder.setHttpAsyncResponseConsumerFactory(new HttpAsyncResponseConsumerFactory.HeapBufferedResponseConsumerFactory(responseBufferLimit));
+		return builder.build();
+	}
+
+	@Override
+	public String toString() {
+		return "TransportConfig [maxConnTotal=" + maxConnTotal + ", maxConnPerRoute=" + maxConnPerRoute + ", keepAlive=" + keepAlive
+				+ ", ioThreadCount=" + ioThreadCount + ", connectTimeout=" + connectTimeout + ", socketTimeout=" + socketTimeout
+				+ ", connectionRequestTimeout=" + connectionRequestTimeout + ", responseBufferLimit=" + responseBufferLimit + "]";
+	}
+}